@@ -19,10 +19,18 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.ibericart.fuelanalyzer.R;
+import com.ibericart.fuelanalyzer.connection.DeviceCache;
 import com.ibericart.fuelanalyzer.util.Constants;
+import com.ibericart.fuelanalyzer.util.SharedDeviceCache;
 
+import java.util.Comparator;
 import java.util.Set;
 
+/**
+ * Lists the devices to connect to. The paired devices and the adapters connected to
+ * before (see {@link DeviceCache}) are listed right away, the OBD adapters first,
+ * and a discovery looks for new devices until it finds a known adapter.
+ */
 public class DeviceListActivity extends Activity {
 
     private static final String TAG = "DeviceListActivity";
@@ -34,6 +42,9 @@ public class DeviceListActivity extends Activity {
 
     private Button scanButton;
 
+    // the devices seen before, shared with the BluetoothService which fingerprints them
+    private DeviceCache deviceCache;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         // restore any saved state
@@ -52,7 +63,6 @@ public class DeviceListActivity extends Activity {
         scanButton = (Button) findViewById(R.id.button_scan);
         scanButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                addPairedDevices();
                 discoverDevices();
                 v.setVisibility(View.GONE);
             }
@@ -86,6 +96,9 @@ public class DeviceListActivity extends Activity {
         filter = new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         this.registerReceiver(broadcastReceiver, filter);
 
+        // the devices seen before, shared with the service which fingerprints them
+        deviceCache = SharedDeviceCache.get(this);
+
         // get the Bluetooth adapter
         adapter = BluetoothAdapter.getDefaultAdapter();
         if (adapter == null) {
@@ -95,6 +108,10 @@ public class DeviceListActivity extends Activity {
                     R.string.bluetooth_not_supported, Toast.LENGTH_SHORT).show();
             scanButton.setEnabled(false);
         }
+        else if (adapter.isEnabled()) {
+            // no need to wait for a scan to offer the known devices
+            addPairedDevices();
+        }
     }
 
     @Override
@@ -119,6 +136,9 @@ public class DeviceListActivity extends Activity {
 
         // unregister broadcast receivers
         this.unregisterReceiver(broadcastReceiver);
+
+        // remember the devices discovered meanwhile
+        SharedDeviceCache.save();
     }
 
     @Override
@@ -130,6 +150,7 @@ public class DeviceListActivity extends Activity {
                 Log.d(TAG, "Bluetooth is now enabled");
                 // enable the Scan button
                 scanButton.setEnabled(true);
+                addPairedDevices();
             } else {
                 // the user didn't enable Bluetooth or an error occurred
                 Log.d(TAG, "Bluetooth not enabled");
@@ -138,17 +159,32 @@ public class DeviceListActivity extends Activity {
         }
     }
 
+    /**
+     * Lists the paired devices and the adapters connected to before,
+     * the most likely OBD adapters first.
+     */
     private void addPairedDevices() {
+        pairedDevicesAdapter.clear();
+
         // display the already paired devices
         Set<BluetoothDevice> pairedDevices = adapter.getBondedDevices();
+        for (BluetoothDevice device : pairedDevices) {
+            pairedDevicesAdapter.add(device.getName() + Constants.NEW_LINE + device.getAddress());
+        }
 
-        // if there are any paired devices add them to the relevant ArrayAdapter
-        if (pairedDevices.size() > 0) {
-            findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-            for (BluetoothDevice device : pairedDevices) {
-                pairedDevicesAdapter.add(device.getName() + Constants.NEW_LINE + device.getAddress());
+        // and the adapters which were reached without pairing
+        for (DeviceCache.Device device : deviceCache.getKnownAdapters()) {
+            String info = device.getName() + Constants.NEW_LINE + device.getAddress();
+            if (pairedDevicesAdapter.getPosition(info) < 0) {
+                pairedDevicesAdapter.add(info);
             }
         }
+
+        // if there are any devices sort them in the relevant ArrayAdapter
+        if (pairedDevicesAdapter.getCount() > 0) {
+            findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
+            pairedDevicesAdapter.sort(rankComparator);
+        }
         else {
             String noDevices = getResources().getText(R.string.none_paired).toString();
             pairedDevicesAdapter.add(noDevices);
@@ -190,9 +226,20 @@ public class DeviceListActivity extends Activity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 // get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                // if it's already paired, skip it, because it's been listed already
-                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    newDevicesAdapter.add(device.getName() + Constants.NEW_LINE + device.getAddress());
+                deviceCache.seen(device.getAddress(), device.getName(),
+                        System.currentTimeMillis());
+                // if it's already paired or known, skip it, because it's been listed already
+                String info = device.getName() + Constants.NEW_LINE + device.getAddress();
+                if (device.getBondState() != BluetoothDevice.BOND_BONDED
+                        && pairedDevicesAdapter.getPosition(info) < 0
+                        && newDevicesAdapter.getPosition(info) < 0) {
+                    newDevicesAdapter.add(info);
+                    newDevicesAdapter.sort(rankComparator);
+                }
+                // an adapter which answered before is in range, it's the one to connect to
+                if (deviceCache.isKnownAdapter(device.getAddress())) {
+                    Log.d(TAG, "known adapter found, stopping discovery");
+                    adapter.cancelDiscovery();
                 }
                 // when discovery is finished, change the Activity title
             }
@@ -207,6 +254,29 @@ public class DeviceListActivity extends Activity {
         }
     };
 
+    /**
+     * Orders the listed devices by how likely they are to be OBD adapters,
+     * see {@link DeviceCache#rank(String, String)}.
+     */
+    private final Comparator<String> rankComparator = new Comparator<String>() {
+
+        @Override
+        public int compare(String a, String b) {
+            return Integer.compare(rank(a), rank(b));
+        }
+
+        private int rank(String info) {
+            // the same format as the one parsed in the click listener
+            if (info.length() < Constants.MAC_ADDRESS_LENGTH) {
+                return DeviceCache.RANK_OTHER;
+            }
+            String address = info.substring(info.length() - Constants.MAC_ADDRESS_LENGTH);
+            String name = info.substring(0, Math.max(0, info.length()
+                    - Constants.MAC_ADDRESS_LENGTH - Constants.NEW_LINE.length()));
+            return deviceCache.rank(address, name);
+        }
+    };
+
     /**
      * Defines the listener which fires when the user clicks a device.
      */
@@ -4,13 +4,16 @@ import android.app.ActionBar;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -28,10 +31,17 @@ import android.widget.Toast;
 
 import com.ibericart.fuelanalyzer.R;
 import com.ibericart.fuelanalyzer.activity.DeviceListActivity;
+import com.ibericart.fuelanalyzer.obd.Pids;
+import com.ibericart.fuelanalyzer.obd.PollingScheduler;
+import com.ibericart.fuelanalyzer.obd.ReadBuffer;
 import com.ibericart.fuelanalyzer.service.BluetoothService;
+import com.ibericart.fuelanalyzer.storage.LiveSnapshot;
 import com.ibericart.fuelanalyzer.util.Constants;
 import com.ibericart.fuelanalyzer.util.logger.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This fragment controls Bluetooth regarding communication with other devices.
  */
@@ -39,7 +49,54 @@ public class BluetoothConnectionFragment extends Fragment {
 
     private static final String TAG = "BluetoothConnectionFragment";
 
+    // the number of lines kept in the conversation view, the values themselves
+    // are kept by the service's TimeSeriesStore
+    private static final int MAX_CONVERSATION_LINES = 200;
+
+    // the PIDs needed to compute the fuel consumption, with their target rates (Hz)
+    // and priorities: fast for the fuel calculation, slow for the diagnostics
+    private static final int[] POLLED_PIDS = {
+            Pids.ENGINE_RPM,
+            Pids.MAF_AIR_FLOW_RATE,
+            Pids.VEHICLE_SPEED,
+            Pids.INTAKE_MANIFOLD_PRESSURE,
+            Pids.INTAKE_AIR_TEMPERATURE,
+            Pids.COOLANT_TEMPERATURE,
+            Pids.FUEL_TANK_LEVEL
+    };
+    private static final float[] POLL_RATES = {10f, 10f, 5f, 5f, 1f, 0.2f, 0.05f};
+    private static final int[] POLL_PRIORITIES = {
+            PollingScheduler.PRIORITY_HIGH,
+            PollingScheduler.PRIORITY_HIGH,
+            PollingScheduler.PRIORITY_HIGH,
+            PollingScheduler.PRIORITY_NORMAL,
+            PollingScheduler.PRIORITY_NORMAL,
+            PollingScheduler.PRIORITY_LOW,
+            PollingScheduler.PRIORITY_LOW
+    };
+
+    // the signals shown above the conversation, with the views and the formats showing them
+    private static final int[] DISPLAYED_SIGNALS = {
+            Pids.ENGINE_RPM,
+            Pids.VEHICLE_SPEED,
+            BluetoothService.SIGNAL_INSTANT_CONSUMPTION,
+            BluetoothService.SIGNAL_AVERAGE_CONSUMPTION
+    };
+    private static final int[] SIGNAL_VIEW_IDS = {
+            R.id.value_rpm,
+            R.id.value_speed,
+            R.id.value_consumption,
+            R.id.value_average_consumption
+    };
+    private static final int[] SIGNAL_FORMATS = {
+            R.string.value_rpm,
+            R.string.value_speed,
+            R.string.value_consumption,
+            R.string.value_average_consumption
+    };
+
     // layout Views
+    private final TextView[] signalViews = new TextView[DISPLAYED_SIGNALS.length];
     private ListView conversationView;
     private EditText outEditText;
     private Button sendButton;
@@ -69,10 +126,48 @@ public class BluetoothConnectionFragment extends Fragment {
      */
     private BluetoothService service = null;
 
+    /**
+     * whether the fuel related PIDs are being polled
+     */
+    private boolean polling = false;
+
+    // the options chosen in the menu
+    private SharedPreferences settings;
+
+    /**
+     * the lines received since the last frame, added to the conversation view all at once
+     */
+    private final List<String> pendingLines = new ArrayList<String>();
+
+    /**
+     * the signals which changed since the last frame, see {@link LiveSnapshot}
+     */
+    private int[] changedSignals;
+    private float[] changedValues;
+
+    /**
+     * whether a frame callback is posted to the Choreographer
+     */
+    private boolean frameScheduled = false;
+
+    /**
+     * Refreshes the views once per display frame, however many messages arrived meanwhile.
+     */
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameScheduled = false;
+            flushConversation();
+            showChangedSignals();
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
+        settings = getActivity().getSharedPreferences(Constants.SETTINGS_PREFERENCES,
+                Context.MODE_PRIVATE);
         // get local Bluetooth adapter
         adapter = BluetoothAdapter.getDefaultAdapter();
 
@@ -102,6 +197,8 @@ public class BluetoothConnectionFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        frameScheduled = false;
         if (service != null) {
             service.stop();
         }
@@ -119,6 +216,8 @@ public class BluetoothConnectionFragment extends Fragment {
             if (service.getState() == BluetoothService.STATE_NONE) {
                 // start the Bluetooth service
                 service.start();
+                // and go straight back to the adapter used last time, without a scan
+                service.connectLastDevice();
             }
         }
     }
@@ -131,6 +230,9 @@ public class BluetoothConnectionFragment extends Fragment {
 
     @Override
     public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
+        for (int i = 0; i < signalViews.length; i++) {
+            signalViews[i] = (TextView) view.findViewById(SIGNAL_VIEW_IDS[i]);
+        }
         conversationView = (ListView) view.findViewById(R.id.in);
         outEditText = (EditText) view.findViewById(R.id.edit_text_out);
         sendButton = (Button) view.findViewById(R.id.button_send);
@@ -163,7 +265,14 @@ public class BluetoothConnectionFragment extends Fragment {
         });
 
         // initialize the BluetoothService to perform bluetooth connections
-        service = new BluetoothService(getActivity(), handler);
+        // the adapters are always connected to, they never connect to the app
+        service = new BluetoothService(getActivity(), handler, true);
+        // raising the serial rate is an optional step of the connection, off by default
+        service.setNegotiateBaudRate(settings.getBoolean(Constants.KEY_NEGOTIATE_BAUD_RATE,
+                false));
+        int signalCount = service.getLiveSnapshot().getSignalCount();
+        changedSignals = new int[signalCount];
+        changedValues = new float[signalCount];
 
         // initialize the buffer for outgoing messages
         outStringBuffer = new StringBuffer("");
@@ -195,8 +304,9 @@ public class BluetoothConnectionFragment extends Fragment {
 
         // check that there's actually something to send
         if (message.length() > 0) {
-            // get the message bytes and tell the BluetoothService to write
-            byte[] send = message.getBytes();
+            // get the message bytes and tell the BluetoothService to write,
+            // the adapter only runs a command once it's terminated by a carriage return
+            byte[] send = (message + "\r").getBytes();
             service.write(send);
 
             // reset the string buffer to zero and clear the edit text field
@@ -254,6 +364,67 @@ public class BluetoothConnectionFragment extends Fragment {
         actionBar.setSubtitle(subTitle);
     }
 
+    /**
+     * Queues a line for the conversation view, which is updated at the next frame.
+     *
+     * @param line The line to add.
+     */
+    private void addConversationLine(String line) {
+        pendingLines.add(line);
+        scheduleFrame();
+    }
+
+    /**
+     * Asks the Choreographer for a callback at the next display frame, unless one is pending.
+     */
+    private void scheduleFrame() {
+        if (!frameScheduled) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    }
+
+    /**
+     * Adds the pending lines to the conversation view with a single relayout,
+     * dropping the oldest lines once the view is full.
+     */
+    private void flushConversation() {
+        if (pendingLines.isEmpty()) {
+            return;
+        }
+        // lines which would be dropped right away are not even added
+        int first = Math.max(0, pendingLines.size() - MAX_CONVERSATION_LINES);
+        conversationArrayAdapter.setNotifyOnChange(false);
+        for (int i = first; i < pendingLines.size(); i++) {
+            if (conversationArrayAdapter.getCount() >= MAX_CONVERSATION_LINES) {
+                conversationArrayAdapter.remove(conversationArrayAdapter.getItem(0));
+            }
+            conversationArrayAdapter.add(pendingLines.get(i));
+        }
+        pendingLines.clear();
+        // also turns the notifications back on
+        conversationArrayAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Redraws the views of the signals which changed since the last frame.
+     * The values come from the service's {@link LiveSnapshot}, which the decode thread
+     * keeps up to date, so the other views are left alone whatever the data rate.
+     */
+    private void showChangedSignals() {
+        if (service == null) {
+            return;
+        }
+        int count = service.getLiveSnapshot().collectChanges(changedSignals, changedValues);
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < DISPLAYED_SIGNALS.length; j++) {
+                if (DISPLAYED_SIGNALS[j] == changedSignals[i]) {
+                    signalViews[j].setText(getString(SIGNAL_FORMATS[j], changedValues[i]));
+                }
+            }
+        }
+    }
+
     /**
      * The handler that gets information back from the BluetoothService
      */
@@ -266,6 +437,7 @@ public class BluetoothConnectionFragment extends Fragment {
                     switch (msg.arg1) {
                         case BluetoothService.STATE_CONNECTED:
                             setStatus(getString(R.string.title_connected_to, connectedDeviceName));
+                            pendingLines.clear();
                             conversationArrayAdapter.clear();
                             break;
                         case BluetoothService.STATE_CONNECTING:
@@ -279,15 +451,21 @@ public class BluetoothConnectionFragment extends Fragment {
                     break;
                 case Constants.MESSAGE_WRITE:
                     byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    String writeMessage = new String(writeBuf);
-                    conversationArrayAdapter.add("Me:  " + writeMessage);
+                    // construct a string from the buffer, without the carriage return
+                    String writeMessage = new String(writeBuf).trim();
+                    addConversationLine("Me:  " + writeMessage);
                     break;
                 case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
+                    ReadBuffer readBuf = (ReadBuffer) msg.obj;
                     // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    conversationArrayAdapter.add(connectedDeviceName + ":  " + readMessage);
+                    // then give the buffer back to the service's pool
+                    String readMessage = new String(readBuf.data(), 0, readBuf.length());
+                    readBuf.release();
+                    addConversationLine(connectedDeviceName + ":  " + readMessage);
+                    break;
+                case Constants.MESSAGE_SAMPLES:
+                    // new values were decoded, show them at the next frame
+                    scheduleFrame();
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
                     // save the connected device's name
@@ -321,6 +499,14 @@ public class BluetoothConnectionFragment extends Fragment {
                     connectDevice(data, false);
                 }
                 break;
+            case Constants.REQUEST_CONNECT_DEVICE_RACE:
+                // when DeviceListActivity returns with a device to connect to
+                if (resultCode == Activity.RESULT_OK) {
+                    String address = data.getExtras().getString(Constants.EXTRA_DEVICE_ADDRESS);
+                    // try all the socket types at once
+                    service.connectRacing(adapter.getRemoteDevice(address));
+                }
+                break;
             case Constants.REQUEST_ENABLE_BLUETOOTH:
                 // when the request to enable Bluetooth returns
                 if (resultCode == Activity.RESULT_OK) {
@@ -358,6 +544,48 @@ public class BluetoothConnectionFragment extends Fragment {
         inflater.inflate(R.menu.bluetooth_chat, menu);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        MenuItem pollItem = menu.findItem(R.id.poll);
+        pollItem.setTitle(polling ? R.string.stop_polling : R.string.start_polling);
+        menu.findItem(R.id.negotiate_baud_rate).setChecked(
+                settings.getBoolean(Constants.KEY_NEGOTIATE_BAUD_RATE, false));
+    }
+
+    /**
+     * Turns raising the serial rate of the adapter on or off, from the next connection on.
+     */
+    private void toggleNegotiateBaudRate() {
+        boolean negotiate = !settings.getBoolean(Constants.KEY_NEGOTIATE_BAUD_RATE, false);
+        settings.edit()
+                .putBoolean(Constants.KEY_NEGOTIATE_BAUD_RATE, negotiate)
+                .apply();
+        if (service != null) {
+            service.setNegotiateBaudRate(negotiate);
+        }
+        getActivity().supportInvalidateOptionsMenu();
+    }
+
+    /**
+     * Starts or stops polling the PIDs needed to compute the fuel consumption.
+     */
+    private void togglePolling() {
+        if (service.getState() != BluetoothService.STATE_CONNECTED) {
+            Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        polling = !polling;
+        if (polling) {
+            for (int i = 0; i < POLLED_PIDS.length; i++) {
+                service.startPolling(POLLED_PIDS[i], POLL_RATES[i], POLL_PRIORITIES[i]);
+            }
+        }
+        else {
+            service.stopPolling(POLLED_PIDS);
+        }
+        getActivity().supportInvalidateOptionsMenu();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -373,6 +601,22 @@ public class BluetoothConnectionFragment extends Fragment {
                 startActivityForResult(serverIntent, Constants.REQUEST_CONNECT_DEVICE_INSECURE);
                 return true;
             }
+            case R.id.race_connect_scan: {
+                // launch the DeviceListActivity to see devices and perform a scan
+                Intent serverIntent = new Intent(getActivity(), DeviceListActivity.class);
+                startActivityForResult(serverIntent, Constants.REQUEST_CONNECT_DEVICE_RACE);
+                return true;
+            }
+            case R.id.poll: {
+                // start or stop polling the fuel related PIDs
+                togglePolling();
+                return true;
+            }
+            case R.id.negotiate_baud_rate: {
+                // raise the serial rate of the adapters after connecting, or stop doing so
+                toggleNegotiateBaudRate();
+                return true;
+            }
             case R.id.discoverable: {
                 // ensure this device is discoverable by others
                 ensureDiscoverable();
@@ -5,17 +5,53 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
+import com.ibericart.fuelanalyzer.connection.Backoff;
+import com.ibericart.fuelanalyzer.connection.ConnectStats;
+import com.ibericart.fuelanalyzer.connection.ConnectionStateMachine;
+import com.ibericart.fuelanalyzer.connection.DeviceCache;
+import com.ibericart.fuelanalyzer.fuel.FuelConsumptionEngine;
+import com.ibericart.fuelanalyzer.metrics.LatencyHistogram;
+import com.ibericart.fuelanalyzer.obd.AdapterInitializer;
+import com.ibericart.fuelanalyzer.obd.BaudRateCache;
+import com.ibericart.fuelanalyzer.obd.BaudRateNegotiator;
+import com.ibericart.fuelanalyzer.obd.CapabilityCache;
+import com.ibericart.fuelanalyzer.obd.ObdSession;
+import com.ibericart.fuelanalyzer.obd.PollingScheduler;
+import com.ibericart.fuelanalyzer.obd.ProtocolCache;
+import com.ibericart.fuelanalyzer.obd.ReadBuffer;
+import com.ibericart.fuelanalyzer.obd.ReadBufferPool;
+import com.ibericart.fuelanalyzer.obd.TimeoutTuner;
+import com.ibericart.fuelanalyzer.storage.LiveSnapshot;
+import com.ibericart.fuelanalyzer.storage.TimeSeriesStore;
+import com.ibericart.fuelanalyzer.storage.TripRecorder;
+import com.ibericart.fuelanalyzer.transport.RacingTransport;
+import com.ibericart.fuelanalyzer.transport.RfcommTransport;
+import com.ibericart.fuelanalyzer.transport.TimeoutTransport;
+import com.ibericart.fuelanalyzer.transport.Transport;
 import com.ibericart.fuelanalyzer.util.logger.Log;
 import com.ibericart.fuelanalyzer.util.Constants;
+import com.ibericart.fuelanalyzer.util.SharedDeviceCache;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * As seen at https://github.com/googlesamples/android-BluetoothChat
@@ -24,6 +60,9 @@ import java.util.UUID;
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
+ * Connections go through a {@link Transport}, so adapters can also be
+ * reached over TCP (see {@link #connect(Transport)}).
+ * In client only mode the service never listens, it only connects out to the adapters.
  */
 public class BluetoothService {
 
@@ -39,82 +78,371 @@ public class BluetoothService {
     private static final UUID MY_UUID_INSECURE =
             UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
 
+    // size of the ring buffer used to reassemble the adapter's responses
+    private static final int FRAME_BUFFER_SIZE = 4096;
+
+    // number of buffers available for the answers to the user's commands
+    // the UI Activity hasn't consumed yet
+    private static final int READ_BUFFER_COUNT = 16;
+
+    // engine displacement (L) used to estimate the air flow of cars without a MAF sensor
+    private static final float DEFAULT_ENGINE_DISPLACEMENT = 1.6f;
+
+    // how long connecting to a Bluetooth device may take before giving up
+    private static final long CONNECT_TIMEOUT_MILLIS = 10000;
+
+    // how long the historically fastest way of connecting runs alone when racing
+    private static final long RACE_HEAD_START_MILLIS = 2000;
+
+    // the ways of connecting raced by connectRacing(), in their default order
+    private static final List<String> RACE_STRATEGIES = Arrays.asList(
+            RfcommTransport.STRATEGY_SECURE, RfcommTransport.STRATEGY_INSECURE,
+            RfcommTransport.STRATEGY_CHANNEL);
+
+    // how long resetting and configuring the adapter may take, protocol search included
+    private static final long INIT_TIMEOUT_MILLIS = AdapterInitializer.DEFAULT_TIMEOUT_MILLIS;
+
+    // how many times a lost device is retried before going back to listening
+    private static final int MAX_RECONNECT_ATTEMPTS = 12;
+
+    // where the last connected device is remembered across launches
+    private static final String PREFERENCES_NAME = "BluetoothService";
+    private static final String KEY_LAST_DEVICE_ADDRESS = "last_device_address";
+    private static final String KEY_LAST_DEVICE_SECURE = "last_device_secure";
+    private static final String KEY_LAST_DEVICE_RACE = "last_device_race";
+    private static final String KEY_CONNECT_STATS = "connect_stats";
+    private static final String KEY_PROTOCOLS = "protocols";
+    private static final String KEY_CAPABILITIES = "capabilities";
+    private static final String KEY_BAUD_RATES = "baud_rates";
+
+    // where the trips are recorded, inside the app's files directory
+    private static final String TRIP_DIRECTORY = "trips";
+    private static final String TRIP_FILE_PREFIX = "trip-";
+    private static final String TRIP_FILE_SUFFIX = ".bin";
+
     // member fields
     private final BluetoothAdapter adapter;
     private final Handler handler;
-    private AcceptThread secureAcceptThread;
-    private AcceptThread insecureAcceptThread;
-    private ConnectThread connectThread;
-    private ConnectedThread connectedThread;
-    private int state;
+    private final ReadBufferPool readBufferPool;
+    private final PollingScheduler pollingScheduler;
+    private final TimeSeriesStore timeSeriesStore;
+    private final FuelConsumptionEngine fuelConsumptionEngine;
+    private final LiveSnapshot liveSnapshot;
+    private final File tripDirectory;
+    private final ConnectionStateMachine stateMachine = new ConnectionStateMachine();
+    private final SharedPreferences preferences;
+    private final DeviceCache deviceCache;
+    private final ConnectStats connectStats;
+    private final ProtocolCache protocolCache;
+    private final CapabilityCache capabilityCache;
+    private final BaudRateCache baudRateCache;
+    private final boolean clientOnly;
+
+    // reconnects to the last device when the connection is lost
+    private final Backoff reconnectBackoff = new Backoff();
+    private final ScheduledExecutorService reconnectTimer =
+            Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<ScheduledFuture<?>> pendingReconnect =
+            new AtomicReference<ScheduledFuture<?>>();
+    private final Runnable reconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            pendingReconnect.set(null);
+            connectLastDevice();
+        }
+    };
+    private volatile boolean reconnecting;
+
+    // the time from the start of a connection (or the loss of the previous one)
+    // to the first value received over it
+    private final LatencyHistogram timeToFirstSample = new LatencyHistogram();
+    private volatile long gapStart;
+
+    // the time start() takes, most of it registering the server sockets unless client only
+    private final LatencyHistogram startTime = new LatencyHistogram();
+
+    // the time the initialization of the adapter takes, see AdapterInitializer
+    private final LatencyHistogram initTime = new LatencyHistogram();
+
+    // the timing of the adapter tuned for every vehicle met since the service started
+    private final Map<String, TimeoutTuner> timeoutTuners = new HashMap<String, TimeoutTuner>();
+    private volatile TimeoutTuner timeoutTuner;
+
+    // whether the serial rate of the adapters is raised after connecting
+    private volatile boolean negotiateBaudRate;
+
+    // the threads are swapped atomically, so whoever takes one out of its slot cancels it
+    private final AtomicReference<AcceptThread> secureAcceptThread =
+            new AtomicReference<AcceptThread>();
+    private final AtomicReference<AcceptThread> insecureAcceptThread =
+            new AtomicReference<AcceptThread>();
+    private final AtomicReference<ConnectThread> connectThread =
+            new AtomicReference<ConnectThread>();
+    private final AtomicReference<ConnectedThread> connectedThread =
+            new AtomicReference<ConnectedThread>();
+
+    // the values computed from the PIDs, kept in the live snapshot next to them
+    public static final int SIGNAL_INSTANT_CONSUMPTION = LiveSnapshot.FIRST_DERIVED_SIGNAL;
+    public static final int SIGNAL_AVERAGE_CONSUMPTION = LiveSnapshot.FIRST_DERIVED_SIGNAL + 1;
+    private static final int DERIVED_SIGNAL_COUNT = 2;
 
     // constants that indicate the current connection state
-    public static final int STATE_NONE = 0;       // we're doing nothing
-    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
-    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_NONE = ConnectionStateMachine.STATE_NONE;
+    public static final int STATE_LISTEN = ConnectionStateMachine.STATE_LISTEN;
+    public static final int STATE_CONNECTING = ConnectionStateMachine.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = ConnectionStateMachine.STATE_CONNECTED;
 
     /**
-     * Constructor. Prepares a new session.
+     * Constructor. Prepares a new session, listening for incoming connections
+     * when started.
      *
      * @param context The UI Activity Context.
      * @param handler A Handler to send messages back to the UI Activity.
      */
     public BluetoothService(Context context, Handler handler) {
+        this(context, handler, false);
+    }
+
+    /**
+     * Constructor. Prepares a new session.
+     * None of the methods of the service blocks on a lock: the connection state is a
+     * {@link ConnectionStateMachine}, and every state change is given to the UI Activity
+     * after the transition.
+     *
+     * @param context    The UI Activity Context.
+     * @param handler    A Handler to send messages back to the UI Activity.
+     * @param clientOnly Whether to only connect out, without ever opening server sockets,
+     *                   which saves their SDP records and two threads blocked on accept.
+     */
+    public BluetoothService(Context context, Handler handler, boolean clientOnly) {
+        this.clientOnly = clientOnly;
         adapter = BluetoothAdapter.getDefaultAdapter();
-        state = STATE_NONE;
         this.handler = handler;
+        readBufferPool = new ReadBufferPool(READ_BUFFER_COUNT, FRAME_BUFFER_SIZE);
+        pollingScheduler = new PollingScheduler();
+        timeSeriesStore = new TimeSeriesStore();
+        fuelConsumptionEngine = FuelConsumptionEngine.gasoline(DEFAULT_ENGINE_DISPLACEMENT);
+        liveSnapshot = new LiveSnapshot(DERIVED_SIGNAL_COUNT);
+        tripDirectory = new File(context.getFilesDir(), TRIP_DIRECTORY);
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        connectStats = ConnectStats.load(preferences.getString(KEY_CONNECT_STATS, null));
+        protocolCache = ProtocolCache.load(preferences.getString(KEY_PROTOCOLS, null));
+        capabilityCache = CapabilityCache.load(preferences.getString(KEY_CAPABILITIES, null));
+        baudRateCache = BaudRateCache.load(preferences.getString(KEY_BAUD_RATES, null));
+        deviceCache = SharedDeviceCache.get(context);
+
+        // give the new state to the Handler so the UI Activity can update
+        stateMachine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int previous, int state) {
+                Log.d(TAG, "setState() " + ConnectionStateMachine.name(previous) + " -> "
+                        + ConnectionStateMachine.name(state));
+                BluetoothService.this.handler.obtainMessage(Constants.MESSAGE_STATE_CHANGE,
+                        state, previous).sendToTarget();
+            }
+        });
+    }
+
+    /**
+     * Return the current connection state. Never blocks.
+     */
+    public int getState() {
+        return stateMachine.getState();
+    }
+
+    /**
+     * Return the pool holding the buffers sent with {@link Constants#MESSAGE_READ}.
+     * Its exhaustion count tells whether the pool is large enough.
+     */
+    public ReadBufferPool getReadBufferPool() {
+        return readBufferPool;
+    }
+
+    /**
+     * Return the scheduler polling the PIDs, which also reports the achieved sample rates.
+     */
+    public PollingScheduler getPollingScheduler() {
+        return pollingScheduler;
+    }
+
+    /**
+     * Return the store holding the values received for every PID during this session.
+     */
+    public TimeSeriesStore getTimeSeriesStore() {
+        return timeSeriesStore;
     }
 
     /**
-     * Set the current state of the connection.
+     * Return the engine computing the fuel consumption from the values received.
+     */
+    public FuelConsumptionEngine getFuelConsumptionEngine() {
+        return fuelConsumptionEngine;
+    }
+
+    /**
+     * Return the latest value of every PID and of the fuel consumption
+     * ({@link #SIGNAL_INSTANT_CONSUMPTION}, {@link #SIGNAL_AVERAGE_CONSUMPTION}),
+     * which the UI Activity reads when it gets {@link Constants#MESSAGE_SAMPLES}.
+     */
+    public LiveSnapshot getLiveSnapshot() {
+        return liveSnapshot;
+    }
+
+    /**
+     * Return the times from the start of a connection, or from the loss of the previous
+     * one when reconnecting, to the first value received, in nanoseconds.
+     */
+    public LatencyHistogram getTimeToFirstSample() {
+        return timeToFirstSample;
+    }
+
+    /**
+     * Set whether the serial rate between the chip of the adapters and their Bluetooth
+     * module is raised after connecting, see {@link BaudRateNegotiator}. Off by default.
+     */
+    public void setNegotiateBaudRate(boolean negotiateBaudRate) {
+        this.negotiateBaudRate = negotiateBaudRate;
+    }
+
+    /**
+     * Return whether the service only connects out, see
+     * {@link #BluetoothService(Context, Handler, boolean)}.
+     */
+    public boolean isClientOnly() {
+        return clientOnly;
+    }
+
+    /**
+     * Return the times {@link #start()} took, in nanoseconds.
+     */
+    public LatencyHistogram getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Return the times the initialization of the adapter took after connecting,
+     * in nanoseconds, see {@link AdapterInitializer}.
+     */
+    public LatencyHistogram getInitTime() {
+        return initTime;
+    }
+
+    /**
+     * Return the tuner of the adapter's timeout for the vehicle connected last, with the
+     * latencies of its ECUs and the requests per second before and after the tuning,
+     * null if no vehicle answered yet.
+     */
+    public TimeoutTuner getTimeoutTuner() {
+        return timeoutTuner;
+    }
+
+    /**
+     * Return the outcome of the past connection attempts made by
+     * {@link #connectRacing(BluetoothDevice)}, per device and way of connecting.
+     */
+    public ConnectStats getConnectStats() {
+        return connectStats;
+    }
+
+    /**
+     * Start polling the given mode 01 PIDs as fast as possible,
+     * in addition to the ones already polled.
      *
-     * @param state An integer defining the current connection state.
+     * @param pids The PIDs to poll.
      */
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + this.state + " -> " + state);
-        this.state = state;
+    public void startPolling(int... pids) {
+        for (int pid : pids) {
+            pollingScheduler.addPid(pid);
+        }
+        kickPolling();
+    }
 
-        // give the new state to the Handler so the UI Activity can update
-        handler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    /**
+     * Start polling the given mode 01 PID at a target rate,
+     * in addition to the ones already polled.
+     *
+     * @param pid      The PID to poll.
+     * @param rate     The target rate in samples per second.
+     * @param priority The priority of the PID when the link can't keep up with all the
+     *                 target rates, see {@link PollingScheduler#addPid(int, float, int)}.
+     */
+    public void startPolling(int pid, float rate, int priority) {
+        pollingScheduler.addPid(pid, rate, priority);
+        kickPolling();
     }
 
     /**
-     * Return the current connection state.
+     * Send the first polling request if the link is idle,
+     * the responses keep the polling going afterwards.
      */
-    public synchronized int getState() {
-        return state;
+    private void kickPolling() {
+        ConnectedThread r = connectedThread.get();
+        if (r != null) {
+            r.pollNext();
+        }
+    }
+
+    /**
+     * Stop polling the given mode 01 PIDs.
+     *
+     * @param pids The PIDs to stop polling.
+     */
+    public void stopPolling(int... pids) {
+        for (int pid : pids) {
+            pollingScheduler.removePid(pid);
+        }
     }
 
     /**
      * Start the service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume()
+     * In client only mode the service just goes back to {@link #STATE_NONE},
+     * ready to connect.
      */
-    public synchronized void start() {
+    public void start() {
         Log.d(TAG, "start");
+        long begin = System.nanoTime();
 
         // cancel any thread attempting to make a connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
-        }
+        cancel(connectThread.getAndSet(null));
 
         // cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        cancel(connectedThread.getAndSet(null));
+
+        if (clientOnly) {
+            stateMachine.moveTo(STATE_NONE);
         }
+        else {
+            stateMachine.moveTo(STATE_LISTEN);
 
-        setState(STATE_LISTEN);
+            // start the thread to listen on a BluetoothServerSocket
+            startAcceptThread(secureAcceptThread, true);
+            startAcceptThread(insecureAcceptThread, false);
+        }
+        recordStartTime(System.nanoTime() - begin);
+    }
 
-        // start the thread to listen on a BluetoothServerSocket
-        if (secureAcceptThread == null) {
-            secureAcceptThread = new AcceptThread(true);
-            secureAcceptThread.start();
+    private void recordStartTime(long nanos) {
+        startTime.record(nanos);
+        Log.i(TAG, "start took " + nanos / 1000 + " us" + (clientOnly ? " (client only)" : "")
+                + ", p50 " + startTime.getValueAtPercentile(50) / 1000 + " us over "
+                + startTime.getCount() + " starts");
+    }
+
+    /**
+     * Start an AcceptThread unless one is already listening in the given slot.
+     */
+    private void startAcceptThread(AtomicReference<AcceptThread> slot, boolean secure) {
+        if (slot.get() != null) {
+            return;
         }
-        if (insecureAcceptThread == null) {
-            insecureAcceptThread = new AcceptThread(false);
-            insecureAcceptThread.start();
+        AcceptThread thread = new AcceptThread(secure);
+        if (slot.compareAndSet(null, thread)) {
+            thread.start();
+        }
+        else {
+            // started meanwhile by another thread
+            thread.cancel();
         }
     }
 
@@ -124,149 +452,438 @@ public class BluetoothService {
      * @param device The BluetoothDevice to connect to.
      * @param secure Socket Security type - Secure (true), Insecure (false)
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to: " + device);
+    public void connect(BluetoothDevice device, boolean secure) {
+        // a connection chosen by the user replaces any reconnection in progress
+        cancelReconnect();
+        connectDevice(device, secure);
+    }
 
-        // cancel any thread attempting to make a connection
-        if (state == STATE_CONNECTING) {
-            if (connectThread != null) {
-                connectThread.cancel();
-                connectThread = null;
-            }
+    private void connectDevice(BluetoothDevice device, boolean secure) {
+        // Bluetooth sockets have no connect timeout of their own
+        startConnect(new TimeoutTransport(new RfcommTransport(device,
+                secure ? MY_UUID_SECURE : MY_UUID_INSECURE, secure), CONNECT_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Connect to a remote device with secure, insecure and channel 1 RFCOMM sockets at
+     * once, keeping the first one which connects, so an adapter which only accepts one
+     * kind doesn't cost a timeout. The way which was the fastest for this device so far
+     * gets a head start, so it usually connects without competing with the others.
+     *
+     * @param device The BluetoothDevice to connect to.
+     */
+    public void connectRacing(BluetoothDevice device) {
+        // a connection chosen by the user replaces any reconnection in progress
+        cancelReconnect();
+        raceDevice(device);
+    }
+
+    private void raceDevice(BluetoothDevice device) {
+        final String address = device.getAddress();
+        List<String> strategies = connectStats.rank(address, RACE_STRATEGIES);
+        Map<String, RfcommTransport> candidates = new LinkedHashMap<String, RfcommTransport>();
+        for (String strategy : strategies) {
+            candidates.put(strategy, createTransport(device, strategy));
         }
+        // no head start until some way is known to work with this device
+        long headStart = connectStats.getSuccesses(address, strategies.get(0)) > 0
+                ? RACE_HEAD_START_MILLIS : 0;
+        RacingTransport racing = new RacingTransport(candidates, headStart,
+                new RacingTransport.Listener() {
+                    @Override
+                    public void onResult(String strategy, boolean success, long latencyMillis) {
+                        Log.d(TAG, "connect " + strategy + " to " + address + ": "
+                                + (success ? "won" : "failed") + " in " + latencyMillis + " ms");
+                        connectStats.record(address, strategy, success, latencyMillis);
+                        preferences.edit()
+                                .putString(KEY_CONNECT_STATS, connectStats.save())
+                                .apply();
+                    }
+                });
+        startConnect(new TimeoutTransport(racing, CONNECT_TIMEOUT_MILLIS));
+    }
 
-        // cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    private static RfcommTransport createTransport(BluetoothDevice device, String strategy) {
+        if (RfcommTransport.STRATEGY_CHANNEL.equals(strategy)) {
+            return new RfcommTransport(device, RfcommTransport.DEFAULT_CHANNEL);
         }
+        boolean secure = RfcommTransport.STRATEGY_SECURE.equals(strategy);
+        return new RfcommTransport(device, secure ? MY_UUID_SECURE : MY_UUID_INSECURE, secure);
+    }
 
-        // start the thread to connect to the given device
-        connectThread = new ConnectThread(device, secure);
-        connectThread.start();
-        setState(STATE_CONNECTING);
+    /**
+     * Connect to the last device the service was connected to, even in a previous launch,
+     * straight by its address, so no discovery is needed. Failed attempts are retried with
+     * a jittered exponential backoff, like after a lost connection.
+     *
+     * @return false if no device was ever connected or Bluetooth is not available.
+     */
+    public boolean connectLastDevice() {
+        String address = preferences.getString(KEY_LAST_DEVICE_ADDRESS, null);
+        if (adapter == null || address == null
+                || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return false;
+        }
+        int state = stateMachine.getState();
+        if (state == STATE_CONNECTING || state == STATE_CONNECTED) {
+            return true;
+        }
+        reconnecting = true;
+        if (gapStart == 0) {
+            gapStart = System.nanoTime();
+        }
+        Log.d(TAG, "connecting to last device " + address + ", attempt "
+                + (reconnectBackoff.getAttempts() + 1));
+        BluetoothDevice device = adapter.getRemoteDevice(address);
+        if (preferences.getBoolean(KEY_LAST_DEVICE_RACE, false)) {
+            raceDevice(device);
+        }
+        else {
+            connectDevice(device, preferences.getBoolean(KEY_LAST_DEVICE_SECURE, true));
+        }
+        return true;
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection.
+     * Try the last device again after the backoff delay.
      *
-     * @param socket The BluetoothSocket on which the connection was made.
-     * @param device The BluetoothDevice that has been connected.
+     * @return false if there is nothing to retry or the attempts are exhausted.
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        Log.d(TAG, "connected, Socket Type:" + socketType);
+    private boolean scheduleReconnect() {
+        if (!preferences.contains(KEY_LAST_DEVICE_ADDRESS)
+                || reconnectBackoff.getAttempts() >= MAX_RECONNECT_ATTEMPTS) {
+            cancelReconnect();
+            return false;
+        }
+        reconnecting = true;
+        long delay = reconnectBackoff.nextDelay();
+        Log.d(TAG, "reconnecting in " + delay + " ms");
+        ScheduledFuture<?> previous = pendingReconnect.getAndSet(
+                reconnectTimer.schedule(reconnectTask, delay, TimeUnit.MILLISECONDS));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        return true;
+    }
 
-        // cancel the thread that completed the connection
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+    /**
+     * Stop reconnecting to the last device.
+     */
+    private void cancelReconnect() {
+        reconnecting = false;
+        reconnectBackoff.reset();
+        cancelPendingReconnect();
+    }
+
+    /**
+     * Cancel the scheduled attempt to reconnect, if any, keeping the backoff.
+     */
+    private void cancelPendingReconnect() {
+        ScheduledFuture<?> pending = pendingReconnect.getAndSet(null);
+        if (pending != null) {
+            pending.cancel(false);
         }
+    }
 
-        // cancel any thread currently running a connection
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    /**
+     * Remember the device of a connection, so it can be reconnected later on.
+     */
+    private void rememberDevice(Transport transport) {
+        boolean raced = transport instanceof RacingTransport
+                || (transport instanceof TimeoutTransport
+                && ((TimeoutTransport) transport).getTransport() instanceof RacingTransport);
+        RfcommTransport rfcomm = toRfcomm(transport);
+        if (rfcomm != null) {
+            preferences.edit()
+                    .putString(KEY_LAST_DEVICE_ADDRESS, rfcomm.getDevice().getAddress())
+                    .putBoolean(KEY_LAST_DEVICE_SECURE, rfcomm.isSecure())
+                    .putBoolean(KEY_LAST_DEVICE_RACE, raced)
+                    .apply();
         }
+    }
 
-        // cancel the accept thread because we only want to connect to one device
-        if (secureAcceptThread != null) {
-            secureAcceptThread.cancel();
-            secureAcceptThread = null;
+    /**
+     * Return the RFCOMM transport a connection goes through, null if it's not Bluetooth.
+     */
+    private static RfcommTransport toRfcomm(Transport transport) {
+        if (transport instanceof TimeoutTransport) {
+            transport = ((TimeoutTransport) transport).getTransport();
         }
-        if (insecureAcceptThread != null) {
-            insecureAcceptThread.cancel();
-            insecureAcceptThread = null;
+        if (transport instanceof RacingTransport) {
+            transport = ((RacingTransport) transport).getWinner();
+        }
+        return transport instanceof RfcommTransport ? (RfcommTransport) transport : null;
+    }
+
+    /**
+     * Record in the device cache whether a device answered ATZ as an ELM327,
+     * so it's listed first and found without a full discovery next time.
+     */
+    private void fingerprint(BluetoothDevice device, String response) {
+        DeviceCache.Device cached = deviceCache.fingerprint(device.getAddress(),
+                device.getName(), response, System.currentTimeMillis());
+        SharedDeviceCache.save();
+        Log.d(TAG, "fingerprint of " + device.getAddress() + ": "
+                + (cached.getIdentity() != null ? cached.getIdentity() : "not an ELM327"));
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection over the given transport,
+     * e.g. a {@link com.ibericart.fuelanalyzer.transport.TcpTransport} to a Wi-Fi adapter.
+     *
+     * @param transport The transport to connect.
+     */
+    public void connect(Transport transport) {
+        // a connection chosen by the user replaces any reconnection in progress
+        cancelReconnect();
+        startConnect(transport);
+    }
+
+    private void startConnect(Transport transport) {
+        Log.d(TAG, "connect to: " + transport.getName());
+        if (gapStart == 0) {
+            gapStart = System.nanoTime();
         }
 
+        // replace any thread attempting to make a connection, only the latest one
+        // is allowed to report its connection, see connected()
+        ConnectThread thread = new ConnectThread(transport);
+        cancel(connectThread.getAndSet(thread));
+
+        // cancel any thread currently running a connection
+        cancel(connectedThread.getAndSet(null));
+
+        // start the thread to connect to the given device
+        stateMachine.moveTo(STATE_CONNECTING);
+        thread.start();
+    }
+
+    /**
+     * Start the ConnectedThread to begin managing a connection.
+     *
+     * @param transport The connected transport.
+     */
+    public void connected(Transport transport) {
+        Log.d(TAG, "connected to " + transport.getName());
+
+        // cancel the thread that completed the connection
+        cancel(connectThread.getAndSet(null));
+
+        // cancel the accept thread because we only want to connect to one device
+        cancel(secureAcceptThread.getAndSet(null));
+        cancel(insecureAcceptThread.getAndSet(null));
+
         // start the thread to manage the connection and perform transmissions
-        connectedThread = new ConnectedThread(socket, socketType);
-        connectedThread.start();
+        ConnectedThread thread;
+        try {
+            thread = new ConnectedThread(transport);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "temp sockets not created", e);
+            close(transport);
+            connectionFailed();
+            return;
+        }
+        // refused if the service was stopped or is connected already
+        if (!stateMachine.moveTo(STATE_CONNECTED)) {
+            Log.d(TAG, "dropping connection to " + transport.getName() + " in state "
+                    + ConnectionStateMachine.name(stateMachine.getState()));
+            thread.cancel();
+            return;
+        }
+
+        // cancel any thread currently running a connection
+        cancel(connectedThread.getAndSet(thread));
+
+        // stop() may have emptied the slot just before the thread got there
+        if (stateMachine.getState() != STATE_CONNECTED
+                && connectedThread.compareAndSet(thread, null)) {
+            thread.cancel();
+            return;
+        }
+        thread.start();
+        // the backoff only starts over once the adapter answered, see ConnectedThread.run(),
+        // so a link which dies right after opening still runs out of attempts
+        cancelPendingReconnect();
+        rememberDevice(transport);
 
         // send the name of the connected device back to the UI Activity
         Message msg = handler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
+        bundle.putString(Constants.DEVICE_NAME, transport.getName());
         msg.setData(bundle);
         handler.sendMessage(msg);
-
-        setState(STATE_CONNECTED);
     }
 
     /**
      * Stop all threads.
      */
-    public synchronized void stop() {
+    public void stop() {
         Log.d(TAG, "stop");
+        cancelReconnect();
+
+        // first, so that no thread starts a new connection meanwhile
+        stateMachine.moveTo(STATE_NONE);
+
+        cancel(connectThread.getAndSet(null));
+        cancel(connectedThread.getAndSet(null));
+        cancel(secureAcceptThread.getAndSet(null));
+        cancel(insecureAcceptThread.getAndSet(null));
+    }
 
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+    /**
+     * Write to the ConnectedThread without taking any lock,
+     * so a reconnection in progress never stalls a write.
+     * While polling, the bytes are queued and sent at the next prompt,
+     * so they don't overlap the polling requests. While the adapter is being
+     * initialized, they're held until it's done, see {@link ObdSession#write(byte[])}.
+     *
+     * @param out The bytes to write.
+     * @see ConnectedThread#write(byte[])
+     */
+    public void write(byte[] out) {
+        // a ConnectedThread is only in its slot while connected
+        ConnectedThread r = connectedThread.get();
+        if (r == null) {
+            return;
+        }
+        if (pollingScheduler.isPolling()) {
+            r.submit(out);
+        }
+        else {
+            r.write(out);
         }
+    }
 
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    private static void cancel(AcceptThread thread) {
+        if (thread != null) {
+            thread.cancel();
         }
+    }
 
-        if (secureAcceptThread != null) {
-            secureAcceptThread.cancel();
-            secureAcceptThread = null;
+    private static void cancel(ConnectThread thread) {
+        if (thread != null) {
+            thread.cancel();
         }
+    }
 
-        if (insecureAcceptThread != null) {
-            insecureAcceptThread.cancel();
-            insecureAcceptThread = null;
+    private static void cancel(ConnectedThread thread) {
+        if (thread != null) {
+            thread.cancel();
+        }
+    }
+
+    private static void close(Transport transport) {
+        try {
+            transport.close();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "unable to close() " + transport.getName(), e);
         }
-        setState(STATE_NONE);
     }
 
     /**
-     * Write to the ConnectedThread in an un-synchronized manner.
+     * Open the file recording the samples of a connection. The last trip is continued if
+     * the app died before closing it, otherwise a new one is started.
      *
-     * @param out The bytes to write.
-     * @see ConnectedThread#write(byte[])
+     * @return The recorder, or null if the file couldn't be opened.
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
+    private TripRecorder openTripRecorder() {
+        if (!tripDirectory.isDirectory() && !tripDirectory.mkdirs()) {
+            Log.e(TAG, "Could not create " + tripDirectory);
+            return null;
+        }
+        File file = null;
+        File[] trips = tripDirectory.listFiles();
+        if (trips != null) {
+            // the names contain the creation time, so the last one is the latest trip
+            for (File trip : trips) {
+                if (trip.getName().startsWith(TRIP_FILE_PREFIX)
+                        && (file == null || trip.getName().compareTo(file.getName()) > 0)) {
+                    file = trip;
+                }
+            }
+        }
+        try {
+            if (file == null || TripRecorder.isClosed(file)) {
+                file = new File(tripDirectory,
+                        TRIP_FILE_PREFIX + System.currentTimeMillis() + TRIP_FILE_SUFFIX);
+            }
+            TripRecorder recorder = new TripRecorder(file);
+            Log.d(TAG, "recording to " + file + ", " + recorder.getRecordCount()
+                    + " records, " + recorder.getRecoveredBytes() + " bytes recovered");
+            return recorder;
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Could not open trip file " + file, e);
+            return null;
         }
-        // Perform the write un-synchronized
-        r.write(out);
+    }
+
+    /**
+     * Record the time from the start of the connection, or the loss of the previous one,
+     * to the first value received.
+     *
+     * @param timestamp The time of the first value, as given by {@link System#nanoTime()}.
+     */
+    private void recordTimeToFirstSample(long timestamp) {
+        long start = gapStart;
+        if (start == 0) {
+            return;
+        }
+        gapStart = 0;
+        timeToFirstSample.record(timestamp - start);
+        Log.i(TAG, "time to first sample: " + (timestamp - start) / 1000000 + " ms, p50 "
+                + timeToFirstSample.getValueAtPercentile(50) / 1000000 + " ms over "
+                + timeToFirstSample.getCount() + " connections");
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
     private void connectionFailed() {
+        // start the service over to restart listening mode, unless client only
+        BluetoothService.this.start();
+
+        // while reconnecting, keep trying quietly until the attempts run out
+        if (reconnecting && scheduleReconnect()) {
+            return;
+        }
+        gapStart = 0;
+
         // send a failure message back to the Activity
         Message msg = handler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
         bundle.putString(Constants.TOAST, "Unable to connect to device");
         msg.setData(bundle);
         handler.sendMessage(msg);
-
-        // start the service over to restart listening mode
-        BluetoothService.this.start();
     }
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
+     *
+     * @param remembered Whether the device of the connection was remembered, see
+     *                   {@link #rememberDevice(Transport)}. The last device is only
+     *                   reconnected to if it's the one which was lost.
      */
-    private void connectionLost() {
+    private void connectionLost(boolean remembered) {
+        // the gap in the data starts now
+        gapStart = System.nanoTime();
+
+        // start the service over to restart listening mode, then try the device again
+        BluetoothService.this.start();
+        boolean reconnect = remembered && scheduleReconnect();
+        if (!remembered) {
+            cancelReconnect();
+        }
+
         // send a failure message back to the Activity
         Message msg = handler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
+        bundle.putString(Constants.TOAST, reconnect ? "Device connection was lost, reconnecting"
+                : "Device connection was lost");
         msg.setData(bundle);
         handler.sendMessage(msg);
-
-        // start the service over to restart listening mode
-        BluetoothService.this.start();
     }
 
     /**
@@ -308,7 +925,7 @@ public class BluetoothService {
             BluetoothSocket socket;
 
             // listen to the server socket if we're not connected
-            while (state != STATE_CONNECTED) {
+            while (stateMachine.getState() != STATE_CONNECTED) {
                 try {
                     // this is a blocking call and will only return
                     // on a successful connection or an exception
@@ -321,24 +938,23 @@ public class BluetoothService {
 
                 // if a connection was accepted
                 if (socket != null) {
-                    synchronized (BluetoothService.this) {
-                        switch (state) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // normal situation; start the connected thread
-                                connected(socket, socket.getRemoteDevice(), socketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // either not ready or already connected; terminate the new socket
-                                try {
-                                    socket.close();
-                                }
-                                catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
-                        }
+                    switch (stateMachine.getState()) {
+                        case STATE_LISTEN:
+                        case STATE_CONNECTING:
+                            // normal situation; start the connected thread,
+                            // which is refused if the state changed meanwhile
+                            connected(new RfcommTransport(socket));
+                            break;
+                        case STATE_NONE:
+                        case STATE_CONNECTED:
+                            // either not ready or already connected; terminate the new socket
+                            try {
+                                socket.close();
+                            }
+                            catch (IOException e) {
+                                Log.e(TAG, "Could not close unwanted socket", e);
+                            }
+                            break;
                     }
                 }
             }
@@ -361,120 +977,318 @@ public class BluetoothService {
      * This thread runs while attempting to create an outgoing connection with a device.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket socket;
-        private final BluetoothDevice device;
-        private String socketType;
-
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            this.device = device;
-            BluetoothSocket tmp = null;
-            socketType = secure ? "Secure" : "Insecure";
+        private final Transport transport;
 
-            // get a BluetoothSocket for a connection with the given BluetoothDevice
-            try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + socketType + "create() failed", e);
-            }
-            socket = tmp;
+        public ConnectThread(Transport transport) {
+            this.transport = transport;
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN connectThread SocketType:" + socketType);
-            setName("ConnectThread" + socketType);
+            Log.i(TAG, "BEGIN connectThread " + transport.getName());
+            setName("ConnectThread");
 
             // always cancel discovery because it will slow down a connection
-            adapter.cancelDiscovery();
+            if (adapter != null) {
+                adapter.cancelDiscovery();
+            }
 
-            // create a connection to the BluetoothSocket
+            // create a connection over the transport
             try {
                 // this is a blocking call and will only return on a
                 // successful connection or an exception
-                socket.connect();
+                transport.connect();
             } catch (IOException e) {
-                // close the socket
+                // close the transport
                 try {
-                    socket.close();
+                    transport.close();
                 } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + socketType +
-                            " socket during connection failure", e2);
+                    Log.e(TAG, "unable to close() " + transport.getName() +
+                            " during connection failure", e2);
+                }
+                // nothing to report if another connection replaced this one
+                if (connectThread.compareAndSet(this, null)) {
+                    connectionFailed();
                 }
-                connectionFailed();
                 return;
             }
 
-            // reset the ConnectThread because we're done
-            synchronized (BluetoothService.this) {
-                connectThread = null;
+            // reset the ConnectThread because we're done, unless it was replaced meanwhile
+            if (!connectThread.compareAndSet(this, null)) {
+                close(transport);
+                return;
             }
 
             // start the connected thread
-            connected(socket, device, socketType);
+            connected(transport);
         }
 
         public void cancel() {
             try {
-                socket.close();
+                transport.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + socketType + " socket failed", e);
+                Log.e(TAG, "close() of connect " + transport.getName() + " failed", e);
             }
         }
     }
 
     /**
      * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * It handles all incoming and outgoing transmissions through an {@link ObdSession}:
+     * incoming bytes are split into complete responses on this thread,
+     * so the UI Activity only receives whole frames.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket socket;
-        private final InputStream inStream;
-        private final OutputStream outStream;
+    private class ConnectedThread extends Thread implements ObdSession.Listener {
+        private final ObdSession session;
+        private final TripRecorder tripRecorder;
 
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            this.socket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+        // whether a value was received yet, only used by the decode thread
+        private boolean sampled;
 
-            // get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
+        // the Bluetooth device connected to, null over other transports,
+        // which aren't remembered for reconnecting
+        private final BluetoothDevice device;
+
+        // identifies the adapter in the protocol cache
+        private final String adapterKey;
+
+        // tunes the timeout of the adapter for the vehicle, null if none answered
+        private TimeoutTuner tuner;
 
-            inStream = tmpIn;
-            outStream = tmpOut;
+        public ConnectedThread(Transport transport) throws IOException {
+            Log.d(TAG, "create ConnectedThread: " + transport.getName());
+            session = new ObdSession(transport, pollingScheduler, FRAME_BUFFER_SIZE, this);
+            tripRecorder = openTripRecorder();
+            RfcommTransport rfcomm = toRfcomm(transport);
+            device = rfcomm != null ? rfcomm.getDevice() : null;
+            adapterKey = device != null ? device.getAddress() : transport.getName();
         }
 
         public void run() {
             Log.i(TAG, "BEGIN connectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+            setName("ConnectedThread");
 
-            // keep listening to the InputStream while connected
-            while (state == STATE_CONNECTED) {
-                try {
-                    // read from the InputStream
-                    bytes = inStream.read(buffer);
+            // reset and configure the adapter before polling it
+            try {
+                initialize();
+            }
+            catch (IOException e) {
+                // unless cancelled meanwhile, the connection is useless
+                if (connectedThread.compareAndSet(this, null)) {
+                    Log.e(TAG, "initialization failed", e);
+                    cancel();
+                    connectionLost(device != null);
+                }
+                return;
+            }
+            // the link works, the next loss starts reconnecting from the first attempt
+            cancelReconnect();
+
+            // keep listening to the InputStream until cancelled or disconnected
+            session.run();
+            logTiming();
+        }
 
-                    // send the obtained bytes to the UI Activity
-                    handler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+        /**
+         * Runs the init sequence, setting the protocol the vehicle used last time
+         * with this adapter, so it doesn't need to be searched for again. The PIDs
+         * supported by the vehicle are only read the first time it's seen, or after
+         * its ECUs were reprogrammed, and the others are left out of the polling.
+         * When none could be read, everything is polled and nothing is cached.
+         * The requests go to the ECUs answering them, see
+         * {@link PollingScheduler#setResponders(Map)}. The timeout of the adapter is
+         * tuned for the vehicle, see {@link TimeoutTuner}.
+         */
+        private void initialize() throws IOException {
+            int knownProtocol = protocolCache.getProtocol(adapterKey);
+            AdapterInitializer initializer = new AdapterInitializer(session.getTransport(),
+                    INIT_TIMEOUT_MILLIS);
+            AdapterInitializer.Result result = initializer.initialize(knownProtocol);
+            initTime.record(result.getDurationNanos());
+
+            // the answer to the reset tells whether the device is an OBD adapter
+            if (device != null) {
+                fingerprint(device, result.getResetResponse());
+            }
+            if (negotiateBaudRate) {
+                negotiateBaudRate();
+            }
+            BitSet supported = null;
+            Map<Integer, BitSet> ecus = null;
+            if (result.getProtocol() > 0) {
+                String vehicle = result.getVehicle();
+                ecus = capabilityCache.getEcus(vehicle, result.getCalibrationId());
+                if (ecus == null || CapabilityCache.union(ecus).isEmpty()) {
+                    ecus = initializer.readSupportedPids(result);
+                    if (CapabilityCache.union(ecus).isEmpty()) {
+                        // nothing parseable, e.g. SEARCHING... or a garbled bitmap:
+                        // poll everything and read them again next time
+                        Log.w(TAG, "read no supported PIDs of " + vehicle);
+                        ecus = null;
+                    }
+                    else {
+                        capabilityCache.put(vehicle, result.getCalibrationId(), ecus);
+                        Log.i(TAG, "read " + CapabilityCache.union(ecus).cardinality()
+                                + " supported PIDs of " + vehicle + " from " + ecus.size()
+                                + " ECUs");
+                    }
                 }
-                catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // start the service over to restart listening mode
-                    BluetoothService.this.start();
-                    break;
+                if (ecus != null) {
+                    supported = CapabilityCache.union(ecus);
+                }
+                protocolCache.put(adapterKey, vehicle, result.getProtocol());
+                preferences.edit()
+                        .putString(KEY_PROTOCOLS, protocolCache.save())
+                        .putString(KEY_CAPABILITIES, capabilityCache.save())
+                        .apply();
+                // only CAN accepts several PIDs per request
+                pollingScheduler.setMaxPidsPerRequest(result.isCan()
+                        ? PollingScheduler.MAX_PIDS_PER_REQUEST : 1);
+
+                // the reset restored the default timing, the tuning of the vehicle
+                // comes back with the first requests
+                synchronized (timeoutTuners) {
+                    tuner = timeoutTuners.get(vehicle);
+                    if (tuner == null) {
+                        tuner = new TimeoutTuner();
+                        timeoutTuners.put(vehicle, tuner);
+                    }
                 }
+                tuner.onAdapterReset();
+                session.setTimeoutTuner(tuner);
+                timeoutTuner = tuner;
             }
+            // poll everything while the vehicle isn't known
+            pollingScheduler.setSupportedPids(supported);
+            pollingScheduler.setResponders(ecus);
+            Log.i(TAG, "initialized in " + result.getDurationNanos() / 1000000 + " ms, protocol "
+                    + result.getProtocol() + (result.isProtocolReused() ? " (cached)"
+                    : knownProtocol > 0 ? " (cached " + knownProtocol + " failed)" : "")
+                    + ", p50 " + initTime.getValueAtPercentile(50) / 1000000 + " ms over "
+                    + initTime.getCount() + " connections");
+        }
+
+        /**
+         * Raises the serial rate of the adapter, straight to the one which worked last time.
+         * The adapters which couldn't switch are left alone, as are those which lost the
+         * connection while trying: the failure is recorded before the attempt.
+         */
+        private void negotiateBaudRate() throws IOException {
+            int knownRate = baudRateCache.getBaudRate(adapterKey);
+            if (knownRate == 0) {
+                return;
+            }
+            baudRateCache.put(adapterKey, 0);
+            preferences.edit()
+                    .putString(KEY_BAUD_RATES, baudRateCache.save())
+                    .apply();
+            long start = System.nanoTime();
+            int rate = new BaudRateNegotiator(session.getTransport())
+                    .negotiate(Math.max(knownRate, 0));
+            baudRateCache.put(adapterKey, rate);
+            preferences.edit()
+                    .putString(KEY_BAUD_RATES, baudRateCache.save())
+                    .apply();
+            Log.i(TAG, (rate > 0 ? "serial rate raised to " + rate + " baud"
+                    : "serial rate left at " + BaudRateNegotiator.DEFAULT_BAUD_RATE + " baud")
+                    + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+
+        /**
+         * Logs the timing the adapter ran with, and what it gained.
+         */
+        private void logTiming() {
+            if (tuner == null) {
+                return;
+            }
+            Log.i(TAG, String.format(Locale.US, "timing: ATST%02X (%d ms) ATAT%d, back off %d,"
+                            + " p99 latency %d ms, %.1f requests/s before tuning, %.1f after",
+                    tuner.getTimeout(),
+                    tuner.getTimeout() * TimeoutTuner.TIMEOUT_UNIT_NANOS / 1000000,
+                    tuner.getAdaptiveTiming(), tuner.getBackOffLevel(),
+                    tuner.getLatencies().getValueAtPercentile(99) / 1000000,
+                    tuner.getRequestRateBefore(), tuner.getRequestRateAfter()));
+        }
+
+        /**
+         * Sends the answer to a command of the user to the UI Activity.
+         * The session reuses its buffer, so the response is copied into a pooled
+         * {@link ReadBuffer} which the UI Activity owns until it releases it.
+         * The answers to the polling requests only reach the UI as aggregated values,
+         * see {@link #onBatchDecoded(int)}.
+         */
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            ReadBuffer frame = readBufferPool.acquire(buffer, offset, length);
+            handler.obtainMessage(Constants.MESSAGE_READ, length, -1, frame)
+                    .sendToTarget();
+        }
+
+        /**
+         * Updates the fuel consumption in the live snapshot and tells the UI Activity
+         * if anything changed. At most one such message is queued at any time, so the UI
+         * thread handles one update however many responses arrived meanwhile.
+         */
+        @Override
+        public void onBatchDecoded(int frames) {
+            long now = System.nanoTime();
+            liveSnapshot.set(SIGNAL_INSTANT_CONSUMPTION,
+                    fuelConsumptionEngine.getInstantConsumption(), now);
+            liveSnapshot.set(SIGNAL_AVERAGE_CONSUMPTION,
+                    fuelConsumptionEngine.getAverageConsumption(), now);
+            if (liveSnapshot.isDirty() && !handler.hasMessages(Constants.MESSAGE_SAMPLES)) {
+                handler.sendEmptyMessage(Constants.MESSAGE_SAMPLES);
+            }
+        }
+
+        /**
+         * Stores and records a decoded value and feeds it to the fuel consumption computation.
+         */
+        @Override
+        public void onSample(int pid, float value, long timestamp) {
+            if (!sampled) {
+                sampled = true;
+                recordTimeToFirstSample(timestamp);
+            }
+            timeSeriesStore.onSample(pid, value, timestamp);
+            fuelConsumptionEngine.onSample(pid, value, timestamp);
+            liveSnapshot.onSample(pid, value, timestamp);
+            if (tripRecorder != null) {
+                tripRecorder.onSample(pid, value, timestamp);
+            }
+        }
+
+        @Override
+        public void onConnectionLost(IOException e) {
+            Log.e(TAG, "disconnected", e);
+            // start the service over to restart listening mode,
+            // unless this connection was already replaced or stopped
+            if (connectedThread.compareAndSet(this, null)) {
+                // out of the slot, start() can't cancel it: close the socket and the trip
+                cancel();
+                connectionLost(device != null);
+            }
+        }
+
+        /**
+         * Send the next polling request, unless a command is still in flight.
+         *
+         * @see ObdSession#pollNext()
+         */
+        public void pollNext() {
+            session.pollNext();
+        }
+
+        /**
+         * Queue a command sent in between the polling requests.
+         *
+         * @param command The bytes of the command.
+         * @see ObdSession#submit(byte[])
+         */
+        public void submit(byte[] command) {
+            session.submit(command);
+
+            // share the sent message back to the UI Activity
+            handler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, command).sendToTarget();
         }
 
         /**
@@ -484,7 +1298,7 @@ public class BluetoothService {
          */
         public void write(byte[] buffer) {
             try {
-                outStream.write(buffer);
+                session.write(buffer);
 
                 // share the sent message back to the UI Activity
                 handler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
@@ -497,11 +1311,19 @@ public class BluetoothService {
 
         public void cancel() {
             try {
-                socket.close();
+                session.close();
             }
             catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
+            if (tripRecorder != null) {
+                try {
+                    tripRecorder.close();
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "close() of trip file failed", e);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,168 @@
+package com.ibericart.fuelanalyzer.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.UUID;
+
+/**
+ * A {@link Transport} over a Bluetooth RFCOMM socket.
+ */
+public class RfcommTransport implements Transport {
+
+    // the names of the ways of creating the socket, see getStrategy()
+    public static final String STRATEGY_SECURE = "secure";
+    public static final String STRATEGY_INSECURE = "insecure";
+    public static final String STRATEGY_CHANNEL = "channel";
+
+    // the channel most adapters listen on, for the adapters whose SDP record is broken
+    public static final int DEFAULT_CHANNEL = 1;
+
+    private final BluetoothDevice device;
+    private final UUID uuid;
+    private final boolean secure;
+    private final int channel;
+    private BluetoothSocket socket;
+    private boolean closed;
+
+    /**
+     * Creates a transport connecting to the given service of a device.
+     *
+     * @param device The device to connect to.
+     * @param uuid   The UUID of the service record.
+     * @param secure Socket Security type - Secure (true), Insecure (false)
+     */
+    public RfcommTransport(BluetoothDevice device, UUID uuid, boolean secure) {
+        this.device = device;
+        this.uuid = uuid;
+        this.secure = secure;
+        this.channel = -1;
+    }
+
+    /**
+     * Creates a transport connecting straight to an RFCOMM channel of a device, skipping
+     * the SDP lookup, through the hidden {@code createRfcommSocket(int)} method.
+     *
+     * @param device  The device to connect to.
+     * @param channel The RFCOMM channel, e.g. {@link #DEFAULT_CHANNEL}.
+     */
+    public RfcommTransport(BluetoothDevice device, int channel) {
+        this.device = device;
+        this.uuid = null;
+        this.secure = true;
+        this.channel = channel;
+    }
+
+    /**
+     * Wraps a socket which is already connected, e.g. an accepted one.
+     *
+     * @param socket The connected socket.
+     */
+    public RfcommTransport(BluetoothSocket socket) {
+        this.device = socket.getRemoteDevice();
+        this.uuid = null;
+        this.secure = true;
+        this.channel = -1;
+        this.socket = socket;
+    }
+
+    /**
+     * Returns the remote device.
+     */
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Returns whether the connection is authenticated and encrypted.
+     */
+    public boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     * Returns how the socket is created: {@link #STRATEGY_SECURE},
+     * {@link #STRATEGY_INSECURE} or {@link #STRATEGY_CHANNEL}.
+     */
+    public String getStrategy() {
+        if (channel >= 0) {
+            return STRATEGY_CHANNEL;
+        }
+        return secure ? STRATEGY_SECURE : STRATEGY_INSECURE;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        BluetoothSocket s;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("transport closed");
+            }
+            if (socket == null) {
+                socket = createSocket();
+            }
+            s = socket;
+        }
+        if (!s.isConnected()) {
+            // this is a blocking call and will only return on a
+            // successful connection or an exception
+            s.connect();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return connectedSocket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return connectedSocket().getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        return device.getName();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket s;
+        synchronized (this) {
+            closed = true;
+            s = socket;
+        }
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    private BluetoothSocket createSocket() throws IOException {
+        if (channel < 0) {
+            return secure ? device.createRfcommSocketToServiceRecord(uuid)
+                    : device.createInsecureRfcommSocketToServiceRecord(uuid);
+        }
+        try {
+            return (BluetoothSocket) device.getClass()
+                    .getMethod("createRfcommSocket", int.class).invoke(device, channel);
+        }
+        catch (InvocationTargetException e) {
+            throw new IOException("socket on channel " + channel + " not created",
+                    e.getCause());
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IOException("socket on channel not supported", e);
+        }
+    }
+
+    private synchronized BluetoothSocket connectedSocket() throws IOException {
+        if (socket == null) {
+            throw new IOException("not connected");
+        }
+        return socket;
+    }
+}
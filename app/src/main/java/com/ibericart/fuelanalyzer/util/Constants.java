@@ -7,6 +7,7 @@ public interface Constants {
     int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     int REQUEST_ENABLE_BLUETOOTH = 3;
     int REQUEST_LIST_DEVICES = 4;
+    int REQUEST_CONNECT_DEVICE_RACE = 5;
 
     // extras
     String EXTRA_DEVICE_ADDRESS = "device_address";
@@ -21,6 +22,15 @@ public interface Constants {
     int MESSAGE_WRITE = 3;
     int MESSAGE_DEVICE_NAME = 4;
     int MESSAGE_TOAST = 5;
+    int MESSAGE_SAMPLES = 6;
+
+    // where the devices seen are cached, see DeviceCache
+    String DEVICE_CACHE_PREFERENCES = "DeviceCache";
+    String KEY_DEVICE_CACHE = "devices";
+
+    // the options chosen in the menu, kept across launches
+    String SETTINGS_PREFERENCES = "Settings";
+    String KEY_NEGOTIATE_BAUD_RATE = "negotiate_baud_rate";
 
     // key names received from the BluetoothService Handler
     String DEVICE_NAME = "device_name";
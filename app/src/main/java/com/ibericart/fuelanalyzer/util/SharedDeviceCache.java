@@ -0,0 +1,49 @@
+package com.ibericart.fuelanalyzer.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.ibericart.fuelanalyzer.connection.DeviceCache;
+
+/**
+ * The one {@link DeviceCache} of the app, shared by the device list and the service, so
+ * neither overwrites what the other recorded meanwhile. It's loaded from the preferences
+ * the first time it's needed and written back whole by {@link #save()}.
+ *
+ * This class is thread safe.
+ */
+public final class SharedDeviceCache {
+
+    private static SharedPreferences preferences;
+    private static DeviceCache cache;
+
+    private SharedDeviceCache() {
+    }
+
+    /**
+     * Returns the cache, loading it the first time.
+     *
+     * @param context Any context of the app.
+     */
+    public static synchronized DeviceCache get(Context context) {
+        if (cache == null) {
+            preferences = context.getApplicationContext().getSharedPreferences(
+                    Constants.DEVICE_CACHE_PREFERENCES, Context.MODE_PRIVATE);
+            cache = DeviceCache.load(preferences.getString(Constants.KEY_DEVICE_CACHE, null),
+                    DeviceCache.DEFAULT_CAPACITY);
+        }
+        return cache;
+    }
+
+    /**
+     * Writes the cache to the preferences, if it was loaded.
+     */
+    public static synchronized void save() {
+        // the writes are applied in the order they're made, the latest holding everything
+        if (cache != null) {
+            preferences.edit()
+                    .putString(Constants.KEY_DEVICE_CACHE, cache.save())
+                    .apply();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.ibericart.fuelanalyzer.fuel;
+
+import com.ibericart.fuelanalyzer.obd.Pids;
+import com.ibericart.fuelanalyzer.simulator.VehicleModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Integrating the fuel consumption, per sample: from the MAF sensor (realistic), or by
+ * speed-density from the rpm, MAP and intake temperature (worst, more samples and math
+ * per litre).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FuelConsumptionEngineBenchmark {
+
+    private static final int SAMPLES = 1024;
+    private static final long PERIOD = 50000000L;
+
+    @Param({ "realistic", "worst" })
+    public String mix;
+
+    private final int[] pids = new int[SAMPLES];
+    private final float[] values = new float[SAMPLES];
+    private final long[] times = new long[SAMPLES];
+    private final FuelConsumptionEngine engine = FuelConsumptionEngine.gasoline(1.6f);
+    private long offset;
+
+    @Setup
+    public void setUp() {
+        VehicleModel vehicle = new VehicleModel();
+        int[] polled = "realistic".equals(mix)
+                ? new int[] { Pids.MAF_AIR_FLOW_RATE, Pids.VEHICLE_SPEED }
+                : new int[] { Pids.ENGINE_RPM, Pids.INTAKE_MANIFOLD_PRESSURE,
+                Pids.INTAKE_AIR_TEMPERATURE, Pids.VEHICLE_SPEED };
+        for (int i = 0; i < SAMPLES; i++) {
+            pids[i] = polled[i % polled.length];
+            times[i] = i * PERIOD;
+            values[i] = vehicle.getValue(pids[i], times[i] / 1e9);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public double integrate() {
+        for (int i = 0; i < SAMPLES; i++) {
+            engine.onSample(pids[i], values[i], offset + times[i]);
+        }
+        // keep the time going forward across invocations
+        offset += SAMPLES * PERIOD;
+        return engine.getLitres();
+    }
+}
@@ -0,0 +1,55 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting the adapter output into responses on the prompt, per response.
+ * The realistic mix arrives in Bluetooth-sized reads, the worst one a byte at a time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ElmFrameParserBenchmark implements ElmFrameParser.FrameListener {
+
+    private static final int RESPONSES = 256;
+
+    @Param({ Responses.REALISTIC, Responses.WORST })
+    public String mix;
+
+    private byte[] stream;
+    private int readSize;
+    private ElmFrameParser parser;
+    private long bytes;
+
+    @Setup
+    public void setUp() {
+        stream = Responses.concat(Responses.generate(mix, RESPONSES));
+        readSize = Responses.REALISTIC.equals(mix) ? 64 : 1;
+        parser = new ElmFrameParser(4096, this);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESPONSES)
+    public long split() {
+        bytes = 0;
+        for (int i = 0; i < stream.length; i += readSize) {
+            parser.feed(stream, i, Math.min(readSize, stream.length - i));
+        }
+        return bytes;
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        bytes += length;
+    }
+}
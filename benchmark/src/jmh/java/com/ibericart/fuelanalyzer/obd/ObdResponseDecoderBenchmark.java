@@ -0,0 +1,68 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding complete responses, per response: the ASCII hex alone ({@link #parse()}),
+ * and the hex plus the PID formulas ({@link #decode()}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ObdResponseDecoderBenchmark implements ObdResponseDecoder.SampleListener {
+
+    private static final int RESPONSES = 256;
+
+    @Param({ Responses.REALISTIC, Responses.WORST })
+    public String mix;
+
+    private byte[][] responses;
+    private final ObdResponseDecoder decoder = new ObdResponseDecoder();
+    private float sum;
+
+    @Setup
+    public void setUp() {
+        responses = Responses.generate(mix, RESPONSES);
+        for (int i = 0; i < responses.length; i++) {
+            // the frame parser hands the responses over without the prompt
+            byte[] response = new byte[responses[i].length - 1];
+            System.arraycopy(responses[i], 0, response, 0, response.length);
+            responses[i] = response;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESPONSES)
+    public int parse() {
+        int messages = 0;
+        for (byte[] response : responses) {
+            messages += decoder.parse(response, 0, response.length);
+        }
+        return messages;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESPONSES)
+    public float decode() {
+        sum = 0;
+        for (byte[] response : responses) {
+            decoder.decodeCurrentData(response, 0, response.length, 0L, this);
+        }
+        return sum;
+    }
+
+    @Override
+    public void onSample(int pid, float value, long timestamp) {
+        sum += value;
+    }
+}
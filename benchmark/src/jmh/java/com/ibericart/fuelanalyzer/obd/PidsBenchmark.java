@@ -0,0 +1,65 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluating the PID formulas on decoded bytes, per value. The realistic mix repeats the
+ * few PIDs the app polls, the worst one draws from every PID with a formula, in random
+ * order, which defeats branch prediction in the formula switch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PidsBenchmark {
+
+    private static final int VALUES = 1024;
+    private static final int[] POLLED = {
+            Pids.ENGINE_RPM, Pids.VEHICLE_SPEED, Pids.ENGINE_RPM, Pids.VEHICLE_SPEED,
+            Pids.MAF_AIR_FLOW_RATE, Pids.INTAKE_MANIFOLD_PRESSURE
+    };
+
+    @Param({ "realistic", "worst" })
+    public String mix;
+
+    private final int[] pids = new int[VALUES];
+    private final byte[] data = new byte[VALUES * 2];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        random.nextBytes(data);
+        for (int i = 0; i < VALUES; i++) {
+            if ("realistic".equals(mix)) {
+                pids[i] = POLLED[i % POLLED.length];
+            }
+            else {
+                // the PIDs with a single value of one or two bytes
+                do {
+                    pids[i] = random.nextInt(0x60);
+                } while (Pids.dataLength(pids[i]) == 0 || Pids.dataLength(pids[i]) > 2
+                        || Pids.isSupportedPidsBitmap(pids[i]));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public float evaluate() {
+        float sum = 0;
+        for (int i = 0; i < VALUES; i++) {
+            sum += Pids.evaluate(pids[i], data, 2 * i);
+        }
+        return sum;
+    }
+}
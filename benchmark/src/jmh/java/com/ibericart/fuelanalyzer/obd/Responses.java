@@ -0,0 +1,129 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import com.ibericart.fuelanalyzer.simulator.VehicleModel;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * The adapter output the benchmarks are fed with, in two mixes:
+ * <ul>
+ * <li>realistic: the responses to the requests of the polling scheduler, with echo and
+ * spaces off (ATE0, ATS0), mostly single frame with the odd multi-frame and NO DATA;</li>
+ * <li>worst: echo and spaces on, every request asking for 6 PIDs which two ECUs answer
+ * in multi-frame responses.</li>
+ * </ul>
+ */
+final class Responses {
+
+    static final String REALISTIC = "realistic";
+    static final String WORST = "worst";
+
+    // the PIDs the app polls, which the scheduler packs differently depending on their rates
+    private static final int[] RPM_AND_SPEED = { Pids.ENGINE_RPM, Pids.VEHICLE_SPEED };
+    private static final int[] MAF = { Pids.MAF_AIR_FLOW_RATE };
+    private static final int[] ALL_PIDS = {
+            Pids.ENGINE_RPM, Pids.MAF_AIR_FLOW_RATE, Pids.VEHICLE_SPEED,
+            Pids.INTAKE_MANIFOLD_PRESSURE, Pids.INTAKE_AIR_TEMPERATURE, Pids.COOLANT_TEMPERATURE
+    };
+
+    private Responses() {
+    }
+
+    /**
+     * Generates responses, each one ending with the prompt.
+     *
+     * @param mix   {@link #REALISTIC} or {@link #WORST}.
+     * @param count The number of responses.
+     */
+    static byte[][] generate(String mix, int count) {
+        VehicleModel vehicle = new VehicleModel();
+        Random random = new Random(42);
+        byte[][] responses = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            double time = i * 0.1;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (REALISTIC.equals(mix)) {
+                int kind = random.nextInt(10);
+                if (kind == 0) {
+                    append(out, "NO DATA\r");
+                }
+                else if (kind == 1) {
+                    frames(out, answer(vehicle, time, ALL_PIDS), false);
+                }
+                else {
+                    frames(out, answer(vehicle, time, kind % 2 == 0 ? RPM_AND_SPEED : MAF),
+                            false);
+                }
+            }
+            else {
+                append(out, "010C100D0B0F05\r");
+                frames(out, answer(vehicle, time, ALL_PIDS), true);
+                frames(out, answer(vehicle, time + 0.01, ALL_PIDS), true);
+            }
+            append(out, "\r>");
+            responses[i] = out.toByteArray();
+        }
+        return responses;
+    }
+
+    /**
+     * Concatenates responses into the stream the adapter sends.
+     */
+    static byte[] concat(byte[][] responses) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] response : responses) {
+            out.write(response, 0, response.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] answer(VehicleModel vehicle, double time, int[] pids) {
+        byte[] data = new byte[1 + pids.length * 3];
+        data[0] = (byte) Pids.MODE_CURRENT_DATA_RESPONSE;
+        int n = 1;
+        for (int pid : pids) {
+            data[n++] = (byte) pid;
+            n += Pids.encode(pid, vehicle.getValue(pid, time), data, n);
+        }
+        byte[] answer = new byte[n];
+        System.arraycopy(data, 0, answer, 0, n);
+        return answer;
+    }
+
+    /**
+     * Prints an answer as the adapter does on CAN without headers.
+     */
+    private static void frames(ByteArrayOutputStream out, byte[] data, boolean spaces) {
+        if (data.length <= 7) {
+            hex(out, data, 0, data.length, spaces);
+            out.write('\r');
+            return;
+        }
+        append(out, String.format("%03X\r", data.length));
+        int frame = 0;
+        for (int i = 0; i < data.length; frame++) {
+            int count = Math.min(frame == 0 ? 6 : 7, data.length - i);
+            append(out, Integer.toHexString(frame & 0x0F).toUpperCase() + (spaces ? ": " : ":"));
+            hex(out, data, i, count, spaces);
+            out.write('\r');
+            i += count;
+        }
+    }
+
+    private static void hex(ByteArrayOutputStream out, byte[] data, int offset, int length,
+                            boolean spaces) {
+        for (int i = 0; i < length; i++) {
+            if (i > 0 && spaces) {
+                out.write(' ');
+            }
+            append(out, String.format("%02X", data[offset + i] & 0xFF));
+        }
+    }
+
+    private static void append(ByteArrayOutputStream out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            out.write(text.charAt(i));
+        }
+    }
+}
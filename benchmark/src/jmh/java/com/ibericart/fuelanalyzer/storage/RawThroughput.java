@@ -0,0 +1,30 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the samples a benchmark goes through as raw {@link TripRecorder} records, so a
+ * throughput benchmark also reports {@link #rawMegabytes} per second: the MB/s of
+ * uncompressed trip data it encodes, decodes, writes or reads.
+ */
+@State(Scope.Thread)
+@AuxCounters
+public class RawThroughput {
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    public double rawMegabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        rawMegabytes = 0;
+    }
+
+    void add(long samples) {
+        rawMegabytes += samples * TripRecorder.RECORD_SIZE / MEGABYTE;
+    }
+}
@@ -0,0 +1,91 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.Pids;
+import com.ibericart.fuelanalyzer.simulator.VehicleModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a block of the compressed trip file, in samples per second and
+ * in MB/s of raw {@link TripRecorder} records ({@link RawThroughput}).
+ * The signals are sampled at 10 Hz with some jitter; "noise" is random values at random
+ * intervals, the worst case for both the timestamps and the values. The compressed size
+ * is printed when the trial ends (a raw record takes {@link TripRecorder#RECORD_SIZE} bytes).
+ * {@link TripFileIoBenchmark} measures whole files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TripFileBenchmark {
+
+    private static final int SAMPLES = TripFileWriter.DEFAULT_BLOCK_SIZE;
+
+    @Param({ "rpm", "speed", "coolant", "noise" })
+    public String signal;
+
+    private final long[] times = new long[SAMPLES];
+    private final float[] values = new float[SAMPLES];
+    private final long[] timesOut = new long[SAMPLES];
+    private final float[] valuesOut = new float[SAMPLES];
+    private final BlockCodec codec = new BlockCodec();
+    private byte[] block;
+
+    @Setup
+    public void setUp() {
+        VehicleModel vehicle = new VehicleModel();
+        Random random = new Random(42);
+        long time = 1460000000000L;
+        for (int i = 0; i < SAMPLES; i++) {
+            if (signal.equals("noise")) {
+                time += random.nextInt(1000);
+                values[i] = random.nextFloat() * 10000;
+            }
+            else {
+                time += 100 + random.nextInt(5) - 2;
+                int pid = signal.equals("rpm") ? Pids.ENGINE_RPM
+                        : signal.equals("speed") ? Pids.VEHICLE_SPEED : Pids.COOLANT_TEMPERATURE;
+                // keep the resolution of the PID, as decoded from the response
+                byte[] data = new byte[2];
+                Pids.encode(pid, vehicle.getValue(pid, i / 10.0), data, 0);
+                values[i] = Pids.evaluate(pid, data, 0);
+            }
+            times[i] = time;
+        }
+        codec.encode(times, values, SAMPLES);
+        block = new byte[codec.length()];
+        System.arraycopy(codec.bytes(), 0, block, 0, block.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        System.out.printf("%n%s: %.2f bytes/sample%n", signal, (double) block.length / SAMPLES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int encode(RawThroughput raw) {
+        raw.add(SAMPLES);
+        codec.encode(times, values, SAMPLES);
+        return codec.length();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int decode(RawThroughput raw) {
+        raw.add(SAMPLES);
+        return BlockCodec.decode(block, 0, timesOut, valuesOut);
+    }
+}
@@ -0,0 +1,143 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+import com.ibericart.fuelanalyzer.obd.Pids;
+import com.ibericart.fuelanalyzer.simulator.VehicleModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading a one hour trip file, in MB/s of raw {@link TripRecorder} records
+ * ({@link RawThroughput}): {@link #write(RawThroughput) writing} the whole trip,
+ * {@link #readAll(RawThroughput) reading all} of its blocks, and
+ * {@link #readRange(RawThroughput) reading} one minute of one signal, which opens the file,
+ * looks the range up in the footer index and seeks to the blocks holding it.
+ * Rpm and air flow are sampled at 10 Hz, speed at 5 Hz and coolant at 1 Hz, with some jitter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TripFileIoBenchmark implements ObdResponseDecoder.SampleListener {
+
+    private static final int SECONDS = 3600;
+    private static final long START = 1460000000000L;
+    private static final long RANGE = 60 * 1000;
+
+    private int samples;
+    private int[] pids;
+    private long[] times;
+    private float[] values;
+    private File trip;
+    private File output;
+    private final long[] timesOut = new long[TripFileWriter.DEFAULT_BLOCK_SIZE];
+    private final float[] valuesOut = new float[TripFileWriter.DEFAULT_BLOCK_SIZE];
+    private float sum;
+
+    @Setup
+    public void setUp() throws IOException {
+        VehicleModel vehicle = new VehicleModel();
+        Random random = new Random(42);
+        int capacity = SECONDS * (10 + 10 + 5 + 1);
+        pids = new int[capacity];
+        times = new long[capacity];
+        values = new float[capacity];
+        for (int tick = 0; tick < SECONDS * 10; tick++) {
+            long time = START + tick * 100L + random.nextInt(5);
+            add(vehicle, Pids.ENGINE_RPM, time, tick);
+            add(vehicle, Pids.MAF_AIR_FLOW_RATE, time + 20, tick);
+            if (tick % 2 == 0) {
+                add(vehicle, Pids.VEHICLE_SPEED, time + 40, tick);
+            }
+            if (tick % 10 == 0) {
+                add(vehicle, Pids.COOLANT_TEMPERATURE, time + 60, tick);
+            }
+        }
+        trip = File.createTempFile("trip", ".fat");
+        output = File.createTempFile("trip", ".fat");
+        writeTrip(trip);
+    }
+
+    @TearDown
+    public void tearDown() {
+        trip.delete();
+        output.delete();
+    }
+
+    @Benchmark
+    public long write(RawThroughput raw) throws IOException {
+        raw.add(samples);
+        return writeTrip(output);
+    }
+
+    @Benchmark
+    public long readAll(RawThroughput raw) throws IOException {
+        TripFileReader reader = new TripFileReader(trip);
+        try {
+            long checksum = 0;
+            for (int block = 0; block < reader.getBlockCount(); block++) {
+                int count = reader.readBlock(block, timesOut, valuesOut);
+                checksum += timesOut[count - 1];
+            }
+            raw.add(reader.getSampleCount());
+            return checksum;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public float readRange(RawThroughput raw) throws IOException {
+        // a minute in the middle of the trip, which the index narrows down to a block or two
+        long from = START + SECONDS * 1000L / 2;
+        TripFileReader reader = new TripFileReader(trip);
+        try {
+            sum = 0;
+            raw.add(reader.read(Pids.ENGINE_RPM, from, from + RANGE, this));
+            return sum;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void onSample(int pid, float value, long timestamp) {
+        sum += value;
+    }
+
+    private void add(VehicleModel vehicle, int pid, long time, int tick) {
+        // keep the resolution of the PID, as decoded from the response
+        byte[] data = new byte[2];
+        Pids.encode(pid, vehicle.getValue(pid, tick / 10.0), data, 0);
+        pids[samples] = pid;
+        times[samples] = time;
+        values[samples] = Pids.evaluate(pid, data, 0);
+        samples++;
+    }
+
+    private long writeTrip(File file) throws IOException {
+        TripFileWriter writer = new TripFileWriter(file);
+        try {
+            for (int i = 0; i < samples; i++) {
+                writer.append(pids[i], times[i], values[i]);
+            }
+        }
+        finally {
+            writer.close();
+        }
+        return writer.getSize();
+    }
+}
@@ -0,0 +1,258 @@
+package com.ibericart.fuelanalyzer.soak;
+
+import com.ibericart.fuelanalyzer.concurrent.WaitStrategy;
+import com.ibericart.fuelanalyzer.fuel.FuelConsumptionEngine;
+import com.ibericart.fuelanalyzer.metrics.LatencyHistogram;
+import com.ibericart.fuelanalyzer.obd.ObdSession;
+import com.ibericart.fuelanalyzer.obd.PollingScheduler;
+import com.ibericart.fuelanalyzer.obd.ReadBufferPool;
+import com.ibericart.fuelanalyzer.simulator.Elm327Simulator;
+import com.ibericart.fuelanalyzer.simulator.SimulatedEcu;
+import com.ibericart.fuelanalyzer.simulator.VehicleModel;
+import com.ibericart.fuelanalyzer.storage.TimeSeriesStore;
+import com.ibericart.fuelanalyzer.transport.PipedTransport;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole receive pipeline against the simulator for a long time and reports
+ * the sustained samples/sec, the latency from the prompt ending a response to the stored
+ * sample (p50/p99/p999), the heap high-water mark and the dropped frames. The time the
+ * response took to arrive before its prompt isn't part of the latency.
+ *
+ * The pipeline is the one of BluetoothService.ConnectedThread: an {@link ObdSession}
+ * handing the responses over to its decode thread, which feeds a {@link TimeSeriesStore}
+ * and a {@link FuelConsumptionEngine}, and one coalesced update per batch handed over to
+ * a consumer thread standing for the UI.
+ * Options (all optional):
+ * <pre>
+ * --duration=seconds   how long to run, 60 by default
+ * --report=seconds     how often to print the figures, 10 by default
+ * --pids=0C,0D:5:0,... the PIDs polled, each as PID[:rate[:priority]], the rate in samples/s
+ *                      (0, the default, for as fast as possible) and the priority 0 (low),
+ *                      1 (normal, the default) or 2 (high)
+ * --latency=micros     the latency of the simulated ECU
+ * --baud=rate          the simulated serial baud rate, unthrottled by default
+ * --wait=strategy      how the decode thread waits: spin, yield or park (default)
+ * </pre>
+ */
+public class SoakHarness {
+
+    private static final int FRAME_BUFFER_SIZE = 4096;
+    private static final int FRAME_BUFFER_COUNT = ObdSession.DEFAULT_QUEUE_CAPACITY;
+
+    // stands for a pending Handler message
+    private static final Object UPDATE = new Object();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final TimeSeriesStore store = new TimeSeriesStore();
+    private final FuelConsumptionEngine engine = FuelConsumptionEngine.gasoline(1.6f);
+    private final ReadBufferPool pool = new ReadBufferPool(FRAME_BUFFER_COUNT, FRAME_BUFFER_SIZE);
+    private final ArrayBlockingQueue<Object> uiQueue = new ArrayBlockingQueue<Object>(1);
+    // written by the decode thread only
+    private volatile long samples;
+    private volatile long batches;
+    // written by the UI thread only
+    private volatile long uiUpdates;
+
+    public static void main(String[] args) throws Exception {
+        long duration = 60;
+        long report = 10;
+        int[] pids = { 0x0C, 0x0D, 0x10, 0x0B, 0x0F, 0x05 };
+        float[] rates = new float[pids.length];
+        int[] priorities = new int[pids.length];
+        Arrays.fill(priorities, PollingScheduler.PRIORITY_NORMAL);
+        long ecuLatency = 0;
+        int baudRate = 0;
+        String wait = "park";
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--duration=")) {
+                duration = Long.parseLong(value);
+            }
+            else if (arg.startsWith("--report=")) {
+                report = Long.parseLong(value);
+            }
+            else if (arg.startsWith("--pids=")) {
+                String[] specs = value.split(",");
+                pids = new int[specs.length];
+                rates = new float[specs.length];
+                priorities = new int[specs.length];
+                for (int i = 0; i < specs.length; i++) {
+                    String[] fields = specs[i].trim().split(":");
+                    pids[i] = Integer.parseInt(fields[0], 16);
+                    rates[i] = fields.length > 1 ? Float.parseFloat(fields[1])
+                            : PollingScheduler.RATE_UNLIMITED;
+                    priorities[i] = fields.length > 2 ? Integer.parseInt(fields[2])
+                            : PollingScheduler.PRIORITY_NORMAL;
+                }
+            }
+            else if (arg.startsWith("--latency=")) {
+                ecuLatency = Long.parseLong(value) * 1000L;
+            }
+            else if (arg.startsWith("--baud=")) {
+                baudRate = Integer.parseInt(value);
+            }
+            else if (arg.startsWith("--wait=")) {
+                wait = value;
+            }
+            else {
+                System.err.println("unknown option " + arg);
+                System.exit(2);
+            }
+        }
+        WaitStrategy waitStrategy;
+        if (wait.equals("spin")) {
+            waitStrategy = WaitStrategy.spin();
+        }
+        else if (wait.equals("yield")) {
+            waitStrategy = WaitStrategy.yielding();
+        }
+        else {
+            waitStrategy = WaitStrategy.park(ObdSession.DEFAULT_MAX_PARK_NANOS);
+        }
+        new SoakHarness().run(duration, report, pids, rates, priorities, ecuLatency, baudRate,
+                waitStrategy);
+    }
+
+    private void run(long duration, long report, int[] pids, float[] rates, int[] priorities,
+                     long ecuLatency, int baudRate, WaitStrategy waitStrategy)
+            throws Exception {
+        PipedTransport pipe = new PipedTransport("simulator", PipedTransport.DEFAULT_BUFFER_SIZE);
+        Elm327Simulator simulator = new Elm327Simulator(pipe.getPeer());
+        SimulatedEcu ecu = SimulatedEcu.engine(new VehicleModel());
+        ecu.setLatency(ecuLatency);
+        simulator.addEcu(ecu);
+        simulator.setBaudRate(baudRate);
+        new Thread(simulator, "simulator").start();
+
+        PollingScheduler scheduler = new PollingScheduler();
+        for (int i = 0; i < pids.length; i++) {
+            scheduler.addPid(pids[i], rates[i], priorities[i]);
+        }
+        ObdSession session = new ObdSession(pipe, scheduler, pool, waitStrategy,
+                new ObdSession.Listener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        // the answers to ATE0 and ATS0, nothing to show
+                    }
+
+                    @Override
+                    public void onBatchDecoded(int frames) {
+                        batches++;
+                        // at most one update is pending, as with BluetoothService's Handler
+                        uiQueue.offer(UPDATE);
+                    }
+
+                    @Override
+                    public void onConnectionLost(IOException e) {
+                        System.err.println("connection lost: " + e);
+                    }
+
+                    @Override
+                    public void onSample(int pid, float value, long timestamp) {
+                        store.onSample(pid, value, timestamp);
+                        engine.onSample(pid, value, timestamp);
+                        latency.record(System.nanoTime() - timestamp);
+                        samples++;
+                    }
+                });
+        // held until the session runs, which resets the scheduler
+        session.submit("ATE0\r".getBytes());
+        session.submit("ATS0\r".getBytes());
+        Thread reader = new Thread(session, "reader");
+        Thread ui = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        uiQueue.take();
+                        // read what the UI shows
+                        engine.getInstantConsumption();
+                        store.get(0x0C);
+                        uiUpdates++;
+                    }
+                }
+                catch (InterruptedException e) {
+                    // done
+                }
+            }
+        }, "ui");
+        ui.setDaemon(true);
+        ui.start();
+
+        System.out.printf("soak test: %d s, PIDs %s, ECU latency %d us, baud %s, wait %s%n",
+                duration, describe(pids, rates, priorities), ecuLatency / 1000,
+                baudRate == 0 ? "unthrottled" : baudRate, waitStrategy);
+        long start = System.nanoTime();
+        reader.start();
+        long previousSamples = 0;
+        long previousTime = start;
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(report),
+                    Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            long now = System.nanoTime();
+            long total = samples;
+            print(String.format("%6.0f s", (now - start) / 1e9),
+                    (total - previousSamples) * 1e9 / (now - previousTime), session);
+            previousSamples = total;
+            previousTime = now;
+        }
+        session.close();
+        simulator.close();
+        reader.join();
+        ui.interrupt();
+
+        System.out.println();
+        print("total", samples * 1e9 / (System.nanoTime() - start), session);
+        System.out.printf("samples %d, requests %d, fuel %.3f L over %.2f km%n", samples,
+                simulator.getCommandCount(), engine.getLitres(), engine.getKilometres());
+    }
+
+    private void print(String label, double rate, ObdSession session) {
+        System.out.printf("%s: %8.0f samples/s, latency p50 %s p99 %s p999 %s max %s, "
+                        + "heap high-water %d MB, dropped frames %d, overflowed responses %d, "
+                        + "pool exhaustions %d, batches %d, UI updates %d%n",
+                label, rate, micros(latency.getValueAtPercentile(50)),
+                micros(latency.getValueAtPercentile(99)),
+                micros(latency.getValueAtPercentile(99.9)), micros(latency.getMax()),
+                heapHighWater() / (1024 * 1024), session.getDroppedFrameCount(),
+                session.getOverflowCount(), pool.getExhaustionCount(), batches, uiUpdates);
+    }
+
+    private static long heapHighWater() {
+        long peak = 0;
+        for (MemoryPoolMXBean bean : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (bean.getType() == MemoryType.HEAP) {
+                peak += bean.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f us", nanos / 1000.0);
+    }
+
+    private static String describe(int[] pids, float[] rates, int[] priorities) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < pids.length; i++) {
+            builder.append(builder.length() == 0 ? "" : ",")
+                    .append(String.format("%02X", pids[i]));
+            if (rates[i] != PollingScheduler.RATE_UNLIMITED) {
+                builder.append(String.format(":%s/s", rates[i]));
+            }
+            if (priorities[i] != PollingScheduler.PRIORITY_NORMAL) {
+                builder.append(":p").append(priorities[i]);
+            }
+        }
+        return builder.toString();
+    }
+}
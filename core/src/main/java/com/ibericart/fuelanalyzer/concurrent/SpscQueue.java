@@ -0,0 +1,172 @@
+package com.ibericart.fuelanalyzer.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and one consumer thread.
+ *
+ * The elements live in a power of two ring. The producer only writes the tail index and
+ * the consumer only writes the head index, both with ordered (lazy) stores, so neither side
+ * ever takes a lock or issues a full fence. Each side also keeps a cached copy of the other
+ * side's index and only reads the shared one when the cached copy says the queue is full
+ * (producer) or empty (consumer).
+ *
+ * {@link #drain(Consumer, int)} hands a whole batch to the consumer and publishes the freed
+ * slots once for the batch instead of once per element.
+ *
+ * {@link #offer(Object)} must only be called by the producer thread and {@link #poll()} and
+ * {@link #drain(Consumer, int)} only by the consumer thread; the other methods can be called
+ * from any thread.
+ *
+ * @param <E> The type of the elements.
+ */
+public class SpscQueue<E> {
+
+    /**
+     * Receives the elements drained from the queue.
+     *
+     * @param <E> The type of the elements.
+     */
+    public interface Consumer<E> {
+
+        /**
+         * Called for every element, in FIFO order, on the consumer thread.
+         */
+        void accept(E element);
+    }
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final Object[] buffer;
+    private final int mask;
+
+    // the index of the next element to take, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // the index of the next free slot, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // the producer's view of the head and the consumer's view of the tail
+    private long headCache;
+    private long tailCache;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The minimum number of elements the queue holds,
+     *                 rounded up to a power of two.
+     */
+    public SpscQueue(int capacity) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the number of elements the queue holds.
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Adds an element at the tail of the queue. Producer thread only.
+     *
+     * @param element The element to add, not null.
+     * @return false if the queue is full, in which case nothing was added.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("element");
+        }
+        long t = tail.get();
+        if (t - headCache >= buffer.length) {
+            headCache = head.get();
+            if (t - headCache >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = element;
+        // publishes the element
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Takes the element at the head of the queue. Consumer thread only.
+     *
+     * @return The element, null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h >= tailCache) {
+            tailCache = tail.get();
+            if (h >= tailCache) {
+                return null;
+            }
+        }
+        int index = (int) h & mask;
+        E element = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * Takes up to {@code limit} elements and passes them to the given consumer.
+     * Consumer thread only.
+     *
+     * @param consumer Receives the elements.
+     * @param limit    The maximum number of elements to take.
+     * @return The number of elements taken, 0 if the queue was empty.
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(Consumer<? super E> consumer, int limit) {
+        long h = head.get();
+        long available = tailCache - h;
+        if (available <= 0) {
+            tailCache = tail.get();
+            available = tailCache - h;
+            if (available <= 0) {
+                return 0;
+            }
+        }
+        int count = (int) Math.min(available, limit);
+        int taken = 0;
+        try {
+            while (taken < count) {
+                int index = (int) (h + taken) & mask;
+                E element = (E) buffer[index];
+                buffer[index] = null;
+                taken++;
+                consumer.accept(element);
+            }
+        }
+        finally {
+            // frees the slots of the whole batch at once
+            head.lazySet(h + taken);
+        }
+        return taken;
+    }
+
+    /**
+     * Returns the number of elements in the queue. Only a snapshot when called
+     * while the producer or the consumer is active.
+     */
+    public int size() {
+        // read the head first, so that the difference is never negative
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.min(t - h, buffer.length);
+    }
+
+    /**
+     * Tells whether the queue is empty, see {@link #size()}.
+     */
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+}
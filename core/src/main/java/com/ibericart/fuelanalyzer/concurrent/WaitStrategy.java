@@ -0,0 +1,132 @@
+package com.ibericart.fuelanalyzer.concurrent;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How the consumer of a {@link SpscQueue} waits for new elements.
+ *
+ * <ul>
+ * <li>{@link #spin()} keeps polling: the lowest latency, but it burns a whole core.</li>
+ * <li>{@link #yielding()} spins a little, then yields the processor between polls.</li>
+ * <li>{@link #park(long)} spins, yields, then parks the consumer until the producer
+ * signals a new element: a little more latency, no CPU while idle. The right choice
+ * on a phone.</li>
+ * </ul>
+ *
+ * A strategy instance serves a single queue.
+ */
+public abstract class WaitStrategy {
+
+    // how many times the queue is polled in a tight loop before backing off
+    private static final int SPIN_TRIES = 100;
+
+    // how many times the consumer yields before parking
+    private static final int YIELD_TRIES = 10;
+
+    /**
+     * Called by the consumer each time it finds the queue empty.
+     *
+     * @param idleCount How many times in a row the queue was found empty, 0 the first time.
+     * @param queue     The queue being waited on, checked again before blocking.
+     */
+    public abstract void idle(int idleCount, SpscQueue<?> queue);
+
+    /**
+     * Called by the producer after it added an element. Wakes the consumer up
+     * if it is blocked, does nothing otherwise.
+     */
+    public void signal() {
+    }
+
+    /**
+     * Returns a strategy which polls the queue in a tight loop.
+     */
+    public static WaitStrategy spin() {
+        return new WaitStrategy() {
+            @Override
+            public void idle(int idleCount, SpscQueue<?> queue) {
+            }
+
+            @Override
+            public String toString() {
+                return "spin";
+            }
+        };
+    }
+
+    /**
+     * Returns a strategy which yields the processor between polls once the queue
+     * was empty for a while.
+     */
+    public static WaitStrategy yielding() {
+        return new WaitStrategy() {
+            @Override
+            public void idle(int idleCount, SpscQueue<?> queue) {
+                if (idleCount >= SPIN_TRIES) {
+                    Thread.yield();
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "yield";
+            }
+        };
+    }
+
+    /**
+     * Returns a strategy which parks the consumer once the queue was empty for a while.
+     *
+     * @param maxParkNanos The longest time the consumer stays parked without a signal,
+     *                     which bounds the delay should a signal ever be missed.
+     */
+    public static WaitStrategy park(long maxParkNanos) {
+        if (maxParkNanos <= 0) {
+            throw new IllegalArgumentException("invalid park time: " + maxParkNanos);
+        }
+        return new Park(maxParkNanos);
+    }
+
+    private static final class Park extends WaitStrategy {
+
+        private final long maxParkNanos;
+
+        // the parked consumer, null while it is running
+        private final AtomicReference<Thread> parked = new AtomicReference<Thread>();
+
+        Park(long maxParkNanos) {
+            this.maxParkNanos = maxParkNanos;
+        }
+
+        @Override
+        public void idle(int idleCount, SpscQueue<?> queue) {
+            if (idleCount < SPIN_TRIES) {
+                return;
+            }
+            if (idleCount < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+                return;
+            }
+            parked.set(Thread.currentThread());
+            // an element added before the consumer announced itself wasn't signalled
+            if (queue.isEmpty()) {
+                LockSupport.parkNanos(this, maxParkNanos);
+            }
+            parked.set(null);
+        }
+
+        @Override
+        public void signal() {
+            Thread consumer = parked.get();
+            if (consumer != null && parked.compareAndSet(consumer, null)) {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "park";
+        }
+    }
+}
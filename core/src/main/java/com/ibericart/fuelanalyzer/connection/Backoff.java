@@ -0,0 +1,90 @@
+package com.ibericart.fuelanalyzer.connection;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff between connection attempts.
+ *
+ * The base delay starts at the initial delay and is multiplied after every attempt, up to the
+ * maximum delay. The delay actually returned is drawn uniformly between
+ * {@code base * (1 - jitter)} and {@code base}, so that clients which lost their connection
+ * at the same time don't retry in lockstep, while the first retry still comes quickly.
+ *
+ * This class is thread safe.
+ */
+public class Backoff {
+
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 250;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+    public static final double DEFAULT_MULTIPLIER = 2;
+    public static final double DEFAULT_JITTER = 0.5;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final Random random;
+
+    private int attempts;
+    private double base;
+
+    /**
+     * Constructor using the default delays, multiplier and jitter.
+     */
+    public Backoff() {
+        this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MULTIPLIER,
+                DEFAULT_JITTER, new Random());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param initialDelay The base delay before the first retry, in milliseconds.
+     * @param maxDelay     The largest base delay, in milliseconds.
+     * @param multiplier   The growth of the base delay after every attempt, at least 1.
+     * @param jitter       The fraction of the base delay which is randomized, between 0 and 1.
+     * @param random       The source of the jitter.
+     */
+    public Backoff(long initialDelay, long maxDelay, double multiplier, double jitter,
+                   Random random) {
+        if (initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("invalid delays: " + initialDelay + ", "
+                    + maxDelay);
+        }
+        if (multiplier < 1 || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("invalid multiplier or jitter: " + multiplier
+                    + ", " + jitter);
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.random = random;
+        this.base = initialDelay;
+    }
+
+    /**
+     * Returns the delay before the next attempt, in milliseconds, and counts the attempt.
+     */
+    public synchronized long nextDelay() {
+        double delay = base * (1 - jitter * random.nextDouble());
+        base = Math.min(base * multiplier, maxDelay);
+        attempts++;
+        return Math.max(1, Math.round(delay));
+    }
+
+    /**
+     * Returns the number of attempts since the last reset.
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Starts over from the initial delay, e.g. once connected.
+     */
+    public synchronized void reset() {
+        attempts = 0;
+        base = initialDelay;
+    }
+}
@@ -0,0 +1,172 @@
+package com.ibericart.fuelanalyzer.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of the connection attempts to every device, per connection strategy
+ * (e.g. secure, insecure or channel 1 RFCOMM sockets): how many attempts succeeded and
+ * how long the successful ones took, smoothed with an exponential moving average.
+ *
+ * {@link #rank(String, List)} orders the strategies by their expected time to connect,
+ * so the historically fastest one can be tried first. The statistics are saved to and
+ * restored from a string (see {@link #save()} and {@link #load(String)}), e.g. to keep
+ * them in the app's preferences.
+ *
+ * This class is thread safe.
+ */
+public class ConnectStats {
+
+    // the weight of the latest latency in the moving average
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    // the success rate assumed for a strategy which never failed nor succeeded
+    private static final double MIN_SUCCESS_RATE = 0.05;
+
+    private static final char FIELD_SEPARATOR = ',';
+    private static final char ENTRY_SEPARATOR = ';';
+
+    private static class Entry {
+        int attempts;
+        int successes;
+        double latency;
+    }
+
+    // keyed by device + FIELD_SEPARATOR + strategy
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Records the outcome of a connection attempt.
+     *
+     * @param device        The address of the device.
+     * @param strategy      The name of the strategy, without commas nor semicolons.
+     * @param success       Whether the attempt succeeded.
+     * @param latencyMillis How long the attempt took, in milliseconds.
+     */
+    public synchronized void record(String device, String strategy, boolean success,
+                                    long latencyMillis) {
+        String key = key(device, strategy);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        entry.attempts++;
+        if (success) {
+            entry.latency = entry.successes == 0 ? latencyMillis
+                    : entry.latency + LATENCY_WEIGHT * (latencyMillis - entry.latency);
+            entry.successes++;
+        }
+    }
+
+    /**
+     * Returns the number of attempts made with a strategy.
+     */
+    public synchronized int getAttempts(String device, String strategy) {
+        Entry entry = entries.get(key(device, strategy));
+        return entry == null ? 0 : entry.attempts;
+    }
+
+    /**
+     * Returns the number of successful attempts made with a strategy.
+     */
+    public synchronized int getSuccesses(String device, String strategy) {
+        Entry entry = entries.get(key(device, strategy));
+        return entry == null ? 0 : entry.successes;
+    }
+
+    /**
+     * Returns the average time a successful attempt took, in milliseconds,
+     * -1 if no attempt succeeded yet.
+     */
+    public synchronized long getLatency(String device, String strategy) {
+        Entry entry = entries.get(key(device, strategy));
+        return entry == null || entry.successes == 0 ? -1 : Math.round(entry.latency);
+    }
+
+    /**
+     * Orders the given strategies by their expected time to connect to the device, the
+     * average latency divided by the success rate. The strategies which never succeeded
+     * come last, in the given order.
+     *
+     * @param device     The address of the device.
+     * @param strategies The strategies to rank.
+     * @return A new list, the fastest strategy first.
+     */
+    public synchronized List<String> rank(String device, List<String> strategies) {
+        final Map<String, Double> costs = new HashMap<String, Double>();
+        for (String strategy : strategies) {
+            Entry entry = entries.get(key(device, strategy));
+            double cost = Double.MAX_VALUE;
+            if (entry != null && entry.successes > 0) {
+                double rate = Math.max((double) entry.successes / entry.attempts,
+                        MIN_SUCCESS_RATE);
+                cost = entry.latency / rate;
+            }
+            costs.put(strategy, cost);
+        }
+        List<String> ranked = new ArrayList<String>(strategies);
+        // stable, so the ties keep the given order
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(costs.get(a), costs.get(b));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Writes the statistics to a string, see {@link #load(String)}.
+     */
+    public synchronized String save() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (builder.length() > 0) {
+                builder.append(ENTRY_SEPARATOR);
+            }
+            builder.append(e.getKey()).append(FIELD_SEPARATOR).append(entry.attempts)
+                    .append(FIELD_SEPARATOR).append(entry.successes)
+                    .append(FIELD_SEPARATOR).append(Math.round(entry.latency));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads statistics written by {@link #save()}. Malformed entries are skipped.
+     *
+     * @param saved The saved statistics, may be null or empty.
+     */
+    public static ConnectStats load(String saved) {
+        ConnectStats stats = new ConnectStats();
+        if (saved == null || saved.isEmpty()) {
+            return stats;
+        }
+        for (String line : saved.split(String.valueOf(ENTRY_SEPARATOR))) {
+            String[] fields = line.split(String.valueOf(FIELD_SEPARATOR));
+            if (fields.length != 5) {
+                continue;
+            }
+            try {
+                Entry entry = new Entry();
+                entry.attempts = Integer.parseInt(fields[2]);
+                entry.successes = Integer.parseInt(fields[3]);
+                entry.latency = Long.parseLong(fields[4]);
+                stats.entries.put(key(fields[0], fields[1]), entry);
+            }
+            catch (NumberFormatException e) {
+                // skip the entry
+            }
+        }
+        return stats;
+    }
+
+    private static String key(String device, String strategy) {
+        return device + FIELD_SEPARATOR + strategy;
+    }
+}
@@ -0,0 +1,160 @@
+package com.ibericart.fuelanalyzer.connection;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of a connection to an adapter, changed with compare-and-set transitions.
+ *
+ * <pre>
+ * from \ to    NONE  LISTEN  CONNECTING  CONNECTED
+ * NONE          -     yes     yes         no
+ * LISTEN        yes   -       yes         yes (accepted)
+ * CONNECTING    yes   yes     yes         yes
+ * CONNECTED     yes   yes     yes         no
+ * </pre>
+ *
+ * Notably a connection can't be reported as established once the machine was stopped
+ * ({@link #STATE_NONE}), nor twice in a row, which keeps late connection attempts out.
+ *
+ * Reading the state never blocks. The listeners are called after the transition, on the thread
+ * which made it and without holding any lock, so they can call back into the machine.
+ *
+ * This class is thread safe.
+ */
+public class ConnectionStateMachine {
+
+    // the states, as reported by getState()
+    public static final int STATE_NONE = 0;       // doing nothing
+    public static final int STATE_LISTEN = 1;     // listening for incoming connections
+    public static final int STATE_CONNECTING = 2; // initiating an outgoing connection
+    public static final int STATE_CONNECTED = 3;  // connected to a remote device
+
+    private static final String[] NAMES = {"NONE", "LISTEN", "CONNECTING", "CONNECTED"};
+
+    // the states each state can go to, one bit per state
+    private static final int[] ALLOWED = {
+            bits(STATE_LISTEN, STATE_CONNECTING),
+            bits(STATE_NONE, STATE_CONNECTING, STATE_CONNECTED),
+            bits(STATE_NONE, STATE_LISTEN, STATE_CONNECTING, STATE_CONNECTED),
+            bits(STATE_NONE, STATE_LISTEN, STATE_CONNECTING)
+    };
+
+    /**
+     * Receives the state changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called after every transition, on the thread which made it.
+         *
+         * @param previous The state before the transition.
+         * @param state    The new state.
+         */
+        void onStateChanged(int previous, int state);
+    }
+
+    private final AtomicInteger state = new AtomicInteger(STATE_NONE);
+    private final CopyOnWriteArrayList<Listener> listeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Returns the current state.
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * Adds a listener, called for every transition from now on.
+     */
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener.
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Moves from the given state to another one, if the machine is still in the given state.
+     *
+     * @param expected The state the machine must be in.
+     * @param next     The new state.
+     * @return true if the transition was made, false if the machine wasn't in the expected
+     * state or if the expected state is the new state.
+     * @throws IllegalArgumentException if the transition is never allowed.
+     */
+    public boolean transition(int expected, int next) {
+        if (!isAllowed(expected, next)) {
+            throw new IllegalArgumentException("invalid transition " + name(expected)
+                    + " -> " + name(next));
+        }
+        if (expected == next || !state.compareAndSet(expected, next)) {
+            return false;
+        }
+        notifyListeners(expected, next);
+        return true;
+    }
+
+    /**
+     * Moves from whatever the current state is to the given state, if that transition is
+     * allowed. Does nothing if the machine already is in the given state.
+     *
+     * @param next The new state.
+     * @return true if the transition was made.
+     */
+    public boolean moveTo(int next) {
+        checkState(next);
+        while (true) {
+            int current = state.get();
+            if (current == next || !isAllowed(current, next)) {
+                return false;
+            }
+            if (state.compareAndSet(current, next)) {
+                notifyListeners(current, next);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Tells whether the machine can go from one state to another, see the table above.
+     * A new outgoing connection may replace one still being made (CONNECTING to CONNECTING).
+     */
+    public static boolean isAllowed(int from, int to) {
+        checkState(from);
+        checkState(to);
+        return (ALLOWED[from] & (1 << to)) != 0;
+    }
+
+    /**
+     * Returns the name of a state, for logging.
+     */
+    public static String name(int state) {
+        return state >= 0 && state < NAMES.length ? NAMES[state] : String.valueOf(state);
+    }
+
+    private void notifyListeners(int previous, int next) {
+        for (Listener listener : listeners) {
+            listener.onStateChanged(previous, next);
+        }
+    }
+
+    private static void checkState(int state) {
+        if (state < STATE_NONE || state > STATE_CONNECTED) {
+            throw new IllegalArgumentException("invalid state: " + state);
+        }
+    }
+
+    private static int bits(int... states) {
+        int bits = 0;
+        for (int state : states) {
+            bits |= 1 << state;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,324 @@
+package com.ibericart.fuelanalyzer.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The Bluetooth devices seen so far, with a fingerprint telling whether each one answered
+ * the ATZ reset as an ELM327 adapter, so the known adapters can be listed before any
+ * discovery and the discovery can stop as soon as one of them shows up.
+ *
+ * {@link #rank(String, String)} orders the devices for the user: the fingerprinted
+ * adapters first, then the devices whose name looks like an OBD adapter's, then the
+ * unknown ones, and the devices which answered ATZ with something else last.
+ * A known adapter is only demoted after {@link #MAX_MISSES} answers in a row which don't
+ * identify it, so a single garbled answer (line noise, a half powered dongle) doesn't
+ * push it to the end of the list; an empty answer tells nothing and changes nothing.
+ * The cache holds a bounded number of devices, dropping the ones seen the longest
+ * time ago. It's saved to and restored from a string (see {@link #save()} and
+ * {@link #load(String, int)}), e.g. to keep it in the app's preferences.
+ *
+ * This class is thread safe.
+ */
+public class DeviceCache {
+
+    // what the ATZ answer tells about a device
+    public static final int KIND_UNKNOWN = 0;
+    public static final int KIND_ADAPTER = 1;
+    public static final int KIND_OTHER = 2;
+
+    // the ranks given by rank(), the lowest first
+    public static final int RANK_ADAPTER = 0;
+    public static final int RANK_LIKELY_ADAPTER = 1;
+    public static final int RANK_UNKNOWN = 2;
+    public static final int RANK_OTHER = 3;
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * The number of answers in a row not identifying a known adapter which demote it.
+     */
+    public static final int MAX_MISSES = 3;
+
+    // the beginning of the answer of an ELM327 (or clone) to ATZ, e.g. "ELM327 v1.5"
+    private static final String ELM_IDENTITY = "ELM327";
+
+    // parts of the usual names of the Bluetooth OBD adapters
+    private static final String[] ADAPTER_NAME_HINTS = {
+            "OBD", "ELM", "V-LINK", "VLINK", "VGATE", "ICAR", "KONNWEI"
+    };
+
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char ENTRY_SEPARATOR = '\n';
+
+    /**
+     * A device seen during a discovery or connected to.
+     */
+    public static class Device {
+        private final String address;
+        private String name;
+        private long lastSeen;
+        private int kind;
+        private String identity;
+        // the answers in a row which didn't identify the known adapter
+        private int misses;
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns when the device was last seen, in milliseconds since the epoch.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * Returns {@link #KIND_ADAPTER}, {@link #KIND_OTHER} or {@link #KIND_UNKNOWN}
+         * if the device wasn't fingerprinted yet.
+         */
+        public int getKind() {
+            return kind;
+        }
+
+        /**
+         * Returns the identity the adapter gave when reset, e.g. "ELM327 v1.5",
+         * null if it's not a fingerprinted adapter.
+         */
+        public String getIdentity() {
+            return identity;
+        }
+    }
+
+    // ordered by the time the devices were last seen, so the eldest is dropped first
+    private final Map<String, Device> devices;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The largest number of devices kept.
+     */
+    public DeviceCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        devices = new LinkedHashMap<String, Device>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Device> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Records that a device was seen, e.g. found by a discovery.
+     *
+     * @param address The address of the device.
+     * @param name    The name of the device, may be null.
+     * @param time    When the device was seen, in milliseconds since the epoch.
+     * @return The cached device.
+     */
+    public synchronized Device seen(String address, String name, long time) {
+        Device device = devices.remove(address);
+        if (device == null) {
+            device = new Device(address);
+        }
+        devices.put(address, device);
+        if (name != null) {
+            device.name = clean(name);
+        }
+        device.lastSeen = Math.max(device.lastSeen, time);
+        return device;
+    }
+
+    /**
+     * Records the answer of a device to ATZ, which tells whether it's an ELM327 adapter.
+     *
+     * @param address  The address of the device.
+     * @param name     The name of the device, may be null.
+     * @param response The text of the answer, echo included.
+     * @param time     When the device answered, in milliseconds since the epoch.
+     * @return The cached device.
+     */
+    public synchronized Device fingerprint(String address, String name, String response,
+                                           long time) {
+        Device device = seen(address, name, time);
+        String identity = parseIdentity(response);
+        if (identity != null) {
+            device.kind = KIND_ADAPTER;
+            device.identity = identity;
+            device.misses = 0;
+        }
+        else if (response.trim().isEmpty()) {
+            // no answer at all, which tells nothing about the device
+            return device;
+        }
+        else if (device.kind != KIND_ADAPTER || ++device.misses >= MAX_MISSES) {
+            device.kind = KIND_OTHER;
+            device.identity = null;
+            device.misses = 0;
+        }
+        return device;
+    }
+
+    /**
+     * Returns the cached device with the given address, null if it was never seen.
+     */
+    public synchronized Device get(String address) {
+        return devices.get(address);
+    }
+
+    /**
+     * Returns whether the device with the given address answered ATZ as an ELM327.
+     */
+    public synchronized boolean isKnownAdapter(String address) {
+        Device device = devices.get(address);
+        return device != null && device.kind == KIND_ADAPTER;
+    }
+
+    /**
+     * Returns the fingerprinted adapters, the most recently seen first.
+     */
+    public synchronized List<Device> getKnownAdapters() {
+        List<Device> adapters = new ArrayList<Device>();
+        for (Device device : devices.values()) {
+            if (device.kind == KIND_ADAPTER) {
+                adapters.add(device);
+            }
+        }
+        Collections.sort(adapters, new Comparator<Device>() {
+            @Override
+            public int compare(Device a, Device b) {
+                return a.lastSeen < b.lastSeen ? 1 : a.lastSeen > b.lastSeen ? -1 : 0;
+            }
+        });
+        return adapters;
+    }
+
+    /**
+     * Returns how likely a device is to be an OBD adapter, from {@link #RANK_ADAPTER}
+     * (fingerprinted) to {@link #RANK_OTHER} (answered ATZ with something else).
+     *
+     * @param address The address of the device.
+     * @param name    The name of the device, used when it wasn't fingerprinted, may be null.
+     */
+    public synchronized int rank(String address, String name) {
+        Device device = devices.get(address);
+        if (device != null && device.kind == KIND_ADAPTER) {
+            return RANK_ADAPTER;
+        }
+        if (device != null && device.kind == KIND_OTHER) {
+            return RANK_OTHER;
+        }
+        return isLikelyAdapter(name) ? RANK_LIKELY_ADAPTER : RANK_UNKNOWN;
+    }
+
+    /**
+     * Returns the number of cached devices.
+     */
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    /**
+     * Returns whether a device name looks like the name of a Bluetooth OBD adapter.
+     */
+    public static boolean isLikelyAdapter(String name) {
+        if (name == null) {
+            return false;
+        }
+        String upper = name.toUpperCase(Locale.US);
+        for (String hint : ADAPTER_NAME_HINTS) {
+            if (upper.contains(hint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the line of an answer to ATZ which identifies an ELM327,
+     * e.g. "ELM327 v1.5", null if there is none.
+     */
+    static String parseIdentity(String response) {
+        for (String line : response.split("[\r\n]")) {
+            String trimmed = line.trim();
+            if (trimmed.toUpperCase(Locale.US).startsWith(ELM_IDENTITY)) {
+                return trimmed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the cache to a string, see {@link #load(String, int)}.
+     */
+    public synchronized String save() {
+        StringBuilder builder = new StringBuilder();
+        for (Device device : devices.values()) {
+            if (builder.length() > 0) {
+                builder.append(ENTRY_SEPARATOR);
+            }
+            builder.append(device.address).append(FIELD_SEPARATOR)
+                    .append(device.name == null ? "" : device.name).append(FIELD_SEPARATOR)
+                    .append(device.lastSeen).append(FIELD_SEPARATOR)
+                    .append(device.kind).append(FIELD_SEPARATOR)
+                    .append(device.identity == null ? "" : device.identity)
+                    .append(FIELD_SEPARATOR).append(device.misses);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads a cache written by {@link #save()}. Malformed entries are skipped.
+     *
+     * @param saved    The saved cache, may be null or empty.
+     * @param capacity The largest number of devices kept.
+     */
+    public static DeviceCache load(String saved, int capacity) {
+        DeviceCache cache = new DeviceCache(capacity);
+        if (saved == null || saved.isEmpty()) {
+            return cache;
+        }
+        for (String line : saved.split(String.valueOf(ENTRY_SEPARATOR))) {
+            // keep the empty trailing fields; the misses came later, so they may be missing
+            String[] fields = line.split(String.valueOf(FIELD_SEPARATOR), -1);
+            if (fields.length != 5 && fields.length != 6) {
+                continue;
+            }
+            try {
+                Device device = new Device(fields[0]);
+                device.name = fields[1].isEmpty() ? null : fields[1];
+                device.lastSeen = Long.parseLong(fields[2]);
+                device.kind = Integer.parseInt(fields[3]);
+                device.identity = fields[4].isEmpty() ? null : fields[4];
+                device.misses = fields.length == 6 ? Integer.parseInt(fields[5]) : 0;
+                cache.devices.put(device.address, device);
+            }
+            catch (NumberFormatException e) {
+                // skip the entry
+            }
+        }
+        return cache;
+    }
+
+    private static String clean(String text) {
+        return text.replace(FIELD_SEPARATOR, ' ').replace(ENTRY_SEPARATOR, ' ');
+    }
+}
@@ -0,0 +1,215 @@
+package com.ibericart.fuelanalyzer.fuel;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+import com.ibericart.fuelanalyzer.obd.Pids;
+
+/**
+ * Computes the fuel consumption from the decoded PID values as they arrive.
+ *
+ * The fuel flow is derived from the mass air flow (PID 0x10) divided by the air-fuel ratio
+ * and the density of the fuel. Vehicles without a MAF sensor get the air flow estimated
+ * with the speed-density method, from the manifold pressure (0x0B), the intake air
+ * temperature (0x0F), the engine speed (0x0C), the displacement and the volumetric
+ * efficiency. The distance comes from the vehicle speed (0x0D).
+ *
+ * Both the fuel flow and the speed are integrated with the trapezoidal rule over the actual
+ * timestamps of the samples, which don't have to be evenly spaced. Every sample updates
+ * the results in constant time without allocating anything. Gaps longer than
+ * {@link #MAX_GAP_NANOS} (e.g. a lost connection) are not integrated.
+ *
+ * This class is thread safe.
+ */
+public class FuelConsumptionEngine implements ObdResponseDecoder.SampleListener {
+
+    // stoichiometric air-fuel ratios and densities (g/L)
+    public static final float GASOLINE_AIR_FUEL_RATIO = 14.7f;
+    public static final float GASOLINE_DENSITY = 745f;
+    public static final float DIESEL_AIR_FUEL_RATIO = 14.5f;
+    public static final float DIESEL_DENSITY = 832f;
+
+    /**
+     * The volumetric efficiency used when none is given, typical for a petrol engine.
+     */
+    public static final float DEFAULT_VOLUMETRIC_EFFICIENCY = 0.85f;
+
+    /**
+     * The longest time between two samples which is still integrated.
+     */
+    public static final long MAX_GAP_NANOS = 5000000000L;
+
+    // below this speed (km/h) the consumption per distance is meaningless
+    private static final float MIN_SPEED = 3f;
+
+    // molar mass of air (g/mol) and the gas constant (J/(mol K))
+    private static final double AIR_MOLAR_MASS = 28.97;
+    private static final double GAS_CONSTANT = 8.314;
+
+    private final double airFuelRatio;
+    private final double fuelDensity;
+    private final double displacement;
+    private final double volumetricEfficiency;
+
+    // the latest engine values, for the speed-density method
+    private boolean hasMaf;
+    private float rpm = Float.NaN;
+    private float manifoldPressure = Float.NaN;
+    private float intakeTemperature = Float.NaN;
+
+    // fuel flow (L/s) and speed (km/h) at the previous sample
+    private double fuelRate;
+    private long fuelRateTime;
+    private boolean hasFuelRate;
+    private float speed;
+    private long speedTime;
+    private boolean hasSpeed;
+
+    private double litres;
+    private double metres;
+
+    /**
+     * Constructor.
+     *
+     * @param airFuelRatio         The stoichiometric air-fuel ratio of the fuel.
+     * @param fuelDensity          The density of the fuel, in g/L.
+     * @param displacement         The engine displacement in litres, for the speed-density method.
+     * @param volumetricEfficiency The volumetric efficiency of the engine, between 0 and 1.
+     */
+    public FuelConsumptionEngine(float airFuelRatio, float fuelDensity, float displacement,
+                                 float volumetricEfficiency) {
+        if (airFuelRatio <= 0 || fuelDensity <= 0 || displacement <= 0
+                || volumetricEfficiency <= 0) {
+            throw new IllegalArgumentException("all parameters must be positive");
+        }
+        this.airFuelRatio = airFuelRatio;
+        this.fuelDensity = fuelDensity;
+        this.displacement = displacement;
+        this.volumetricEfficiency = volumetricEfficiency;
+    }
+
+    /**
+     * Creates an engine for a petrol car.
+     *
+     * @param displacement The engine displacement in litres.
+     */
+    public static FuelConsumptionEngine gasoline(float displacement) {
+        return new FuelConsumptionEngine(GASOLINE_AIR_FUEL_RATIO, GASOLINE_DENSITY, displacement,
+                DEFAULT_VOLUMETRIC_EFFICIENCY);
+    }
+
+    @Override
+    public synchronized void onSample(int pid, float value, long timestamp) {
+        switch (pid) {
+            case Pids.MAF_AIR_FLOW_RATE:
+                hasMaf = true;
+                updateFuelRate(value, timestamp);
+                break;
+            case Pids.ENGINE_RPM:
+                rpm = value;
+                updateSpeedDensity(timestamp);
+                break;
+            case Pids.INTAKE_MANIFOLD_PRESSURE:
+                manifoldPressure = value;
+                updateSpeedDensity(timestamp);
+                break;
+            case Pids.INTAKE_AIR_TEMPERATURE:
+                intakeTemperature = value;
+                break;
+            case Pids.VEHICLE_SPEED:
+                updateSpeed(value, timestamp);
+                break;
+        }
+    }
+
+    /**
+     * Returns the current fuel flow in litres per hour, {@link Float#NaN} if unknown.
+     */
+    public synchronized float getFuelRate() {
+        return hasFuelRate ? (float) (fuelRate * 3600) : Float.NaN;
+    }
+
+    /**
+     * Returns the current consumption in litres per 100 km, {@link Float#NaN}
+     * if unknown or if the vehicle is (almost) stopped.
+     */
+    public synchronized float getInstantConsumption() {
+        if (!hasFuelRate || !hasSpeed || speed < MIN_SPEED) {
+            return Float.NaN;
+        }
+        return (float) (fuelRate * 3600 / speed * 100);
+    }
+
+    /**
+     * Returns the average consumption since the last reset in litres per 100 km,
+     * {@link Float#NaN} if no distance was covered yet.
+     */
+    public synchronized float getAverageConsumption() {
+        if (metres < 1) {
+            return Float.NaN;
+        }
+        return (float) (litres / (metres / 1000) * 100);
+    }
+
+    /**
+     * Returns the fuel used since the last reset, in litres.
+     */
+    public synchronized double getLitres() {
+        return litres;
+    }
+
+    /**
+     * Returns the distance covered since the last reset, in kilometres.
+     */
+    public synchronized double getKilometres() {
+        return metres / 1000;
+    }
+
+    /**
+     * Resets the totals, e.g. when a new trip starts.
+     */
+    public synchronized void reset() {
+        litres = 0;
+        metres = 0;
+        hasFuelRate = false;
+        hasSpeed = false;
+    }
+
+    private void updateSpeedDensity(long timestamp) {
+        if (hasMaf || Float.isNaN(rpm) || Float.isNaN(manifoldPressure)
+                || Float.isNaN(intakeTemperature)) {
+            return;
+        }
+        // ideal gas law over the air the cylinders take in every second (one intake
+        // stroke every two revolutions): m = p V M / (R T), with p in kPa and V in L
+        double kelvin = intakeTemperature + 273.15;
+        double litresPerSecond = displacement * rpm / 120 * volumetricEfficiency;
+        double airFlow = manifoldPressure * litresPerSecond * AIR_MOLAR_MASS
+                / (GAS_CONSTANT * kelvin);
+        updateFuelRate(airFlow, timestamp);
+    }
+
+    private void updateFuelRate(double airFlow, long timestamp) {
+        double rate = airFlow / airFuelRatio / fuelDensity;
+        if (hasFuelRate) {
+            long elapsed = timestamp - fuelRateTime;
+            if (elapsed > 0 && elapsed <= MAX_GAP_NANOS) {
+                litres += (fuelRate + rate) / 2 * (elapsed / 1e9);
+            }
+        }
+        fuelRate = rate;
+        fuelRateTime = timestamp;
+        hasFuelRate = true;
+    }
+
+    private void updateSpeed(float value, long timestamp) {
+        if (hasSpeed) {
+            long elapsed = timestamp - speedTime;
+            if (elapsed > 0 && elapsed <= MAX_GAP_NANOS) {
+                // km/h to m/s
+                metres += (speed + value) / 2 / 3.6 * (elapsed / 1e9);
+            }
+        }
+        speed = value;
+        speedTime = timestamp;
+        hasSpeed = true;
+    }
+}
@@ -0,0 +1,140 @@
+package com.ibericart.fuelanalyzer.metrics;
+
+/**
+ * A histogram of durations (or any positive long) with log-linear buckets: every power
+ * of two is split into 16 buckets, so the values are kept within 1/16 (6%) of their
+ * actual value over the whole range of a long, in a fixed 8 KB.
+ *
+ * Recording doesn't allocate. This class is thread safe.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[64 * SUB_BUCKETS];
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    /**
+     * Records a value, negative values are counted as 0.
+     */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the smallest value recorded, 0 if the histogram is empty.
+     */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the mean of the values recorded, 0 if the histogram is empty.
+     */
+    public synchronized double getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the values fall,
+     * within the precision of the buckets.
+     *
+     * @param percentile The percentile, between 0 and 100, e.g. 99.9.
+     * @return The value, 0 if the histogram is empty.
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulated += counts[i];
+            if (cumulated >= target) {
+                return Math.min(max, highestValue(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        long[] otherCounts = new long[counts.length];
+        long otherCount;
+        long otherMin;
+        long otherMax;
+        double otherSum;
+        synchronized (other) {
+            System.arraycopy(other.counts, 0, otherCounts, 0, counts.length);
+            otherCount = other.count;
+            otherMin = other.min;
+            otherMax = other.max;
+            otherSum = other.sum;
+        }
+        synchronized (this) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += otherCounts[i];
+            }
+            count += otherCount;
+            sum += otherSum;
+            min = Math.min(min, otherMin);
+            max = Math.max(max, otherMax);
+        }
+    }
+
+    /**
+     * Removes all the values.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the highest value falling into a bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,485 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import com.ibericart.fuelanalyzer.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resets and configures an ELM327 adapter right after connecting, before the
+ * {@link ObdSession} starts polling: ATZ, then echo, linefeeds, spaces and headers off,
+ * which keeps the responses as short as possible.
+ *
+ * The protocol of the vehicle is then set. Letting the adapter search for it (ATSP0) can
+ * take several seconds, so a protocol detected before (see {@link ProtocolCache}) is set
+ * directly with ATSPn and checked with a 0100 request. Only when it doesn't work does the
+ * adapter fall back to the automatic search, after which the detected protocol is read
+ * with ATDPN. A vehicle which doesn't answer at all (e.g. ignition off) leaves the adapter
+ * in automatic mode, so the search happens on the first polling request instead.
+ * Once the vehicle answers, its VIN and calibration ID are read, which identify it.
+ *
+ * {@link #readSupportedPids(Result)} then reads the bitmaps of the supported mode 01 PIDs
+ * (0100, 0120, 0140...) of every ECU, which only needs to be done once per vehicle, see
+ * {@link CapabilityCache}.
+ *
+ * Every command blocks until the prompt of its answer, and the adapter sends nothing after
+ * the prompt, so the session can read the same stream once this is done.
+ */
+public class AdapterInitializer {
+
+    /**
+     * The longest time the whole initialization may take by default, protocol search
+     * included, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 20000;
+
+    /**
+     * The key of the PIDs supported by the ECUs of a vehicle whose protocol doesn't tell
+     * them apart, see {@link #readSupportedPids(Result)}.
+     */
+    public static final int UNKNOWN_ECU = 0;
+
+    // closes the transports whose initialization takes too long, shared by all the instances
+    private static final ScheduledExecutorService WATCHDOG =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "InitWatchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // the configuration sent after the reset, every answer is expected to be OK
+    private static final String[] SETUP_COMMANDS = {"ATE0", "ATL0", "ATS0", "ATH0"};
+
+    // the request checking the protocol, also identifying the vehicle by its answer
+    private static final String CHECK_REQUEST = "0100";
+    private static final String CHECK_RESPONSE = "4100";
+
+    // the vehicle information identifying the vehicle
+    private static final String VIN_REQUEST = "0902";
+    private static final String CALIBRATION_ID_REQUEST = "0904";
+    private static final int VIN_LENGTH = 17;
+
+    // the last PID giving a bitmap of the supported PIDs, 0xE1 to 0xFF
+    private static final int LAST_BITMAP_PID = 0xE0;
+
+    private static final char PROMPT = '>';
+
+    // a response longer than this is garbage, e.g. a device which isn't an adapter
+    private static final int MAX_RESPONSE_LENGTH = 1024;
+
+    /**
+     * What the initialization found out.
+     */
+    public static class Result {
+        private final String resetResponse;
+        private final int protocol;
+        private final String checkResponse;
+        private final String vin;
+        private final String calibrationId;
+        private final boolean protocolReused;
+        private final long durationNanos;
+
+        Result(String resetResponse, int protocol, String checkResponse, String vin,
+               String calibrationId, boolean protocolReused, long durationNanos) {
+            this.resetResponse = resetResponse;
+            this.protocol = protocol;
+            this.checkResponse = checkResponse;
+            this.vin = vin;
+            this.calibrationId = calibrationId;
+            this.protocolReused = protocolReused;
+            this.durationNanos = durationNanos;
+        }
+
+        /**
+         * Returns the answer to ATZ, e.g. "ATZ\r\rELM327 v1.5\r\r".
+         */
+        public String getResetResponse() {
+            return resetResponse;
+        }
+
+        /**
+         * Returns the protocol of the vehicle, 1 to 0xC as numbered by ATSP,
+         * 0 if the vehicle didn't answer.
+         */
+        public int getProtocol() {
+            return protocol;
+        }
+
+        /**
+         * Returns whether the protocol is one of the CAN ones (6 to 9), which allow
+         * several PIDs per request, see {@link PollingScheduler#setMaxPidsPerRequest(int)}.
+         */
+        public boolean isCan() {
+            return protocol >= 6 && protocol <= 9;
+        }
+
+        /**
+         * Returns whether the protocol is one of the 11 bit CAN ones (6 and 8), whose
+         * 3 digit headers ATSH and ATCRA take, e.g. 7E0 and 7E8.
+         */
+        public boolean hasShortHeaders() {
+            return protocol == 6 || protocol == 8;
+        }
+
+        /**
+         * Returns what tells apart the vehicles an adapter is plugged into: the VIN,
+         * or the answers of the ECUs to 0100 for the vehicles which don't give their VIN,
+         * null if the vehicle didn't answer.
+         */
+        public String getVehicle() {
+            return vin != null ? vin : parseVehicle(checkResponse);
+        }
+
+        /**
+         * Returns the Vehicle Identification Number, null if the vehicle didn't give it.
+         */
+        public String getVin() {
+            return vin;
+        }
+
+        /**
+         * Returns the calibration ID of the ECU software, which changes when the ECUs are
+         * reprogrammed, null if the vehicle didn't give it.
+         */
+        public String getCalibrationId() {
+            return calibrationId;
+        }
+
+        /**
+         * Returns whether the protocol given to {@link #initialize(int)} worked,
+         * so no search was needed.
+         */
+        public boolean isProtocolReused() {
+            return protocolReused;
+        }
+
+        /**
+         * Returns how long the initialization took, in nanoseconds.
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+    }
+
+    private final Transport transport;
+    private final InputStream in;
+    private final OutputStream out;
+    private final long timeoutMillis;
+    private final byte[] readBuffer = new byte[64];
+    private volatile boolean timedOut;
+
+    /**
+     * Constructor.
+     *
+     * @param transport     The connected transport to the adapter.
+     * @param timeoutMillis The longest time {@link #initialize(int)} may take, in
+     *                      milliseconds, after which the transport is closed.
+     * @throws IOException if the streams of the transport can't be obtained.
+     */
+    public AdapterInitializer(Transport transport, long timeoutMillis) throws IOException {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("invalid timeout: " + timeoutMillis);
+        }
+        this.transport = transport;
+        this.in = transport.getInputStream();
+        this.out = transport.getOutputStream();
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Runs the initialization.
+     *
+     * @param knownProtocol The protocol the vehicle used before, 1 to 0xC, or 0 to search.
+     * @return What the initialization found out.
+     * @throws SocketTimeoutException if it took longer than the timeout, in which case the
+     *                                transport is closed.
+     * @throws IOException            if the connection failed.
+     */
+    public Result initialize(int knownProtocol) throws IOException {
+        long start = System.nanoTime();
+        ScheduledFuture<?> watchdog = startWatchdog();
+        try {
+            String reset = command("ATZ");
+            for (String setup : SETUP_COMMANDS) {
+                command(setup);
+            }
+            int protocol = 0;
+            String check = null;
+            boolean reused = false;
+            if (knownProtocol > 0) {
+                command("ATSP" + Integer.toHexString(knownProtocol).toUpperCase(Locale.US));
+                check = command(CHECK_REQUEST);
+                if (parseVehicle(check) != null) {
+                    protocol = knownProtocol;
+                    reused = true;
+                }
+            }
+            if (!reused) {
+                // the vehicle changed or its protocol was never detected
+                command("ATSP0");
+                check = command(CHECK_REQUEST);
+                if (parseVehicle(check) != null) {
+                    protocol = parseProtocol(command("ATDPN"));
+                }
+            }
+            if (protocol == 0) {
+                return new Result(reset, 0, null, null, null, false,
+                        System.nanoTime() - start);
+            }
+            String vin = parseInformation(command(VIN_REQUEST));
+            if (vin != null && vin.length() > VIN_LENGTH) {
+                // several ECUs gave it
+                vin = vin.substring(vin.length() - VIN_LENGTH);
+            }
+            String calibrationId = parseInformation(command(CALIBRATION_ID_REQUEST));
+            return new Result(reset, protocol, check, vin, calibrationId, reused,
+                    System.nanoTime() - start);
+        }
+        catch (IOException e) {
+            throw timedOut ? timeout() : e;
+        }
+        finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * Reads the bitmaps of the mode 01 PIDs supported by every ECU of the vehicle,
+     * following the chain of bitmap PIDs while any ECU has a next one. On 11 bit CAN the
+     * headers are on meanwhile, which tells which ECU answers each PID, so the polling
+     * can address it directly (see {@link PollingScheduler#setResponders(Map)}). On the
+     * other protocols the answer to 0100 given during the initialization is reused.
+     *
+     * @param result The result of {@link #initialize(int)}, with a detected protocol.
+     * @return The supported PIDs, indexed by PID, per CAN identifier of the ECU answering
+     * them, e.g. 7E8, or under {@link #UNKNOWN_ECU} when the protocol doesn't tell.
+     * @throws IOException if the connection failed or it took longer than the timeout.
+     */
+    public Map<Integer, BitSet> readSupportedPids(Result result) throws IOException {
+        Map<Integer, BitSet> ecus = new TreeMap<Integer, BitSet>();
+        if (result.checkResponse == null) {
+            return ecus;
+        }
+        ScheduledFuture<?> watchdog = startWatchdog();
+        try {
+            boolean headers = result.hasShortHeaders();
+            int base = Pids.SUPPORTED_01_20;
+            if (headers) {
+                command("ATH1");
+                parseBitmaps(command(CHECK_REQUEST), base, true, ecus);
+            }
+            else {
+                parseBitmaps(result.checkResponse, base, false, ecus);
+            }
+            // the last bit of every bitmap tells whether the next one is supported
+            while (base < LAST_BITMAP_PID && hasNextBitmap(ecus, base)) {
+                base += 0x20;
+                parseBitmaps(command(String.format(Locale.US, "01%02X", base)), base, headers,
+                        ecus);
+            }
+            if (headers) {
+                command("ATH0");
+            }
+            return ecus;
+        }
+        catch (IOException e) {
+            throw timedOut ? timeout() : e;
+        }
+        finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * Closes the transport if the caller takes longer than the timeout.
+     */
+    private ScheduledFuture<?> startWatchdog() {
+        return WATCHDOG.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut = true;
+                try {
+                    transport.close();
+                }
+                catch (IOException e) {
+                    // the initialization fails anyway
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private SocketTimeoutException timeout() {
+        return new SocketTimeoutException("initialization of " + transport.getName()
+                + " timed out after " + timeoutMillis + " ms");
+    }
+
+    /**
+     * Sends a command and returns its answer, without the prompt.
+     */
+    private String command(String command) throws IOException {
+        out.write((command + "\r").getBytes());
+        out.flush();
+        StringBuilder response = new StringBuilder();
+        while (true) {
+            int bytes = in.read(readBuffer);
+            if (bytes < 0) {
+                throw new IOException("end of stream");
+            }
+            for (int i = 0; i < bytes; i++) {
+                if (readBuffer[i] == PROMPT) {
+                    return response.toString();
+                }
+                response.append((char) readBuffer[i]);
+            }
+            if (response.length() > MAX_RESPONSE_LENGTH) {
+                throw new IOException("no prompt after " + response.length() + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Returns the answers of the ECUs to 0100, sorted and without spaces,
+     * e.g. "4100BE3FA813", null if none answered.
+     */
+    static String parseVehicle(String response) {
+        List<String> answers = new ArrayList<String>();
+        for (String line : response.split("[\r\n]")) {
+            String answer = line.replace(" ", "").toUpperCase(Locale.US);
+            if (answer.startsWith(CHECK_RESPONSE)) {
+                answers.add(answer);
+            }
+        }
+        if (answers.isEmpty()) {
+            return null;
+        }
+        Collections.sort(answers);
+        StringBuilder vehicle = new StringBuilder();
+        for (String answer : answers) {
+            if (vehicle.length() > 0) {
+                vehicle.append('/');
+            }
+            vehicle.append(answer);
+        }
+        return vehicle.toString();
+    }
+
+    private static boolean hasNextBitmap(Map<Integer, BitSet> ecus, int base) {
+        for (BitSet supported : ecus.values()) {
+            if (supported.get(base + 0x20)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the PIDs marked in the answers of every ECU to a bitmap PID, e.g.
+     * "4100BE3FA813", or "7E8064100BE3FA813" with the 11 bit CAN headers.
+     */
+    static void parseBitmaps(String response, int base, boolean headers,
+                             Map<Integer, BitSet> ecus) {
+        String prefix = String.format(Locale.US, "41%02X", base);
+        for (String line : response.split("[\r\n]")) {
+            String answer = line.replace(" ", "").toUpperCase(Locale.US);
+            int ecu = UNKNOWN_ECU;
+            if (headers) {
+                // the identifier, then the length of the single frame
+                if (answer.length() < 5 || !answer.substring(0, 5).matches("[0-9A-F]{5}")) {
+                    continue;
+                }
+                ecu = Integer.parseInt(answer.substring(0, 3), 16);
+                answer = answer.substring(5);
+            }
+            if (!answer.startsWith(prefix) || answer.length() < prefix.length() + 8) {
+                continue;
+            }
+            long bits;
+            try {
+                bits = Long.parseLong(answer.substring(prefix.length(), prefix.length() + 8), 16);
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+            BitSet supported = ecus.get(ecu);
+            if (supported == null) {
+                supported = new BitSet(256);
+                ecus.put(ecu, supported);
+            }
+            for (int i = 0; i < 32; i++) {
+                if ((bits & (1L << (31 - i))) != 0) {
+                    supported.set(base + 1 + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the text of a mode 09 answer, e.g. the VIN, without its padding,
+     * null if there is none. Handles the CAN multi-frame answers ("014", "0: 49 02 01..",
+     * "1: ..") as well as the older protocols' one line per message ("49 02 01 ..").
+     */
+    static String parseInformation(String response) {
+        StringBuilder hex = new StringBuilder();
+        for (String line : response.split("[\r\n]")) {
+            String frame = line.replace(" ", "").toUpperCase(Locale.US);
+            // the byte count preceding the CAN frames
+            if (frame.matches("[0-9A-F]{3}")) {
+                continue;
+            }
+            boolean first = true;
+            if (frame.matches("[0-9A-F]:.*")) {
+                first = frame.charAt(0) == '0';
+                frame = frame.substring(2);
+            }
+            // the mode, the PID and the message number or item count
+            if (first && frame.startsWith("49") && frame.length() >= 6) {
+                frame = frame.substring(6);
+            }
+            else if (!frame.matches("[0-9A-F]*")) {
+                // NO DATA, ?...
+                continue;
+            }
+            hex.append(frame);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i + 1 < hex.length(); i += 2) {
+            int c = Integer.parseInt(hex.substring(i, i + 2), 16);
+            // skip the zero padding
+            if (c > ' ' && c < 0x7F) {
+                text.append((char) c);
+            }
+        }
+        return text.length() > 0 ? text.toString() : null;
+    }
+
+    /**
+     * Returns the protocol number in an answer to ATDPN, e.g. 6 for "A6", 0 if unknown.
+     */
+    static int parseProtocol(String response) {
+        String answer = response.trim().toUpperCase(Locale.US);
+        if (answer.startsWith("A")) {
+            answer = answer.substring(1);
+        }
+        if (answer.length() != 1) {
+            return 0;
+        }
+        return Math.max(Character.digit(answer.charAt(0), 16), 0);
+    }
+}
@@ -0,0 +1,100 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The outcome of the baud rate negotiation with every adapter (see
+ * {@link BaudRateNegotiator}), so the next connection goes straight to the rate which
+ * worked, and the adapters which can't switch aren't probed again.
+ *
+ * The cache is saved to and restored from a string (see {@link #save()} and
+ * {@link #load(String)}), e.g. to keep it in the app's preferences.
+ *
+ * This class is thread safe.
+ */
+public class BaudRateCache {
+
+    /**
+     * The rate of an adapter which was never negotiated with.
+     */
+    public static final int UNKNOWN = -1;
+
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char ENTRY_SEPARATOR = '\n';
+
+    private final Map<String, Integer> rates = new HashMap<String, Integer>();
+
+    /**
+     * Returns the rate negotiated with an adapter, 0 if it stayed at its default rate,
+     * {@link #UNKNOWN} if it was never negotiated with.
+     *
+     * @param adapter The address of the adapter.
+     */
+    public synchronized int getBaudRate(String adapter) {
+        Integer rate = rates.get(adapter);
+        return rate == null ? UNKNOWN : rate;
+    }
+
+    /**
+     * Records the outcome of a negotiation.
+     *
+     * @param adapter The address of the adapter, without tabs nor newlines.
+     * @param rate    The negotiated rate, 0 if the adapter stayed at its default rate.
+     */
+    public synchronized void put(String adapter, int rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("invalid rate: " + rate);
+        }
+        rates.put(adapter, rate);
+    }
+
+    /**
+     * Forgets an adapter, so it's negotiated with from scratch next time.
+     */
+    public synchronized void remove(String adapter) {
+        rates.remove(adapter);
+    }
+
+    /**
+     * Writes the cache to a string, see {@link #load(String)}.
+     */
+    public synchronized String save() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : rates.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(ENTRY_SEPARATOR);
+            }
+            builder.append(entry.getKey()).append(FIELD_SEPARATOR).append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads a cache written by {@link #save()}. Malformed entries are skipped.
+     *
+     * @param saved The saved cache, may be null or empty.
+     */
+    public static BaudRateCache load(String saved) {
+        BaudRateCache cache = new BaudRateCache();
+        if (saved == null || saved.isEmpty()) {
+            return cache;
+        }
+        for (String line : saved.split(String.valueOf(ENTRY_SEPARATOR))) {
+            String[] fields = line.split(String.valueOf(FIELD_SEPARATOR));
+            if (fields.length != 2) {
+                continue;
+            }
+            try {
+                int rate = Integer.parseInt(fields[1]);
+                if (rate >= 0) {
+                    cache.rates.put(fields[0], rate);
+                }
+            }
+            catch (NumberFormatException e) {
+                // skip the entry
+            }
+        }
+        return cache;
+    }
+}
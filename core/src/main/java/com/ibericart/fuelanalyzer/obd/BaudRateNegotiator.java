@@ -0,0 +1,275 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import com.ibericart.fuelanalyzer.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Raises the baud rate of the serial link between the adapter's chip and its Bluetooth
+ * module, 38400 baud by default, which caps the throughput well below what the Bluetooth
+ * link and the CAN bus can carry. Run after {@link AdapterInitializer}, since a reset
+ * restores the default rate.
+ *
+ * The adapter is probed with STI, which only the STN chips answer, then ATI: the STN chips
+ * switch with STBR, the ELM327 from v1.2 with ATBRD. Both check that the new rate works
+ * with a handshake: the ELM327 sends its identity at the new rate and waits for a carriage
+ * return, the STN waits for the carriage return first and then sends its identity. The
+ * adapter falls back to the old rate by itself when the handshake doesn't complete, after
+ * which a round trip checks that the link still works. The rates are tried from the
+ * highest down, starting with the one which worked before if given.
+ *
+ * Nothing on the host side follows the new rate: there is no UART to switch, and nothing
+ * here reconfigures the adapter's Bluetooth module. The new rate is only kept if the
+ * handshake completes over the link as it is; otherwise the adapter reverts to the old
+ * rate by itself, which is what makes a failed switch safe. Every read is bounded, so the
+ * negotiation can't hang.
+ */
+public class BaudRateNegotiator {
+
+    /**
+     * The rate of the adapter after a reset.
+     */
+    public static final int DEFAULT_BAUD_RATE = 38400;
+
+    // the rates tried, highest first; an ELM327 divides 4 MHz to get its rate
+    private static final int[] ELM_BAUD_RATES = {500000, 230400, 115200};
+    private static final int[] STN_BAUD_RATES = {2000000, 1000000, 500000, 230400, 115200};
+    private static final int ELM_CLOCK = 4000000;
+
+    // ATBRD appeared in the ELM327 v1.2
+    private static final String ELM_IDENTITY = "ELM327 V";
+    private static final double MIN_ELM_VERSION = 1.2;
+    private static final String STN_IDENTITY = "STN";
+
+    // how long to wait for every step of a handshake, well above the adapter's own
+    // timeout (75 ms by default) so a late answer isn't mistaken for a failure
+    private static final long STEP_TIMEOUT_MILLIS = 500;
+    private static final long POLL_MILLIS = 2;
+
+    private static final char PROMPT = '>';
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] readBuffer = new byte[64];
+
+    // set when the adapter answered ? to a rate change, so the other rates aren't tried
+    private boolean refused;
+
+    /**
+     * Constructor.
+     *
+     * @param transport The connected transport to an initialized adapter, with echo off.
+     * @throws IOException if the streams of the transport can't be obtained.
+     */
+    public BaudRateNegotiator(Transport transport) throws IOException {
+        this.in = transport.getInputStream();
+        this.out = transport.getOutputStream();
+    }
+
+    /**
+     * Probes the adapter and switches it to the highest rate it handles.
+     *
+     * @param knownRate The rate which worked with this adapter before, tried first,
+     *                  0 if unknown.
+     * @return The new rate, 0 if the adapter stays at its old rate because it can't
+     * switch or no handshake completed.
+     * @throws IOException if the adapter doesn't answer anymore, e.g. it didn't fall back
+     *                     to the old rate, in which case the connection is useless.
+     */
+    public int negotiate(int knownRate) throws IOException {
+        String identity = parseIdentity(exchange("STI"));
+        boolean stn = identity != null && identity.toUpperCase(Locale.US).startsWith(STN_IDENTITY);
+        if (!stn) {
+            identity = parseIdentity(exchange("ATI"));
+            if (!supportsDivisor(identity)) {
+                return 0;
+            }
+        }
+        refused = false;
+        for (int rate : candidates(stn ? STN_BAUD_RATES : ELM_BAUD_RATES, knownRate)) {
+            if (stn ? switchStn(rate, identity) : switchElm(rate, identity)) {
+                return rate;
+            }
+            if (refused) {
+                // e.g. a clone claiming a version it doesn't implement
+                break;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Runs the ATBRD handshake: OK, the identity at the new rate, a carriage return
+     * from the host, OK.
+     */
+    private boolean switchElm(int rate, String identity) throws IOException {
+        int divisor = Math.round((float) ELM_CLOCK / rate);
+        write(String.format(Locale.US, "ATBRD%02X\r", divisor));
+        StringBuilder text = new StringBuilder();
+        int found = await(text, 0, "OK", String.valueOf(PROMPT));
+        if (found != 0) {
+            // the prompt right away means the command was refused
+            refused = found > 0;
+            return found < 0 && revert(text, 0, identity);
+        }
+        int from = text.indexOf("OK") + 2;
+        // a prompt instead means the adapter already fell back
+        if (await(text, from, identity, String.valueOf(PROMPT)) != 0) {
+            return revert(text, from, identity);
+        }
+        from = text.indexOf(identity, from) + identity.length();
+        write("\r");
+        if (await(text, from, String.valueOf(PROMPT)) == 0
+                && text.indexOf("OK", from) >= 0) {
+            return true;
+        }
+        return revert(text, from, identity);
+    }
+
+    /**
+     * Runs the STBR handshake: OK, a carriage return from the host at the new rate,
+     * the identity at the new rate.
+     */
+    private boolean switchStn(int rate, String identity) throws IOException {
+        write("STBR " + rate + "\r");
+        StringBuilder text = new StringBuilder();
+        int found = await(text, 0, "OK", String.valueOf(PROMPT));
+        if (found != 0) {
+            // the prompt right away means the command was refused
+            refused = found > 0;
+            return found < 0 && revert(text, 0, identity);
+        }
+        int from = text.indexOf("OK") + 2;
+        write("\r");
+        if (await(text, from, identity) == 0
+                && await(text, from, String.valueOf(PROMPT)) == 0) {
+            return true;
+        }
+        return revert(text, from, identity);
+    }
+
+    /**
+     * Waits for the adapter to fall back to the old rate and checks that it answers.
+     *
+     * @return false, the handshake failed.
+     * @throws IOException if the adapter doesn't answer anymore.
+     */
+    private boolean revert(StringBuilder text, int from, String identity) throws IOException {
+        // the prompt of the adapter back at the old rate, possibly lost
+        await(text, from, String.valueOf(PROMPT));
+        String answer = exchange(identity.toUpperCase(Locale.US).startsWith(STN_IDENTITY)
+                ? "STI" : "ATI");
+        if (answer == null || !answer.contains(identity)) {
+            throw new IOException("adapter lost after a failed baud rate change");
+        }
+        return false;
+    }
+
+    /**
+     * Sends a command and returns its answer, null if the prompt didn't come in time.
+     */
+    private String exchange(String command) throws IOException {
+        write(command + "\r");
+        StringBuilder text = new StringBuilder();
+        if (await(text, 0, String.valueOf(PROMPT)) != 0) {
+            return null;
+        }
+        return text.substring(0, text.indexOf(String.valueOf(PROMPT)));
+    }
+
+    private void write(String text) throws IOException {
+        out.write(text.getBytes());
+        out.flush();
+    }
+
+    /**
+     * Reads until the text holds one of the markers after the given index, or until
+     * {@link #STEP_TIMEOUT_MILLIS}.
+     *
+     * @return The index of the marker found first, -1 on timeout.
+     */
+    private int await(StringBuilder text, int from, String... markers) throws IOException {
+        long deadline = System.nanoTime() + STEP_TIMEOUT_MILLIS * 1000000L;
+        while (true) {
+            for (int i = 0; i < markers.length; i++) {
+                if (text.indexOf(markers[i], from) >= 0) {
+                    return i;
+                }
+            }
+            if (System.nanoTime() >= deadline) {
+                return -1;
+            }
+            // never block, the adapter may have gone quiet at another rate
+            int available = in.available();
+            if (available == 0) {
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted during the handshake");
+                }
+                continue;
+            }
+            int bytes = in.read(readBuffer, 0, Math.min(available, readBuffer.length));
+            if (bytes < 0) {
+                throw new IOException("end of stream");
+            }
+            for (int i = 0; i < bytes; i++) {
+                text.append((char) (readBuffer[i] & 0xFF));
+            }
+        }
+    }
+
+    /**
+     * Returns the rates to try, the known one first, then the lower ones.
+     */
+    static List<Integer> candidates(int[] rates, int knownRate) {
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (int rate : rates) {
+            if (knownRate <= 0 || rate <= knownRate) {
+                candidates.add(rate);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the first line of an answer to ATI or STI, e.g. "ELM327 v1.5",
+     * null if the adapter didn't understand the command.
+     */
+    static String parseIdentity(String response) {
+        if (response == null) {
+            return null;
+        }
+        for (String line : response.split("[\r\n]")) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty()) {
+                return trimmed.equals("?") ? null : trimmed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether an ELM327 identity, e.g. "ELM327 v1.5", is of a version with ATBRD.
+     */
+    static boolean supportsDivisor(String identity) {
+        if (identity == null || !identity.toUpperCase(Locale.US).startsWith(ELM_IDENTITY)) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(identity.substring(ELM_IDENTITY.length()).trim())
+                    >= MIN_ELM_VERSION;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The mode 01 PIDs supported by every ECU of every vehicle, read by
+ * {@link AdapterInitializer#readSupportedPids(AdapterInitializer.Result)}, so the bitmaps
+ * are only requested once per vehicle and every polling plan can leave out the PIDs the
+ * vehicle doesn't support (see {@link PollingScheduler#setSupportedPids(BitSet)}) and
+ * address the ECUs answering the others (see {@link PollingScheduler#setResponders(Map)}).
+ *
+ * The vehicles are keyed by their VIN. The supported PIDs only change when the ECUs are
+ * reprogrammed, so an entry is dropped when the calibration ID it was read with differs
+ * from the one of the vehicle. The cache is saved to and restored from a string
+ * (see {@link #save()} and {@link #load(String)}), e.g. to keep it in the app's preferences.
+ *
+ * This class is thread safe.
+ */
+public class CapabilityCache {
+
+    // the PIDs 0x00 to 0xFF
+    private static final int PID_COUNT = 256;
+
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char ENTRY_SEPARATOR = '\n';
+    private static final char ECU_SEPARATOR = ',';
+    private static final char ADDRESS_SEPARATOR = ':';
+
+    private static class Entry {
+        final String calibrationId;
+        // keyed by the CAN identifier of the ECU
+        final Map<Integer, BitSet> ecus;
+
+        Entry(String calibrationId, Map<Integer, BitSet> ecus) {
+            this.calibrationId = calibrationId;
+            this.ecus = ecus;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Returns the PIDs supported by any ECU of a vehicle, null if unknown or if its ECUs
+     * were reprogrammed since they were read, in which case they're forgotten.
+     *
+     * @param vehicle       The identity of the vehicle, its VIN when it gives it,
+     *                      see {@link AdapterInitializer.Result#getVehicle()}.
+     * @param calibrationId The calibration ID of the vehicle, may be null.
+     * @return The supported PIDs, indexed by PID.
+     */
+    public synchronized BitSet get(String vehicle, String calibrationId) {
+        Map<Integer, BitSet> ecus = getEcus(vehicle, calibrationId);
+        return ecus == null ? null : union(ecus);
+    }
+
+    /**
+     * Returns the PIDs supported by every ECU of a vehicle, like
+     * {@link #get(String, String)}.
+     *
+     * @return A copy of the supported PIDs, indexed by PID, per CAN identifier of the
+     * ECU answering them, see {@link AdapterInitializer#UNKNOWN_ECU}.
+     */
+    public synchronized Map<Integer, BitSet> getEcus(String vehicle, String calibrationId) {
+        Entry entry = entries.get(vehicle);
+        if (entry == null) {
+            return null;
+        }
+        if (!equals(entry.calibrationId, calibrationId)) {
+            entries.remove(vehicle);
+            return null;
+        }
+        return copy(entry.ecus);
+    }
+
+    /**
+     * Records the supported PIDs of a vehicle.
+     *
+     * @param vehicle       The identity of the vehicle, without tabs nor newlines.
+     * @param calibrationId The calibration ID of the vehicle, may be null.
+     * @param ecus          The supported PIDs, indexed by PID, per CAN identifier of the
+     *                      ECU answering them.
+     */
+    public synchronized void put(String vehicle, String calibrationId,
+                                 Map<Integer, BitSet> ecus) {
+        entries.put(vehicle, new Entry(calibrationId, copy(ecus)));
+    }
+
+    /**
+     * Returns the PIDs supported by any of the ECUs.
+     */
+    public static BitSet union(Map<Integer, BitSet> ecus) {
+        BitSet supported = new BitSet(PID_COUNT);
+        for (BitSet pids : ecus.values()) {
+            supported.or(pids);
+        }
+        return supported;
+    }
+
+    /**
+     * Returns the number of vehicles in the cache.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the cache to a string, see {@link #load(String)}.
+     */
+    public synchronized String save() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (builder.length() > 0) {
+                builder.append(ENTRY_SEPARATOR);
+            }
+            builder.append(e.getKey()).append(FIELD_SEPARATOR)
+                    .append(entry.calibrationId == null ? "" : clean(entry.calibrationId))
+                    .append(FIELD_SEPARATOR);
+            boolean first = true;
+            for (Map.Entry<Integer, BitSet> ecu : entry.ecus.entrySet()) {
+                if (!first) {
+                    builder.append(ECU_SEPARATOR);
+                }
+                first = false;
+                builder.append(Integer.toHexString(ecu.getKey())).append(ADDRESS_SEPARATOR)
+                        .append(toHex(ecu.getValue()));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads a cache written by {@link #save()}. Malformed entries are skipped.
+     *
+     * @param saved The saved cache, may be null or empty.
+     */
+    public static CapabilityCache load(String saved) {
+        CapabilityCache cache = new CapabilityCache();
+        if (saved == null || saved.isEmpty()) {
+            return cache;
+        }
+        for (String line : saved.split(String.valueOf(ENTRY_SEPARATOR))) {
+            // keep the empty calibration IDs
+            String[] fields = line.split(String.valueOf(FIELD_SEPARATOR), -1);
+            if (fields.length != 3) {
+                continue;
+            }
+            Map<Integer, BitSet> ecus = parseEcus(fields[2]);
+            if (ecus != null) {
+                cache.entries.put(fields[0],
+                        new Entry(fields[1].isEmpty() ? null : fields[1], ecus));
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Reads the ECUs written by {@link #save()}, e.g. "7e8:BE3F..,7e9:..", null if
+     * malformed. A bitmap without an identifier belongs to an unknown ECU.
+     */
+    private static Map<Integer, BitSet> parseEcus(String field) {
+        Map<Integer, BitSet> ecus = new TreeMap<Integer, BitSet>();
+        for (String ecu : field.split(String.valueOf(ECU_SEPARATOR))) {
+            int separator = ecu.indexOf(ADDRESS_SEPARATOR);
+            BitSet pids = fromHex(ecu.substring(separator + 1));
+            if (pids == null) {
+                return null;
+            }
+            try {
+                ecus.put(separator < 0 ? AdapterInitializer.UNKNOWN_ECU
+                        : Integer.parseInt(ecu.substring(0, separator), 16), pids);
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ecus;
+    }
+
+    private static Map<Integer, BitSet> copy(Map<Integer, BitSet> ecus) {
+        Map<Integer, BitSet> copy = new TreeMap<Integer, BitSet>();
+        for (Map.Entry<Integer, BitSet> ecu : ecus.entrySet()) {
+            copy.put(ecu.getKey(), (BitSet) ecu.getValue().clone());
+        }
+        return copy;
+    }
+
+    /**
+     * Writes PIDs as the bitmaps the vehicles answer with, 4 bits per hex digit,
+     * PID 0x01 being the highest bit of the first digit.
+     */
+    static String toHex(BitSet pids) {
+        StringBuilder hex = new StringBuilder(PID_COUNT / 4);
+        for (int base = 0; base < PID_COUNT; base += 4) {
+            int digit = 0;
+            for (int i = 0; i < 4; i++) {
+                if (pids.get(base + 1 + i)) {
+                    digit |= 8 >> i;
+                }
+            }
+            hex.append(Character.forDigit(digit, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads PIDs written by {@link #toHex(BitSet)}, null if malformed.
+     */
+    static BitSet fromHex(String hex) {
+        if (hex.length() != PID_COUNT / 4) {
+            return null;
+        }
+        BitSet pids = new BitSet(PID_COUNT);
+        for (int d = 0; d < hex.length(); d++) {
+            int digit = Character.digit(hex.charAt(d), 16);
+            if (digit < 0) {
+                return null;
+            }
+            for (int i = 0; i < 4; i++) {
+                if ((digit & (8 >> i)) != 0) {
+                    pids.set(d * 4 + 1 + i);
+                }
+            }
+        }
+        return pids;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String clean(String text) {
+        return text.replace(FIELD_SEPARATOR, ' ').replace(ENTRY_SEPARATOR, ' ');
+    }
+}
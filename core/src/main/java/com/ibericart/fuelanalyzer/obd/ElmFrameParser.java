@@ -0,0 +1,208 @@
+package com.ibericart.fuelanalyzer.obd;
+
+/**
+ * Splits the byte stream coming from an ELM327 adapter into complete responses.
+ *
+ * The adapter terminates every response with the {@code >} prompt, while the lines
+ * inside a response are separated by CR (and LF when ATL1 is on). Bytes are read
+ * straight into the ring buffer owned by this class (see {@link #buffer()},
+ * {@link #writeOffset()} and {@link #writeLength()}) and then handed over with
+ * {@link #commit(int)}, which scans them and reports every prompt-terminated response
+ * to the {@link FrameListener} as an offset/length slice.
+ *
+ * A response is passed as a slice of the ring itself whenever it doesn't wrap around
+ * the end of the array; otherwise it is copied into a scratch array allocated once,
+ * so no allocation happens per frame. The slice is only valid during the callback.
+ *
+ * A response longer than the ring is dropped whole: once the ring is full without a prompt,
+ * the bytes are discarded up to the next prompt, so the end of the response is never
+ * reported as a response of its own.
+ *
+ * This class is not thread safe, it is meant to be used by the reader thread only.
+ */
+public class ElmFrameParser {
+
+    /**
+     * The prompt sent by the adapter when it's ready to receive a new command.
+     */
+    public static final byte PROMPT = '>';
+
+    /**
+     * Receives the complete responses found by the parser.
+     */
+    public interface FrameListener {
+
+        /**
+         * Called on the reader thread for every prompt-terminated response.
+         * Leading and trailing CR, LF, NUL and space characters are already trimmed;
+         * the lines inside the response are still separated by CR.
+         * The length is 0 when the adapter sent a bare prompt.
+         *
+         * @param buffer The array holding the response. Must not be kept after returning.
+         * @param offset The index of the first byte of the response.
+         * @param length The number of bytes in the response.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    private final byte[] ring;
+    private final byte[] scratch;
+    private final int mask;
+    private final FrameListener listener;
+
+    // running positions, only ever masked when indexing the ring
+    private int frameStart;
+    private int tail;
+
+    // whether the bytes are discarded up to the next prompt, after an overflow
+    private boolean discarding;
+
+    private long frameCount;
+    private long overflowCount;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The size of the ring buffer, a power of two. A response longer
+     *                 than this is dropped.
+     * @param listener The listener which receives the complete responses.
+     */
+    public ElmFrameParser(int capacity, FrameListener listener) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener == null");
+        }
+        this.ring = new byte[capacity];
+        this.scratch = new byte[capacity];
+        this.mask = capacity - 1;
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the ring buffer the next bytes should be read into.
+     */
+    public byte[] buffer() {
+        return ring;
+    }
+
+    /**
+     * Returns the index in {@link #buffer()} at which the next bytes should be written.
+     */
+    public int writeOffset() {
+        return tail & mask;
+    }
+
+    /**
+     * Returns how many bytes can be written contiguously starting at {@link #writeOffset()}.
+     * This is always greater than 0.
+     */
+    public int writeLength() {
+        int free = ring.length - (tail - frameStart);
+        int contiguous = ring.length - (tail & mask);
+        return Math.min(free, contiguous);
+    }
+
+    /**
+     * Scans the bytes which were just written into {@link #buffer()} and reports
+     * every response which is now complete.
+     *
+     * @param count The number of bytes written at {@link #writeOffset()}.
+     */
+    public void commit(int count) {
+        if (count < 0 || count > writeLength()) {
+            throw new IllegalArgumentException("invalid count: " + count);
+        }
+        int end = tail + count;
+        for (int i = tail; i != end; i++) {
+            if (ring[i & mask] == PROMPT) {
+                if (discarding) {
+                    // the end of a dropped response
+                    discarding = false;
+                }
+                else {
+                    emit(frameStart, i);
+                }
+                frameStart = i + 1;
+            }
+        }
+        tail = end;
+
+        if (discarding) {
+            frameStart = tail;
+        }
+        else if (tail - frameStart == ring.length) {
+            // the ring is full and there's still no prompt, drop the whole response
+            overflowCount++;
+            discarding = true;
+            frameStart = tail;
+        }
+    }
+
+    /**
+     * Copies the given bytes into the ring buffer and scans them.
+     * Useful when the bytes are not read directly into {@link #buffer()}.
+     *
+     * @param source The bytes to add.
+     * @param offset The index of the first byte to add.
+     * @param length The number of bytes to add.
+     */
+    public void feed(byte[] source, int offset, int length) {
+        while (length > 0) {
+            int count = Math.min(length, writeLength());
+            System.arraycopy(source, offset, ring, writeOffset(), count);
+            commit(count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Discards any partially received response.
+     */
+    public void reset() {
+        frameStart = tail;
+        discarding = false;
+    }
+
+    /**
+     * Returns the number of responses reported so far.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the number of times a response was dropped because it didn't fit the ring.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    private void emit(int start, int end) {
+        while (start != end && isBlank(ring[start & mask])) {
+            start++;
+        }
+        while (end != start && isBlank(ring[(end - 1) & mask])) {
+            end--;
+        }
+        int length = end - start;
+        int offset = start & mask;
+        frameCount++;
+        if (offset + length <= ring.length) {
+            listener.onFrame(ring, offset, length);
+        }
+        else {
+            // the response wraps around the end of the ring, make it contiguous
+            int first = ring.length - offset;
+            System.arraycopy(ring, offset, scratch, 0, first);
+            System.arraycopy(ring, 0, scratch, first, length - first);
+            listener.onFrame(scratch, 0, length);
+        }
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == '\r' || b == '\n' || b == ' ' || b == 0;
+    }
+}
@@ -0,0 +1,247 @@
+package com.ibericart.fuelanalyzer.obd;
+
+/**
+ * Decodes the ASCII hex responses of an ELM327 adapter.
+ *
+ * A response, as reported by {@link ElmFrameParser}, is made of CR-separated lines.
+ * Every line which holds hex data is converted to bytes and appended to the payload
+ * (see {@link #parse(byte[], int, int)}). Lines holding anything else (the echo of the
+ * command, {@code SEARCHING...}, {@code NO DATA}, etc.) are skipped. The lines of
+ * a multi-frame CAN response ({@code 0: 41 0C ...}, {@code 1: ...}) are joined into one
+ * message, while the single-frame answers of several ECUs are kept as separate messages.
+ *
+ * The decoder keeps its buffers between calls, so it doesn't allocate anything.
+ * It is not thread safe.
+ */
+public class ObdResponseDecoder {
+
+    /**
+     * Receives the values decoded from a response.
+     */
+    public interface SampleListener {
+
+        /**
+         * Called for every PID value found in a response.
+         *
+         * @param pid       The PID.
+         * @param value     The value, in the unit documented in {@link Pids}.
+         * @param timestamp The time the response was received, in nanoseconds
+         *                  (as given by {@link System#nanoTime()}).
+         */
+        void onSample(int pid, float value, long timestamp);
+    }
+
+    private static final int MAX_PAYLOAD = 512;
+    private static final int MAX_MESSAGES = 16;
+
+    private final byte[] payload = new byte[MAX_PAYLOAD];
+    private final int[] messageStarts = new int[MAX_MESSAGES + 1];
+    private int payloadLength;
+    private int messageCount;
+    private boolean noData;
+
+    /**
+     * Converts the hex lines of a response into payload bytes.
+     *
+     * @param buffer The array holding the response.
+     * @param offset The index of the first byte of the response.
+     * @param length The number of bytes in the response.
+     * @return The number of messages found, see {@link #messageOffset(int)}.
+     */
+    public int parse(byte[] buffer, int offset, int length) {
+        payloadLength = 0;
+        messageCount = 0;
+        noData = false;
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i <= end; i++) {
+            if (i == end || buffer[i] == '\r') {
+                parseLine(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        messageStarts[messageCount] = payloadLength;
+        return messageCount;
+    }
+
+    /**
+     * Returns the array holding the bytes of the last parsed response.
+     */
+    public byte[] payload() {
+        return payload;
+    }
+
+    /**
+     * Returns the index in {@link #payload()} of the first byte of the given message.
+     */
+    public int messageOffset(int message) {
+        return messageStarts[message];
+    }
+
+    /**
+     * Returns the number of bytes of the given message.
+     */
+    public int messageLength(int message) {
+        return messageStarts[message + 1] - messageStarts[message];
+    }
+
+    /**
+     * Tells whether the last parsed response was {@code NO DATA}, i.e. the ECU
+     * didn't answer before the adapter's timeout.
+     */
+    public boolean isNoData() {
+        return noData;
+    }
+
+    /**
+     * Parses a response to a mode 01 request and reports every PID value in it.
+     * PIDs which don't have a numeric value (e.g. the supported PIDs bitmaps) are skipped.
+     *
+     * @param buffer    The array holding the response.
+     * @param offset    The index of the first byte of the response.
+     * @param length    The number of bytes in the response.
+     * @param timestamp The time the response was received, passed to the listener.
+     * @param listener  The listener which receives the values.
+     * @return The number of values reported.
+     */
+    public int decodeCurrentData(byte[] buffer, int offset, int length, long timestamp,
+                                 SampleListener listener) {
+        int samples = 0;
+        int messages = parse(buffer, offset, length);
+        for (int m = 0; m < messages; m++) {
+            int i = messageStarts[m];
+            int end = messageStarts[m + 1];
+            if (payload[i] != Pids.MODE_CURRENT_DATA_RESPONSE) {
+                continue;
+            }
+            i++;
+            while (i < end) {
+                int pid = payload[i] & 0xFF;
+                int dataLength = Pids.dataLength(pid);
+                // stop at an unknown PID because we can't tell where the next one starts
+                if (dataLength == 0 || i + 1 + dataLength > end) {
+                    break;
+                }
+                float value = Pids.evaluate(pid, payload, i + 1);
+                if (!Float.isNaN(value)) {
+                    listener.onSample(pid, value, timestamp);
+                    samples++;
+                }
+                i += 1 + dataLength;
+            }
+        }
+        return samples;
+    }
+
+    private void parseLine(byte[] buffer, int start, int end) {
+        // skip the frame index of the lines of a multi-frame response ("0:", "1:", ...)
+        boolean continuation = false;
+        int colon = indexOf(buffer, start, end, (byte) ':');
+        if (colon >= 0) {
+            if (!isHexDigits(buffer, start, colon)) {
+                return;
+            }
+            continuation = true;
+            start = colon + 1;
+        }
+
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b == ' ') {
+                continue;
+            }
+            if (hexValue(b) < 0) {
+                if (startsWith(buffer, start, end, "NO DATA")) {
+                    noData = true;
+                }
+                return;
+            }
+            digits++;
+        }
+        // either empty or the byte count heading a multi-frame response ("00A")
+        if (digits == 0 || (digits & 1) != 0) {
+            return;
+        }
+
+        int lineStart = payloadLength;
+        int high = -1;
+        for (int i = start; i < end && payloadLength < payload.length; i++) {
+            int value = hexValue(buffer[i]);
+            if (value < 0) {
+                continue;
+            }
+            if (high < 0) {
+                high = value;
+            }
+            else {
+                payload[payloadLength++] = (byte) ((high << 4) | value);
+                high = -1;
+            }
+        }
+
+        if (continuation && messageCount > 0) {
+            // a following frame of the message started by "0:"
+            if (buffer[colon - 1] != '0') {
+                return;
+            }
+        }
+        else if (!continuation && (payload[lineStart] & 0xFF) < 0x40) {
+            // responses start with the mode + 0x40, anything lower is the echo of a request
+            payloadLength = lineStart;
+            return;
+        }
+        if (messageCount < MAX_MESSAGES) {
+            messageStarts[messageCount++] = lineStart;
+        }
+    }
+
+    private static int indexOf(byte[] buffer, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isHexDigits(byte[] buffer, int start, int end) {
+        if (start == end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (hexValue(buffer[i]) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] buffer, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of an ASCII hex digit, or -1 if the byte is not a hex digit.
+     */
+    static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,552 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import com.ibericart.fuelanalyzer.concurrent.SpscQueue;
+import com.ibericart.fuelanalyzer.concurrent.WaitStrategy;
+import com.ibericart.fuelanalyzer.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The receive and polling loop of a connection to an ELM327 adapter, independent
+ * of how the adapter is reached (see {@link Transport}) and of Android.
+ *
+ * {@link #run()} reads the bytes straight into the ring buffer of an {@link ElmFrameParser}
+ * and sends the next polling request as soon as the prompt of a response arrives. When no
+ * PID is due at the time of a prompt, a timer sends the request once one is. The same timer
+ * checks every {@link #WATCHDOG_INTERVAL_MILLIS} that a lost prompt doesn't stop the polling,
+ * see {@link PollingScheduler#IN_FLIGHT_TIMEOUT_NANOS}.
+ *
+ * Decoding is kept off the reading thread: every complete response is copied into a pooled
+ * {@link ReadBuffer} and handed over through a lock-free {@link SpscQueue} to a decode thread
+ * started by {@link #run()}. The decode thread takes the responses in batches, decodes the
+ * answers to the polling requests and calls the {@link Listener} once per batch, so whoever
+ * publishes the values (e.g. to the UI) does it once per batch rather than once per response.
+ * The reading thread never waits for the decode thread: when the queue is full the next polling
+ * request is held back until the decode thread catches up, so a slow decoder slows the polling
+ * down rather than losing responses. Responses which still don't fit (e.g. the answers to the
+ * commands written by the user meanwhile) are dropped and counted, see
+ * {@link #getDroppedFrameCount()}.
+ *
+ * A {@link TimeoutTuner} can be given the time from every polling request to the first
+ * byte of its answer, and the NO DATA answers, on the reading thread; the timing commands
+ * it asks for are sent in between the polling requests and their answers are dropped.
+ * A polling request answered with ? drops the response counts and the physical addressing
+ * of the {@link PollingScheduler}, which some clones don't implement.
+ *
+ * Nothing is written before {@link #run()}, so the session can be created while the adapter
+ * is still being initialized over the same transport (see {@link AdapterInitializer}): the
+ * commands of the user are held until then, and the polling starts with the reading.
+ */
+public class ObdSession implements Runnable, ElmFrameParser.FrameListener {
+
+    /**
+     * Receives what the session reads. Called on the decode thread, see {@link ObdSession}.
+     */
+    public interface Listener extends ObdResponseDecoder.SampleListener {
+
+        /**
+         * Called for every response which doesn't answer a polling request, i.e. the answers
+         * to the commands sent by the user. The bytes are only valid during the call.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+
+        /**
+         * Called after a batch of responses was handled, once all of their values went to
+         * {@link #onSample(int, float, long)}.
+         *
+         * @param frames The number of responses in the batch.
+         */
+        void onBatchDecoded(int frames);
+
+        /**
+         * Called when reading fails, unless the session was closed. Every response read
+         * before was handled by then.
+         */
+        void onConnectionLost(IOException e);
+    }
+
+    /**
+     * The number of responses which can wait for the decode thread when the session
+     * creates its own buffer pool.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 32;
+
+    /**
+     * How long the decode thread sleeps at most between two checks of an empty queue
+     * with the default wait strategy.
+     */
+    public static final long DEFAULT_MAX_PARK_NANOS = 10000000L;
+
+    /**
+     * How often the polling is retried in case the prompt of the command in flight was lost.
+     */
+    public static final long WATCHDOG_INTERVAL_MILLIS = 1000;
+
+    // the maximum number of responses handled between two calls to onBatchDecoded()
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private static final byte[] NO_DATA = "NO DATA".getBytes();
+
+    private final Transport transport;
+    private final InputStream inStream;
+    private final OutputStream outStream;
+    private final ElmFrameParser frameParser;
+    private final PollingScheduler pollingScheduler;
+    private final Listener listener;
+    private volatile boolean closed;
+
+    // the commands of the user held until run() starts, see write() and submit()
+    private final List<byte[]> heldCommands = new ArrayList<byte[]>();
+    // guarded by heldCommands
+    private boolean started;
+
+    // only used by the reading thread once it runs
+    private volatile TimeoutTuner timeoutTuner;
+    private long measuredSentAt;
+
+    // the hand-off between the reading thread and the decode thread
+    private final ReadBufferPool framePool;
+    private final SpscQueue<ReadBuffer> frameQueue;
+    private final WaitStrategy waitStrategy;
+    private final DecodeLoop decodeLoop = new DecodeLoop();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicBoolean pollDeferred = new AtomicBoolean();
+    private volatile boolean reading;
+
+    // wakes the polling up when no PID is due at the time of a prompt
+    private final ScheduledExecutorService pollTimer =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            pollNext();
+        }
+    };
+
+    /**
+     * Constructor. The responses are handed to the decode thread through a pool of
+     * {@link #DEFAULT_QUEUE_CAPACITY} buffers, and the decode thread parks while idle.
+     *
+     * @param transport        The connected transport.
+     * @param pollingScheduler The scheduler of the polling requests.
+     * @param frameBufferSize  The size of the ring buffer reassembling the responses.
+     * @param listener         Receives the responses and the decoded samples.
+     * @throws IOException if the streams of the transport can't be obtained.
+     */
+    public ObdSession(Transport transport, PollingScheduler pollingScheduler,
+                      int frameBufferSize, Listener listener) throws IOException {
+        this(transport, pollingScheduler,
+                new ReadBufferPool(DEFAULT_QUEUE_CAPACITY, frameBufferSize),
+                WaitStrategy.park(DEFAULT_MAX_PARK_NANOS), listener);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param transport        The connected transport.
+     * @param pollingScheduler The scheduler of the polling requests.
+     * @param framePool        The buffers carrying the responses to the decode thread. The
+     *                         ring buffer reassembling the responses has the capacity of
+     *                         one buffer, and as many responses as there are buffers in
+     *                         the pool can wait for the decode thread.
+     * @param waitStrategy     How the decode thread waits for responses.
+     * @param listener         Receives the responses and the decoded samples.
+     * @throws IOException if the streams of the transport can't be obtained.
+     */
+    public ObdSession(Transport transport, PollingScheduler pollingScheduler,
+                      ReadBufferPool framePool, WaitStrategy waitStrategy,
+                      Listener listener) throws IOException {
+        this.transport = transport;
+        this.inStream = transport.getInputStream();
+        this.outStream = transport.getOutputStream();
+        this.pollingScheduler = pollingScheduler;
+        this.listener = listener;
+        this.framePool = framePool;
+        this.frameQueue = new SpscQueue<ReadBuffer>(framePool.getSize());
+        this.waitStrategy = waitStrategy;
+        this.frameParser = new ElmFrameParser(framePool.getBufferCapacity(), this);
+    }
+
+    /**
+     * Sets the tuner of the adapter's timeout, fed with the latencies of the polling
+     * requests, see {@link TimeoutTuner}. Only valid before {@link #run()}.
+     *
+     * @param timeoutTuner The tuner, null to leave the timing alone.
+     */
+    public void setTimeoutTuner(TimeoutTuner timeoutTuner) {
+        this.timeoutTuner = timeoutTuner;
+    }
+
+    /**
+     * Returns the transport of the session.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Returns the number of complete responses received.
+     */
+    public long getFrameCount() {
+        return frameParser.getFrameCount();
+    }
+
+    /**
+     * Returns the number of responses dropped because they didn't fit the ring buffer.
+     */
+    public long getOverflowCount() {
+        return frameParser.getOverflowCount();
+    }
+
+    /**
+     * Returns the number of responses dropped because the decode thread didn't keep up.
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Reads until the session is closed or the connection is lost.
+     * The decode thread runs as long as this method.
+     */
+    @Override
+    public void run() {
+        synchronized (heldCommands) {
+            // nothing is in flight on a new connection
+            pollingScheduler.reset();
+            for (byte[] command : heldCommands) {
+                pollingScheduler.submit(command);
+            }
+            heldCommands.clear();
+            started = true;
+        }
+        retune();
+
+        reading = true;
+        Thread decodeThread = new Thread(decodeLoop, "ObdDecode");
+        decodeThread.start();
+        pollNext();
+        try {
+            pollTimer.scheduleWithFixedDelay(pollTask, WATCHDOG_INTERVAL_MILLIS,
+                    WATCHDOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // the session was closed meanwhile, the read loop won't start
+        }
+
+        IOException lost = null;
+        while (!closed) {
+            try {
+                // read from the InputStream straight into the frame parser's ring buffer
+                int bytes = inStream.read(frameParser.buffer(), frameParser.writeOffset(),
+                        frameParser.writeLength());
+                if (bytes < 0) {
+                    throw new IOException("end of stream");
+                }
+                if (timeoutTuner != null) {
+                    measureLatency();
+                }
+
+                // split the obtained bytes into responses, see onFrame()
+                frameParser.commit(bytes);
+            }
+            catch (IOException e) {
+                if (!closed) {
+                    closed = true;
+                    pollTimer.shutdownNow();
+                    lost = e;
+                }
+                break;
+            }
+        }
+
+        // let the decode thread handle what was read, then stop it
+        reading = false;
+        waitStrategy.signal();
+        try {
+            decodeThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (lost != null) {
+            listener.onConnectionLost(lost);
+        }
+    }
+
+    /**
+     * Hands a complete response over to the decode thread
+     * and sends the next request as soon as there is room for its answer.
+     */
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        long now = System.nanoTime();
+        boolean setting = pollingScheduler.isSettingInFlight();
+        boolean pollResponse = pollingScheduler.onPrompt(now);
+
+        if (pollResponse && isRefused(buffer, offset, length)) {
+            pollingScheduler.setResponders(null);
+        }
+
+        TimeoutTuner tuner = timeoutTuner;
+        if (tuner != null) {
+            if (pollResponse && contains(buffer, offset, length, NO_DATA)) {
+                tuner.onNoData();
+            }
+            retune();
+        }
+
+        // a bare prompt carries nothing to decode, and the answers to the settings
+        // nothing worth decoding
+        if (length > 0 && !setting) {
+            handOver(buffer, offset, length, now, pollResponse);
+        }
+
+        // the prompt means the adapter is ready, so send the next request right away
+        // unless the decode thread is behind, in which case it resumes the polling
+        if (hasRoom()) {
+            pollNext();
+        }
+        else {
+            pollDeferred.set(true);
+            // the decode thread may have caught up before it could see the flag
+            if (hasRoom()) {
+                resumePolling();
+            }
+        }
+    }
+
+    private void handOver(byte[] buffer, int offset, int length, long timestamp,
+                          boolean pollResponse) {
+        // don't even take a buffer from the pool when the queue is full
+        if (!hasRoom()) {
+            droppedFrames.incrementAndGet();
+            return;
+        }
+        // the frame parser reuses its buffer, so the response is copied
+        ReadBuffer frame = framePool.acquire(buffer, offset, length);
+        frame.setTimestamp(timestamp);
+        frame.setPollResponse(pollResponse);
+        if (frameQueue.offer(frame)) {
+            waitStrategy.signal();
+        }
+        else {
+            frame.release();
+            droppedFrames.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gives the tuner the latency of the polling request in flight, when its first bytes
+     * were just read.
+     */
+    private void measureLatency() {
+        long sentAt = pollingScheduler.getPollSentAt();
+        if (sentAt != 0 && sentAt != measuredSentAt) {
+            measuredSentAt = sentAt;
+            long now = System.nanoTime();
+            timeoutTuner.recordLatency(now - sentAt, now);
+        }
+    }
+
+    /**
+     * Queues the timing commands the tuner asks for, if any.
+     */
+    private void retune() {
+        TimeoutTuner tuner = timeoutTuner;
+        if (tuner == null) {
+            return;
+        }
+        for (String command : tuner.retune()) {
+            pollingScheduler.submitSetting((command + '\r').getBytes());
+        }
+    }
+
+    /**
+     * Tells whether a response is the ? of a command the adapter didn't understand.
+     */
+    private static boolean isRefused(byte[] buffer, int offset, int length) {
+        boolean refused = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = buffer[i];
+            if (b == '?' && !refused) {
+                refused = true;
+            }
+            else if (b != '\r' && b != '\n' && b != ' ') {
+                return false;
+            }
+        }
+        return refused;
+    }
+
+    private static boolean contains(byte[] buffer, int offset, int length, byte[] text) {
+        for (int i = offset; i <= offset + length - text.length; i++) {
+            int j = 0;
+            while (j < text.length && buffer[i + j] == text[j]) {
+                j++;
+            }
+            if (j == text.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether another response can be handed over without running the pool dry.
+     */
+    private boolean hasRoom() {
+        return frameQueue.size() < framePool.getSize();
+    }
+
+    /**
+     * Sends the polling request held back by {@link #onFrame(byte[], int, int)}, if any.
+     */
+    private void resumePolling() {
+        if (pollDeferred.compareAndSet(true, false)) {
+            pollNext();
+        }
+    }
+
+    /**
+     * Send the next polling request, unless a command is still in flight.
+     * If no PID is due yet, try again when the next one is.
+     * Does nothing unless {@link #run()} is reading.
+     */
+    public void pollNext() {
+        if (!reading) {
+            return;
+        }
+        try {
+            long delay = pollingScheduler.sendNext(outStream, System.nanoTime());
+            if (delay > 0 && !pollTimer.isShutdown()) {
+                pollTimer.schedule(pollTask, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+        catch (IOException e) {
+            // the read loop reports the broken connection
+        }
+        catch (RejectedExecutionException e) {
+            // the session was closed meanwhile
+        }
+    }
+
+    /**
+     * Writes bytes to the adapter, bypassing the polling scheduler. Before {@link #run()}
+     * the bytes are held, and sent like {@link #submit(byte[])} once it starts.
+     *
+     * @param buffer The bytes to write.
+     * @throws IOException if writing fails.
+     */
+    public void write(byte[] buffer) throws IOException {
+        if (hold(buffer)) {
+            return;
+        }
+        outStream.write(buffer);
+    }
+
+    /**
+     * Queues a command of the user, sent at the next prompt so it doesn't overlap the
+     * polling requests, see {@link PollingScheduler#submit(byte[])}. Before {@link #run()}
+     * the command is held until it starts.
+     *
+     * @param command The bytes of the command, carriage return included.
+     */
+    public void submit(byte[] command) {
+        if (hold(command)) {
+            return;
+        }
+        pollingScheduler.submit(command);
+        pollNext();
+    }
+
+    /**
+     * Holds a command of the user while the session isn't running yet.
+     *
+     * @return true if the command was held.
+     */
+    private boolean hold(byte[] command) {
+        synchronized (heldCommands) {
+            if (!started) {
+                heldCommands.add(command);
+            }
+            return !started;
+        }
+    }
+
+    /**
+     * Stops the session and closes the transport, which unblocks {@link #run()}.
+     */
+    public void close() throws IOException {
+        closed = true;
+        pollTimer.shutdownNow();
+        transport.close();
+    }
+
+    /**
+     * Drains the queue in batches and decodes the responses, on the decode thread.
+     */
+    private class DecodeLoop implements Runnable, SpscQueue.Consumer<ReadBuffer>,
+            ObdResponseDecoder.SampleListener {
+
+        // only used by the decode thread
+        private final ObdResponseDecoder decoder = new ObdResponseDecoder();
+
+        @Override
+        public void run() {
+            int idleCount = 0;
+            while (true) {
+                int frames = frameQueue.drain(this, MAX_BATCH_SIZE);
+                if (frames > 0) {
+                    listener.onBatchDecoded(frames);
+                    idleCount = 0;
+                    if (pollDeferred.get()) {
+                        resumePolling();
+                    }
+                }
+                else if (reading) {
+                    waitStrategy.idle(idleCount, frameQueue);
+                    if (idleCount < Integer.MAX_VALUE) {
+                        idleCount++;
+                    }
+                }
+                else if (frameQueue.isEmpty()) {
+                    // the reading thread is done and everything it queued was handled
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void accept(ReadBuffer frame) {
+            try {
+                if (frame.isPollResponse()) {
+                    decoder.decodeCurrentData(frame.data(), 0, frame.length(),
+                            frame.getTimestamp(), this);
+                }
+                else {
+                    listener.onFrame(frame.data(), 0, frame.length());
+                }
+            }
+            finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void onSample(int pid, float value, long timestamp) {
+            pollingScheduler.onSample(pid, value, timestamp);
+            listener.onSample(pid, value, timestamp);
+        }
+    }
+}
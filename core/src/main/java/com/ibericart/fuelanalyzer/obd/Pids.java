@@ -0,0 +1,202 @@
+package com.ibericart.fuelanalyzer.obd;
+
+/**
+ * Mode 01 parameter IDs (PIDs) together with the size of their data
+ * and the formula which converts the data to a value, as defined by SAE J1979.
+ */
+public final class Pids {
+
+    // the mode 01 request and its positive response
+    public static final int MODE_CURRENT_DATA = 0x01;
+    public static final int MODE_CURRENT_DATA_RESPONSE = 0x41;
+
+    public static final int SUPPORTED_01_20 = 0x00;
+    public static final int ENGINE_LOAD = 0x04;              // %
+    public static final int COOLANT_TEMPERATURE = 0x05;      // degrees C
+    public static final int SHORT_TERM_FUEL_TRIM_1 = 0x06;   // %
+    public static final int LONG_TERM_FUEL_TRIM_1 = 0x07;    // %
+    public static final int FUEL_PRESSURE = 0x0A;            // kPa
+    public static final int INTAKE_MANIFOLD_PRESSURE = 0x0B; // kPa
+    public static final int ENGINE_RPM = 0x0C;               // rpm
+    public static final int VEHICLE_SPEED = 0x0D;            // km/h
+    public static final int TIMING_ADVANCE = 0x0E;           // degrees before TDC
+    public static final int INTAKE_AIR_TEMPERATURE = 0x0F;   // degrees C
+    public static final int MAF_AIR_FLOW_RATE = 0x10;        // g/s
+    public static final int THROTTLE_POSITION = 0x11;        // %
+    public static final int RUN_TIME_SINCE_START = 0x1F;     // s
+    public static final int FUEL_TANK_LEVEL = 0x2F;          // %
+    public static final int BAROMETRIC_PRESSURE = 0x33;      // kPa
+    public static final int CONTROL_MODULE_VOLTAGE = 0x42;   // V
+    public static final int AMBIENT_AIR_TEMPERATURE = 0x46;  // degrees C
+    public static final int ENGINE_OIL_TEMPERATURE = 0x5C;   // degrees C
+    public static final int ENGINE_FUEL_RATE = 0x5E;         // L/h
+
+    // the mode 09 request, its positive response and its PIDs
+    public static final int MODE_VEHICLE_INFORMATION = 0x09;
+    public static final int MODE_VEHICLE_INFORMATION_RESPONSE = 0x49;
+    public static final int SUPPORTED_09 = 0x00;
+    public static final int VEHICLE_IDENTIFICATION_NUMBER = 0x02;
+    public static final int CALIBRATION_ID = 0x04;
+
+    // number of data bytes following every PID in a mode 01 response, 0 when unknown
+    private static final byte[] DATA_LENGTHS = new byte[256];
+
+    static {
+        setLength(1, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0D, 0x0E, 0x0F, 0x11,
+                0x12, 0x13, 0x1C, 0x1D, 0x1E, 0x2C, 0x2D, 0x2E, 0x2F, 0x30, 0x33, 0x45, 0x46,
+                0x47, 0x48, 0x49, 0x4A, 0x4B, 0x4C, 0x51, 0x52, 0x5A, 0x5B, 0x5C, 0x5F);
+        setLength(2, 0x02, 0x03, 0x0C, 0x10, 0x14, 0x15, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x1B,
+                0x1F, 0x21, 0x22, 0x23, 0x31, 0x32, 0x3C, 0x3D, 0x3E, 0x3F, 0x42, 0x43, 0x44,
+                0x4D, 0x4E, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5D, 0x5E);
+        setLength(4, 0x00, 0x01, 0x20, 0x24, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2A, 0x2B, 0x34,
+                0x35, 0x36, 0x37, 0x38, 0x39, 0x3A, 0x3B, 0x40, 0x41, 0x4F, 0x50, 0x60, 0x80,
+                0xA0, 0xC0, 0xE0);
+    }
+
+    private Pids() {
+    }
+
+    /**
+     * Returns the number of data bytes which follow the given PID in a mode 01 response,
+     * or 0 if the PID is not known.
+     */
+    public static int dataLength(int pid) {
+        return DATA_LENGTHS[pid & 0xFF];
+    }
+
+    /**
+     * Tells whether the given PID reports the supported PIDs bitmap of the next 32 PIDs.
+     */
+    public static boolean isSupportedPidsBitmap(int pid) {
+        return (pid & 0x1F) == 0;
+    }
+
+    /**
+     * Converts the data bytes of a PID to its value.
+     *
+     * @param pid    The PID the data belongs to.
+     * @param data   The array holding the data.
+     * @param offset The index of the first data byte (A).
+     * @return The value in the unit documented with the PID constant, or {@link Float#NaN}
+     * if the PID doesn't have a single numeric value (e.g. bitmaps).
+     */
+    public static float evaluate(int pid, byte[] data, int offset) {
+        int length = dataLength(pid);
+        if (length == 0 || isSupportedPidsBitmap(pid)) {
+            return Float.NaN;
+        }
+        int a = data[offset] & 0xFF;
+        int b = length > 1 ? data[offset + 1] & 0xFF : 0;
+        switch (pid) {
+            case ENGINE_LOAD:
+            case THROTTLE_POSITION:
+            case FUEL_TANK_LEVEL:
+                return a * 100f / 255f;
+            case COOLANT_TEMPERATURE:
+            case INTAKE_AIR_TEMPERATURE:
+            case AMBIENT_AIR_TEMPERATURE:
+            case ENGINE_OIL_TEMPERATURE:
+                return a - 40;
+            case SHORT_TERM_FUEL_TRIM_1:
+            case LONG_TERM_FUEL_TRIM_1:
+            case 0x08:
+            case 0x09:
+                return (a - 128) * 100f / 128f;
+            case FUEL_PRESSURE:
+                return a * 3;
+            case ENGINE_RPM:
+                return ((a << 8) | b) / 4f;
+            case TIMING_ADVANCE:
+                return a / 2f - 64f;
+            case MAF_AIR_FLOW_RATE:
+                return ((a << 8) | b) / 100f;
+            case CONTROL_MODULE_VOLTAGE:
+                return ((a << 8) | b) / 1000f;
+            case ENGINE_FUEL_RATE:
+                return ((a << 8) | b) / 20f;
+            default:
+                // raw value for the PIDs without a dedicated formula
+                if (length == 1) {
+                    return a;
+                }
+                if (length == 2) {
+                    return (a << 8) | b;
+                }
+                return Float.NaN;
+        }
+    }
+
+    /**
+     * Converts a value to the data bytes of a PID, the inverse of
+     * {@link #evaluate(int, byte[], int)}. Out of range values are clamped.
+     *
+     * @param pid    The PID.
+     * @param value  The value in the unit documented with the PID constant.
+     * @param out    The array receiving the data.
+     * @param offset The index of the first data byte (A).
+     * @return The number of data bytes written, 0 if the PID has no single numeric value.
+     */
+    public static int encode(int pid, float value, byte[] out, int offset) {
+        int length = dataLength(pid);
+        if (length == 0 || length > 2 || isSupportedPidsBitmap(pid)) {
+            return 0;
+        }
+        float raw;
+        switch (pid) {
+            case ENGINE_LOAD:
+            case THROTTLE_POSITION:
+            case FUEL_TANK_LEVEL:
+                raw = value * 255f / 100f;
+                break;
+            case COOLANT_TEMPERATURE:
+            case INTAKE_AIR_TEMPERATURE:
+            case AMBIENT_AIR_TEMPERATURE:
+            case ENGINE_OIL_TEMPERATURE:
+                raw = value + 40;
+                break;
+            case SHORT_TERM_FUEL_TRIM_1:
+            case LONG_TERM_FUEL_TRIM_1:
+            case 0x08:
+            case 0x09:
+                raw = value * 128f / 100f + 128;
+                break;
+            case FUEL_PRESSURE:
+                raw = value / 3;
+                break;
+            case ENGINE_RPM:
+                raw = value * 4;
+                break;
+            case TIMING_ADVANCE:
+                raw = (value + 64f) * 2;
+                break;
+            case MAF_AIR_FLOW_RATE:
+                raw = value * 100;
+                break;
+            case CONTROL_MODULE_VOLTAGE:
+                raw = value * 1000;
+                break;
+            case ENGINE_FUEL_RATE:
+                raw = value * 20;
+                break;
+            default:
+                raw = value;
+                break;
+        }
+        int max = length == 1 ? 0xFF : 0xFFFF;
+        int a = Math.max(0, Math.min(max, Math.round(raw)));
+        if (length == 1) {
+            out[offset] = (byte) a;
+        }
+        else {
+            out[offset] = (byte) (a >> 8);
+            out[offset + 1] = (byte) a;
+        }
+        return length;
+    }
+
+    private static void setLength(int length, int... pids) {
+        for (int pid : pids) {
+            DATA_LENGTHS[pid] = (byte) length;
+        }
+    }
+}
@@ -0,0 +1,612 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Polls a set of mode 01 PIDs, each at its own target rate.
+ *
+ * Up to {@link #MAX_PIDS_PER_REQUEST} PIDs are packed into one request (e.g. {@code 010C0D10}),
+ * which CAN adapters answer with a single response. Exactly one command is in flight at any
+ * time: the next one is sent as soon as the prompt of the previous response arrives, see
+ * {@link #sendNext(OutputStream, long)} and {@link #onResponse(byte[], int, int, long,
+ * ObdResponseDecoder.SampleListener)}. Commands submitted by the user are sent in between
+ * the polling requests so they never overlap them, after the settings of the adapter
+ * submitted by the session itself (see {@link #submitSetting(byte[])}). A command whose
+ * prompt doesn't come within {@link #IN_FLIGHT_TIMEOUT_NANOS}, lost on a noisy link or
+ * never answered, is given up so the polling goes on, see {@link #getExpiredCount()}.
+ *
+ * Every PID has a deadline, moved forward by its period each time the PID is requested.
+ * Only the PIDs whose deadline has passed are requested; the most urgent ones go first,
+ * urgency being how many periods a PID is late, weighted by its priority. When the link
+ * can't keep up all the PIDs fall behind their target rate, the low priority ones more
+ * than the high priority ones, but none of them is starved.
+ *
+ * The scheduler counts the values received for every PID and reports the achieved rate
+ * in samples per second next to the requested one, see {@link #getAchievedRate(int)}
+ * and {@link #getRequestedRate(int)}. The responses can also be decoded off the thread
+ * reading them: {@link #onPrompt(long)} only releases the next command, and the decoded
+ * values are counted with {@link #onSample(int, float, long)}.
+ *
+ * Once the PIDs supported by the vehicle are known (see {@link #setSupportedPids(BitSet)}),
+ * the others are left out of the requests, so they don't waste the link on NO DATA answers.
+ * Once the ECUs answering them are known too (see {@link #setResponders(Map)}), every request
+ * ends with the number of answers to expect (e.g. {@code 010C0D1}), so the adapter returns
+ * as soon as they arrived instead of waiting for its timeout. When a single ECU answers all
+ * the polled PIDs, the adapter is switched to physical addressing (ATSH and ATCRA) so only
+ * that ECU is asked; it's switched back to functional addressing when the polling set
+ * needs another one.
+ *
+ * This class is thread safe. Building a request doesn't allocate anything.
+ */
+public class PollingScheduler implements ObdResponseDecoder.SampleListener {
+
+    /**
+     * The maximum number of PIDs an ELM327 accepts in one CAN mode 01 request.
+     */
+    public static final int MAX_PIDS_PER_REQUEST = 6;
+
+    // priorities, see addPid()
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * The rate of a PID which should be polled as fast as possible.
+     */
+    public static final float RATE_UNLIMITED = 0f;
+
+    /**
+     * How long a command stays in flight without a prompt before the next one is sent anyway.
+     * Well above the longest timeout of the adapter, so only a lost prompt reaches it.
+     */
+    public static final long IN_FLIGHT_TIMEOUT_NANOS = 5000000000L;
+
+    // how often the achieved rates are recomputed
+    private static final long RATE_WINDOW_NANOS = 1000000000L;
+
+    // the period used to weigh the lateness of the PIDs polled as fast as possible
+    private static final long MIN_PERIOD_NANOS = 10000000L;
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    // the most ECUs an 11 bit CAN vehicle has, answering 0x7E8 to 0x7EF, the physical
+    // request of each being its response identifier minus 8
+    private static final int MAX_ECUS = 8;
+    private static final int FIRST_ECU = 0x7E8;
+    private static final int PHYSICAL_OFFSET = 8;
+    private static final byte[] FUNCTIONAL_HEADER = "ATSH7DF\r".getBytes();
+    private static final byte[] NO_RECEIVE_FILTER = "ATCRA\r".getBytes();
+
+    private final ObdResponseDecoder decoder = new ObdResponseDecoder();
+    private final ArrayDeque<byte[]> userCommands = new ArrayDeque<byte[]>();
+    private final ArrayDeque<byte[]> settings = new ArrayDeque<byte[]>();
+
+    // the polled PIDs, in the order they were added
+    private final int[] pids = new int[256];
+    private final boolean[] polled = new boolean[256];
+    private int pidCount;
+    // the PIDs the vehicle doesn't support, indexed by PID
+    private final boolean[] unsupported = new boolean[256];
+    private int maxPidsPerRequest = MAX_PIDS_PER_REQUEST;
+
+    // the schedule of every PID, indexed by PID
+    private final long[] periods = new long[256];
+    private final long[] deadlines = new long[256];
+    private final int[] priorities = new int[256];
+    private final float[] requestedRates = new float[256];
+
+    // the ECUs answering every PID, as a bit per ECU of ecuAddresses, indexed by PID,
+    // all 0 when unknown
+    private final int[] ecuMasks = new int[256];
+    private final int[] ecuAddresses = new int[MAX_ECUS];
+    private int ecuCount;
+    // the CAN identifier of the ECU the adapter addresses, 0 while it addresses all of them
+    private int physicalEcu;
+    // whether the addressing was checked since the polling set last changed
+    private boolean addressingChecked;
+
+    // the PIDs picked for the request being built
+    private final int[] picked = new int[MAX_PIDS_PER_REQUEST];
+
+    // "01" + 2 hex digits per PID + the response count + CR
+    private final byte[] request = new byte[2 + 2 * MAX_PIDS_PER_REQUEST + 2];
+
+    private boolean inFlight;
+    // when the command in flight was sent
+    private long sentAt;
+    private long expiredCount;
+    private boolean pollInFlight;
+    private boolean settingInFlight;
+    // when the polling request in flight was sent, 0 if none
+    private long pollSentAt;
+    private ObdResponseDecoder.SampleListener downstream;
+
+    // counts the values decoded by onResponse() and passes them on
+    private final ObdResponseDecoder.SampleListener countingListener =
+            new ObdResponseDecoder.SampleListener() {
+                @Override
+                public void onSample(int pid, float value, long timestamp) {
+                    PollingScheduler.this.onSample(pid, value, timestamp);
+                    if (downstream != null) {
+                        downstream.onSample(pid, value, timestamp);
+                    }
+                }
+            };
+
+    private final AtomicLongArray sampleCounts = new AtomicLongArray(256);
+    private final long[] windowCounts = new long[256];
+    private final float[] achievedRates = new float[256];
+    private long windowStart;
+
+    /**
+     * Adds a PID to the polling set, to be polled as fast as possible with normal priority.
+     * Does nothing if it's already polled.
+     */
+    public void addPid(int pid) {
+        addPid(pid, RATE_UNLIMITED, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Adds a PID to the polling set, or changes its schedule if it's already polled.
+     *
+     * @param pid      The PID to poll.
+     * @param rate     The target rate in samples per second, {@link #RATE_UNLIMITED}
+     *                 to poll the PID as fast as possible.
+     * @param priority One of {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL} or
+     *                 {@link #PRIORITY_HIGH}, telling which PIDs fall behind first
+     *                 when the link can't keep up.
+     */
+    public synchronized void addPid(int pid, float rate, int priority) {
+        if (rate < 0 || Float.isNaN(rate)) {
+            throw new IllegalArgumentException("invalid rate: " + rate);
+        }
+        if (priority < PRIORITY_LOW || priority > PRIORITY_HIGH) {
+            throw new IllegalArgumentException("invalid priority: " + priority);
+        }
+        pid &= 0xFF;
+        if (!polled[pid]) {
+            polled[pid] = true;
+            pids[pidCount++] = pid;
+            // due right away, see buildRequest()
+            deadlines[pid] = Long.MIN_VALUE;
+        }
+        requestedRates[pid] = rate;
+        periods[pid] = rate == RATE_UNLIMITED ? 0 : (long) (1e9 / rate);
+        priorities[pid] = priority;
+        addressingChecked = false;
+    }
+
+    /**
+     * Removes a PID from the polling set.
+     */
+    public synchronized void removePid(int pid) {
+        pid &= 0xFF;
+        if (!polled[pid]) {
+            return;
+        }
+        polled[pid] = false;
+        for (int i = 0; i < pidCount; i++) {
+            if (pids[i] == pid) {
+                System.arraycopy(pids, i + 1, pids, i, pidCount - i - 1);
+                pidCount--;
+                break;
+            }
+        }
+        achievedRates[pid] = 0;
+        requestedRates[pid] = 0;
+        addressingChecked = false;
+    }
+
+    /**
+     * Tells whether there is anything to poll.
+     */
+    public synchronized boolean isPolling() {
+        return pidCount > 0;
+    }
+
+    /**
+     * Sets how many PIDs are packed into one request. Use 1 for adapters or vehicles
+     * which don't support multi-PID requests (anything but CAN).
+     */
+    public synchronized void setMaxPidsPerRequest(int max) {
+        if (max < 1 || max > MAX_PIDS_PER_REQUEST) {
+            throw new IllegalArgumentException("max must be between 1 and "
+                    + MAX_PIDS_PER_REQUEST + ": " + max);
+        }
+        maxPidsPerRequest = max;
+    }
+
+    /**
+     * Sets the PIDs supported by the vehicle, the others being skipped while they stay
+     * in the polling set. PID 0x00 is always supported.
+     *
+     * @param supported The supported PIDs, indexed by PID, or null if unknown, in which
+     *                  case every PID is requested.
+     */
+    public synchronized void setSupportedPids(BitSet supported) {
+        for (int pid = 1; pid < unsupported.length; pid++) {
+            unsupported[pid] = supported != null && !supported.get(pid);
+        }
+        addressingChecked = false;
+    }
+
+    /**
+     * Sets the ECUs answering every PID, as read by
+     * {@link AdapterInitializer#readSupportedPids(AdapterInitializer.Result)}, so the
+     * requests tell the adapter how many answers to expect and go to a single ECU when
+     * it's enough. The ECUs only known as {@link AdapterInitializer#UNKNOWN_ECU} disable
+     * both, as does null, e.g. when the adapter refused a request with a response count.
+     *
+     * @param ecus The supported PIDs, indexed by PID, per CAN identifier of the ECU
+     *             answering them, or null if unknown.
+     */
+    public synchronized void setResponders(Map<Integer, BitSet> ecus) {
+        for (int pid = 0; pid < ecuMasks.length; pid++) {
+            ecuMasks[pid] = 0;
+        }
+        ecuCount = 0;
+        if (ecus != null && !ecus.containsKey(AdapterInitializer.UNKNOWN_ECU)
+                && ecus.size() <= MAX_ECUS) {
+            for (Map.Entry<Integer, BitSet> ecu : ecus.entrySet()) {
+                BitSet pids = ecu.getValue();
+                for (int pid = pids.nextSetBit(1); pid >= 0 && pid < ecuMasks.length;
+                     pid = pids.nextSetBit(pid + 1)) {
+                    ecuMasks[pid] |= 1 << ecuCount;
+                }
+                ecuAddresses[ecuCount++] = ecu.getKey();
+            }
+        }
+        addressingChecked = false;
+    }
+
+    /**
+     * Returns the CAN identifier of the ECU the adapter was switched to, 0 while it
+     * addresses all of them, see {@link #setResponders(Map)}.
+     */
+    public synchronized int getPhysicalEcu() {
+        return physicalEcu;
+    }
+
+    /**
+     * Tells whether a PID is requested when polled, see {@link #setSupportedPids(BitSet)}.
+     */
+    public synchronized boolean isSupported(int pid) {
+        return !unsupported[pid & 0xFF];
+    }
+
+    /**
+     * Queues a command typed by the user. It will be sent at the next prompt.
+     */
+    public synchronized void submit(byte[] command) {
+        userCommands.add(command);
+    }
+
+    /**
+     * Queues a setting of the adapter, e.g. a timeout change, sent at the next prompt
+     * before anything else. Its answer is nobody's business, see {@link #isSettingInFlight()}.
+     */
+    public synchronized void submitSetting(byte[] command) {
+        settings.add(command);
+    }
+
+    /**
+     * Tells whether the command in flight is a setting, whose answer can be dropped.
+     */
+    public synchronized boolean isSettingInFlight() {
+        return settingInFlight;
+    }
+
+    /**
+     * Returns when the polling request in flight was sent, as given by
+     * {@link System#nanoTime()}, 0 if the command in flight isn't a polling request.
+     */
+    public synchronized long getPollSentAt() {
+        return pollSentAt;
+    }
+
+    /**
+     * Returns the number of commands given up because their prompt didn't come within
+     * {@link #IN_FLIGHT_TIMEOUT_NANOS}.
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Forgets the command in flight, e.g. when a new connection starts.
+     */
+    public synchronized void reset() {
+        inFlight = false;
+        pollInFlight = false;
+        settingInFlight = false;
+        pollSentAt = 0;
+        userCommands.clear();
+        settings.clear();
+        // a new connection starts with a reset adapter
+        physicalEcu = 0;
+        addressingChecked = false;
+    }
+
+    /**
+     * Sends the next command unless one is already in flight, or has been for longer
+     * than {@link #IN_FLIGHT_TIMEOUT_NANOS}, in which case it's given up.
+     *
+     * @param out The stream connected to the adapter.
+     * @param now The current time, as given by {@link System#nanoTime()}.
+     * @return The number of nanoseconds until the next PID is due if nothing was sent
+     * because no PID is due yet, so the caller can try again later; 0 otherwise.
+     * @throws IOException if writing to the stream failed.
+     */
+    public long sendNext(OutputStream out, long now) throws IOException {
+        byte[] command;
+        int length;
+        synchronized (this) {
+            if (inFlight) {
+                if (now - sentAt < IN_FLIGHT_TIMEOUT_NANOS) {
+                    return 0;
+                }
+                // the prompt was lost, the due PIDs are simply requested again
+                expiredCount++;
+            }
+            if (!addressingChecked) {
+                updateAddressing();
+            }
+            command = settings.poll();
+            settingInFlight = command != null;
+            if (command == null) {
+                command = userCommands.poll();
+            }
+            if (command != null) {
+                length = command.length;
+                pollInFlight = false;
+                pollSentAt = 0;
+            }
+            else {
+                length = buildRequest(now);
+                if (length == 0) {
+                    return nanosUntilDue(now);
+                }
+                command = request;
+                pollInFlight = true;
+                pollSentAt = now;
+            }
+            inFlight = true;
+            sentAt = now;
+        }
+        // only the thread which set inFlight gets here, so the request can't change meanwhile
+        out.write(command, 0, length);
+        return 0;
+    }
+
+    /**
+     * Handles the response to the command in flight, which allows the next command
+     * to be sent. The values of the polled PIDs are passed to the given listener.
+     *
+     * @param buffer    The array holding the response.
+     * @param offset    The index of the first byte of the response.
+     * @param length    The number of bytes in the response.
+     * @param timestamp The time the response was received, as given by {@link System#nanoTime()}.
+     * @param listener  The listener which receives the decoded values, may be null.
+     */
+    public synchronized void onResponse(byte[] buffer, int offset, int length, long timestamp,
+                                        ObdResponseDecoder.SampleListener listener) {
+        if (onPrompt(timestamp)) {
+            downstream = listener;
+            decoder.decodeCurrentData(buffer, offset, length, timestamp, countingListener);
+            downstream = null;
+        }
+    }
+
+    /**
+     * Handles the prompt ending the response to the command in flight, which allows
+     * the next command to be sent, without decoding the response. The caller decodes it
+     * later, possibly on another thread, and reports the values with {@link #onSample(int,
+     * float, long)}.
+     *
+     * @param timestamp The time the response was received, as given by {@link System#nanoTime()}.
+     * @return true if the response answers a polling request, false if it answers
+     * a command submitted by the user or if nothing was in flight.
+     */
+    public synchronized boolean onPrompt(long timestamp) {
+        boolean pollResponse = pollInFlight;
+        inFlight = false;
+        pollInFlight = false;
+        settingInFlight = false;
+        pollSentAt = 0;
+        updateRates(timestamp);
+        return pollResponse;
+    }
+
+    /**
+     * Counts a value received for a polled PID. Can be called from any thread.
+     */
+    @Override
+    public void onSample(int pid, float value, long timestamp) {
+        sampleCounts.incrementAndGet(pid & 0xFF);
+    }
+
+    /**
+     * Returns the number of values received per second for the given PID,
+     * measured over the last second.
+     */
+    public synchronized float getAchievedRate(int pid) {
+        return achievedRates[pid & 0xFF];
+    }
+
+    /**
+     * Returns the target rate of the given PID in samples per second,
+     * {@link #RATE_UNLIMITED} if it's polled as fast as possible.
+     */
+    public synchronized float getRequestedRate(int pid) {
+        return requestedRates[pid & 0xFF];
+    }
+
+    /**
+     * Returns the total number of values received for the given PID.
+     */
+    public long getSampleCount(int pid) {
+        return sampleCounts.get(pid & 0xFF);
+    }
+
+    /**
+     * Writes the next request into {@link #request}, made of the most urgent PIDs
+     * which are due, and moves their deadlines forward.
+     *
+     * @return The length of the request, 0 if no PID is due.
+     */
+    private int buildRequest(long now) {
+        for (int i = 0; i < pidCount; i++) {
+            // the PIDs added since the last request are due from now on
+            if (deadlines[pids[i]] == Long.MIN_VALUE) {
+                deadlines[pids[i]] = now;
+            }
+        }
+
+        int count = 0;
+        while (count < maxPidsPerRequest) {
+            int best = -1;
+            double bestUrgency = 0;
+            for (int i = 0; i < pidCount; i++) {
+                int pid = pids[i];
+                if (unsupported[pid] || deadlines[pid] > now || isPicked(pid, count)) {
+                    continue;
+                }
+                double urgency = urgency(pid, now);
+                if (best < 0 || urgency > bestUrgency) {
+                    best = pid;
+                    bestUrgency = urgency;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            picked[count++] = best;
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        int length = writeHex(request, 0, Pids.MODE_CURRENT_DATA);
+        int responders = 0;
+        for (int i = 0; i < count; i++) {
+            int pid = picked[i];
+            length = writeHex(request, length, pid);
+            responders |= ecuMasks[pid];
+            // keep the phase while on time, but don't try to catch up once a period behind
+            long next = deadlines[pid] + periods[pid];
+            deadlines[pid] = next > now ? next : now + periods[pid];
+        }
+        if (responders != 0) {
+            // the single ECU addressed answers once, otherwise every ECU involved does
+            request[length++] = HEX_DIGITS[physicalEcu != 0 ? 1 : Integer.bitCount(responders)];
+        }
+        request[length++] = '\r';
+        return length;
+    }
+
+    /**
+     * Queues the settings switching the adapter to physical addressing when a single
+     * ECU answers all the polled PIDs, and back to functional addressing when it
+     * doesn't anymore.
+     */
+    private void updateAddressing() {
+        addressingChecked = true;
+        int common = ecuCount == 0 ? 0 : -1;
+        boolean any = false;
+        for (int i = 0; i < pidCount; i++) {
+            if (!unsupported[pids[i]]) {
+                common &= ecuMasks[pids[i]];
+                any = true;
+            }
+        }
+        if (!any) {
+            // nothing to poll, keep the current addressing
+            return;
+        }
+        int target = 0;
+        for (int ecu = 0; ecu < ecuCount; ecu++) {
+            int address = ecuAddresses[ecu];
+            if ((common & (1 << ecu)) != 0 && address >= FIRST_ECU
+                    && address < FIRST_ECU + MAX_ECUS) {
+                target = address;
+                break;
+            }
+        }
+        if (target == physicalEcu) {
+            return;
+        }
+        if (target != 0) {
+            settings.add(String.format(Locale.US, "ATSH%03X\r", target - PHYSICAL_OFFSET)
+                    .getBytes());
+            settings.add(String.format(Locale.US, "ATCRA%03X\r", target).getBytes());
+        }
+        else {
+            settings.add(FUNCTIONAL_HEADER);
+            settings.add(NO_RECEIVE_FILTER);
+        }
+        physicalEcu = target;
+    }
+
+    /**
+     * Returns how many periods the given PID is late, weighted by its priority.
+     */
+    private double urgency(int pid, long now) {
+        long period = Math.max(periods[pid], MIN_PERIOD_NANOS);
+        double late = 1.0 + (double) (now - deadlines[pid]) / period;
+        return late * (1 << priorities[pid]);
+    }
+
+    private boolean isPicked(int pid, int count) {
+        for (int i = 0; i < count; i++) {
+            if (picked[i] == pid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of nanoseconds until the next PID is due, 0 if no supported PID
+     * is polled.
+     */
+    private long nanosUntilDue(long now) {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < pidCount; i++) {
+            if (!unsupported[pids[i]]) {
+                earliest = Math.min(earliest, deadlines[pids[i]]);
+            }
+        }
+        return earliest == Long.MAX_VALUE ? 0 : Math.max(earliest - now, 1);
+    }
+
+    private void updateRates(long now) {
+        if (windowStart == 0) {
+            windowStart = now;
+            return;
+        }
+        long elapsed = now - windowStart;
+        if (elapsed < RATE_WINDOW_NANOS) {
+            return;
+        }
+        float seconds = elapsed / 1e9f;
+        for (int i = 0; i < pidCount; i++) {
+            int pid = pids[i];
+            long count = sampleCounts.get(pid);
+            achievedRates[pid] = (count - windowCounts[pid]) / seconds;
+            windowCounts[pid] = count;
+        }
+        windowStart = now;
+    }
+
+    private static int writeHex(byte[] buffer, int offset, int value) {
+        buffer[offset] = HEX_DIGITS[(value >> 4) & 0xF];
+        buffer[offset + 1] = HEX_DIGITS[value & 0xF];
+        return offset + 2;
+    }
+}
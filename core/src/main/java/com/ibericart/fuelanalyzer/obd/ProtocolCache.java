@@ -0,0 +1,138 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The protocols detected by {@link AdapterInitializer}, per adapter and vehicle, so the
+ * next connection can set the protocol directly instead of searching for it.
+ *
+ * An adapter usually stays plugged into the same vehicle, so the protocol offered for an
+ * adapter is the one of the last vehicle it was connected to. The vehicle is only known
+ * once the protocol works, hence the check done by the initializer.
+ * The cache is saved to and restored from a string (see {@link #save()} and
+ * {@link #load(String)}), e.g. to keep it in the app's preferences.
+ *
+ * This class is thread safe.
+ */
+public class ProtocolCache {
+
+    private static final char FIELD_SEPARATOR = '\t';
+    private static final char ENTRY_SEPARATOR = '\n';
+
+    // keyed by adapter + FIELD_SEPARATOR + vehicle
+    private final Map<String, Integer> protocols = new HashMap<String, Integer>();
+    // the last vehicle seen by every adapter
+    private final Map<String, String> lastVehicles = new HashMap<String, String>();
+
+    /**
+     * Returns the protocol of the last vehicle the adapter was connected to,
+     * 0 if unknown.
+     *
+     * @param adapter The address of the adapter.
+     */
+    public synchronized int getProtocol(String adapter) {
+        String vehicle = lastVehicles.get(adapter);
+        return vehicle == null ? 0 : getProtocol(adapter, vehicle);
+    }
+
+    /**
+     * Returns the protocol of a vehicle seen through an adapter, 0 if unknown.
+     *
+     * @param adapter The address of the adapter.
+     * @param vehicle The identity of the vehicle,
+     *                see {@link AdapterInitializer.Result#getVehicle()}.
+     */
+    public synchronized int getProtocol(String adapter, String vehicle) {
+        Integer protocol = protocols.get(key(adapter, vehicle));
+        return protocol == null ? 0 : protocol;
+    }
+
+    /**
+     * Returns the last vehicle the adapter was connected to, null if unknown.
+     */
+    public synchronized String getLastVehicle(String adapter) {
+        return lastVehicles.get(adapter);
+    }
+
+    /**
+     * Records the protocol of a vehicle, which becomes the last vehicle of the adapter.
+     *
+     * @param adapter  The address of the adapter.
+     * @param vehicle  The identity of the vehicle, without tabs nor newlines.
+     * @param protocol The protocol, 1 to 0xC as numbered by ATSP.
+     */
+    public synchronized void put(String adapter, String vehicle, int protocol) {
+        if (protocol <= 0 || protocol > 0xC) {
+            throw new IllegalArgumentException("invalid protocol: " + protocol);
+        }
+        protocols.put(key(adapter, vehicle), protocol);
+        lastVehicles.put(adapter, vehicle);
+    }
+
+    /**
+     * Forgets the protocol of a vehicle, e.g. when it stopped working.
+     */
+    public synchronized void remove(String adapter, String vehicle) {
+        protocols.remove(key(adapter, vehicle));
+        if (vehicle.equals(lastVehicles.get(adapter))) {
+            lastVehicles.remove(adapter);
+        }
+    }
+
+    /**
+     * Writes the cache to a string, see {@link #load(String)}.
+     */
+    public synchronized String save() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : protocols.entrySet()) {
+            String key = entry.getKey();
+            int separator = key.indexOf(FIELD_SEPARATOR);
+            String adapter = key.substring(0, separator);
+            String vehicle = key.substring(separator + 1);
+            if (builder.length() > 0) {
+                builder.append(ENTRY_SEPARATOR);
+            }
+            builder.append(key).append(FIELD_SEPARATOR).append(entry.getValue())
+                    .append(FIELD_SEPARATOR)
+                    .append(vehicle.equals(lastVehicles.get(adapter)) ? 1 : 0);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads a cache written by {@link #save()}. Malformed entries are skipped.
+     *
+     * @param saved The saved cache, may be null or empty.
+     */
+    public static ProtocolCache load(String saved) {
+        ProtocolCache cache = new ProtocolCache();
+        if (saved == null || saved.isEmpty()) {
+            return cache;
+        }
+        for (String line : saved.split(String.valueOf(ENTRY_SEPARATOR))) {
+            String[] fields = line.split(String.valueOf(FIELD_SEPARATOR));
+            if (fields.length != 4) {
+                continue;
+            }
+            try {
+                int protocol = Integer.parseInt(fields[2]);
+                if (protocol <= 0 || protocol > 0xC) {
+                    continue;
+                }
+                cache.protocols.put(key(fields[0], fields[1]), protocol);
+                if ("1".equals(fields[3])) {
+                    cache.lastVehicles.put(fields[0], fields[1]);
+                }
+            }
+            catch (NumberFormatException e) {
+                // skip the entry
+            }
+        }
+        return cache;
+    }
+
+    private static String key(String adapter, String vehicle) {
+        return adapter + FIELD_SEPARATOR + vehicle;
+    }
+}
@@ -0,0 +1,102 @@
+package com.ibericart.fuelanalyzer.obd;
+
+/**
+ * A recyclable buffer holding one response received from the adapter.
+ *
+ * Buffers are handed out by a {@link ReadBufferPool}. Whoever acquires a buffer owns it
+ * until it calls {@link #release()}, after which the buffer must not be touched anymore.
+ * Ownership can be passed to another thread, e.g. as the object of a Handler message.
+ */
+public class ReadBuffer {
+
+    private final ReadBufferPool pool;
+    private final byte[] data;
+    private int length;
+    private long timestamp;
+    private boolean pollResponse;
+    private volatile boolean acquired;
+
+    ReadBuffer(ReadBufferPool pool, int capacity) {
+        this.pool = pool;
+        this.data = new byte[capacity];
+    }
+
+    /**
+     * Returns the backing array. The valid bytes start at index 0.
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * Returns the number of valid bytes in {@link #data()}.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Replaces the content of this buffer with the given bytes.
+     *
+     * @param source The bytes to copy.
+     * @param offset The index of the first byte to copy.
+     * @param length The number of bytes to copy, at most the capacity of this buffer.
+     */
+    public void set(byte[] source, int offset, int length) {
+        if (length > data.length) {
+            throw new IllegalArgumentException("length " + length + " exceeds capacity "
+                    + data.length);
+        }
+        System.arraycopy(source, offset, data, 0, length);
+        this.length = length;
+    }
+
+    /**
+     * Returns the time the response was received, as given by {@link System#nanoTime()}.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Sets the time the response was received.
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Tells whether the response answers a polling request of the {@link PollingScheduler},
+     * rather than a command sent by the user.
+     */
+    public boolean isPollResponse() {
+        return pollResponse;
+    }
+
+    /**
+     * Sets whether the response answers a polling request.
+     */
+    public void setPollResponse(boolean pollResponse) {
+        this.pollResponse = pollResponse;
+    }
+
+    /**
+     * Gives this buffer back to its pool.
+     *
+     * @throws IllegalStateException if the buffer was already released.
+     */
+    public void release() {
+        if (!acquired) {
+            throw new IllegalStateException("buffer released twice");
+        }
+        acquired = false;
+        length = 0;
+        timestamp = 0;
+        pollResponse = false;
+        pool.recycle(this);
+    }
+
+    void markAcquired() {
+        acquired = true;
+    }
+}
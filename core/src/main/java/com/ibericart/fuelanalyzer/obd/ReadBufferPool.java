@@ -0,0 +1,101 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of {@link ReadBuffer}s shared between the reader thread,
+ * which acquires them, and the consumer of the responses, which releases them.
+ *
+ * All buffers are allocated up front, so once the pool is sized correctly receiving
+ * data doesn't allocate anything. When the pool runs dry a new buffer is allocated
+ * and the event is counted (see {@link #getExhaustionCount()}); when a buffer is
+ * released into a full pool it is simply left to the garbage collector.
+ *
+ * This class is thread safe.
+ */
+public class ReadBufferPool {
+
+    private final ArrayBlockingQueue<ReadBuffer> free;
+    private final int size;
+    private final int bufferCapacity;
+    private final AtomicLong exhaustionCount = new AtomicLong();
+
+    /**
+     * Constructor. Allocates all the buffers.
+     *
+     * @param size           The number of buffers kept by the pool.
+     * @param bufferCapacity The capacity in bytes of every buffer.
+     */
+    public ReadBufferPool(int size, int bufferCapacity) {
+        if (size <= 0 || bufferCapacity <= 0) {
+            throw new IllegalArgumentException("size and capacity must be positive");
+        }
+        this.free = new ArrayBlockingQueue<ReadBuffer>(size);
+        this.size = size;
+        this.bufferCapacity = bufferCapacity;
+        for (int i = 0; i < size; i++) {
+            free.offer(new ReadBuffer(this, bufferCapacity));
+        }
+    }
+
+    /**
+     * Takes a buffer out of the pool, allocating a new one if the pool is empty.
+     * The caller owns the buffer until it calls {@link ReadBuffer#release()}.
+     */
+    public ReadBuffer acquire() {
+        ReadBuffer buffer = free.poll();
+        if (buffer == null) {
+            exhaustionCount.incrementAndGet();
+            buffer = new ReadBuffer(this, bufferCapacity);
+        }
+        buffer.markAcquired();
+        return buffer;
+    }
+
+    /**
+     * Acquires a buffer and fills it with the given bytes.
+     *
+     * @see #acquire()
+     * @see ReadBuffer#set(byte[], int, int)
+     */
+    public ReadBuffer acquire(byte[] source, int offset, int length) {
+        ReadBuffer buffer = acquire();
+        buffer.set(source, offset, length);
+        return buffer;
+    }
+
+    /**
+     * Returns the number of buffers kept by the pool.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the capacity in bytes of the buffers handed out by this pool.
+     */
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    /**
+     * Returns the number of buffers currently available without allocating.
+     */
+    public int getAvailable() {
+        return free.size();
+    }
+
+    /**
+     * Returns how many times {@link #acquire()} found the pool empty.
+     * A growing value means the pool is too small for the rate at which
+     * responses are consumed.
+     */
+    public long getExhaustionCount() {
+        return exhaustionCount.get();
+    }
+
+    void recycle(ReadBuffer buffer) {
+        free.offer(buffer);
+    }
+}
@@ -0,0 +1,247 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import com.ibericart.fuelanalyzer.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tunes the time an ELM327 waits for the answers of the ECUs of one vehicle. Without an
+ * expected response count the adapter keeps listening after the last answer until its
+ * timeout (ATST, 200 ms by default) expires, which is dead time on every request.
+ *
+ * The time from every polling request to the first byte of its answer is recorded in a
+ * {@link LatencyHistogram}. Once there are enough of them, the timeout is set to their
+ * 99th percentile with a margin, and the adaptive timing (ATAT1, or the aggressive ATAT2
+ * while the margin is the tightest) lets the adapter shorten it further. A NO DATA answer
+ * to a supported PID means an ECU was cut off, so every one of them backs the timeout
+ * off by a level, the last level being the adapter's defaults. A long enough run of
+ * answers without NO DATA (see {@link #RECOVERY_RUNS}) tightens it again by a level, so
+ * a burst of them, e.g. while the engine stalled, doesn't keep the timeout loose for good.
+ *
+ * The requests per second are measured before the first tuning and since the last one,
+ * see {@link #getRequestRateBefore()} and {@link #getRequestRateAfter()}.
+ *
+ * This class is thread safe.
+ */
+public class TimeoutTuner {
+
+    /**
+     * The timeout of the adapter after a reset, in units of {@link #TIMEOUT_UNIT_NANOS}.
+     */
+    public static final int DEFAULT_TIMEOUT = 0x32;
+
+    /**
+     * The adaptive timing of the adapter after a reset.
+     */
+    public static final int DEFAULT_ADAPTIVE_TIMING = 1;
+
+    /**
+     * The unit of ATST, 4 ms.
+     */
+    public static final long TIMEOUT_UNIT_NANOS = 4000000L;
+
+    /**
+     * The number of latencies recorded before the first tuning, and between two tunings,
+     * by default.
+     */
+    public static final int DEFAULT_MIN_SAMPLES = 100;
+
+    /**
+     * The number of answers without NO DATA in a row which take a back off level back,
+     * in multiples of the samples between two tunings.
+     */
+    public static final int RECOVERY_RUNS = 10;
+
+    // the shortest timeout set, so a single fast ECU can't starve the slower ones
+    private static final int MIN_TIMEOUT = 4;
+    private static final int MAX_TIMEOUT = 0xFF;
+
+    private static final double PERCENTILE = 99;
+
+    // the margins over the percentile, per back off level; the last level is the defaults
+    private static final double[] MARGINS = {1.5, 2, 4};
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final int minSamples;
+
+    private int level;
+    private int timeout = DEFAULT_TIMEOUT;
+    private int adaptiveTiming = DEFAULT_ADAPTIVE_TIMING;
+    private boolean tuned;
+    private boolean levelChanged;
+    // the answers since the last NO DATA
+    private long answersInTime;
+    private long samplesAtTuning;
+
+    // the requests counted before the first tuning and since the last one
+    private long requestsBefore;
+    private long startBefore;
+    private long endBefore;
+    private long requestsAfter;
+    private long startAfter;
+    private long lastRequest;
+
+    /**
+     * Constructor, tuning after {@link #DEFAULT_MIN_SAMPLES} requests.
+     */
+    public TimeoutTuner() {
+        this(DEFAULT_MIN_SAMPLES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param minSamples The number of latencies recorded before the first tuning,
+     *                   and between two tunings.
+     */
+    public TimeoutTuner(int minSamples) {
+        if (minSamples <= 0) {
+            throw new IllegalArgumentException("invalid sample count: " + minSamples);
+        }
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Records the time from a polling request to the first byte of its answer.
+     *
+     * @param latencyNanos The latency, in nanoseconds.
+     * @param now          The current time, as given by {@link System#nanoTime()}.
+     */
+    public synchronized void recordLatency(long latencyNanos, long now) {
+        latencies.record(latencyNanos);
+        if (!tuned) {
+            if (requestsBefore++ == 0) {
+                startBefore = now;
+            }
+            endBefore = now;
+        }
+        else {
+            if (requestsAfter++ == 0) {
+                startAfter = now;
+            }
+        }
+        lastRequest = now;
+        if (level > 0 && ++answersInTime >= (long) RECOVERY_RUNS * minSamples) {
+            level--;
+            levelChanged = true;
+            answersInTime = 0;
+        }
+    }
+
+    /**
+     * Records a NO DATA answer to a polling request, which backs the timeout off.
+     */
+    public synchronized void onNoData() {
+        answersInTime = 0;
+        if (tuned && level < MARGINS.length) {
+            level++;
+            levelChanged = true;
+        }
+    }
+
+    /**
+     * Tells the tuner the adapter was reset, so it runs with the default timing again.
+     * The latencies and the back off level are kept, so the next call to
+     * {@link #retune()} restores the tuning right away.
+     */
+    public synchronized void onAdapterReset() {
+        timeout = DEFAULT_TIMEOUT;
+        adaptiveTiming = DEFAULT_ADAPTIVE_TIMING;
+        samplesAtTuning = 0;
+    }
+
+    /**
+     * Returns the commands bringing the adapter to the timing the latencies allow,
+     * and considers them sent. Cheap when there is nothing to change.
+     *
+     * @return The commands, carriage return excluded, in the order to send them,
+     * empty if the timing is unchanged.
+     */
+    public synchronized List<String> retune() {
+        long samples = latencies.getCount();
+        if (!levelChanged && (samples < minSamples || samples - samplesAtTuning < minSamples)) {
+            return Collections.emptyList();
+        }
+        levelChanged = false;
+        samplesAtTuning = samples;
+        int targetTimeout;
+        int targetAdaptive;
+        if (level >= MARGINS.length) {
+            targetTimeout = DEFAULT_TIMEOUT;
+            targetAdaptive = DEFAULT_ADAPTIVE_TIMING;
+        }
+        else {
+            double limit = latencies.getValueAtPercentile(PERCENTILE) * MARGINS[level];
+            targetTimeout = (int) Math.ceil(limit / TIMEOUT_UNIT_NANOS);
+            targetTimeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, targetTimeout));
+            targetAdaptive = level == 0 ? 2 : 1;
+        }
+
+        List<String> commands = new ArrayList<String>(2);
+        if (targetAdaptive != adaptiveTiming) {
+            commands.add("ATAT" + targetAdaptive);
+            adaptiveTiming = targetAdaptive;
+        }
+        if (targetTimeout != timeout) {
+            commands.add(String.format(Locale.US, "ATST%02X", targetTimeout));
+            timeout = targetTimeout;
+        }
+        if (!tuned && !commands.isEmpty()) {
+            tuned = true;
+        }
+        else if (!commands.isEmpty()) {
+            // measure the new timing from now on
+            requestsAfter = 0;
+        }
+        return commands;
+    }
+
+    /**
+     * Returns the timeout the adapter was set to, in units of {@link #TIMEOUT_UNIT_NANOS}.
+     */
+    public synchronized int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns the adaptive timing the adapter was set to, 0 to 2 as numbered by ATAT.
+     */
+    public synchronized int getAdaptiveTiming() {
+        return adaptiveTiming;
+    }
+
+    /**
+     * Returns how many times the timeout is backed off, up to the adapter's defaults.
+     */
+    public synchronized int getBackOffLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the latencies recorded, in nanoseconds.
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Returns the polling requests per second before the first tuning, 0 if unknown.
+     */
+    public synchronized float getRequestRateBefore() {
+        return rate(requestsBefore, startBefore, endBefore);
+    }
+
+    /**
+     * Returns the polling requests per second since the last tuning, 0 if unknown.
+     */
+    public synchronized float getRequestRateAfter() {
+        return rate(requestsAfter, startAfter, lastRequest);
+    }
+
+    private static float rate(long requests, long start, long end) {
+        return requests < 2 || end <= start ? 0 : (requests - 1) * 1e9f / (end - start);
+    }
+}
@@ -0,0 +1,575 @@
+package com.ibericart.fuelanalyzer.simulator;
+
+import com.ibericart.fuelanalyzer.obd.Pids;
+import com.ibericart.fuelanalyzer.transport.StreamTransport;
+import com.ibericart.fuelanalyzer.transport.TcpTransport;
+import com.ibericart.fuelanalyzer.transport.Transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A simulated ELM327 adapter plugged into a car, running on the adapter's end of a
+ * {@link Transport}: a {@link com.ibericart.fuelanalyzer.transport.PipedTransport} peer
+ * in the same process, or a TCP connection (see {@link #main(String[])}).
+ *
+ * It understands the usual AT commands (ATZ, ATE, ATL, ATS, ATH, ATSP, ATDP(N), ATST,
+ * ATAT, ATSH, ATCRA, ATI, ATRV...), answers mode 01 and 09 requests from one or more
+ * {@link SimulatedEcu}s, with multi-frame responses formatted as on 11 bit CAN, and the
+ * optional expected response count after the request. The timing can be made realistic:
+ * <ul>
+ * <li>every ECU has a latency, and misses the answer if it's longer than the ATST timeout;</li>
+ * <li>without a response count the adapter keeps listening after the last answer,
+ * for the whole ATST timeout with ATAT0, or as long as the ECUs' latency with adaptive
+ * timing;</li>
+ * <li>the first request in automatic protocol mode prints SEARCHING... and waits;</li>
+ * <li>the output is throttled to the serial baud rate, which ATBRD changes after its
+ * handshake unless the Bluetooth module can't follow (see
+ * {@link #setBaudRateSwitchable(boolean)}).</li>
+ * </ul>
+ * All the delays default to 0, so the simulator runs as fast as the transport allows.
+ */
+public class Elm327Simulator implements Runnable {
+
+    public static final String VERSION = "ELM327 v1.5";
+    public static final String DESCRIPTION = "OBDII to RS232 Interpreter";
+
+    // ISO 15765-4 CAN (11 bit ID, 500 kbaud)
+    public static final int DEFAULT_VEHICLE_PROTOCOL = 6;
+
+    private static final String[] PROTOCOLS = {
+            "AUTO", "SAE J1850 PWM", "SAE J1850 VPW", "ISO 9141-2", "ISO 14230-4 (KWP 5BAUD)",
+            "ISO 14230-4 (KWP FAST)", "ISO 15765-4 (CAN 11/500)", "ISO 15765-4 (CAN 29/500)",
+            "ISO 15765-4 (CAN 11/250)", "ISO 15765-4 (CAN 29/250)", "SAE J1939 (CAN 29/250)",
+            "USER1 CAN (11* /125)", "USER2 CAN (11* /50)"
+    };
+
+    private static final int FUNCTIONAL_ADDRESS = 0x7DF;
+    private static final long TIMEOUT_UNIT = 4000000L; // ATST counts 4 ms steps
+    private static final int DEFAULT_TIMEOUT = 0x32;
+
+    // ATBRD divides this clock, up to 500 kbaud, and waits 75 ms for the host's answer
+    private static final int BAUD_RATE_CLOCK = 4000000;
+    private static final int MIN_BAUD_RATE_DIVISOR = 8;
+    private static final long BAUD_RATE_TIMEOUT = 75000000L;
+
+    private final Transport transport;
+    private final List<SimulatedEcu> ecus = new ArrayList<SimulatedEcu>();
+    private final long startTime = System.nanoTime();
+
+    // simulation parameters
+    private int vehicleProtocol = DEFAULT_VEHICLE_PROTOCOL;
+    private long searchingDelay;
+    private long resetDelay;
+    private int defaultBaudRate;
+    private boolean baudRateSwitchable = true;
+
+    // the serial rate, changed by ATBRD until the next ATZ
+    private int baudRate;
+
+    // adapter settings, changed by the AT commands
+    private boolean echo;
+    private boolean linefeeds;
+    private boolean spaces;
+    private boolean headers;
+    private int protocol;
+    private boolean automatic;
+    private int connectedProtocol;
+    private int timeout;
+    private int adaptiveTiming;
+    private int header;
+    private int receiveFilter;
+
+    private InputStream in;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+    private final byte[] request = new byte[8];
+    private final byte[] answer = new byte[64];
+    private String lastCommand = "";
+    private volatile long commandCount;
+
+    /**
+     * Constructor. Add the ECUs with {@link #addEcu(SimulatedEcu)} before running it.
+     *
+     * @param transport The adapter's end of the connection.
+     */
+    public Elm327Simulator(Transport transport) {
+        this.transport = transport;
+        reset();
+    }
+
+    /**
+     * Runs a simulator with an engine and a transmission ECU for every TCP connection.
+     *
+     * @param args The port to listen on, {@link TcpTransport#DEFAULT_PORT} by default.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : TcpTransport.DEFAULT_PORT;
+        ServerSocket server = new ServerSocket(port);
+        System.out.println("ELM327 simulator listening on port " + port);
+        VehicleModel vehicle = new VehicleModel();
+        while (true) {
+            Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            Elm327Simulator simulator = new Elm327Simulator(new StreamTransport(
+                    socket.getRemoteSocketAddress().toString(), socket.getInputStream(),
+                    socket.getOutputStream()));
+            simulator.addEcu(SimulatedEcu.engine(vehicle));
+            simulator.addEcu(new SimulatedEcu(SimulatedEcu.TRANSMISSION, vehicle,
+                    Pids.VEHICLE_SPEED));
+            new Thread(simulator, "Elm327Simulator " + socket.getRemoteSocketAddress()).start();
+        }
+    }
+
+    public void addEcu(SimulatedEcu ecu) {
+        ecus.add(ecu);
+    }
+
+    /**
+     * Sets the protocol of the simulated car, 1 to C as numbered by ATSP.
+     */
+    public void setVehicleProtocol(int vehicleProtocol) {
+        this.vehicleProtocol = vehicleProtocol;
+    }
+
+    /**
+     * Sets how long searching for the protocol takes, in nanoseconds.
+     */
+    public void setSearchingDelay(long searchingDelay) {
+        this.searchingDelay = searchingDelay;
+    }
+
+    /**
+     * Sets how long ATZ takes, in nanoseconds.
+     */
+    public void setResetDelay(long resetDelay) {
+        this.resetDelay = resetDelay;
+    }
+
+    /**
+     * Sets the serial baud rate the output is throttled to, 0 for no throttling.
+     */
+    public void setBaudRate(int baudRate) {
+        this.defaultBaudRate = baudRate;
+        this.baudRate = baudRate;
+    }
+
+    /**
+     * Sets whether the link to the host follows an ATBRD rate change, true by default.
+     * When it doesn't, the handshake is garbled and the adapter falls back to its old rate.
+     */
+    public void setBaudRateSwitchable(boolean baudRateSwitchable) {
+        this.baudRateSwitchable = baudRateSwitchable;
+    }
+
+    /**
+     * Returns the serial rate, as changed by ATBRD.
+     */
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    /**
+     * Returns the number of commands received.
+     */
+    public long getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Answers the commands until the connection is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            in = transport.getInputStream();
+            OutputStream out = transport.getOutputStream();
+            StringBuilder command = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b == '\r') {
+                    execute(command.toString(), out);
+                    command.setLength(0);
+                }
+                else if (b != '\n') {
+                    command.append((char) b);
+                }
+            }
+        }
+        catch (IOException e) {
+            // the connection was closed
+        }
+    }
+
+    /**
+     * Stops the simulator by closing its end of the connection.
+     */
+    public void close() throws IOException {
+        transport.close();
+    }
+
+    private void execute(String raw, OutputStream out) throws IOException {
+        commandCount++;
+        output.reset();
+        if (echo) {
+            append(raw);
+            output.write('\r');
+        }
+        String command = raw.replace(" ", "").toUpperCase(Locale.US);
+        if (command.isEmpty()) {
+            // a bare CR repeats the last command
+            command = lastCommand;
+        }
+        lastCommand = command;
+
+        if (command.matches("ATBRD[0-9A-F]{2}")) {
+            changeBaudRate(Integer.parseInt(command.substring(5), 16), out);
+        }
+        else if (command.startsWith("AT")) {
+            line(at(command.substring(2)));
+        }
+        else if (!command.isEmpty()) {
+            request(command, out);
+        }
+        output.write('\r');
+        output.write('>');
+        send(out);
+    }
+
+    /**
+     * Executes an AT command and returns its answer.
+     */
+    private String at(String command) throws IOException {
+        if (command.equals("Z") || command.equals("WS")) {
+            reset();
+            if (command.equals("Z")) {
+                baudRate = defaultBaudRate;
+                pause(resetDelay);
+            }
+            line("");
+            return VERSION;
+        }
+        if (command.equals("D")) {
+            reset();
+            return "OK";
+        }
+        if (command.equals("I")) {
+            return VERSION;
+        }
+        if (command.equals("@1")) {
+            return DESCRIPTION;
+        }
+        if (command.equals("RV")) {
+            return "14.1V";
+        }
+        if (command.equals("DP")) {
+            int p = connectedProtocol != 0 ? connectedProtocol : protocol;
+            return (automatic ? "AUTO, " : "") + PROTOCOLS[p];
+        }
+        if (command.equals("DPN")) {
+            int p = connectedProtocol != 0 ? connectedProtocol : protocol;
+            return (automatic ? "A" : "") + Integer.toHexString(p).toUpperCase(Locale.US);
+        }
+        if (command.equals("PC")) {
+            connectedProtocol = 0;
+            return "OK";
+        }
+        if (command.equals("AR")) {
+            receiveFilter = -1;
+            return "OK";
+        }
+        if (command.length() == 2 && (command.charAt(1) == '0' || command.charAt(1) == '1')) {
+            boolean on = command.charAt(1) == '1';
+            switch (command.charAt(0)) {
+                case 'E':
+                    echo = on;
+                    return "OK";
+                case 'L':
+                    linefeeds = on;
+                    return "OK";
+                case 'S':
+                    spaces = on;
+                    return "OK";
+                case 'H':
+                    headers = on;
+                    return "OK";
+                default:
+                    break;
+            }
+        }
+        if (command.matches("AT[012]")) {
+            adaptiveTiming = command.charAt(2) - '0';
+            return "OK";
+        }
+        if (command.matches("(SP|TP)A?[0-9A-C]")) {
+            int p = Character.digit(command.charAt(command.length() - 1), 16);
+            automatic = p == 0 || command.charAt(2) == 'A';
+            protocol = p;
+            connectedProtocol = 0;
+            return "OK";
+        }
+        if (command.matches("ST[0-9A-F]{2}")) {
+            int value = Integer.parseInt(command.substring(2), 16);
+            timeout = value == 0 ? DEFAULT_TIMEOUT : value;
+            return "OK";
+        }
+        if (command.matches("SH[0-9A-F]{3}")) {
+            header = Integer.parseInt(command.substring(2), 16);
+            return "OK";
+        }
+        if (command.matches("CRA([0-9A-F]{3})?")) {
+            receiveFilter = command.length() == 3 ? -1 : Integer.parseInt(command.substring(3), 16);
+            return "OK";
+        }
+        return "?";
+    }
+
+    /**
+     * Runs the ATBRD handshake: OK at the old rate, the identity at the new one, then OK
+     * if the host answers with a carriage return in time, otherwise back to the old rate.
+     */
+    private void changeBaudRate(int divisor, OutputStream out) throws IOException {
+        if (divisor < MIN_BAUD_RATE_DIVISOR) {
+            line("?");
+            return;
+        }
+        line("OK");
+        send(out);
+        int previous = baudRate;
+        if (baudRate > 0) {
+            baudRate = BAUD_RATE_CLOCK / divisor;
+        }
+        if (baudRateSwitchable) {
+            line(VERSION);
+        }
+        else {
+            // what the host reads at the wrong rate
+            for (int i = 0; i < VERSION.length(); i++) {
+                output.write(0xF8);
+            }
+        }
+        send(out);
+
+        boolean confirmed = false;
+        long deadline = System.nanoTime() + BAUD_RATE_TIMEOUT;
+        while (!confirmed && System.nanoTime() < deadline) {
+            if (in.available() > 0) {
+                // at the wrong rate the carriage return is garbled
+                confirmed = in.read() == '\r' && baudRateSwitchable;
+            }
+            else {
+                pause(1000000L);
+            }
+        }
+        if (confirmed) {
+            line("OK");
+        }
+        else {
+            baudRate = previous;
+        }
+    }
+
+    /**
+     * Answers an OBD request, e.g. "010C0D" or "010C1" (expecting a single answer).
+     */
+    private void request(String command, OutputStream out) throws IOException {
+        int expected = 0;
+        if (command.length() % 2 == 1) {
+            expected = Character.digit(command.charAt(command.length() - 1), 16);
+            command = command.substring(0, command.length() - 1);
+        }
+        int length = command.length() / 2;
+        if (length == 0 || length > request.length || expected < 0) {
+            line("?");
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            int high = Character.digit(command.charAt(2 * i), 16);
+            int low = Character.digit(command.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                line("?");
+                return;
+            }
+            request[i] = (byte) ((high << 4) | low);
+        }
+        if (!connect(out)) {
+            return;
+        }
+
+        long timeoutNanos = timeout * TIMEOUT_UNIT;
+        double time = (System.nanoTime() - startTime) / 1e9;
+        long waited = 0;
+        int responses = 0;
+        for (SimulatedEcu ecu : ecus) {
+            if (!isAddressed(ecu) || ecu.getLatency() > timeoutNanos) {
+                continue;
+            }
+            int n = ecu.respond(request, length, time, answer);
+            if (n == 0) {
+                continue;
+            }
+            // the ECUs answer in parallel
+            pause(ecu.getLatency() - waited);
+            waited = Math.max(waited, ecu.getLatency());
+            frames(ecu.getAddress(), answer, n);
+            responses++;
+            if (responses == expected) {
+                return;
+            }
+        }
+        if (responses == 0) {
+            pause(timeoutNanos - waited);
+            line("NO DATA");
+        }
+        else {
+            // keep listening for more answers
+            pause(adaptiveTiming == 0 ? timeoutNanos - waited : Math.min(timeoutNanos, waited));
+        }
+    }
+
+    /**
+     * Connects to the car on the first request after a protocol change.
+     *
+     * @return false if the protocol doesn't match the car.
+     */
+    private boolean connect(OutputStream out) throws IOException {
+        if (connectedProtocol != 0) {
+            return true;
+        }
+        if (protocol == vehicleProtocol) {
+            connectedProtocol = protocol;
+            return true;
+        }
+        if (!automatic) {
+            pause(searchingDelay);
+            line("UNABLE TO CONNECT");
+            return false;
+        }
+        line("SEARCHING...");
+        send(out);
+        pause(searchingDelay);
+        connectedProtocol = vehicleProtocol;
+        return true;
+    }
+
+    private boolean isAddressed(SimulatedEcu ecu) {
+        if (header != FUNCTIONAL_ADDRESS && header != ecu.getRequestAddress()) {
+            return false;
+        }
+        return receiveFilter < 0 || receiveFilter == ecu.getAddress();
+    }
+
+    /**
+     * Prints an answer as the adapter does on 11 bit CAN: a single frame, or a first frame
+     * followed by consecutive frames, with or without the CAN headers.
+     */
+    private void frames(int address, byte[] data, int length) {
+        String id = hex(address, 3);
+        String separator = spaces ? " " : "";
+        if (length <= 7) {
+            if (headers) {
+                line(id + separator + hex(length, 2) + separator + hex(data, 0, length));
+            }
+            else {
+                line(hex(data, 0, length));
+            }
+            return;
+        }
+        if (!headers) {
+            line(hex(length, 3));
+        }
+        int frame = 0;
+        for (int i = 0; i < length; frame++) {
+            int count = Math.min(frame == 0 ? 6 : 7, length - i);
+            if (headers) {
+                String pci = frame == 0
+                        ? hex(0x10 | (length >> 8), 2) + separator + hex(length & 0xFF, 2)
+                        : hex(0x20 | (frame & 0x0F), 2);
+                line(id + separator + pci + separator + hex(data, i, count));
+            }
+            else {
+                line(Integer.toHexString(frame & 0x0F).toUpperCase(Locale.US) + ":"
+                        + separator + hex(data, i, count));
+            }
+            i += count;
+        }
+    }
+
+    private void reset() {
+        echo = true;
+        linefeeds = false;
+        spaces = true;
+        headers = false;
+        protocol = 0;
+        automatic = true;
+        connectedProtocol = 0;
+        timeout = DEFAULT_TIMEOUT;
+        adaptiveTiming = 1;
+        header = FUNCTIONAL_ADDRESS;
+        receiveFilter = -1;
+    }
+
+    private void line(String text) {
+        append(text);
+        output.write('\r');
+        if (linefeeds) {
+            output.write('\n');
+        }
+    }
+
+    private void append(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            output.write(text.charAt(i));
+        }
+    }
+
+    /**
+     * Sends what was printed so far, as fast as the baud rate allows.
+     */
+    private void send(OutputStream out) throws IOException {
+        // 10 bits per byte on the serial line
+        pause(baudRate > 0 ? output.size() * 10 * 1000000000L / baudRate : 0);
+        output.writeTo(out);
+        out.flush();
+        output.reset();
+    }
+
+    private String hex(byte[] data, int offset, int length) {
+        StringBuilder builder = new StringBuilder(length * 3);
+        for (int i = 0; i < length; i++) {
+            if (i > 0 && spaces) {
+                builder.append(' ');
+            }
+            builder.append(hex(data[offset + i] & 0xFF, 2));
+        }
+        return builder.toString();
+    }
+
+    private static String hex(int value, int digits) {
+        String hex = Integer.toHexString(value).toUpperCase(Locale.US);
+        while (hex.length() < digits) {
+            hex = "0" + hex;
+        }
+        return hex;
+    }
+
+    private static void pause(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
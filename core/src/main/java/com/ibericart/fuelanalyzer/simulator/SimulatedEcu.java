@@ -0,0 +1,175 @@
+package com.ibericart.fuelanalyzer.simulator;
+
+import com.ibericart.fuelanalyzer.obd.Pids;
+
+/**
+ * An ECU on the simulated CAN bus, answering the mode 01 PIDs it supports with the
+ * values of a {@link VehicleModel}, and the mode 09 vehicle information.
+ */
+public class SimulatedEcu {
+
+    // response addresses of the usual ECUs on 11 bit CAN
+    public static final int ENGINE = 0x7E8;
+    public static final int TRANSMISSION = 0x7E9;
+
+    private final int address;
+    private final VehicleModel vehicle;
+    private final boolean[] supported = new boolean[256];
+    private long latency;
+    private String vin;
+    private String calibrationId;
+
+    /**
+     * Constructor.
+     *
+     * @param address The CAN identifier the ECU answers with, e.g. {@link #ENGINE}.
+     * @param vehicle The vehicle giving the values.
+     * @param pids    The mode 01 PIDs the ECU supports.
+     */
+    public SimulatedEcu(int address, VehicleModel vehicle, int... pids) {
+        this.address = address;
+        this.vehicle = vehicle;
+        for (int pid : pids) {
+            supported[pid & 0xFF] = true;
+        }
+    }
+
+    /**
+     * Creates an engine ECU supporting every PID the vehicle model knows.
+     */
+    public static SimulatedEcu engine(VehicleModel vehicle) {
+        SimulatedEcu ecu = new SimulatedEcu(ENGINE, vehicle);
+        for (int pid = 1; pid < 256; pid++) {
+            if (!Pids.isSupportedPidsBitmap(pid) && !Float.isNaN(vehicle.getValue(pid, 0))) {
+                ecu.supported[pid] = true;
+            }
+        }
+        ecu.setVin("VF1SIMULATOR00001");
+        ecu.setCalibrationId("SIM-ENGINE-0001");
+        return ecu;
+    }
+
+    /**
+     * Returns the CAN identifier the ECU answers with.
+     */
+    public int getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the CAN identifier of the physical requests to the ECU.
+     */
+    public int getRequestAddress() {
+        return address - 8;
+    }
+
+    public boolean supports(int pid) {
+        return supported[pid & 0xFF];
+    }
+
+    /**
+     * Returns the time the ECU takes to answer, in nanoseconds.
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    public void setVin(String vin) {
+        this.vin = vin;
+    }
+
+    public void setCalibrationId(String calibrationId) {
+        this.calibrationId = calibrationId;
+    }
+
+    /**
+     * Builds the answer to a request.
+     *
+     * @param request The request bytes, starting with the mode.
+     * @param length  The number of request bytes.
+     * @param time    The time since the engine was started, in seconds.
+     * @param out     The array receiving the answer, starting with the response mode.
+     * @return The length of the answer, 0 if the ECU doesn't answer.
+     */
+    int respond(byte[] request, int length, double time, byte[] out) {
+        int mode = request[0] & 0xFF;
+        if (mode == Pids.MODE_CURRENT_DATA && length > 1) {
+            out[0] = (byte) Pids.MODE_CURRENT_DATA_RESPONSE;
+            int n = 1;
+            for (int i = 1; i < length; i++) {
+                int pid = request[i] & 0xFF;
+                if (Pids.isSupportedPidsBitmap(pid)) {
+                    out[n++] = (byte) pid;
+                    n += supportedBitmap(pid, out, n);
+                }
+                else if (supported[pid]) {
+                    out[n++] = (byte) pid;
+                    n += Pids.encode(pid, vehicle.getValue(pid, time), out, n);
+                }
+            }
+            return n > 1 ? n : 0;
+        }
+        if (mode == Pids.MODE_VEHICLE_INFORMATION && length == 2) {
+            int pid = request[1] & 0xFF;
+            out[0] = (byte) Pids.MODE_VEHICLE_INFORMATION_RESPONSE;
+            out[1] = (byte) pid;
+            switch (pid) {
+                case Pids.SUPPORTED_09:
+                    out[2] = (byte) ((vin != null ? 0x40 : 0) | (calibrationId != null ? 0x10 : 0));
+                    out[3] = 0;
+                    out[4] = 0;
+                    out[5] = 0;
+                    return out[2] != 0 ? 6 : 0;
+                case Pids.VEHICLE_IDENTIFICATION_NUMBER:
+                    return vin == null ? 0 : 3 + ascii(vin, 17, out);
+                case Pids.CALIBRATION_ID:
+                    return calibrationId == null ? 0 : 3 + ascii(calibrationId, 16, out);
+                default:
+                    return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the 4 byte bitmap of the PIDs supported after the given bitmap PID.
+     */
+    private int supportedBitmap(int base, byte[] out, int offset) {
+        for (int i = 0; i < 4; i++) {
+            out[offset + i] = 0;
+        }
+        boolean more = false;
+        for (int pid = base + 1; pid < 256; pid++) {
+            if (!supported[pid]) {
+                continue;
+            }
+            if (pid <= base + 0x20) {
+                int bit = pid - base - 1;
+                out[offset + bit / 8] |= 0x80 >> (bit % 8);
+            }
+            else {
+                more = true;
+            }
+        }
+        if (more) {
+            // the next bitmap PID
+            out[offset + 3] |= 0x01;
+        }
+        return 4;
+    }
+
+    /**
+     * Writes a mode 09 item: the number of data items, then the text padded with zeros.
+     */
+    private static int ascii(String text, int length, byte[] out) {
+        out[2] = 1;
+        for (int i = 0; i < length; i++) {
+            out[3 + i] = i < text.length() ? (byte) text.charAt(i) : 0;
+        }
+        return length;
+    }
+}
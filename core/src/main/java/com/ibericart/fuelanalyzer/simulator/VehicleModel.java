@@ -0,0 +1,163 @@
+package com.ibericart.fuelanalyzer.simulator;
+
+import com.ibericart.fuelanalyzer.obd.Pids;
+
+/**
+ * A simulated gasoline car driving a repeating urban/extra-urban cycle, giving
+ * consistent values for the mode 01 PIDs at any point in time.
+ *
+ * The speed follows a fixed 180 s cycle (idle, 50 km/h, 90 km/h, braking to a stop);
+ * the rpm follows the speed through a five speed gearbox; the load, manifold pressure
+ * and air flow follow the rpm and the acceleration; the coolant warms up over the
+ * first minutes. The values are a pure function of time, so they're reproducible.
+ */
+public class VehicleModel {
+
+    // the drive cycle: times (s) and the speeds (km/h) reached at those times
+    private static final float[] CYCLE_TIMES = { 0, 20, 40, 80, 100, 140, 170, 180 };
+    private static final float[] CYCLE_SPEEDS = { 0, 0, 50, 50, 90, 90, 0, 0 };
+    private static final float CYCLE_LENGTH = 180;
+
+    // rpm per km/h in every gear, and the speed at which the next gear is engaged
+    private static final float[] GEAR_RATIOS = { 130, 75, 50, 38, 30 };
+    private static final float[] UPSHIFT_SPEEDS = { 15, 30, 45, 60 };
+
+    private static final float IDLE_RPM = 800;
+    private static final float AIR_DENSITY = 1.2f;         // g/L at sea level
+    private static final float VOLUMETRIC_EFFICIENCY = 0.85f;
+    private static final float STOICHIOMETRIC_AFR = 14.7f;
+    private static final float FUEL_DENSITY = 740f;        // g/L
+
+    private final float displacement;
+
+    /**
+     * Constructor.
+     *
+     * @param displacement The engine displacement in litres.
+     */
+    public VehicleModel(float displacement) {
+        this.displacement = displacement;
+    }
+
+    public VehicleModel() {
+        this(1.6f);
+    }
+
+    /**
+     * Returns the speed in km/h.
+     *
+     * @param time The time since the engine was started, in seconds.
+     */
+    public float getSpeed(double time) {
+        double t = time % CYCLE_LENGTH;
+        int i = 1;
+        while (i < CYCLE_TIMES.length - 1 && t >= CYCLE_TIMES[i]) {
+            i++;
+        }
+        double fraction = (t - CYCLE_TIMES[i - 1]) / (CYCLE_TIMES[i] - CYCLE_TIMES[i - 1]);
+        // smooth the ramps so the acceleration doesn't jump
+        double smooth = fraction * fraction * (3 - 2 * fraction);
+        double speed = CYCLE_SPEEDS[i - 1] + (CYCLE_SPEEDS[i] - CYCLE_SPEEDS[i - 1]) * smooth;
+        if (speed > 0) {
+            // nobody holds a constant speed
+            speed += 1.5 * Math.sin(time * 0.7);
+        }
+        return (float) Math.max(0, speed);
+    }
+
+    /**
+     * Returns the acceleration in m/s^2.
+     */
+    public float getAcceleration(double time) {
+        return (getSpeed(time + 0.5) - getSpeed(time - 0.5)) / 3.6f;
+    }
+
+    public float getRpm(double time) {
+        float speed = getSpeed(time);
+        int gear = 0;
+        while (gear < UPSHIFT_SPEEDS.length && speed >= UPSHIFT_SPEEDS[gear]) {
+            gear++;
+        }
+        float rpm = speed * GEAR_RATIOS[gear];
+        return rpm < IDLE_RPM ? IDLE_RPM + 15 * (float) Math.sin(time * 3) : rpm;
+    }
+
+    /**
+     * Returns the engine load in %.
+     */
+    public float getLoad(double time) {
+        float load = 18 + Math.max(0, getAcceleration(time)) * 30 + getSpeed(time) * 0.2f;
+        return Math.min(100, load);
+    }
+
+    /**
+     * Returns the intake manifold absolute pressure in kPa.
+     */
+    public float getManifoldPressure(double time) {
+        return 25 + getLoad(time) * 0.75f;
+    }
+
+    /**
+     * Returns the mass air flow in g/s.
+     */
+    public float getAirFlow(double time) {
+        return getRpm(time) / 120f * displacement * VOLUMETRIC_EFFICIENCY
+                * getManifoldPressure(time) / 101.3f * AIR_DENSITY;
+    }
+
+    public float getCoolantTemperature(double time) {
+        return 20 + 70 * (float) (1 - Math.exp(-time / 300));
+    }
+
+    /**
+     * Returns the value of a mode 01 PID.
+     *
+     * @param pid  The PID.
+     * @param time The time since the engine was started, in seconds.
+     * @return The value in the unit documented in {@link Pids}, {@link Float#NaN} if the
+     * car doesn't know the PID.
+     */
+    public float getValue(int pid, double time) {
+        switch (pid) {
+            case Pids.ENGINE_LOAD:
+                return getLoad(time);
+            case Pids.COOLANT_TEMPERATURE:
+                return getCoolantTemperature(time);
+            case Pids.SHORT_TERM_FUEL_TRIM_1:
+                return 2 * (float) Math.sin(time * 1.3);
+            case Pids.LONG_TERM_FUEL_TRIM_1:
+                return 1.6f;
+            case Pids.INTAKE_MANIFOLD_PRESSURE:
+                return getManifoldPressure(time);
+            case Pids.ENGINE_RPM:
+                return getRpm(time);
+            case Pids.VEHICLE_SPEED:
+                return getSpeed(time);
+            case Pids.TIMING_ADVANCE:
+                return 8 + getRpm(time) / 300;
+            case Pids.INTAKE_AIR_TEMPERATURE:
+                // the engine bay heats the intake air in slow traffic
+                return getSpeed(time) < 20 ? 35 : 25;
+            case Pids.MAF_AIR_FLOW_RATE:
+                return getAirFlow(time);
+            case Pids.THROTTLE_POSITION:
+                return 12 + getLoad(time) * 0.6f;
+            case Pids.RUN_TIME_SINCE_START:
+                return (float) Math.floor(time);
+            case Pids.FUEL_TANK_LEVEL:
+                return Math.max(5, 62 - (float) time / 600);
+            case Pids.BAROMETRIC_PRESSURE:
+                return 101;
+            case Pids.CONTROL_MODULE_VOLTAGE:
+                return 14.1f + 0.05f * (float) Math.sin(time);
+            case Pids.AMBIENT_AIR_TEMPERATURE:
+                return 20;
+            case Pids.ENGINE_OIL_TEMPERATURE:
+                return getCoolantTemperature(time) - 5;
+            case Pids.ENGINE_FUEL_RATE:
+                return getAirFlow(time) / STOICHIOMETRIC_AFR / FUEL_DENSITY * 3600;
+            default:
+                return Float.NaN;
+        }
+    }
+}
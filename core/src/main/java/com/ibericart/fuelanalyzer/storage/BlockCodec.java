@@ -0,0 +1,245 @@
+package com.ibericart.fuelanalyzer.storage;
+
+/**
+ * Encodes and decodes the column blocks of the compressed trip files.
+ *
+ * A block holds the samples of one signal:
+ * <ul>
+ * <li>the timestamps: the first one as 8 bytes, then the first delta and the
+ * delta-of-deltas as zigzag varints, which take a single byte for regular sampling;</li>
+ * <li>the values, compressed as in Facebook's Gorilla: the first value as 32 bits, then
+ * the XOR with the previous value, stored as a single 0 bit when the value didn't change,
+ * or as the meaningful bits of the XOR, reusing the previous leading/trailing zero window
+ * when the bits fit in it.</li>
+ * </ul>
+ * The encoder appends to a growable array which it reuses between blocks.
+ * This class is not thread safe.
+ */
+class BlockCodec {
+
+    private byte[] bytes = new byte[4096];
+    private int length;
+
+    // bit writer state
+    private long bitBuffer;
+    private int bitCount;
+
+    /**
+     * Returns the array holding the encoded block.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the length of the encoded block.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Encodes a block, replacing the previous one.
+     *
+     * @param times  The timestamps, in increasing order.
+     * @param values The values.
+     * @param count  The number of samples, at least 1.
+     */
+    void encode(long[] times, float[] values, int count) {
+        length = 0;
+        writeVarint(count);
+
+        // timestamps
+        writeLong(times[0]);
+        long previousDelta = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = times[i] - times[i - 1];
+            writeVarint(zigzag(delta - previousDelta));
+            previousDelta = delta;
+        }
+
+        // values
+        bitBuffer = 0;
+        bitCount = 0;
+        int previous = Float.floatToRawIntBits(values[0]);
+        writeBits(previous & 0xFFFFFFFFL, 32);
+        int previousLeading = Integer.MAX_VALUE;
+        int previousTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            int current = Float.floatToRawIntBits(values[i]);
+            int xor = current ^ previous;
+            previous = current;
+            if (xor == 0) {
+                writeBits(0, 1);
+                continue;
+            }
+            int leading = Integer.numberOfLeadingZeros(xor);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (leading >= previousLeading && trailing >= previousTrailing) {
+                // the meaningful bits fit in the previous window
+                int meaningful = 32 - previousLeading - previousTrailing;
+                writeBits(0x2, 2);
+                writeBits((xor >>> previousTrailing) & mask(meaningful), meaningful);
+            }
+            else {
+                int meaningful = 32 - leading - trailing;
+                writeBits(0x3, 2);
+                writeBits(leading, 5);
+                writeBits(meaningful - 1, 5);
+                writeBits((xor >>> trailing) & mask(meaningful), meaningful);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+        flushBits();
+    }
+
+    /**
+     * Decodes a block.
+     *
+     * @param source The array holding the block.
+     * @param offset The index of the first byte of the block.
+     * @param times  Receives the timestamps, must be large enough for the block.
+     * @param values Receives the values, must be large enough for the block.
+     * @return The number of samples decoded.
+     */
+    static int decode(byte[] source, int offset, long[] times, float[] values) {
+        Reader reader = new Reader(source, offset);
+        int count = (int) reader.readVarint();
+
+        long time = reader.readLong();
+        times[0] = time;
+        long delta = 0;
+        for (int i = 1; i < count; i++) {
+            delta += unzigzag(reader.readVarint());
+            time += delta;
+            times[i] = time;
+        }
+
+        int previous = (int) reader.readBits(32);
+        values[0] = Float.intBitsToFloat(previous);
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            if (reader.readBits(1) == 0) {
+                values[i] = Float.intBitsToFloat(previous);
+                continue;
+            }
+            if (reader.readBits(1) == 1) {
+                leading = (int) reader.readBits(5);
+                int meaningful = (int) reader.readBits(5) + 1;
+                trailing = 32 - leading - meaningful;
+            }
+            int meaningful = 32 - leading - trailing;
+            int xor = (int) reader.readBits(meaningful) << trailing;
+            previous ^= xor;
+            values[i] = Float.intBitsToFloat(previous);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the number of samples of a block without decoding it.
+     */
+    static int count(byte[] source, int offset) {
+        return (int) new Reader(source, offset).readVarint();
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+
+    private void writeBits(long value, int count) {
+        bitBuffer = (bitBuffer << count) | value;
+        bitCount += count;
+        ensureCapacity(8);
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            bytes[length++] = (byte) (bitBuffer >>> bitCount);
+        }
+    }
+
+    private void flushBits() {
+        if (bitCount > 0) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) (bitBuffer << (8 - bitCount));
+            bitCount = 0;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            byte[] grown = new byte[Math.max(bytes.length * 2, length + extra)];
+            System.arraycopy(bytes, 0, grown, 0, length);
+            bytes = grown;
+        }
+    }
+
+    private static long mask(int bits) {
+        return bits == 64 ? -1L : (1L << bits) - 1;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads the bytes, varints and bits of a block.
+     */
+    private static class Reader {
+        private final byte[] source;
+        private int position;
+        private long bitBuffer;
+        private int bitCount;
+
+        Reader(byte[] source, int offset) {
+            this.source = source;
+            this.position = offset;
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (source[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = source[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        long readBits(int count) {
+            while (bitCount < count) {
+                bitBuffer = (bitBuffer << 8) | (source[position++] & 0xFF);
+                bitCount += 8;
+            }
+            bitCount -= count;
+            return (bitBuffer >>> bitCount) & mask(count);
+        }
+    }
+}
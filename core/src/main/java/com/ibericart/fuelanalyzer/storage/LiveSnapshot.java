@@ -0,0 +1,124 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+
+import java.util.Arrays;
+
+/**
+ * The latest value of every signal, with a dirty flag per signal, for a display
+ * which refreshes at its own pace rather than at the rate the values arrive.
+ *
+ * Signals 0 to 255 are the mode 01 PIDs, fed through {@link #onSample(int, float, long)};
+ * the signals from {@link #FIRST_DERIVED_SIGNAL} on are free for values computed from them,
+ * e.g. the fuel consumption, set with {@link #set(int, float, long)}. A signal becomes dirty
+ * when its value changes; {@link #collectChanges(int[], float[])} hands the dirty signals over
+ * and clears their flags, so the display only redraws what changed since its last frame,
+ * however many values arrived meanwhile.
+ *
+ * This class is thread safe. Updating a value doesn't allocate anything.
+ */
+public class LiveSnapshot implements ObdResponseDecoder.SampleListener {
+
+    /**
+     * The first signal which isn't a PID.
+     */
+    public static final int FIRST_DERIVED_SIGNAL = 256;
+
+    private final float[] values;
+    private final long[] timestamps;
+    private final boolean[] dirty;
+
+    // the dirty signals, in the order they changed
+    private final int[] changed;
+    private int changedCount;
+
+    /**
+     * Constructor. All the values are unknown ({@link Float#NaN}) at first.
+     *
+     * @param derivedSignals The number of signals following the PIDs.
+     */
+    public LiveSnapshot(int derivedSignals) {
+        if (derivedSignals < 0) {
+            throw new IllegalArgumentException("invalid number of signals: " + derivedSignals);
+        }
+        int count = FIRST_DERIVED_SIGNAL + derivedSignals;
+        values = new float[count];
+        timestamps = new long[count];
+        dirty = new boolean[count];
+        changed = new int[count];
+        Arrays.fill(values, Float.NaN);
+    }
+
+    /**
+     * Returns the number of signals, PIDs included.
+     */
+    public int getSignalCount() {
+        return values.length;
+    }
+
+    @Override
+    public void onSample(int pid, float value, long timestamp) {
+        set(pid & 0xFF, value, timestamp);
+    }
+
+    /**
+     * Sets the latest value of a signal, marking it dirty if the value changed.
+     *
+     * @param signal    The signal, a PID or a derived signal.
+     * @param value     The value.
+     * @param timestamp The time of the value, in nanoseconds.
+     */
+    public synchronized void set(int signal, float value, long timestamp) {
+        timestamps[signal] = timestamp;
+        if (Float.floatToIntBits(values[signal]) == Float.floatToIntBits(value)) {
+            return;
+        }
+        values[signal] = value;
+        if (!dirty[signal]) {
+            dirty[signal] = true;
+            changed[changedCount++] = signal;
+        }
+    }
+
+    /**
+     * Returns the latest value of a signal, {@link Float#NaN} if none was received yet.
+     */
+    public synchronized float get(int signal) {
+        return values[signal];
+    }
+
+    /**
+     * Returns the time of the latest value of a signal, 0 if none was received yet.
+     */
+    public synchronized long getTimestamp(int signal) {
+        return timestamps[signal];
+    }
+
+    /**
+     * Tells whether any signal changed since the last call to
+     * {@link #collectChanges(int[], float[])}.
+     */
+    public synchronized boolean isDirty() {
+        return changedCount > 0;
+    }
+
+    /**
+     * Copies the signals which changed since the last call, with their latest values,
+     * and clears their dirty flags.
+     *
+     * @param signalsOut Receives the changed signals, at least {@link #getSignalCount()} long.
+     * @param valuesOut  Receives their values, at least {@link #getSignalCount()} long.
+     * @return The number of changed signals.
+     */
+    public synchronized int collectChanges(int[] signalsOut, float[] valuesOut) {
+        int count = changedCount;
+        for (int i = 0; i < count; i++) {
+            int signal = changed[i];
+            signalsOut[i] = signal;
+            valuesOut[i] = values[signal];
+            dirty[signal] = false;
+        }
+        changedCount = 0;
+        return count;
+    }
+}
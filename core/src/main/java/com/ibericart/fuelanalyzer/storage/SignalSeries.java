@@ -0,0 +1,253 @@
+package com.ibericart.fuelanalyzer.storage;
+
+/**
+ * A fixed-size time series of the samples of one signal, kept in primitive arrays.
+ *
+ * The series has two tiers:
+ * <ul>
+ * <li>the latest raw samples, in a ring of timestamps and values;</li>
+ * <li>a ring of fixed-length buckets (e.g. 1 second) holding the count, minimum, maximum
+ * and sum of the samples which fell into them, covering a much longer time span.</li>
+ * </ul>
+ * Windowed queries are answered from the raw samples when the window starts after the
+ * oldest raw sample, and from the buckets otherwise (at bucket granularity).
+ *
+ * All the memory is allocated up front and adding a sample doesn't allocate anything.
+ * Timestamps must be increasing; samples older than the buckets kept are only added
+ * to the raw ring. This class is thread safe.
+ */
+public class SignalSeries {
+
+    private final long[] times;
+    private final float[] values;
+    private int head;
+    private int size;
+
+    private final long bucketDuration;
+    private final int[] bucketCounts;
+    private final float[] bucketMins;
+    private final float[] bucketMaxes;
+    private final float[] bucketSums;
+    // absolute indexes (timestamp / bucketDuration) of the oldest and newest bucket kept
+    private long firstBucket;
+    private long lastBucket;
+    private boolean hasBuckets;
+
+    /**
+     * Constructor. Allocates all the memory used by the series.
+     *
+     * @param capacity       The number of raw samples kept.
+     * @param bucketDuration The length of a bucket, in the unit of the timestamps.
+     * @param bucketCapacity The number of buckets kept.
+     */
+    public SignalSeries(int capacity, long bucketDuration, int bucketCapacity) {
+        if (capacity <= 0 || bucketDuration <= 0 || bucketCapacity <= 0) {
+            throw new IllegalArgumentException("sizes must be positive");
+        }
+        this.times = new long[capacity];
+        this.values = new float[capacity];
+        this.bucketDuration = bucketDuration;
+        this.bucketCounts = new int[bucketCapacity];
+        this.bucketMins = new float[bucketCapacity];
+        this.bucketMaxes = new float[bucketCapacity];
+        this.bucketSums = new float[bucketCapacity];
+    }
+
+    /**
+     * Returns the number of bytes used by a series with the given sizes, to help sizing it.
+     */
+    public static long footprint(int capacity, int bucketCapacity) {
+        return capacity * (8L + 4L) + bucketCapacity * (4L * 4L);
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param time  The timestamp of the sample, not older than the previous one.
+     * @param value The value of the sample.
+     */
+    public synchronized void add(long time, float value) {
+        times[head] = time;
+        values[head] = value;
+        head = head + 1 == times.length ? 0 : head + 1;
+        if (size < times.length) {
+            size++;
+        }
+
+        long bucket = floorDiv(time, bucketDuration);
+        if (!hasBuckets) {
+            hasBuckets = true;
+            firstBucket = bucket;
+            lastBucket = bucket;
+            clearBucket(bucket);
+        }
+        else if (bucket > lastBucket) {
+            // clear the buckets we moved over, they may hold data from a previous lap
+            long end = Math.min(bucket, lastBucket + bucketCounts.length);
+            for (long b = lastBucket + 1; b <= end; b++) {
+                clearBucket(b);
+            }
+            lastBucket = bucket;
+            firstBucket = Math.max(firstBucket, bucket - bucketCounts.length + 1);
+        }
+        else if (bucket < firstBucket) {
+            return;
+        }
+
+        int slot = slot(bucket);
+        if (bucketCounts[slot] == 0) {
+            bucketMins[slot] = value;
+            bucketMaxes[slot] = value;
+        }
+        else {
+            bucketMins[slot] = Math.min(bucketMins[slot], value);
+            bucketMaxes[slot] = Math.max(bucketMaxes[slot], value);
+        }
+        bucketCounts[slot]++;
+        bucketSums[slot] += value;
+    }
+
+    /**
+     * Returns the number of raw samples currently kept.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the timestamp of the latest sample, 0 if the series is empty.
+     */
+    public synchronized long getLatestTime() {
+        return size == 0 ? 0 : times[index(size - 1)];
+    }
+
+    /**
+     * Returns the latest value, {@link Float#NaN} if the series is empty.
+     */
+    public synchronized float getLatestValue() {
+        return size == 0 ? Float.NaN : values[index(size - 1)];
+    }
+
+    /**
+     * Computes the statistics of the samples taken within the given time span
+     * before the latest sample.
+     *
+     * @param window The length of the window, in the unit of the timestamps.
+     * @param out    The object receiving the statistics.
+     * @return The number of samples in the window.
+     */
+    public synchronized int statsLast(long window, WindowStats out) {
+        long to = getLatestTime();
+        return stats(to - window, to, out);
+    }
+
+    /**
+     * Computes the statistics of the samples taken between the given timestamps, inclusive.
+     * When the raw samples don't reach back to {@code from}, the buckets are used,
+     * so the window is widened to whole buckets.
+     *
+     * @param from The start of the window.
+     * @param to   The end of the window.
+     * @param out  The object receiving the statistics.
+     * @return The number of samples in the window.
+     */
+    public synchronized int stats(long from, long to, WindowStats out) {
+        out.clear();
+        if (size == 0 || to < from) {
+            return 0;
+        }
+        if (from >= times[index(0)] || !hasBuckets) {
+            for (int i = firstIndexAtOrAfter(from); i < size; i++) {
+                int physical = index(i);
+                if (times[physical] > to) {
+                    break;
+                }
+                out.add(values[physical]);
+            }
+        }
+        else {
+            long start = Math.max(floorDiv(from, bucketDuration), firstBucket);
+            long end = Math.min(floorDiv(to, bucketDuration), lastBucket);
+            for (long b = start; b <= end; b++) {
+                int slot = slot(b);
+                if (bucketCounts[slot] > 0) {
+                    out.add(bucketCounts[slot], bucketMins[slot], bucketMaxes[slot],
+                            bucketSums[slot]);
+                }
+            }
+        }
+        return out.count;
+    }
+
+    /**
+     * Copies the raw samples taken between the given timestamps, inclusive, oldest first.
+     *
+     * @param from      The start of the window.
+     * @param to        The end of the window.
+     * @param timesOut  The array receiving the timestamps.
+     * @param valuesOut The array receiving the values, at least as long as {@code timesOut}.
+     * @return The number of samples copied, at most the length of {@code timesOut}.
+     */
+    public synchronized int copy(long from, long to, long[] timesOut, float[] valuesOut) {
+        int count = 0;
+        for (int i = firstIndexAtOrAfter(from); i < size && count < timesOut.length; i++) {
+            int physical = index(i);
+            if (times[physical] > to) {
+                break;
+            }
+            timesOut[count] = times[physical];
+            valuesOut[count] = values[physical];
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes all the samples.
+     */
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+        hasBuckets = false;
+    }
+
+    /**
+     * Returns the logical index (0 = oldest) of the first raw sample not older than the
+     * given timestamp, found by binary search.
+     */
+    private int firstIndexAtOrAfter(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[index(middle)] < time) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int index(int logical) {
+        int physical = head - size + logical;
+        return physical < 0 ? physical + times.length : physical;
+    }
+
+    private int slot(long bucket) {
+        int slot = (int) (bucket % bucketCounts.length);
+        return slot < 0 ? slot + bucketCounts.length : slot;
+    }
+
+    private void clearBucket(long bucket) {
+        int slot = slot(bucket);
+        bucketCounts[slot] = 0;
+        bucketSums[slot] = 0;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+}
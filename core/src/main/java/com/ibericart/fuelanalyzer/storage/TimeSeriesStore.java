@@ -0,0 +1,103 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+
+/**
+ * Keeps a {@link SignalSeries} for every PID received during a session.
+ *
+ * The series of a PID is created the first time a sample of it arrives, after that
+ * storing a sample doesn't allocate anything. With the default sizes a series keeps
+ * about 13 minutes of raw samples at 10 Hz plus 1-second buckets for 3.4 hours, in
+ * less than 300 KB, so 20 signals fit in about 6 MB.
+ *
+ * Timestamps are in nanoseconds, as given by {@link System#nanoTime()}.
+ * This class is thread safe.
+ */
+public class TimeSeriesStore implements ObdResponseDecoder.SampleListener {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_BUCKET_NANOS = 1000000000L;
+    public static final int DEFAULT_BUCKET_CAPACITY = 12288;
+
+    private final SignalSeries[] series = new SignalSeries[256];
+    private final int capacity;
+    private final long bucketNanos;
+    private final int bucketCapacity;
+
+    /**
+     * Constructor using the default sizes.
+     */
+    public TimeSeriesStore() {
+        this(DEFAULT_CAPACITY, DEFAULT_BUCKET_NANOS, DEFAULT_BUCKET_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity       The number of raw samples kept per signal.
+     * @param bucketNanos    The length of a bucket, in nanoseconds.
+     * @param bucketCapacity The number of buckets kept per signal.
+     */
+    public TimeSeriesStore(int capacity, long bucketNanos, int bucketCapacity) {
+        this.capacity = capacity;
+        this.bucketNanos = bucketNanos;
+        this.bucketCapacity = bucketCapacity;
+    }
+
+    @Override
+    public void onSample(int pid, float value, long timestamp) {
+        SignalSeries signal = get(pid);
+        if (signal == null) {
+            signal = create(pid);
+        }
+        signal.add(timestamp, value);
+    }
+
+    /**
+     * Returns the series of the given PID, null if no sample of it was received yet.
+     */
+    public SignalSeries get(int pid) {
+        synchronized (series) {
+            return series[pid & 0xFF];
+        }
+    }
+
+    /**
+     * Returns the number of bytes used by the series created so far.
+     */
+    public long footprint() {
+        long bytes = 0;
+        synchronized (series) {
+            for (SignalSeries signal : series) {
+                if (signal != null) {
+                    bytes += SignalSeries.footprint(capacity, bucketCapacity);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Removes the samples of all the signals, e.g. when a new trip starts.
+     */
+    public void clear() {
+        synchronized (series) {
+            for (SignalSeries signal : series) {
+                if (signal != null) {
+                    signal.clear();
+                }
+            }
+        }
+    }
+
+    private SignalSeries create(int pid) {
+        synchronized (series) {
+            SignalSeries signal = series[pid & 0xFF];
+            if (signal == null) {
+                signal = new SignalSeries(capacity, bucketNanos, bucketCapacity);
+                series[pid & 0xFF] = signal;
+            }
+            return signal;
+        }
+    }
+}
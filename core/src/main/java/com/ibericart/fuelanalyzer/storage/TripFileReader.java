@@ -0,0 +1,180 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a trip written by {@link TripFileWriter}.
+ *
+ * Only the footer is read when the file is opened. The blocks are read and decoded one
+ * at a time, and the index tells which blocks hold a given signal and time range, so
+ * reading a part of a trip doesn't decompress the rest of it.
+ * This class is not thread safe.
+ */
+public class TripFileReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final int blockCount;
+    private final int[] blockPids;
+    private final int[] blockCounts;
+    private final long[] blockFirstTimes;
+    private final long[] blockLastTimes;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+
+    private byte[] blockBuffer = new byte[4096];
+    private long[] times = new long[TripFileWriter.DEFAULT_BLOCK_SIZE];
+    private float[] values = new float[TripFileWriter.DEFAULT_BLOCK_SIZE];
+
+    /**
+     * Opens a trip file and reads its index.
+     *
+     * @param file The trip file.
+     * @throws IOException if the file can't be read or isn't a compressed trip file.
+     */
+    public TripFileReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            long length = this.file.length();
+            if (length < TripFileWriter.HEADER_SIZE + TripFileWriter.TRAILER_SIZE) {
+                throw new IOException("not a compressed trip file");
+            }
+            this.file.seek(0);
+            int magic = this.file.readInt();
+            short version = this.file.readShort();
+            this.file.seek(length - TripFileWriter.TRAILER_SIZE);
+            long indexOffset = this.file.readLong();
+            blockCount = this.file.readInt();
+            if (magic != TripFileWriter.MAGIC || this.file.readInt() != TripFileWriter.MAGIC) {
+                throw new IOException("not a compressed trip file");
+            }
+            if (version != TripFileWriter.VERSION) {
+                throw new IOException("unsupported trip file version " + version);
+            }
+
+            byte[] index = new byte[blockCount * TripFileWriter.INDEX_ENTRY_SIZE];
+            this.file.seek(indexOffset);
+            this.file.readFully(index);
+            ByteBuffer buffer = ByteBuffer.wrap(index);
+            blockPids = new int[blockCount];
+            blockCounts = new int[blockCount];
+            blockFirstTimes = new long[blockCount];
+            blockLastTimes = new long[blockCount];
+            blockOffsets = new long[blockCount];
+            blockLengths = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blockPids[i] = buffer.get() & 0xFF;
+                blockCounts[i] = buffer.getInt();
+                blockFirstTimes[i] = buffer.getLong();
+                blockLastTimes[i] = buffer.getLong();
+                blockOffsets[i] = buffer.getLong();
+                blockLengths[i] = buffer.getInt();
+            }
+        }
+        catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getBlockPid(int block) {
+        return blockPids[block];
+    }
+
+    public int getBlockSampleCount(int block) {
+        return blockCounts[block];
+    }
+
+    /**
+     * Returns the time of the first sample of a block, in milliseconds since the epoch.
+     */
+    public long getBlockFirstTime(int block) {
+        return blockFirstTimes[block];
+    }
+
+    /**
+     * Returns the time of the last sample of a block, in milliseconds since the epoch.
+     */
+    public long getBlockLastTime(int block) {
+        return blockLastTimes[block];
+    }
+
+    /**
+     * Returns the total number of samples in the file.
+     */
+    public long getSampleCount() {
+        long count = 0;
+        for (int i = 0; i < blockCount; i++) {
+            count += blockCounts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Reads and decodes a block.
+     *
+     * @param block     The index of the block.
+     * @param timesOut  Receives the timestamps in milliseconds, at least
+     *                  {@link #getBlockSampleCount(int)} long.
+     * @param valuesOut Receives the values, at least {@link #getBlockSampleCount(int)} long.
+     * @return The number of samples decoded.
+     * @throws IOException if the block can't be read.
+     */
+    public int readBlock(int block, long[] timesOut, float[] valuesOut) throws IOException {
+        int length = blockLengths[block];
+        if (blockBuffer.length < length) {
+            blockBuffer = new byte[length];
+        }
+        file.seek(blockOffsets[block]);
+        file.readFully(blockBuffer, 0, length);
+        return BlockCodec.decode(blockBuffer, 0, timesOut, valuesOut);
+    }
+
+    /**
+     * Reads the samples of a signal within a time range, decoding only the blocks which
+     * overlap the range.
+     *
+     * @param pid      The PID of the signal.
+     * @param from     The start of the range, in milliseconds since the epoch.
+     * @param to       The end of the range, inclusive.
+     * @param listener Receives the samples, with timestamps in nanoseconds since the epoch.
+     * @return The number of samples read.
+     * @throws IOException if a block can't be read.
+     */
+    public long read(int pid, long from, long to, ObdResponseDecoder.SampleListener listener)
+            throws IOException {
+        long samples = 0;
+        for (int block = 0; block < blockCount; block++) {
+            if (blockPids[block] != pid || blockLastTimes[block] < from
+                    || blockFirstTimes[block] > to) {
+                continue;
+            }
+            if (times.length < blockCounts[block]) {
+                times = new long[blockCounts[block]];
+                values = new float[blockCounts[block]];
+            }
+            int count = readBlock(block, times, values);
+            for (int i = 0; i < count; i++) {
+                if (times[i] >= from && times[i] <= to) {
+                    listener.onSample(pid, values[i], times[i] * 1000000L);
+                    samples++;
+                }
+            }
+        }
+        return samples;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
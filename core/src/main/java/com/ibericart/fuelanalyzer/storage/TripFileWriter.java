@@ -0,0 +1,231 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes a trip in the compressed columnar format read by {@link TripFileReader}.
+ *
+ * The samples of every signal are buffered and written as a column block once
+ * {@link #DEFAULT_BLOCK_SIZE} of them are collected, so a trip can be written while it's
+ * being received. Blocks are compressed by {@link BlockCodec}. Closing the writer flushes
+ * the partial blocks and appends the footer: an index of all the blocks (signal, sample
+ * count, time range, position) followed by the position of the index.
+ *
+ * Timestamps are stored in milliseconds; {@link #onSample(int, float, long)} takes
+ * nanoseconds since the epoch, as replayed by {@link TripRecorder#replay}.
+ * Layout:
+ * <pre>
+ * header   magic (4) version (2) reserved (2)
+ * blocks   ...
+ * index    per block: pid (1) count (4) first time (8) last time (8) offset (8) length (4)
+ * trailer  index offset (8) block count (4) magic (4)
+ * </pre>
+ * This class is not thread safe.
+ */
+public class TripFileWriter implements ObdResponseDecoder.SampleListener, Closeable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    static final int MAGIC = 0x46415443; // "FATC"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int INDEX_ENTRY_SIZE = 33;
+    static final int TRAILER_SIZE = 16;
+
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final BlockCodec codec = new BlockCodec();
+    private final Column[] columns = new Column[256];
+    private long offset;
+    private boolean closed;
+
+    // the index, written in the footer
+    private int blockCount;
+    private int[] blockPids = new int[64];
+    private int[] blockCounts = new int[64];
+    private long[] blockFirstTimes = new long[64];
+    private long[] blockLastTimes = new long[64];
+    private long[] blockOffsets = new long[64];
+    private int[] blockLengths = new int[64];
+
+    /**
+     * Creates the given file and writes its header.
+     *
+     * @param file The file to write.
+     * @throws IOException if the file can't be written.
+     */
+    public TripFileWriter(File file) throws IOException {
+        this(new FileOutputStream(file), DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Writes the header to the given stream.
+     *
+     * @param out       The stream to write to, closed when the writer is closed.
+     * @param blockSize The number of samples per block.
+     * @throws IOException if writing fails.
+     */
+    public TripFileWriter(OutputStream out, int blockSize) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("block size must be positive: " + blockSize);
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.blockSize = blockSize;
+        this.out.writeInt(MAGIC);
+        this.out.writeShort(VERSION);
+        this.out.writeShort(0);
+        offset = HEADER_SIZE;
+    }
+
+    /**
+     * Compresses a file written by {@link TripRecorder}.
+     *
+     * @param recorded   The recorded trip.
+     * @param compressed The file to write.
+     * @return The number of samples written.
+     * @throws IOException if a file can't be read or written.
+     */
+    public static long compress(File recorded, File compressed) throws IOException {
+        TripFileWriter writer = new TripFileWriter(compressed);
+        try {
+            return TripRecorder.replay(recorded, writer);
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Adds a sample, writing the block of its signal when it's full.
+     * Samples of the same signal must come in increasing time order.
+     *
+     * @param pid       The PID of the sample.
+     * @param value     The value of the sample.
+     * @param timestamp The time of the sample, in nanoseconds since the epoch.
+     */
+    @Override
+    public void onSample(int pid, float value, long timestamp) {
+        try {
+            append(pid, timestamp / 1000000L, value);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("writing the trip failed", e);
+        }
+    }
+
+    /**
+     * Adds a sample, writing the block of its signal when it's full.
+     * Samples of the same signal must come in increasing time order.
+     *
+     * @param pid    The PID of the sample.
+     * @param time   The time of the sample, in milliseconds since the epoch.
+     * @param value  The value of the sample.
+     * @throws IOException if writing a block fails.
+     */
+    public void append(int pid, long time, float value) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("writer closed");
+        }
+        pid &= 0xFF;
+        Column column = columns[pid];
+        if (column == null) {
+            column = new Column(blockSize);
+            columns[pid] = column;
+        }
+        column.times[column.count] = time;
+        column.values[column.count] = value;
+        column.count++;
+        if (column.count == blockSize) {
+            writeBlock(pid, column);
+        }
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long getSize() {
+        return offset;
+    }
+
+    /**
+     * Writes the partial blocks and the footer, then closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (int pid = 0; pid < columns.length; pid++) {
+                if (columns[pid] != null && columns[pid].count > 0) {
+                    writeBlock(pid, columns[pid]);
+                }
+            }
+            long indexOffset = offset;
+            for (int i = 0; i < blockCount; i++) {
+                out.writeByte(blockPids[i]);
+                out.writeInt(blockCounts[i]);
+                out.writeLong(blockFirstTimes[i]);
+                out.writeLong(blockLastTimes[i]);
+                out.writeLong(blockOffsets[i]);
+                out.writeInt(blockLengths[i]);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(blockCount);
+            out.writeInt(MAGIC);
+            offset += (long) blockCount * INDEX_ENTRY_SIZE + TRAILER_SIZE;
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock(int pid, Column column) throws IOException {
+        codec.encode(column.times, column.values, column.count);
+        out.write(codec.bytes(), 0, codec.length());
+
+        if (blockCount == blockPids.length) {
+            int size = blockCount * 2;
+            blockPids = Arrays.copyOf(blockPids, size);
+            blockCounts = Arrays.copyOf(blockCounts, size);
+            blockFirstTimes = Arrays.copyOf(blockFirstTimes, size);
+            blockLastTimes = Arrays.copyOf(blockLastTimes, size);
+            blockOffsets = Arrays.copyOf(blockOffsets, size);
+            blockLengths = Arrays.copyOf(blockLengths, size);
+        }
+        blockPids[blockCount] = pid;
+        blockCounts[blockCount] = column.count;
+        blockFirstTimes[blockCount] = column.times[0];
+        blockLastTimes[blockCount] = column.times[column.count - 1];
+        blockOffsets[blockCount] = offset;
+        blockLengths[blockCount] = codec.length();
+        blockCount++;
+
+        offset += codec.length();
+        column.count = 0;
+    }
+
+    /**
+     * The samples of a signal waiting to be written.
+     */
+    private static class Column {
+        final long[] times;
+        final float[] values;
+        int count;
+
+        Column(int blockSize) {
+            times = new long[blockSize];
+            values = new float[blockSize];
+        }
+    }
+}
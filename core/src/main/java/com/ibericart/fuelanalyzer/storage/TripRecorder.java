@@ -0,0 +1,459 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends every received sample to a file, so the data of a trip survives the app.
+ *
+ * The file starts with a {@link #HEADER_SIZE}-byte header followed by fixed-width
+ * {@link #RECORD_SIZE}-byte records: the timestamp (nanoseconds since the epoch),
+ * the PID, a check value and the value. Records are written into memory mapped chunks
+ * of the file, so recording a sample is a plain memory write. A background thread maps
+ * the next chunk ahead of time and periodically forces the written data to the storage,
+ * so neither growing the file nor syncing it blocks the thread which records.
+ *
+ * The check value is written last; when a file is opened again after a crash, the
+ * records are validated and the file is truncated before the first one which isn't
+ * complete, as {@link #replay} stops there. The header counts the records known to be
+ * forced to the storage, which is never more than the records actually forced.
+ *
+ * {@link #onSample(int, float, long)} must always be called from the same thread.
+ */
+public class TripRecorder implements ObdResponseDecoder.SampleListener, Closeable {
+
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 16;
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    public static final long DEFAULT_FORCE_INTERVAL_MILLIS = 2000;
+
+    private static final int MAGIC = 0x46415452; // "FATR"
+    private static final short VERSION = 1;
+
+    // header fields
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int RECORD_SIZE_OFFSET = 6;
+    private static final int CREATED_OFFSET = 8;
+    private static final int COMMITTED_OFFSET = 16;
+    private static final int CLEAN_OFFSET = 24;
+
+    // record fields
+    private static final int PID_OFFSET = 8;
+    private static final int CHECK_OFFSET = 10;
+    private static final int VALUE_OFFSET = 12;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int chunkSize;
+    private final long recordsPerChunk;
+    private final long recoveredBytes;
+    private final ScheduledExecutorService flusher;
+
+    // converts System.nanoTime() to nanoseconds since the epoch
+    private final long epochOffset;
+
+    // guards switching chunks, so force() sees the chunk holding the records it counts
+    private final Object chunkLock = new Object();
+    private volatile MappedByteBuffer current;
+    private volatile long currentChunk;
+    private volatile MappedByteBuffer next;
+    private volatile long nextChunk = -1;
+    private boolean nextRequested;
+
+    private long count;
+    private volatile long publishedCount;
+    // the records forced to the storage, all of them before the first chunk still
+    // waiting for its ForceTask
+    private volatile long forcedCount;
+    private volatile boolean closed;
+
+    private final Runnable prepareTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                long chunk = currentChunk + 1;
+                MappedByteBuffer buffer = map(chunk);
+                nextChunk = chunk;
+                next = buffer;
+            }
+            catch (IOException e) {
+                // advance() maps the chunk itself
+            }
+        }
+    };
+
+    private final Runnable forceTask = new Runnable() {
+        @Override
+        public void run() {
+            force();
+        }
+    };
+
+    /**
+     * Opens a trip file for appending, creating it if it doesn't exist.
+     * Uses the default chunk size and force interval.
+     *
+     * @param file The trip file.
+     * @throws IOException if the file can't be opened or isn't a trip file.
+     */
+    public TripRecorder(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_SIZE, DEFAULT_FORCE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens a trip file for appending, creating it if it doesn't exist. An existing file
+     * is truncated after its last complete record.
+     *
+     * @param file          The trip file.
+     * @param chunkSize     The number of bytes the file grows by, a multiple of {@link #RECORD_SIZE}.
+     * @param forceInterval How often the written records are forced to the storage, in ms.
+     * @throws IOException if the file can't be opened or isn't a trip file.
+     */
+    public TripRecorder(File file, int chunkSize, long forceInterval) throws IOException {
+        if (chunkSize <= 0 || chunkSize % RECORD_SIZE != 0) {
+            throw new IllegalArgumentException("chunk size must be a multiple of "
+                    + RECORD_SIZE + ": " + chunkSize);
+        }
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.recordsPerChunk = chunkSize / RECORD_SIZE;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.epochOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+        try {
+            long size = channel.size();
+            if (size == 0) {
+                header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                header.putInt(MAGIC_OFFSET, MAGIC);
+                header.putShort(VERSION_OFFSET, VERSION);
+                header.putShort(RECORD_SIZE_OFFSET, (short) RECORD_SIZE);
+                header.putLong(CREATED_OFFSET, System.currentTimeMillis());
+                recoveredBytes = 0;
+            }
+            else {
+                readHeader(channel);
+                count = countRecords(channel);
+                long end = HEADER_SIZE + count * RECORD_SIZE;
+                recoveredBytes = size - end;
+                // drop the torn record and the unused part of the last chunk
+                channel.truncate(end);
+                header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            }
+            header.put(CLEAN_OFFSET, (byte) 0);
+            header.putLong(COMMITTED_OFFSET, count);
+            header.force();
+            publishedCount = count;
+            forcedCount = count;
+
+            long position = count * RECORD_SIZE;
+            currentChunk = position / chunkSize;
+            current = map(currentChunk);
+            current.position((int) (position % chunkSize));
+        }
+        catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(forceTask, forceInterval, forceInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a sample. Nothing happens once the recorder is closed.
+     *
+     * @param pid       The PID of the sample.
+     * @param value     The value of the sample.
+     * @param timestamp The time of the sample, as given by {@link System#nanoTime()}.
+     */
+    @Override
+    public void onSample(int pid, float value, long timestamp) {
+        if (closed) {
+            return;
+        }
+        MappedByteBuffer buffer = current;
+        if (!buffer.hasRemaining()) {
+            buffer = advance();
+            if (buffer == null) {
+                return;
+            }
+        }
+        long time = timestamp + epochOffset;
+        int position = buffer.position();
+        buffer.putLong(position, time);
+        buffer.putShort(position + PID_OFFSET, (short) pid);
+        buffer.putFloat(position + VALUE_OFFSET, value);
+        // written last, so a record is only valid once all of it is there
+        buffer.putShort(position + CHECK_OFFSET, check(time, pid, Float.floatToRawIntBits(value)));
+        buffer.position(position + RECORD_SIZE);
+        publishedCount = ++count;
+
+        // get the next chunk mapped in the background once this one is half full
+        if (!nextRequested && position >= chunkSize / 2) {
+            nextRequested = true;
+            try {
+                flusher.execute(prepareTask);
+            }
+            catch (RejectedExecutionException e) {
+                // closed meanwhile
+            }
+        }
+    }
+
+    /**
+     * Returns the trip file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of records in the file.
+     */
+    public long getRecordCount() {
+        return publishedCount;
+    }
+
+    /**
+     * Returns the number of bytes dropped when the file was opened, i.e. the records from
+     * the first torn one on and the unused space at the end of a file which wasn't closed.
+     */
+    public long getRecoveredBytes() {
+        return recoveredBytes;
+    }
+
+    /**
+     * Forces the records written so far to the storage and marks the file as closed.
+     * Samples recorded afterwards are ignored.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        force();
+        header.put(CLEAN_OFFSET, (byte) 1);
+        header.force();
+        randomAccessFile.close();
+    }
+
+    /**
+     * Tells whether a trip file was closed properly. A file which wasn't is usually the trip
+     * interrupted by a crash, which can be continued by opening it again.
+     *
+     * @param file The trip file.
+     * @throws IOException if the file can't be read or isn't a trip file.
+     */
+    public static boolean isClosed(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            readHeader(randomAccessFile.getChannel());
+            randomAccessFile.seek(CLEAN_OFFSET);
+            return randomAccessFile.readByte() != 0;
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads the complete records of a trip file.
+     *
+     * @param file     The trip file.
+     * @param listener Receives every record, with its timestamp in nanoseconds since the epoch.
+     * @return The number of records read.
+     * @throws IOException if the file can't be read or isn't a trip file.
+     */
+    public static long replay(File file, ObdResponseDecoder.SampleListener listener)
+            throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            readHeader(channel);
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+            long position = HEADER_SIZE;
+            long records = 0;
+            while (true) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read < RECORD_SIZE) {
+                    return records;
+                }
+                for (int i = 0; i + RECORD_SIZE <= read; i += RECORD_SIZE) {
+                    if (!isValid(buffer, i)) {
+                        return records;
+                    }
+                    listener.onSample(buffer.getShort(i + PID_OFFSET) & 0xFFFF,
+                            buffer.getFloat(i + VALUE_OFFSET), buffer.getLong(i));
+                    records++;
+                }
+                position += read - read % RECORD_SIZE;
+            }
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Switches to the next chunk once the current one is full.
+     *
+     * @return The buffer of the next chunk, null if it couldn't be mapped.
+     */
+    private MappedByteBuffer advance() {
+        MappedByteBuffer previous = current;
+        long chunk = currentChunk + 1;
+        MappedByteBuffer buffer = next;
+        if (buffer == null || nextChunk != chunk) {
+            // the background thread is late, map it here
+            try {
+                buffer = map(chunk);
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+        synchronized (chunkLock) {
+            current = buffer;
+            currentChunk = chunk;
+        }
+        next = null;
+        nextRequested = false;
+        try {
+            // make sure the tail of the previous chunk gets forced too
+            flusher.execute(new ForceTask(previous, chunk - 1));
+        }
+        catch (RejectedExecutionException e) {
+            // closed meanwhile, close() forces the current chunk only
+            new ForceTask(previous, chunk - 1).run();
+        }
+        return buffer;
+    }
+
+    private MappedByteBuffer map(long chunk) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + chunk * chunkSize,
+                chunkSize);
+    }
+
+    /**
+     * Forces the current chunk and commits the records known to be on the storage.
+     */
+    private void force() {
+        long records;
+        MappedByteBuffer buffer;
+        long chunkStart;
+        synchronized (chunkLock) {
+            // counted before forcing, and all in the current chunk or an earlier one
+            records = publishedCount;
+            buffer = current;
+            chunkStart = currentChunk * recordsPerChunk;
+        }
+        buffer.force();
+        // unless the tail of an earlier chunk still waits for its ForceTask
+        if (forcedCount >= chunkStart) {
+            forcedCount = Math.max(forcedCount, records);
+        }
+        header.putLong(COMMITTED_OFFSET, forcedCount);
+        header.force();
+    }
+
+    /**
+     * Validates the header of a trip file.
+     */
+    private static void readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.read(buffer, 0) < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException("not a trip file");
+        }
+        if (buffer.getShort(VERSION_OFFSET) != VERSION
+                || buffer.getShort(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+            throw new IOException("unsupported trip file version "
+                    + buffer.getShort(VERSION_OFFSET));
+        }
+    }
+
+    /**
+     * Counts the records up to the first one which isn't complete. Even the ones the header
+     * says were forced are validated, since a power loss can still tear them.
+     */
+    private static long countRecords(FileChannel channel) throws IOException {
+        long available = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+        long records = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+        while (records < available) {
+            buffer.clear();
+            int read = channel.read(buffer, HEADER_SIZE + records * RECORD_SIZE);
+            for (int i = 0; i + RECORD_SIZE <= read; i += RECORD_SIZE) {
+                if (!isValid(buffer, i)) {
+                    return records;
+                }
+                records++;
+            }
+            if (read < RECORD_SIZE) {
+                break;
+            }
+        }
+        return records;
+    }
+
+    private static boolean isValid(ByteBuffer buffer, int offset) {
+        short check = buffer.getShort(offset + CHECK_OFFSET);
+        return check != 0 && check == check(buffer.getLong(offset),
+                buffer.getShort(offset + PID_OFFSET) & 0xFFFF,
+                buffer.getInt(offset + VALUE_OFFSET));
+    }
+
+    /**
+     * Returns a hash of the fields of a record, never 0 so a zeroed record is never valid.
+     */
+    private static short check(long time, int pid, int valueBits) {
+        long h = time * 0x9E3779B97F4A7C15L ^ (pid * 31L + valueBits) * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 32;
+        h ^= h >>> 16;
+        return (short) ((h & 0x7FFF) | 0x8000);
+    }
+
+    /**
+     * Forces a chunk which is not written anymore. The chunks are forced in order, so
+     * once it's done all the records up to the end of the chunk are on the storage.
+     */
+    private class ForceTask implements Runnable {
+        private final MappedByteBuffer buffer;
+        private final long chunk;
+
+        ForceTask(MappedByteBuffer buffer, long chunk) {
+            this.buffer = buffer;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void run() {
+            buffer.force();
+            forcedCount = Math.max(forcedCount, (chunk + 1) * recordsPerChunk);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.ibericart.fuelanalyzer.storage;
+
+/**
+ * The minimum, maximum and average of the samples of a signal over a time window.
+ * Instances are meant to be reused between queries, see
+ * {@link SignalSeries#stats(long, long, WindowStats)}.
+ */
+public class WindowStats {
+
+    int count;
+    float min;
+    float max;
+    double sum;
+
+    /**
+     * Returns the number of samples in the window.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the smallest value in the window, {@link Float#NaN} if the window is empty.
+     */
+    public float getMin() {
+        return count == 0 ? Float.NaN : min;
+    }
+
+    /**
+     * Returns the largest value in the window, {@link Float#NaN} if the window is empty.
+     */
+    public float getMax() {
+        return count == 0 ? Float.NaN : max;
+    }
+
+    /**
+     * Returns the average value in the window, {@link Float#NaN} if the window is empty.
+     */
+    public float getAverage() {
+        return count == 0 ? Float.NaN : (float) (sum / count);
+    }
+
+    void clear() {
+        count = 0;
+        min = Float.POSITIVE_INFINITY;
+        max = Float.NEGATIVE_INFINITY;
+        sum = 0;
+    }
+
+    void add(float value) {
+        count++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    void add(int count, float min, float max, double sum) {
+        this.count += count;
+        this.sum += sum;
+        if (min < this.min) {
+            this.min = min;
+        }
+        if (max > this.max) {
+            this.max = max;
+        }
+    }
+}
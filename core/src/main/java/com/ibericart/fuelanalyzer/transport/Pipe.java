@@ -0,0 +1,155 @@
+package com.ibericart.fuelanalyzer.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded in-memory byte pipe: what is written to {@link #sink()} is read from
+ * {@link #source()}.
+ *
+ * Unlike {@link java.io.PipedInputStream}, the pipe isn't bound to the threads using it
+ * and a blocked reader wakes up as soon as bytes are written, so it can carry a
+ * request/response protocol at full speed. Closing the sink ends the stream once the
+ * remaining bytes are read; closing the source makes reads and writes fail.
+ * This class is thread safe.
+ */
+public class Pipe {
+
+    private final byte[] buffer;
+    // index of the first unread byte
+    private int head;
+    private int size;
+    private boolean sourceClosed;
+    private boolean sinkClosed;
+
+    private final InputStream source = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return Pipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (Pipe.this) {
+                return size;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (Pipe.this) {
+                sourceClosed = true;
+                Pipe.this.notifyAll();
+            }
+        }
+    };
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Pipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            synchronized (Pipe.this) {
+                sinkClosed = true;
+                Pipe.this.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of bytes the pipe holds before writes block.
+     */
+    public Pipe(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * Returns the reading end of the pipe.
+     */
+    public InputStream source() {
+        return source;
+    }
+
+    /**
+     * Returns the writing end of the pipe.
+     */
+    public OutputStream sink() {
+        return sink;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (size == 0) {
+            if (sourceClosed) {
+                throw new IOException("pipe closed");
+            }
+            if (sinkClosed) {
+                return -1;
+            }
+            await();
+        }
+        if (sourceClosed) {
+            throw new IOException("pipe closed");
+        }
+        int count = Math.min(len, size);
+        int first = Math.min(count, buffer.length - head);
+        System.arraycopy(buffer, head, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, count - first);
+        head = (head + count) % buffer.length;
+        size -= count;
+        notifyAll();
+        return count;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (sourceClosed || sinkClosed) {
+                throw new IOException("pipe closed");
+            }
+            if (size == buffer.length) {
+                await();
+                continue;
+            }
+            int tail = (head + size) % buffer.length;
+            int count = Math.min(len, Math.min(buffer.length - size, buffer.length - tail));
+            System.arraycopy(b, off, buffer, tail, count);
+            size += count;
+            off += count;
+            len -= count;
+            notifyAll();
+        }
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
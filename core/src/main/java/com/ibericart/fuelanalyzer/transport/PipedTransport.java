@@ -0,0 +1,40 @@
+package com.ibericart.fuelanalyzer.transport;
+
+/**
+ * An in-memory {@link Transport}, connected to a peer transport through a pair of
+ * {@link Pipe}s: what one end writes, the other one reads. Used to run the session
+ * against a simulated adapter in the same process, at rates far above Bluetooth's.
+ */
+public class PipedTransport extends StreamTransport {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final PipedTransport peer;
+
+    /**
+     * Creates a transport and its peer.
+     *
+     * @param name       The name of the remote end.
+     * @param bufferSize The capacity in bytes of each direction.
+     */
+    public PipedTransport(String name, int bufferSize) {
+        this(name, new Pipe(bufferSize), new Pipe(bufferSize));
+    }
+
+    private PipedTransport(String name, Pipe incoming, Pipe outgoing) {
+        super(name, incoming.source(), outgoing.sink());
+        peer = new PipedTransport(this, name + " (peer)", outgoing, incoming);
+    }
+
+    private PipedTransport(PipedTransport peer, String name, Pipe incoming, Pipe outgoing) {
+        super(name, incoming.source(), outgoing.sink());
+        this.peer = peer;
+    }
+
+    /**
+     * Returns the other end of the connection.
+     */
+    public PipedTransport getPeer() {
+        return peer;
+    }
+}
@@ -0,0 +1,248 @@
+package com.ibericart.fuelanalyzer.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connects several transports to the same remote end at once, e.g. secure and insecure
+ * RFCOMM sockets, and keeps the first one which connects. The others are closed as soon
+ * as the race is decided, so a strategy which would block until it times out doesn't
+ * delay the connection.
+ *
+ * The candidates are started in their given order. The first one may be given a head
+ * start, so that the strategy known to be the fastest doesn't compete for the link with
+ * the others unless it's late; the others start as soon as it fails. The outcome of every
+ * candidate which took part in the race is given to a {@link Listener}, e.g. to rank the
+ * strategies for the next connection.
+ *
+ * This class is thread safe.
+ */
+public class RacingTransport implements Transport {
+
+    /**
+     * Notified of the outcome of every candidate, from the thread connecting it.
+     * Not notified about the candidates cancelled because another one won.
+     */
+    public interface Listener {
+
+        /**
+         * @param strategy      The name of the candidate.
+         * @param success       Whether the candidate connected first.
+         * @param latencyMillis The time from its start to its outcome, in milliseconds.
+         */
+        void onResult(String strategy, boolean success, long latencyMillis);
+    }
+
+    private final List<String> strategies;
+    private final List<Transport> candidates;
+    private final long headStartMillis;
+    private final Listener listener;
+
+    private final AtomicReference<Transport> winner = new AtomicReference<Transport>();
+    private volatile String winnerStrategy;
+    private volatile IOException lastError;
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param candidates      The transports to connect, by strategy name, in the order
+     *                        they're started.
+     * @param headStartMillis How long the first candidate runs alone before the others
+     *                        are started unless it fails, in milliseconds, 0 to start
+     *                        all at once.
+     * @param listener        Notified of the outcome of every candidate, may be null.
+     */
+    public RacingTransport(Map<String, ? extends Transport> candidates, long headStartMillis,
+                           Listener listener) {
+        if (candidates.isEmpty() || headStartMillis < 0) {
+            throw new IllegalArgumentException("no candidate or invalid head start: "
+                    + headStartMillis);
+        }
+        this.strategies = new ArrayList<String>(candidates.keySet());
+        this.candidates = new ArrayList<Transport>(candidates.values());
+        this.headStartMillis = headStartMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the candidates, in the order they're started.
+     */
+    public List<Transport> getCandidates() {
+        return new ArrayList<Transport>(candidates);
+    }
+
+    /**
+     * Returns the candidate which connected first, null if none did yet.
+     */
+    public Transport getWinner() {
+        return winner.get();
+    }
+
+    /**
+     * Returns the name of the candidate which connected first, null if none did yet.
+     */
+    public String getWinnerStrategy() {
+        return winnerStrategy;
+    }
+
+    /**
+     * Connects all the candidates and waits for the first one to succeed.
+     *
+     * @throws IOException the error of the last candidate to fail if none succeeded,
+     *                     or if the transport was closed.
+     */
+    @Override
+    public void connect() throws IOException {
+        if (closed) {
+            throw new IOException("transport closed");
+        }
+        if (winner.get() != null) {
+            return;
+        }
+        final CountDownLatch decided = new CountDownLatch(1);
+        final CountDownLatch firstFailed = new CountDownLatch(1);
+        final AtomicInteger remaining = new AtomicInteger(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            final String strategy = strategies.get(i);
+            final Transport candidate = candidates.get(i);
+            final boolean first = i == 0;
+            Thread thread = new Thread("Connect-" + strategy) {
+                @Override
+                public void run() {
+                    race(strategy, candidate, first, firstFailed, decided, remaining);
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            decided.await();
+        }
+        catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while connecting");
+        }
+        Transport won = winner.get();
+        if (won == null) {
+            IOException error = lastError;
+            throw closed || error == null ? new IOException("transport closed") : error;
+        }
+        for (Transport candidate : candidates) {
+            if (candidate != won) {
+                closeQuietly(candidate);
+            }
+        }
+    }
+
+    private void race(String strategy, Transport candidate, boolean first,
+                      CountDownLatch firstFailed, CountDownLatch decided,
+                      AtomicInteger remaining) {
+        if (!first && headStartMillis > 0) {
+            try {
+                firstFailed.await(headStartMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            // no need to start once the first candidate won during its head start
+            if (decided.getCount() == 0) {
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            candidate.connect();
+        }
+        catch (IOException e) {
+            // failures caused by the end of the race are not the candidate's fault
+            if (winner.get() == null && !closed) {
+                lastError = e;
+                report(strategy, false, start);
+            }
+            if (first) {
+                firstFailed.countDown();
+            }
+            if (remaining.decrementAndGet() == 0) {
+                decided.countDown();
+            }
+            return;
+        }
+        if (!closed && winner.compareAndSet(null, candidate)) {
+            winnerStrategy = strategy;
+            report(strategy, true, start);
+        }
+        else {
+            // too late, or the race was abandoned
+            closeQuietly(candidate);
+        }
+        decided.countDown();
+    }
+
+    private void report(String strategy, boolean success, long start) {
+        if (listener != null) {
+            listener.onResult(strategy, success,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return connected().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return connected().getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        Transport won = winner.get();
+        return (won != null ? won : candidates.get(0)).getName();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        IOException error = null;
+        for (Transport candidate : candidates) {
+            try {
+                candidate.close();
+            }
+            catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private Transport connected() throws IOException {
+        Transport won = winner.get();
+        if (won == null) {
+            throw new IOException("not connected");
+        }
+        return won;
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        }
+        catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+}
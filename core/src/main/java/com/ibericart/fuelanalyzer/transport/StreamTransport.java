@@ -0,0 +1,64 @@
+package com.ibericart.fuelanalyzer.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link Transport} over a pair of streams which are already open,
+ * e.g. a recorded session replayed from a file.
+ */
+public class StreamTransport implements Transport {
+
+    private final String name;
+    private final InputStream inStream;
+    private final OutputStream outStream;
+
+    /**
+     * Constructor.
+     *
+     * @param name      The name of the remote end.
+     * @param inStream  The stream of the bytes received from the adapter.
+     * @param outStream The stream of the bytes sent to the adapter.
+     */
+    public StreamTransport(String name, InputStream inStream, OutputStream outStream) {
+        this.name = name;
+        this.inStream = inStream;
+        this.outStream = outStream;
+    }
+
+    /**
+     * Does nothing, the streams are already open.
+     */
+    @Override
+    public void connect() throws IOException {
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outStream;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Closes both streams.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            inStream.close();
+        }
+        finally {
+            outStream.close();
+        }
+    }
+}
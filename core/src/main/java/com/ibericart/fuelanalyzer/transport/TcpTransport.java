@@ -0,0 +1,90 @@
+package com.ibericart.fuelanalyzer.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A {@link Transport} over a TCP socket, for Wi-Fi ELM327 adapters and simulators.
+ */
+public class TcpTransport implements Transport {
+
+    // address and port most Wi-Fi ELM327 adapters listen on
+    public static final String DEFAULT_HOST = "192.168.0.10";
+    public static final int DEFAULT_PORT = 35000;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    private final String host;
+    private final int port;
+    private final int connectTimeout;
+    private Socket socket;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param host           The host name or address of the adapter.
+     * @param port           The port of the adapter.
+     * @param connectTimeout The connect timeout in milliseconds, 0 to wait forever.
+     */
+    public TcpTransport(String host, int port, int connectTimeout) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+    }
+
+    public TcpTransport(String host, int port) {
+        this(host, port, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        Socket s = new Socket();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("transport closed");
+            }
+            socket = s;
+        }
+        // the requests are tiny and latency bound, don't let Nagle hold them back
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(host, port), connectTimeout);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return connectedSocket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return connectedSocket().getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Socket s;
+        synchronized (this) {
+            closed = true;
+            s = socket;
+        }
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    private synchronized Socket connectedSocket() throws IOException {
+        if (socket == null || !socket.isConnected()) {
+            throw new IOException("not connected");
+        }
+        return socket;
+    }
+}
@@ -0,0 +1,121 @@
+package com.ibericart.fuelanalyzer.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the time {@link #connect()} of another transport may block, for transports which
+ * have no connect timeout of their own, e.g. Bluetooth sockets, which may block for 10 s
+ * or more when the device is out of range.
+ *
+ * When the timeout expires the wrapped transport is closed, which unblocks its connect,
+ * and {@link #connect()} throws a {@link SocketTimeoutException}.
+ */
+public class TimeoutTransport implements Transport {
+
+    // closes the transports whose connect takes too long, shared by all the instances
+    private static final ScheduledExecutorService WATCHDOG =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ConnectWatchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Transport transport;
+    private final long timeoutMillis;
+    private volatile boolean timedOut;
+
+    /**
+     * Constructor.
+     *
+     * @param transport     The transport to connect.
+     * @param timeoutMillis The longest time a connect may take, in milliseconds.
+     */
+    public TimeoutTransport(Transport transport, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("invalid timeout: " + timeoutMillis);
+        }
+        this.transport = transport;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the wrapped transport.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Connects the wrapped transport.
+     *
+     * @throws SocketTimeoutException if the connection took longer than the timeout,
+     *                                in which case the wrapped transport is closed.
+     */
+    @Override
+    public void connect() throws IOException {
+        ScheduledFuture<?> watchdog = WATCHDOG.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut = true;
+                try {
+                    transport.close();
+                }
+                catch (IOException e) {
+                    // the connect fails anyway
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            transport.connect();
+        }
+        catch (IOException e) {
+            if (timedOut) {
+                throw timeout();
+            }
+            throw e;
+        }
+        finally {
+            watchdog.cancel(false);
+        }
+        // the watchdog may have closed the transport right after it connected
+        if (timedOut) {
+            throw timeout();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return transport.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return transport.getOutputStream();
+    }
+
+    @Override
+    public String getName() {
+        return transport.getName();
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+
+    private SocketTimeoutException timeout() {
+        return new SocketTimeoutException("connect to " + transport.getName()
+                + " timed out after " + timeoutMillis + " ms");
+    }
+}
@@ -0,0 +1,43 @@
+package com.ibericart.fuelanalyzer.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection to an ELM327 adapter: Bluetooth RFCOMM, TCP (Wi-Fi adapters)
+ * or any pair of streams, e.g. a simulator running in the same process.
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Opens the connection, blocking until it's established.
+     *
+     * @throws IOException if the connection can't be established or the transport was closed.
+     */
+    void connect() throws IOException;
+
+    /**
+     * Returns the stream of the bytes received from the adapter.
+     * Only valid once connected.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Returns the stream of the bytes sent to the adapter.
+     * Only valid once connected.
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Returns a name for the remote end, shown to the user.
+     */
+    String getName();
+
+    /**
+     * Closes the connection. Unblocks any pending {@link #connect()}, read or write.
+     */
+    @Override
+    void close() throws IOException;
+}
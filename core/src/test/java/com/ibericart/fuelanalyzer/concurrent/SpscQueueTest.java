@@ -0,0 +1,111 @@
+package com.ibericart.fuelanalyzer.concurrent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscQueueTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new SpscQueue<Integer>(1).capacity());
+        assertEquals(8, new SpscQueue<Integer>(5).capacity());
+        assertEquals(16, new SpscQueue<Integer>(16).capacity());
+    }
+
+    @Test
+    public void keepsOrderAndRejectsWhenFull() {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void drainsInBatches() {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(8);
+        for (int i = 0; i < 6; i++) {
+            queue.offer(i);
+        }
+        final List<Integer> drained = new ArrayList<Integer>();
+        SpscQueue.Consumer<Integer> consumer = new SpscQueue.Consumer<Integer>() {
+            @Override
+            public void accept(Integer element) {
+                drained.add(element);
+            }
+        };
+        assertEquals(4, queue.drain(consumer, 4));
+        assertEquals(2, queue.drain(consumer, 4));
+        assertEquals(0, queue.drain(consumer, 4));
+        for (int i = 0; i < 6; i++) {
+            assertEquals(Integer.valueOf(i), drained.get(i));
+        }
+        // the drained slots are free again
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(i));
+        }
+    }
+
+    @Test
+    public void transfersBetweenThreadsWithEveryWaitStrategy() throws Exception {
+        transfer(WaitStrategy.spin());
+        transfer(WaitStrategy.yielding());
+        transfer(WaitStrategy.park(1000000L));
+    }
+
+    private static void transfer(final WaitStrategy waitStrategy) throws Exception {
+        final int count = 200000;
+        final SpscQueue<Integer> queue = new SpscQueue<Integer>(64);
+        final int[] next = new int[1];
+        final boolean[] ordered = {true};
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                SpscQueue.Consumer<Integer> check = new SpscQueue.Consumer<Integer>() {
+                    @Override
+                    public void accept(Integer element) {
+                        if (element != next[0]) {
+                            ordered[0] = false;
+                        }
+                        next[0]++;
+                    }
+                };
+                int idleCount = 0;
+                while (next[0] < count) {
+                    if (queue.drain(check, 16) > 0) {
+                        idleCount = 0;
+                    }
+                    else {
+                        waitStrategy.idle(idleCount++, queue);
+                    }
+                }
+            }
+        };
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            while (!queue.offer(i)) {
+                Thread.yield();
+            }
+            waitStrategy.signal();
+        }
+        consumer.join(10000);
+        assertFalse(waitStrategy + " consumer still running", consumer.isAlive());
+        assertEquals(count, next[0]);
+        assertTrue(waitStrategy + " lost the order", ordered[0]);
+    }
+}
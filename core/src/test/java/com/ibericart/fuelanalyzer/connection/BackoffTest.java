@@ -0,0 +1,33 @@
+package com.ibericart.fuelanalyzer.connection;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackoffTest {
+
+    @Test
+    public void growsUpToMaximumWithinJitter() {
+        Backoff backoff = new Backoff(100, 1000, 2, 0.5, new Random(42));
+        long[] bases = {100, 200, 400, 800, 1000, 1000};
+        for (long base : bases) {
+            long delay = backoff.nextDelay();
+            assertTrue("delay " + delay + " for base " + base,
+                    delay >= base / 2 && delay <= base);
+        }
+        assertEquals(bases.length, backoff.getAttempts());
+    }
+
+    @Test
+    public void startsOverAfterReset() {
+        Backoff backoff = new Backoff(100, 1000, 2, 0, new Random(42));
+        assertEquals(100, backoff.nextDelay());
+        assertEquals(200, backoff.nextDelay());
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertEquals(100, backoff.nextDelay());
+    }
+}
@@ -0,0 +1,52 @@
+package com.ibericart.fuelanalyzer.connection;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectStatsTest {
+
+    private static final String DEVICE = "00:11:22:33:44:55";
+    private static final List<String> STRATEGIES = Arrays.asList("secure", "insecure", "channel1");
+
+    @Test
+    public void ranksByExpectedTimeToConnect() {
+        ConnectStats stats = new ConnectStats();
+        stats.record(DEVICE, "secure", true, 900);
+        stats.record(DEVICE, "insecure", true, 300);
+        // fast but fails half of the time, 400 / 0.5 = 800
+        stats.record(DEVICE, "channel1", true, 400);
+        stats.record(DEVICE, "channel1", false, 50);
+        assertEquals(Arrays.asList("insecure", "channel1", "secure"),
+                stats.rank(DEVICE, STRATEGIES));
+        // no history for another device, the given order is kept
+        assertEquals(STRATEGIES, stats.rank("66:77:88:99:AA:BB", STRATEGIES));
+    }
+
+    @Test
+    public void averagesLatencies() {
+        ConnectStats stats = new ConnectStats();
+        stats.record(DEVICE, "secure", false, 10000);
+        assertEquals(-1, stats.getLatency(DEVICE, "secure"));
+        stats.record(DEVICE, "secure", true, 1000);
+        stats.record(DEVICE, "secure", true, 2000);
+        assertEquals(1300, stats.getLatency(DEVICE, "secure"));
+        assertEquals(3, stats.getAttempts(DEVICE, "secure"));
+        assertEquals(2, stats.getSuccesses(DEVICE, "secure"));
+    }
+
+    @Test
+    public void survivesSaveAndLoad() {
+        ConnectStats stats = new ConnectStats();
+        stats.record(DEVICE, "secure", true, 700);
+        stats.record(DEVICE, "insecure", false, 100);
+        ConnectStats loaded = ConnectStats.load(stats.save() + ";garbage");
+        assertEquals(700, loaded.getLatency(DEVICE, "secure"));
+        assertEquals(1, loaded.getAttempts(DEVICE, "insecure"));
+        assertEquals(0, loaded.getSuccesses(DEVICE, "insecure"));
+        assertEquals(0, ConnectStats.load(null).getAttempts(DEVICE, "secure"));
+    }
+}
@@ -0,0 +1,90 @@
+package com.ibericart.fuelanalyzer.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.ibericart.fuelanalyzer.connection.ConnectionStateMachine.STATE_CONNECTED;
+import static com.ibericart.fuelanalyzer.connection.ConnectionStateMachine.STATE_CONNECTING;
+import static com.ibericart.fuelanalyzer.connection.ConnectionStateMachine.STATE_LISTEN;
+import static com.ibericart.fuelanalyzer.connection.ConnectionStateMachine.STATE_NONE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateMachineTest {
+
+    private final ConnectionStateMachine machine = new ConnectionStateMachine();
+
+    @Test
+    public void notifiesEveryTransition() {
+        final List<String> changes = new ArrayList<String>();
+        machine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int previous, int state) {
+                changes.add(previous + "->" + state);
+            }
+        });
+        assertTrue(machine.moveTo(STATE_LISTEN));
+        assertFalse(machine.moveTo(STATE_LISTEN));
+        assertTrue(machine.moveTo(STATE_CONNECTING));
+        assertTrue(machine.transition(STATE_CONNECTING, STATE_CONNECTED));
+        assertTrue(machine.moveTo(STATE_NONE));
+        assertEquals("[0->1, 1->2, 2->3, 3->0]", changes.toString());
+    }
+
+    @Test
+    public void refusesConnectionOnceStopped() {
+        machine.moveTo(STATE_CONNECTING);
+        machine.moveTo(STATE_NONE);
+        assertFalse(machine.moveTo(STATE_CONNECTED));
+        assertEquals(STATE_NONE, machine.getState());
+    }
+
+    @Test
+    public void refusesSecondConnection() {
+        machine.moveTo(STATE_LISTEN);
+        assertTrue(machine.moveTo(STATE_CONNECTED));
+        assertFalse(machine.moveTo(STATE_CONNECTED));
+        assertFalse(ConnectionStateMachine.isAllowed(STATE_CONNECTED, STATE_CONNECTED));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidTransition() {
+        machine.transition(STATE_NONE, STATE_CONNECTED);
+    }
+
+    @Test
+    public void onlyOneRacingTransitionWins() throws Exception {
+        machine.moveTo(STATE_CONNECTING);
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger wins = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    if (machine.transition(STATE_CONNECTING, STATE_CONNECTED)) {
+                        wins.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(1, wins.get());
+        assertEquals(STATE_CONNECTED, machine.getState());
+    }
+}
@@ -0,0 +1,75 @@
+package com.ibericart.fuelanalyzer.connection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceCacheTest {
+
+    private static final String ADAPTER = "00:11:22:33:44:55";
+    private static final String PHONE = "66:77:88:99:AA:BB";
+
+    @Test
+    public void ranksFingerprintedAdaptersFirst() {
+        DeviceCache cache = new DeviceCache(DeviceCache.DEFAULT_CAPACITY);
+        cache.fingerprint(ADAPTER, "Car", "ATZ\r\r\rELM327 v1.5\r\r", 1000);
+        cache.fingerprint(PHONE, "OBD phone", "?\r", 1000);
+        assertTrue(cache.isKnownAdapter(ADAPTER));
+        assertEquals("ELM327 v1.5", cache.get(ADAPTER).getIdentity());
+        assertEquals(DeviceCache.RANK_ADAPTER, cache.rank(ADAPTER, "Car"));
+        // the fingerprint wins over the name
+        assertEquals(DeviceCache.RANK_OTHER, cache.rank(PHONE, "OBD phone"));
+        assertEquals(DeviceCache.RANK_LIKELY_ADAPTER, cache.rank("01:02:03:04:05:06", "OBDII"));
+        assertEquals(DeviceCache.RANK_UNKNOWN, cache.rank("01:02:03:04:05:06", null));
+    }
+
+    @Test
+    public void demotesKnownAdapterOnlyAfterRepeatedMisses() {
+        DeviceCache cache = new DeviceCache(DeviceCache.DEFAULT_CAPACITY);
+        cache.fingerprint(ADAPTER, "Car", "ELM327 v1.5\r", 1000);
+        cache.fingerprint(ADAPTER, "Car", "\r\r", 2000);
+        for (int i = 1; i < DeviceCache.MAX_MISSES; i++) {
+            cache.fingerprint(ADAPTER, "Car", "\u00ff#\r", 2000 + i);
+            assertTrue(cache.isKnownAdapter(ADAPTER));
+        }
+        DeviceCache loaded = DeviceCache.load(cache.save(), DeviceCache.DEFAULT_CAPACITY);
+        assertEquals("ELM327 v1.5", loaded.get(ADAPTER).getIdentity());
+        loaded.fingerprint(ADAPTER, "Car", "?\r", 3000);
+        assertEquals(DeviceCache.KIND_OTHER, loaded.get(ADAPTER).getKind());
+
+        // an identity resets the count
+        cache.fingerprint(ADAPTER, "Car", "ELM327 v1.5\r", 4000);
+        cache.fingerprint(ADAPTER, "Car", "?\r", 5000);
+        assertTrue(cache.isKnownAdapter(ADAPTER));
+    }
+
+    @Test
+    public void dropsDevicesSeenLongestAgo() {
+        DeviceCache cache = new DeviceCache(2);
+        cache.seen("A", "a", 1);
+        cache.seen("B", "b", 2);
+        cache.seen("A", null, 3);
+        cache.seen("C", "c", 4);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("B"));
+        assertEquals("a", cache.get("A").getName());
+    }
+
+    @Test
+    public void survivesSaveAndLoad() {
+        DeviceCache cache = new DeviceCache(DeviceCache.DEFAULT_CAPACITY);
+        cache.fingerprint(ADAPTER, "OBDII\tv2", "ELM327 v2.1", 1000);
+        cache.seen(PHONE, null, 2000);
+        DeviceCache loaded = DeviceCache.load(cache.save() + "\ngarbage",
+                DeviceCache.DEFAULT_CAPACITY);
+        assertEquals(2, loaded.size());
+        assertEquals("OBDII v2", loaded.get(ADAPTER).getName());
+        assertEquals("ELM327 v2.1", loaded.getKnownAdapters().get(0).getIdentity());
+        assertFalse(loaded.isKnownAdapter(PHONE));
+        assertNull(loaded.get(PHONE).getName());
+        assertEquals(2000, loaded.get(PHONE).getLastSeen());
+    }
+}
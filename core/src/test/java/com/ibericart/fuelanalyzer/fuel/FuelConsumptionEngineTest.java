@@ -0,0 +1,58 @@
+package com.ibericart.fuelanalyzer.fuel;
+
+import com.ibericart.fuelanalyzer.obd.Pids;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FuelConsumptionEngineTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private final FuelConsumptionEngine engine = FuelConsumptionEngine.gasoline(1.6f);
+
+    @Test
+    public void integratesMafAndSpeed() {
+        // the air flow which burns 3.6 L/h of petrol
+        float maf = (float) (3.6 / 3600 * FuelConsumptionEngine.GASOLINE_DENSITY
+                * FuelConsumptionEngine.GASOLINE_AIR_FUEL_RATIO);
+        for (int i = 0; i <= 3600; i++) {
+            engine.onSample(Pids.MAF_AIR_FLOW_RATE, maf, i * SECOND);
+            engine.onSample(Pids.VEHICLE_SPEED, 60f, i * SECOND + SECOND / 2);
+        }
+        assertEquals(3.6f, engine.getFuelRate(), 0.001f);
+        assertEquals(3.6, engine.getLitres(), 0.001);
+        assertEquals(60, engine.getKilometres(), 0.001);
+        assertEquals(6f, engine.getInstantConsumption(), 0.001f);
+        assertEquals(6f, engine.getAverageConsumption(), 0.001f);
+    }
+
+    @Test
+    public void usesTrapezoidsOverIrregularTimestamps() {
+        engine.onSample(Pids.VEHICLE_SPEED, 0f, 0);
+        engine.onSample(Pids.VEHICLE_SPEED, 36f, 2 * SECOND);
+        engine.onSample(Pids.VEHICLE_SPEED, 36f, 2 * SECOND + SECOND / 2);
+        // 10 m while accelerating from 0 to 10 m/s in 2 s, 5 m in the next half second
+        assertEquals(0.015, engine.getKilometres(), 1e-9);
+    }
+
+    @Test
+    public void skipsGaps() {
+        engine.onSample(Pids.VEHICLE_SPEED, 36f, 0);
+        engine.onSample(Pids.VEHICLE_SPEED, 36f, FuelConsumptionEngine.MAX_GAP_NANOS + 1);
+        assertEquals(0, engine.getKilometres(), 0);
+    }
+
+    @Test
+    public void estimatesAirFlowWithoutMaf() {
+        engine.onSample(Pids.INTAKE_AIR_TEMPERATURE, 25f, 0);
+        engine.onSample(Pids.ENGINE_RPM, 2000f, 0);
+        engine.onSample(Pids.INTAKE_MANIFOLD_PRESSURE, 50f, 0);
+        // 1.6 L * 2000/120 * 0.85 = 22.7 L/s at 50 kPa and 298 K is about 13.3 g/s of air
+        float expected = (float) (13.28 / 14.7 / 745 * 3600);
+        assertEquals(expected, engine.getFuelRate(), 0.05f);
+        assertTrue(Float.isNaN(engine.getInstantConsumption()));
+    }
+}
@@ -0,0 +1,51 @@
+package com.ibericart.fuelanalyzer.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void keepsSmallValuesExact() {
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(5, histogram.getValueAtPercentile(50));
+        assertEquals(10, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getMin());
+        assertEquals(5.5, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void findsPercentilesWithinBucketPrecision() {
+        // 1 to 1000 microseconds
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertWithin(500000, histogram.getValueAtPercentile(50));
+        assertWithin(990000, histogram.getValueAtPercentile(99));
+        assertWithin(999000, histogram.getValueAtPercentile(99.9));
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void addsHistograms() {
+        LatencyHistogram other = new LatencyHistogram();
+        histogram.record(100);
+        other.record(Long.MAX_VALUE / 2);
+        histogram.add(other);
+        assertEquals(2, histogram.getCount());
+        assertEquals(Long.MAX_VALUE / 2, histogram.getMax());
+        assertWithin(100, histogram.getValueAtPercentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but got " + actual,
+                Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,157 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import com.ibericart.fuelanalyzer.simulator.Elm327Simulator;
+import com.ibericart.fuelanalyzer.simulator.SimulatedEcu;
+import com.ibericart.fuelanalyzer.simulator.VehicleModel;
+import com.ibericart.fuelanalyzer.transport.PipedTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdapterInitializerTest {
+
+    private PipedTransport transport;
+    private Elm327Simulator simulator;
+    private SimulatedEcu engine;
+
+    @Before
+    public void setUp() {
+        transport = new PipedTransport("test", PipedTransport.DEFAULT_BUFFER_SIZE);
+        simulator = new Elm327Simulator(transport.getPeer());
+        engine = SimulatedEcu.engine(new VehicleModel());
+        simulator.addEcu(engine);
+        simulator.setVehicleProtocol(6);
+        new Thread(simulator).start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transport.close();
+    }
+
+    @Test
+    public void detectsProtocolBySearching() throws IOException {
+        AdapterInitializer.Result result = new AdapterInitializer(transport,
+                AdapterInitializer.DEFAULT_TIMEOUT_MILLIS).initialize(0);
+        assertTrue(result.getResetResponse().contains(Elm327Simulator.VERSION));
+        assertEquals(6, result.getProtocol());
+        assertTrue(result.isCan());
+        assertFalse(result.isProtocolReused());
+        assertEquals("VF1SIMULATOR00001", result.getVin());
+        assertEquals("VF1SIMULATOR00001", result.getVehicle());
+        assertEquals("SIM-ENGINE-0001", result.getCalibrationId());
+        assertTrue(result.getDurationNanos() > 0);
+    }
+
+    @Test
+    public void identifiesVehicleWithoutVinByItsAnswers() throws IOException {
+        engine.setVin(null);
+        AdapterInitializer.Result result = new AdapterInitializer(transport,
+                AdapterInitializer.DEFAULT_TIMEOUT_MILLIS).initialize(0);
+        assertNull(result.getVin());
+        assertTrue(result.getVehicle().startsWith("4100"));
+    }
+
+    @Test
+    public void readsSupportedPids() throws IOException {
+        AdapterInitializer initializer = new AdapterInitializer(transport,
+                AdapterInitializer.DEFAULT_TIMEOUT_MILLIS);
+        Map<Integer, BitSet> ecus = initializer.readSupportedPids(initializer.initialize(0));
+        assertEquals(1, ecus.size());
+        BitSet supported = ecus.get(SimulatedEcu.ENGINE);
+        for (int pid = 1; pid < 256; pid++) {
+            if (!Pids.isSupportedPidsBitmap(pid)) {
+                assertEquals("PID " + pid, engine.supports(pid), supported.get(pid));
+            }
+        }
+        assertTrue(supported.get(Pids.ENGINE_RPM));
+    }
+
+    @Test
+    public void readsSupportedPidsOfEveryEcu() throws IOException {
+        simulator.addEcu(new SimulatedEcu(SimulatedEcu.TRANSMISSION, new VehicleModel(),
+                Pids.VEHICLE_SPEED));
+        AdapterInitializer initializer = new AdapterInitializer(transport,
+                AdapterInitializer.DEFAULT_TIMEOUT_MILLIS);
+        Map<Integer, BitSet> ecus = initializer.readSupportedPids(initializer.initialize(0));
+        assertEquals(2, ecus.size());
+        assertTrue(ecus.get(SimulatedEcu.ENGINE).get(Pids.ENGINE_RPM));
+        assertTrue(ecus.get(SimulatedEcu.TRANSMISSION).get(Pids.VEHICLE_SPEED));
+        assertFalse(ecus.get(SimulatedEcu.TRANSMISSION).get(Pids.ENGINE_RPM));
+    }
+
+    @Test
+    public void readsSupportedPidsWithoutEcusOnLegacyProtocols() throws IOException {
+        simulator.setVehicleProtocol(3);
+        AdapterInitializer initializer = new AdapterInitializer(transport,
+                AdapterInitializer.DEFAULT_TIMEOUT_MILLIS);
+        Map<Integer, BitSet> ecus = initializer.readSupportedPids(initializer.initialize(0));
+        assertEquals(1, ecus.size());
+        assertTrue(ecus.get(AdapterInitializer.UNKNOWN_ECU).get(Pids.ENGINE_RPM));
+    }
+
+    @Test
+    public void reusesKnownProtocol() throws IOException {
+        AdapterInitializer.Result result = new AdapterInitializer(transport,
+                AdapterInitializer.DEFAULT_TIMEOUT_MILLIS).initialize(6);
+        assertEquals(6, result.getProtocol());
+        assertTrue(result.isProtocolReused());
+    }
+
+    @Test
+    public void fallsBackToSearchWhenKnownProtocolFails() throws IOException {
+        AdapterInitializer.Result result = new AdapterInitializer(transport,
+                AdapterInitializer.DEFAULT_TIMEOUT_MILLIS).initialize(3);
+        assertEquals(6, result.getProtocol());
+        assertFalse(result.isProtocolReused());
+    }
+
+    @Test
+    public void parsesAnswers() {
+        assertEquals(6, AdapterInitializer.parseProtocol("A6\r\r"));
+        assertEquals(0xC, AdapterInitializer.parseProtocol("C"));
+        assertEquals(0, AdapterInitializer.parseProtocol("?"));
+        assertEquals("4100983B0011/4100BE3FA813", AdapterInitializer.parseVehicle(
+                "SEARCHING...\r41 00 BE 3F A8 13\r4100983B0011\r\r"));
+        assertNull(AdapterInitializer.parseVehicle("UNABLE TO CONNECT\r\r"));
+
+        Map<Integer, BitSet> ecus = new TreeMap<Integer, BitSet>();
+        AdapterInitializer.parseBitmaps("4120 80000001\r41208001 0000\r", 0x20, false, ecus);
+        BitSet supported = ecus.get(AdapterInitializer.UNKNOWN_ECU);
+        assertEquals(3, supported.cardinality());
+        assertTrue(supported.get(0x21));
+        assertTrue(supported.get(0x30));
+        assertTrue(supported.get(0x40));
+
+        ecus.clear();
+        AdapterInitializer.parseBitmaps("7E8 06 41 00 BE 3F A8 13\r7E9064100 80000001\r",
+                0x00, true, ecus);
+        assertEquals(2, ecus.size());
+        assertEquals(18, ecus.get(0x7E8).cardinality());
+        assertTrue(ecus.get(0x7E9).get(0x01));
+        assertTrue(ecus.get(0x7E9).get(0x20));
+    }
+
+    @Test
+    public void parsesVehicleInformation() {
+        assertEquals("VF1SIMULATOR00001", AdapterInitializer.parseInformation(
+                "014\r0: 49 02 01 56 46 31\r1: 53 49 4D 55 4C 41 54\r"
+                        + "2: 4F 52 30 30 30 30 31\r\r"));
+        // one message per line, padded with zeros
+        assertEquals("1G1JC5444R7252367", AdapterInitializer.parseInformation(
+                "49 02 01 00 00 00 31\r49 02 02 47 31 4A 43\r49 02 03 35 34 34 34\r"
+                        + "49 02 04 52 37 32 35\r49 02 05 32 33 36 37\r"));
+        assertNull(AdapterInitializer.parseInformation("NO DATA\r\r"));
+    }
+}
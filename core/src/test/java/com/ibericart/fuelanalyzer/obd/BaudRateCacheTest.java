@@ -0,0 +1,24 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BaudRateCacheTest {
+
+    private static final String ADAPTER = "00:11:22:33:44:55";
+
+    @Test
+    public void survivesSaveAndLoad() {
+        BaudRateCache cache = new BaudRateCache();
+        assertEquals(BaudRateCache.UNKNOWN, cache.getBaudRate(ADAPTER));
+        cache.put(ADAPTER, 500000);
+        cache.put("simulator", 0);
+        BaudRateCache loaded = BaudRateCache.load(cache.save() + "\ngarbage\nbad\t-1");
+        assertEquals(500000, loaded.getBaudRate(ADAPTER));
+        assertEquals(0, loaded.getBaudRate("simulator"));
+        assertEquals(BaudRateCache.UNKNOWN, loaded.getBaudRate("bad"));
+        loaded.remove(ADAPTER);
+        assertEquals(BaudRateCache.UNKNOWN, loaded.getBaudRate(ADAPTER));
+    }
+}
@@ -0,0 +1,75 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import com.ibericart.fuelanalyzer.simulator.Elm327Simulator;
+import com.ibericart.fuelanalyzer.simulator.SimulatedEcu;
+import com.ibericart.fuelanalyzer.simulator.VehicleModel;
+import com.ibericart.fuelanalyzer.transport.PipedTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BaudRateNegotiatorTest {
+
+    private PipedTransport transport;
+    private Elm327Simulator simulator;
+
+    @Before
+    public void setUp() throws IOException {
+        transport = new PipedTransport("test", PipedTransport.DEFAULT_BUFFER_SIZE);
+        simulator = new Elm327Simulator(transport.getPeer());
+        simulator.addEcu(SimulatedEcu.engine(new VehicleModel()));
+        simulator.setBaudRate(BaudRateNegotiator.DEFAULT_BAUD_RATE);
+        new Thread(simulator).start();
+        new AdapterInitializer(transport, AdapterInitializer.DEFAULT_TIMEOUT_MILLIS)
+                .initialize(Elm327Simulator.DEFAULT_VEHICLE_PROTOCOL);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transport.close();
+    }
+
+    @Test
+    public void switchesToHighestRate() throws IOException {
+        assertEquals(500000, new BaudRateNegotiator(transport).negotiate(0));
+        assertEquals(500000, simulator.getBaudRate());
+    }
+
+    @Test
+    public void startsWithKnownRate() throws IOException {
+        assertEquals(230400, new BaudRateNegotiator(transport).negotiate(230400));
+        // 4 MHz / 0x11
+        assertEquals(235294, simulator.getBaudRate());
+    }
+
+    @Test
+    public void revertsWhenHandshakeFails() throws IOException {
+        simulator.setBaudRateSwitchable(false);
+        assertEquals(0, new BaudRateNegotiator(transport).negotiate(0));
+        assertEquals(BaudRateNegotiator.DEFAULT_BAUD_RATE, simulator.getBaudRate());
+        // still talking
+        AdapterInitializer.Result result = new AdapterInitializer(transport,
+                AdapterInitializer.DEFAULT_TIMEOUT_MILLIS).initialize(0);
+        assertEquals(Elm327Simulator.DEFAULT_VEHICLE_PROTOCOL, result.getProtocol());
+    }
+
+    @Test
+    public void parsesIdentities() {
+        assertEquals("STN1110 r4.2.0", BaudRateNegotiator.parseIdentity("\rSTN1110 r4.2.0\r\r"));
+        assertNull(BaudRateNegotiator.parseIdentity("?\r\r"));
+        assertTrue(BaudRateNegotiator.supportsDivisor("ELM327 v1.5"));
+        assertFalse(BaudRateNegotiator.supportsDivisor("ELM327 v1.0"));
+        assertFalse(BaudRateNegotiator.supportsDivisor("OBDII v1.5"));
+        assertEquals(Arrays.asList(230400, 115200), BaudRateNegotiator.candidates(
+                new int[]{500000, 230400, 115200}, 230400));
+    }
+}
@@ -0,0 +1,72 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CapabilityCacheTest {
+
+    private static final String VIN = "VF1SIMULATOR00001";
+
+    @Test
+    public void forgetsPidsWhenCalibrationChanges() {
+        CapabilityCache cache = new CapabilityCache();
+        assertNull(cache.get(VIN, "SIM-ENGINE-0001"));
+        cache.put(VIN, "SIM-ENGINE-0001", ecus(0x7E8, pids(Pids.ENGINE_RPM, Pids.VEHICLE_SPEED)));
+        assertEquals(pids(Pids.ENGINE_RPM, Pids.VEHICLE_SPEED), cache.get(VIN, "SIM-ENGINE-0001"));
+        assertNull(cache.get(VIN, "SIM-ENGINE-0002"));
+        assertNull(cache.get(VIN, "SIM-ENGINE-0001"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void survivesSaveAndLoad() {
+        CapabilityCache cache = new CapabilityCache();
+        Map<Integer, BitSet> ecus = ecus(0x7E8, pids(0x01, Pids.ENGINE_RPM, 0x20, 0xFF));
+        ecus.put(0x7E9, pids(Pids.VEHICLE_SPEED));
+        cache.put(VIN, "SIM-ENGINE-0001", ecus);
+        cache.put("4100983B0011", null,
+                ecus(AdapterInitializer.UNKNOWN_ECU, pids(Pids.VEHICLE_SPEED)));
+        CapabilityCache loaded = CapabilityCache.load(cache.save() + "\ngarbage");
+        assertEquals(2, loaded.size());
+        assertEquals(ecus, loaded.getEcus(VIN, "SIM-ENGINE-0001"));
+        assertEquals(pids(0x01, Pids.ENGINE_RPM, 0x20, 0xFF, Pids.VEHICLE_SPEED),
+                loaded.get(VIN, "SIM-ENGINE-0001"));
+        assertEquals(pids(Pids.VEHICLE_SPEED), loaded.get("4100983B0011", null));
+    }
+
+    @Test
+    public void loadsPidsSavedWithoutEcus() {
+        CapabilityCache loaded = CapabilityCache.load(VIN + "\tSIM-ENGINE-0001\t"
+                + CapabilityCache.toHex(pids(Pids.ENGINE_RPM)));
+        assertEquals(ecus(AdapterInitializer.UNKNOWN_ECU, pids(Pids.ENGINE_RPM)),
+                loaded.getEcus(VIN, "SIM-ENGINE-0001"));
+    }
+
+    @Test
+    public void writesPidsAsBitmaps() {
+        String hex = CapabilityCache.toHex(pids(0x01, 0x0C, 0x20));
+        assertEquals("80100001", hex.substring(0, 8));
+        assertEquals(64, hex.length());
+        assertNull(CapabilityCache.fromHex("80"));
+    }
+
+    private static Map<Integer, BitSet> ecus(int ecu, BitSet pids) {
+        Map<Integer, BitSet> ecus = new TreeMap<Integer, BitSet>();
+        ecus.put(ecu, pids);
+        return ecus;
+    }
+
+    private static BitSet pids(int... pids) {
+        BitSet set = new BitSet();
+        for (int pid : pids) {
+            set.set(pid);
+        }
+        return set;
+    }
+}
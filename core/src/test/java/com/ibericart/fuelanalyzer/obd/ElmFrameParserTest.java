@@ -0,0 +1,68 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ElmFrameParserTest {
+
+    private final List<String> frames = new ArrayList<String>();
+    private ElmFrameParser parser;
+
+    @Before
+    public void setUp() {
+        parser = new ElmFrameParser(16, new ElmFrameParser.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                frames.add(new String(buffer, offset, length));
+            }
+        });
+    }
+
+    @Test
+    public void reassemblesResponseSplitAcrossReads() {
+        parser.feed(bytes("41 0"), 0, 4);
+        parser.feed(bytes("C 1A F8\r"), 0, 8);
+        assertEquals(0, frames.size());
+        parser.feed(bytes("\r>"), 0, 2);
+        assertEquals(1, frames.size());
+        assertEquals("41 0C 1A F8", frames.get(0));
+    }
+
+    @Test
+    public void reportsBarePromptAsEmptyFrame() {
+        parser.feed(bytes("\r\n>"), 0, 3);
+        assertEquals(1, frames.size());
+        assertEquals("", frames.get(0));
+    }
+
+    @Test
+    public void keepsFramesWhichWrapAroundTheRing() {
+        for (int i = 0; i < 5; i++) {
+            byte[] response = bytes("410D32\r0C1A\r\r>");
+            parser.feed(response, 0, response.length);
+        }
+        assertEquals(5, frames.size());
+        for (String frame : frames) {
+            assertEquals("410D32\r0C1A", frame);
+        }
+    }
+
+    @Test
+    public void dropsResponsesLongerThanTheRing() {
+        byte[] garbage = bytes("0123456789ABCDEF0123\r>");
+        parser.feed(garbage, 0, garbage.length);
+        parser.feed(bytes("OK\r>"), 0, 4);
+        assertEquals(1, parser.getOverflowCount());
+        assertEquals(1, frames.size());
+        assertEquals("OK", frames.get(0));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+}
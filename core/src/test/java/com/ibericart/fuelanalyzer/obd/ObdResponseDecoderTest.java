@@ -0,0 +1,69 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ObdResponseDecoderTest {
+
+    private final List<Integer> pids = new ArrayList<Integer>();
+    private final List<Float> values = new ArrayList<Float>();
+    private final ObdResponseDecoder decoder = new ObdResponseDecoder();
+    private ObdResponseDecoder.SampleListener listener;
+
+    @Before
+    public void setUp() {
+        listener = new ObdResponseDecoder.SampleListener() {
+            @Override
+            public void onSample(int pid, float value, long timestamp) {
+                pids.add(pid);
+                values.add(value);
+            }
+        };
+    }
+
+    @Test
+    public void decodesSingleFrameMultiPidResponse() {
+        assertEquals(2, decode("410C1AF80D32"));
+        assertEquals(Pids.ENGINE_RPM, (int) pids.get(0));
+        assertEquals(1726f, values.get(0), 0.001f);
+        assertEquals(Pids.VEHICLE_SPEED, (int) pids.get(1));
+        assertEquals(50f, values.get(1), 0.001f);
+    }
+
+    @Test
+    public void skipsEchoAndSpaces() {
+        assertEquals(1, decode("010D\r41 0D 32"));
+        assertEquals(50f, values.get(0), 0.001f);
+    }
+
+    @Test
+    public void joinsMultiFrameResponse() {
+        assertEquals(4, decode("00C\r0: 41 0C 1A F8 0D 32\r1: 10 01 F4 05 7B 00 00"));
+        assertEquals(Pids.MAF_AIR_FLOW_RATE, (int) pids.get(2));
+        assertEquals(5f, values.get(2), 0.001f);
+        assertEquals(83f, values.get(3), 0.001f);
+    }
+
+    @Test
+    public void keepsAnswersOfSeveralEcusApart() {
+        assertEquals(2, decode("41 0D 32\r41 0D 33"));
+        assertEquals(51f, values.get(1), 0.001f);
+    }
+
+    @Test
+    public void reportsNoData() {
+        assertEquals(0, decode("SEARCHING...\rNO DATA"));
+        assertTrue(decoder.isNoData());
+    }
+
+    private int decode(String response) {
+        byte[] bytes = response.getBytes();
+        return decoder.decodeCurrentData(bytes, 0, bytes.length, 0L, listener);
+    }
+}
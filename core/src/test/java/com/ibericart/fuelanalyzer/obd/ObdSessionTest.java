@@ -0,0 +1,218 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import com.ibericart.fuelanalyzer.simulator.Elm327Simulator;
+import com.ibericart.fuelanalyzer.simulator.SimulatedEcu;
+import com.ibericart.fuelanalyzer.simulator.VehicleModel;
+import com.ibericart.fuelanalyzer.transport.PipedTransport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ObdSessionTest {
+
+    @Test
+    public void pollsOverPipedTransport() throws Exception {
+        PipedTransport transport = new PipedTransport("test", PipedTransport.DEFAULT_BUFFER_SIZE);
+        final PipedTransport adapter = transport.getPeer();
+        final CountDownLatch samples = new CountDownLatch(10);
+        final AtomicReference<IOException> lost = new AtomicReference<IOException>();
+
+        // answers every request with the same rpm
+        Thread responder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = adapter.getInputStream();
+                    OutputStream out = adapter.getOutputStream();
+                    int b;
+                    while ((b = in.read()) >= 0) {
+                        if (b == '\r') {
+                            out.write("410C1AF8\r\r>".getBytes());
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    // the session closed the pipe
+                }
+            }
+        };
+        responder.start();
+
+        PollingScheduler scheduler = new PollingScheduler();
+        scheduler.addPid(Pids.ENGINE_RPM);
+        final ObdSession session = new ObdSession(transport, scheduler, 256,
+                new ObdSession.Listener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                    }
+
+                    @Override
+                    public void onBatchDecoded(int frames) {
+                    }
+
+                    @Override
+                    public void onConnectionLost(IOException e) {
+                        lost.set(e);
+                    }
+
+                    @Override
+                    public void onSample(int pid, float value, long timestamp) {
+                        assertEquals(Pids.ENGINE_RPM, pid);
+                        assertEquals(1726f, value, 0.001f);
+                        samples.countDown();
+                    }
+                });
+        Thread reader = new Thread(session);
+        reader.start();
+
+        assertTrue(samples.await(5, TimeUnit.SECONDS));
+        assertTrue(session.getFrameCount() >= 10);
+        session.close();
+        reader.join(5000);
+        responder.join(5000);
+        assertEquals(null, lost.get());
+    }
+
+    @Test
+    public void writesNothingBeforeRunning() throws Exception {
+        PipedTransport transport = new PipedTransport("test", PipedTransport.DEFAULT_BUFFER_SIZE);
+        PollingScheduler scheduler = new PollingScheduler();
+        scheduler.addPid(Pids.ENGINE_RPM);
+        final CountDownLatch samples = new CountDownLatch(1);
+        ObdSession session = new ObdSession(transport, scheduler, 256,
+                new ObdSession.Listener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                    }
+
+                    @Override
+                    public void onBatchDecoded(int frames) {
+                    }
+
+                    @Override
+                    public void onConnectionLost(IOException e) {
+                    }
+
+                    @Override
+                    public void onSample(int pid, float value, long timestamp) {
+                        samples.countDown();
+                    }
+                });
+        session.pollNext();
+        session.write("ATI\r".getBytes());
+        session.submit("ATRV\r".getBytes());
+        InputStream in = transport.getPeer().getInputStream();
+        OutputStream out = transport.getPeer().getOutputStream();
+        assertEquals(0, in.available());
+
+        // the held commands go first once running, then the polling starts
+        Thread reader = new Thread(session);
+        reader.start();
+        assertEquals("ATI", readCommand(in));
+        out.write("ELM327 v1.5\r\r>".getBytes());
+        assertEquals("ATRV", readCommand(in));
+        out.write("12.6V\r\r>".getBytes());
+        assertEquals("010C", readCommand(in));
+        out.write("410C1AF8\r\r>".getBytes());
+        assertTrue(samples.await(5, TimeUnit.SECONDS));
+        session.close();
+        reader.join(5000);
+    }
+
+    @Test
+    public void tunesTimeoutWithoutReportingSettings() throws Exception {
+        PipedTransport transport = new PipedTransport("test", PipedTransport.DEFAULT_BUFFER_SIZE);
+        Elm327Simulator simulator = new Elm327Simulator(transport.getPeer());
+        simulator.addEcu(SimulatedEcu.engine(new VehicleModel()));
+        new Thread(simulator).start();
+        new AdapterInitializer(transport, AdapterInitializer.DEFAULT_TIMEOUT_MILLIS)
+                .initialize(Elm327Simulator.DEFAULT_VEHICLE_PROTOCOL);
+
+        final CountDownLatch samples = new CountDownLatch(50);
+        final AtomicReference<String> frame = new AtomicReference<String>();
+        PollingScheduler scheduler = new PollingScheduler();
+        scheduler.addPid(Pids.ENGINE_RPM);
+        TimeoutTuner tuner = new TimeoutTuner(10);
+        ObdSession session = new ObdSession(transport, scheduler, 256,
+                new ObdSession.Listener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        frame.set(new String(buffer, offset, length));
+                    }
+
+                    @Override
+                    public void onBatchDecoded(int frames) {
+                    }
+
+                    @Override
+                    public void onConnectionLost(IOException e) {
+                    }
+
+                    @Override
+                    public void onSample(int pid, float value, long timestamp) {
+                        samples.countDown();
+                    }
+                });
+        session.setTimeoutTuner(tuner);
+        Thread reader = new Thread(session);
+        reader.start();
+
+        assertTrue(samples.await(5, TimeUnit.SECONDS));
+        session.close();
+        reader.join(5000);
+        assertEquals(2, tuner.getAdaptiveTiming());
+        assertTrue(tuner.getTimeout() < TimeoutTuner.DEFAULT_TIMEOUT);
+        assertTrue(tuner.getLatencies().getCount() >= 50);
+        // the OK answering the settings
+        assertEquals(null, frame.get());
+        assertFalse(tuner.getRequestRateAfter() == 0);
+    }
+
+    @Test
+    public void reportsLostConnection() throws Exception {
+        PipedTransport transport = new PipedTransport("test", 64);
+        final AtomicReference<IOException> lost = new AtomicReference<IOException>();
+        ObdSession session = new ObdSession(transport, new PollingScheduler(), 64,
+                new ObdSession.Listener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                    }
+
+                    @Override
+                    public void onBatchDecoded(int frames) {
+                    }
+
+                    @Override
+                    public void onConnectionLost(IOException e) {
+                        lost.set(e);
+                    }
+
+                    @Override
+                    public void onSample(int pid, float value, long timestamp) {
+                    }
+                });
+        transport.getPeer().close();
+        session.run();
+        assertNotNull(lost.get());
+    }
+
+    private static String readCommand(InputStream in) throws IOException {
+        StringBuilder command = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\r') {
+            command.append((char) b);
+        }
+        return command.toString();
+    }
+}
@@ -0,0 +1,162 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PollingSchedulerTest {
+
+    private static final long MS = 1000000L;
+
+    private final PollingScheduler scheduler = new PollingScheduler();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Test
+    public void packsDuePidsIntoOneRequest() throws IOException {
+        scheduler.addPid(Pids.ENGINE_RPM);
+        scheduler.addPid(Pids.VEHICLE_SPEED);
+        assertEquals(0, scheduler.sendNext(out, 0));
+        assertEquals("010C0D\r", out.toString());
+    }
+
+    @Test
+    public void keepsOneCommandInFlight() throws IOException {
+        scheduler.addPid(Pids.ENGINE_RPM);
+        scheduler.sendNext(out, 0);
+        scheduler.sendNext(out, MS);
+        assertEquals("010C\r", out.toString());
+
+        respond("410C1AF8", 2 * MS);
+        scheduler.sendNext(out, 2 * MS);
+        assertEquals("010C\r010C\r", out.toString());
+        assertEquals(1, scheduler.getSampleCount(Pids.ENGINE_RPM));
+    }
+
+    @Test
+    public void givesUpACommandWithoutPrompt() throws IOException {
+        scheduler.addPid(Pids.ENGINE_RPM);
+        scheduler.submit("ATRV".getBytes());
+        scheduler.sendNext(out, 0);
+        scheduler.sendNext(out, PollingScheduler.IN_FLIGHT_TIMEOUT_NANOS - 1);
+        assertEquals("ATRV", out.toString());
+        assertEquals(0, scheduler.getExpiredCount());
+
+        // the command never got a prompt, the polling goes on
+        scheduler.sendNext(out, PollingScheduler.IN_FLIGHT_TIMEOUT_NANOS);
+        assertEquals("ATRV010C\r", out.toString());
+        assertEquals(1, scheduler.getExpiredCount());
+    }
+
+    @Test
+    public void requestsSlowPidsOnlyWhenDue() throws IOException {
+        scheduler.addPid(Pids.ENGINE_RPM, 10f, PollingScheduler.PRIORITY_HIGH);
+        scheduler.addPid(Pids.COOLANT_TEMPERATURE, 1f, PollingScheduler.PRIORITY_LOW);
+
+        scheduler.sendNext(out, 0);
+        respond("410C1AF8", 10 * MS);
+        long wait = scheduler.sendNext(out, 10 * MS);
+        assertEquals("010C05\r", out.toString());
+        assertEquals(90 * MS, wait);
+
+        out.reset();
+        scheduler.sendNext(out, 100 * MS);
+        assertEquals("010C\r", out.toString());
+    }
+
+    @Test
+    public void favoursHighPriorityWhenOverloaded() throws IOException {
+        scheduler.setMaxPidsPerRequest(1);
+        scheduler.addPid(Pids.ENGINE_RPM, 100f, PollingScheduler.PRIORITY_HIGH);
+        scheduler.addPid(Pids.COOLANT_TEMPERATURE, 100f, PollingScheduler.PRIORITY_LOW);
+
+        int rpm = 0;
+        for (int i = 0; i < 100; i++) {
+            out.reset();
+            long now = i * 20 * MS;
+            scheduler.sendNext(out, now);
+            if (out.toString().equals("010C\r")) {
+                rpm++;
+            }
+            respond("", now);
+        }
+        assertTrue("rpm requested " + rpm + " times", rpm > 60 && rpm < 100);
+    }
+
+    @Test
+    public void skipsUnsupportedPids() throws IOException {
+        scheduler.addPid(Pids.ENGINE_RPM);
+        scheduler.addPid(Pids.VEHICLE_SPEED);
+        BitSet supported = new BitSet();
+        supported.set(Pids.VEHICLE_SPEED);
+        scheduler.setSupportedPids(supported);
+        scheduler.sendNext(out, 0);
+        assertEquals("010D\r", out.toString());
+
+        // nothing left to wait for
+        supported.clear();
+        scheduler.setSupportedPids(supported);
+        respond("410D32", MS);
+        out.reset();
+        assertEquals(0, scheduler.sendNext(out, MS));
+        assertEquals("", out.toString());
+
+        scheduler.setSupportedPids(null);
+        assertTrue(scheduler.isSupported(Pids.ENGINE_RPM));
+    }
+
+    @Test
+    public void addressesTheEcuAnsweringAllPids() throws IOException {
+        Map<Integer, BitSet> ecus = new TreeMap<Integer, BitSet>();
+        ecus.put(0x7E8, pids(Pids.ENGINE_RPM, Pids.VEHICLE_SPEED));
+        ecus.put(0x7E9, pids(Pids.VEHICLE_SPEED, Pids.COOLANT_TEMPERATURE));
+        scheduler.setResponders(ecus);
+        scheduler.addPid(Pids.ENGINE_RPM);
+        scheduler.addPid(Pids.VEHICLE_SPEED);
+        scheduler.sendNext(out, 0);
+        respond("OK", MS);
+        scheduler.sendNext(out, MS);
+        respond("OK", 2 * MS);
+        scheduler.sendNext(out, 2 * MS);
+        assertEquals("ATSH7E0\rATCRA7E8\r010C0D1\r", out.toString());
+        assertEquals(0x7E8, scheduler.getPhysicalEcu());
+
+        // the coolant temperature comes from another ECU, so both are asked
+        scheduler.addPid(Pids.COOLANT_TEMPERATURE);
+        respond("410C1AF80D32", 3 * MS);
+        out.reset();
+        scheduler.sendNext(out, 3 * MS);
+        respond("OK", 4 * MS);
+        scheduler.sendNext(out, 4 * MS);
+        respond("OK", 5 * MS);
+        scheduler.sendNext(out, 5 * MS);
+        assertEquals("ATSH7DF\rATCRA\r010C0D052\r", out.toString());
+        assertEquals(0, scheduler.getPhysicalEcu());
+
+        // e.g. after a ? to the response count
+        scheduler.setResponders(null);
+        respond("?", 7 * MS);
+        out.reset();
+        scheduler.sendNext(out, 7 * MS);
+        assertEquals("010C0D05\r", out.toString());
+    }
+
+    private static BitSet pids(int... pids) {
+        BitSet set = new BitSet();
+        for (int pid : pids) {
+            set.set(pid);
+        }
+        return set;
+    }
+
+    private void respond(String response, long timestamp) {
+        byte[] bytes = response.getBytes();
+        scheduler.onResponse(bytes, 0, bytes.length, timestamp, null);
+    }
+}
@@ -0,0 +1,35 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ProtocolCacheTest {
+
+    private static final String ADAPTER = "00:11:22:33:44:55";
+
+    @Test
+    public void offersProtocolOfLastVehicle() {
+        ProtocolCache cache = new ProtocolCache();
+        assertEquals(0, cache.getProtocol(ADAPTER));
+        cache.put(ADAPTER, "4100BE3FA813", 6);
+        cache.put(ADAPTER, "4100983B0011", 3);
+        assertEquals(3, cache.getProtocol(ADAPTER));
+        assertEquals(6, cache.getProtocol(ADAPTER, "4100BE3FA813"));
+        cache.remove(ADAPTER, "4100983B0011");
+        assertEquals(0, cache.getProtocol(ADAPTER));
+        assertNull(cache.getLastVehicle(ADAPTER));
+    }
+
+    @Test
+    public void survivesSaveAndLoad() {
+        ProtocolCache cache = new ProtocolCache();
+        cache.put(ADAPTER, "4100BE3FA813", 6);
+        cache.put("simulator", "4100983B0011", 0xA);
+        ProtocolCache loaded = ProtocolCache.load(cache.save() + "\ngarbage");
+        assertEquals(6, loaded.getProtocol(ADAPTER));
+        assertEquals(0xA, loaded.getProtocol("simulator"));
+        assertEquals("4100BE3FA813", loaded.getLastVehicle(ADAPTER));
+    }
+}
@@ -0,0 +1,75 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.junit.Test;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReadBufferPoolTest {
+
+    @Test
+    public void reusesBuffersOnceWarm() {
+        ReadBufferPool pool = new ReadBufferPool(2, 16);
+        Map<ReadBuffer, Boolean> seen = new IdentityHashMap<ReadBuffer, Boolean>();
+        for (int i = 0; i < 100; i++) {
+            ReadBuffer first = pool.acquire();
+            ReadBuffer second = pool.acquire();
+            seen.put(first, true);
+            seen.put(second, true);
+            first.release();
+            second.release();
+        }
+        // the same two buffers went round, nothing was allocated
+        assertEquals(2, seen.size());
+        assertEquals(0, pool.getExhaustionCount());
+        assertEquals(2, pool.getAvailable());
+    }
+
+    @Test
+    public void countsExhaustion() {
+        ReadBufferPool pool = new ReadBufferPool(2, 16);
+        ReadBuffer first = pool.acquire();
+        ReadBuffer second = pool.acquire();
+        assertEquals(0, pool.getAvailable());
+        ReadBuffer extra = pool.acquire();
+        assertEquals(1, pool.getExhaustionCount());
+        pool.acquire().release();
+        assertEquals(2, pool.getExhaustionCount());
+
+        // the extra buffers don't grow the pool
+        first.release();
+        second.release();
+        extra.release();
+        assertEquals(2, pool.getAvailable());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesDoubleRelease() {
+        ReadBuffer buffer = new ReadBufferPool(1, 16).acquire();
+        buffer.release();
+        buffer.release();
+    }
+
+    @Test
+    public void copiesTheSourceBytes() {
+        ReadBufferPool pool = new ReadBufferPool(1, 16);
+        byte[] source = "xx410C1AF8".getBytes();
+        ReadBuffer buffer = pool.acquire(source, 2, 8);
+        source[2] = '0';
+        source[9] = '0';
+        assertEquals("410C1AF8", new String(buffer.data(), 0, buffer.length()));
+
+        buffer.setPollResponse(true);
+        buffer.setTimestamp(42);
+        buffer.release();
+        ReadBuffer reused = pool.acquire();
+        assertEquals(0, reused.length());
+        assertEquals(0, reused.getTimestamp());
+        assertFalse(reused.isPollResponse());
+        assertTrue(reused == buffer);
+    }
+}
@@ -0,0 +1,101 @@
+package com.ibericart.fuelanalyzer.obd;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeoutTunerTest {
+
+    private static final long MS = 1000000L;
+
+    private long now;
+
+    @Test
+    public void tunesToPercentileOnceThereAreEnoughSamples() {
+        TimeoutTuner tuner = new TimeoutTuner(10);
+        record(tuner, 9, 20 * MS, 0);
+        assertEquals(Collections.emptyList(), tuner.retune());
+
+        record(tuner, 1, 20 * MS, 100 * MS);
+        // 20 ms * 1.5 = 30 ms, 8 units of 4 ms
+        assertEquals(Arrays.asList("ATAT2", "ATST08"), tuner.retune());
+        assertEquals(8, tuner.getTimeout());
+        assertEquals(Collections.emptyList(), tuner.retune());
+    }
+
+    @Test
+    public void backsOffOnNoData() {
+        TimeoutTuner tuner = new TimeoutTuner(10);
+        record(tuner, 10, 20 * MS, 0);
+        tuner.retune();
+
+        tuner.onNoData();
+        // 20 ms * 2 = 40 ms
+        assertEquals(Arrays.asList("ATAT1", "ATST0A"), tuner.retune());
+        tuner.onNoData();
+        assertEquals(Collections.singletonList("ATST14"), tuner.retune());
+        tuner.onNoData();
+        assertEquals(Collections.singletonList("ATST32"), tuner.retune());
+        tuner.onNoData();
+        assertEquals(3, tuner.getBackOffLevel());
+        assertEquals(Collections.emptyList(), tuner.retune());
+    }
+
+    @Test
+    public void tightensAgainAfterAnswersInTime() {
+        TimeoutTuner tuner = new TimeoutTuner(10);
+        record(tuner, 10, 20 * MS, 0);
+        tuner.retune();
+        tuner.onNoData();
+        tuner.onNoData();
+        assertEquals(Arrays.asList("ATAT1", "ATST14"), tuner.retune());
+
+        // a NO DATA in the run starts it over
+        int run = TimeoutTuner.RECOVERY_RUNS * 10;
+        record(tuner, run - 1, 20 * MS, 0);
+        tuner.onNoData();
+        tuner.retune();
+        assertEquals(3, tuner.getBackOffLevel());
+        record(tuner, run - 1, 20 * MS, 0);
+        assertEquals(3, tuner.getBackOffLevel());
+        record(tuner, 1, 20 * MS, 0);
+        assertEquals(2, tuner.getBackOffLevel());
+        // 20 ms * 4 = 80 ms
+        assertEquals(Collections.singletonList("ATST14"), tuner.retune());
+        record(tuner, 2 * run, 20 * MS, 0);
+        assertEquals(0, tuner.getBackOffLevel());
+        assertEquals(Arrays.asList("ATAT2", "ATST08"), tuner.retune());
+    }
+
+    @Test
+    public void restoresTuningAfterReset() {
+        TimeoutTuner tuner = new TimeoutTuner(10);
+        record(tuner, 10, MS, 0);
+        assertEquals(Arrays.asList("ATAT2", "ATST04"), tuner.retune());
+        tuner.onAdapterReset();
+        assertEquals(TimeoutTuner.DEFAULT_TIMEOUT, tuner.getTimeout());
+        assertEquals(Arrays.asList("ATAT2", "ATST04"), tuner.retune());
+    }
+
+    @Test
+    public void measuresRequestRates() {
+        TimeoutTuner tuner = new TimeoutTuner(10);
+        // 5 requests per second before, 20 after
+        record(tuner, 11, 20 * MS, 200 * MS);
+        tuner.retune();
+        record(tuner, 11, 20 * MS, 50 * MS);
+        assertEquals(5f, tuner.getRequestRateBefore(), 0.01f);
+        assertEquals(20f, tuner.getRequestRateAfter(), 0.01f);
+    }
+
+    private void record(TimeoutTuner tuner, int count, long latency, long interval) {
+        for (int i = 0; i < count; i++) {
+            now += interval;
+            tuner.recordLatency(latency, now);
+        }
+    }
+}
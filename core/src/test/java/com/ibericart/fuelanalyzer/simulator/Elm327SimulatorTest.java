@@ -0,0 +1,112 @@
+package com.ibericart.fuelanalyzer.simulator;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+import com.ibericart.fuelanalyzer.obd.Pids;
+import com.ibericart.fuelanalyzer.transport.PipedTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Elm327SimulatorTest {
+
+    private final VehicleModel vehicle = new VehicleModel();
+    private PipedTransport transport;
+    private Elm327Simulator simulator;
+    private InputStream in;
+    private OutputStream out;
+
+    @Before
+    public void setUp() throws IOException {
+        transport = new PipedTransport("test", PipedTransport.DEFAULT_BUFFER_SIZE);
+        simulator = new Elm327Simulator(transport.getPeer());
+        simulator.addEcu(SimulatedEcu.engine(vehicle));
+        simulator.addEcu(new SimulatedEcu(SimulatedEcu.TRANSMISSION, vehicle,
+                Pids.VEHICLE_SPEED));
+        new Thread(simulator).start();
+        in = transport.getInputStream();
+        out = transport.getOutputStream();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transport.close();
+    }
+
+    @Test
+    public void answersAtCommands() throws IOException {
+        assertEquals("ATZ\r\rELM327 v1.5\r\r>", send("ATZ"));
+        assertEquals("ATE0\rOK\r\r>", send("ATE0"));
+        assertEquals("OK\r\r>", send("ATSP0"));
+        assertEquals("A0\r\r>", send("ATDPN"));
+        assertEquals("?\r\r>", send("ATXYZ"));
+    }
+
+    @Test
+    public void searchesProtocolOnFirstRequest() throws IOException {
+        send("ATE0");
+        String response = send("0100");
+        assertTrue(response, response.startsWith("SEARCHING...\r41 00 "));
+        assertEquals("A6\r\r>", send("ATDPN"));
+
+        send("ATSP3");
+        assertEquals("UNABLE TO CONNECT\r\r>", send("0100"));
+    }
+
+    @Test
+    public void answersMultiPidRequestsFromEveryEcu() throws IOException {
+        send("ATE0");
+        send("ATSP6");
+        final List<Integer> pids = new ArrayList<Integer>();
+        String response = send("010C0D");
+        byte[] bytes = response.getBytes();
+        new ObdResponseDecoder().decodeCurrentData(bytes, 0, bytes.length - 1, 0,
+                new ObdResponseDecoder.SampleListener() {
+                    @Override
+                    public void onSample(int pid, float value, long timestamp) {
+                        pids.add(pid);
+                    }
+                });
+        assertEquals(3, pids.size());
+        assertEquals(Pids.VEHICLE_SPEED, (int) pids.get(2));
+
+        // physical addressing and an expected response count
+        send("ATSH7E1");
+        assertTrue(send("010D1").startsWith("41 0D "));
+        assertEquals("NO DATA\r\r>", send("010C"));
+    }
+
+    @Test
+    public void splitsLongAnswersIntoFrames() throws IOException {
+        send("ATE0");
+        send("ATSP6");
+        assertEquals("014\r0: 49 02 01 56 46 31\r1: 53 49 4D 55 4C 41 54\r"
+                + "2: 4F 52 30 30 30 30 31\r\r>", send("0902"));
+        send("ATH1");
+        send("ATS0");
+        assertEquals("7E81014490201564631\r7E82153494D554C4154\r7E8224F523030303031\r\r>",
+                send("0902"));
+    }
+
+    private String send(String command) throws IOException {
+        out.write((command + "\r").getBytes());
+        StringBuilder response = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            response.append((char) b);
+            if (b == '>') {
+                break;
+            }
+        }
+        return response.toString();
+    }
+}
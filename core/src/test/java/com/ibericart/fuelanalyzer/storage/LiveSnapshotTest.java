@@ -0,0 +1,49 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.Pids;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LiveSnapshotTest {
+
+    private final LiveSnapshot snapshot = new LiveSnapshot(2);
+    private final int[] signals = new int[snapshot.getSignalCount()];
+    private final float[] values = new float[snapshot.getSignalCount()];
+
+    @Test
+    public void reportsEachChangedSignalOnceWithItsLatestValue() {
+        assertTrue(Float.isNaN(snapshot.get(Pids.ENGINE_RPM)));
+        for (int i = 0; i < 100; i++) {
+            snapshot.onSample(Pids.ENGINE_RPM, 800 + i, i);
+        }
+        snapshot.set(LiveSnapshot.FIRST_DERIVED_SIGNAL, 6.5f, 100);
+        assertTrue(snapshot.isDirty());
+
+        assertEquals(2, snapshot.collectChanges(signals, values));
+        assertEquals(Pids.ENGINE_RPM, signals[0]);
+        assertEquals(899f, values[0], 0f);
+        assertEquals(LiveSnapshot.FIRST_DERIVED_SIGNAL, signals[1]);
+        assertEquals(6.5f, values[1], 0f);
+
+        assertFalse(snapshot.isDirty());
+        assertEquals(0, snapshot.collectChanges(signals, values));
+    }
+
+    @Test
+    public void ignoresUnchangedValues() {
+        snapshot.onSample(Pids.VEHICLE_SPEED, 50, 1);
+        snapshot.collectChanges(signals, values);
+
+        snapshot.onSample(Pids.VEHICLE_SPEED, 50, 2);
+        assertFalse(snapshot.isDirty());
+        assertEquals(2, snapshot.getTimestamp(Pids.VEHICLE_SPEED));
+
+        snapshot.onSample(Pids.VEHICLE_SPEED, 51, 3);
+        assertEquals(1, snapshot.collectChanges(signals, values));
+        assertEquals(51f, values[0], 0f);
+    }
+}
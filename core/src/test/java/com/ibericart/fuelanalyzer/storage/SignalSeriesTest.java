@@ -0,0 +1,61 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SignalSeriesTest {
+
+    private final SignalSeries series = new SignalSeries(8, 10, 4);
+    private final WindowStats stats = new WindowStats();
+
+    @Test
+    public void answersRecentWindowsFromRawSamples() {
+        for (int t = 0; t < 20; t++) {
+            series.add(t, t);
+        }
+        assertEquals(8, series.size());
+        assertEquals(19f, series.getLatestValue(), 0f);
+
+        assertEquals(4, series.statsLast(3, stats));
+        assertEquals(16f, stats.getMin(), 0f);
+        assertEquals(19f, stats.getMax(), 0f);
+        assertEquals(17.5f, stats.getAverage(), 0.001f);
+    }
+
+    @Test
+    public void answersOlderWindowsFromBuckets() {
+        for (int t = 0; t < 40; t++) {
+            series.add(t, t);
+        }
+        // the raw samples only go back to 32, the buckets cover [0, 40)
+        assertEquals(40, series.stats(0, 39, stats));
+        assertEquals(0f, stats.getMin(), 0f);
+        assertEquals(39f, stats.getMax(), 0f);
+        assertEquals(19.5f, stats.getAverage(), 0.001f);
+    }
+
+    @Test
+    public void dropsBucketsOlderThanTheirCapacity() {
+        for (int t = 0; t < 60; t++) {
+            series.add(t, 1f);
+        }
+        series.add(100, 5f);
+        // only the buckets [70, 100] are kept, and only the last one has samples
+        assertEquals(1, series.stats(0, 100, stats));
+        assertEquals(5f, stats.getAverage(), 0f);
+    }
+
+    @Test
+    public void copiesRawSamplesOldestFirst() {
+        for (int t = 0; t < 10; t++) {
+            series.add(t * 2, t);
+        }
+        long[] times = new long[3];
+        float[] values = new float[3];
+        assertEquals(3, series.copy(7, 100, times, values));
+        assertEquals(8, times[0]);
+        assertEquals(4f, values[0], 0f);
+        assertEquals(12, times[2]);
+    }
+}
@@ -0,0 +1,116 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TripFileTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("trip", ".fat");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void roundTripsIrregularSamples() throws IOException {
+        long[] times = new long[2500];
+        float[] values = new float[times.length];
+        TripFileWriter writer = new TripFileWriter(new FileOutputStream(file), 1000);
+        long time = 1460000000000L;
+        for (int i = 0; i < times.length; i++) {
+            time += 100 + (i % 7 == 0 ? 13 : 0) - (i % 11 == 0 ? 40 : 0);
+            times[i] = time;
+            values[i] = i % 5 == 0 ? values[Math.max(i - 1, 0)] : (float) Math.sin(i / 50.0) * 3000f;
+            writer.append(0x0C, times[i], values[i]);
+            writer.append(0x0D, times[i], i % 3);
+        }
+        writer.close();
+
+        TripFileReader reader = new TripFileReader(file);
+        assertEquals(6, reader.getBlockCount());
+        assertEquals(2 * times.length, reader.getSampleCount());
+        long[] timesOut = new long[1000];
+        float[] valuesOut = new float[1000];
+        int offset = 0;
+        for (int block = 0; block < reader.getBlockCount(); block++) {
+            if (reader.getBlockPid(block) != 0x0C) {
+                continue;
+            }
+            int count = reader.readBlock(block, timesOut, valuesOut);
+            for (int i = 0; i < count; i++) {
+                assertEquals(times[offset + i], timesOut[i]);
+                assertEquals(Float.floatToRawIntBits(values[offset + i]),
+                        Float.floatToRawIntBits(valuesOut[i]));
+            }
+            offset += count;
+        }
+        assertEquals(times.length, offset);
+        reader.close();
+    }
+
+    @Test
+    public void readsOnlyTheRequestedRange() throws IOException {
+        TripFileWriter writer = new TripFileWriter(new FileOutputStream(file), 10);
+        for (int i = 0; i < 100; i++) {
+            writer.append(0x0D, i * 1000L, i);
+            writer.append(0x10, i * 1000L, i * 0.5f);
+        }
+        writer.close();
+
+        final List<Float> values = new ArrayList<Float>();
+        TripFileReader reader = new TripFileReader(file);
+        long count = reader.read(0x0D, 25000, 34000, new ObdResponseDecoder.SampleListener() {
+            @Override
+            public void onSample(int pid, float value, long timestamp) {
+                assertEquals((long) value * 1000000000L, timestamp);
+                values.add(value);
+            }
+        });
+        reader.close();
+        assertEquals(10, count);
+        assertEquals(25f, values.get(0), 0f);
+        assertEquals(34f, values.get(9), 0f);
+    }
+
+    @Test
+    public void compressesRecordedTrip() throws IOException {
+        File recorded = File.createTempFile("trip", ".bin");
+        recorded.delete();
+        try {
+            TripRecorder recorder = new TripRecorder(recorded);
+            for (int i = 0; i < 50; i++) {
+                recorder.onSample(0x0C, 800f + i, i * 100000000L);
+            }
+            recorder.close();
+
+            assertEquals(50, TripFileWriter.compress(recorded, file));
+            TripFileReader reader = new TripFileReader(file);
+            long[] times = new long[50];
+            float[] values = new float[50];
+            assertEquals(50, reader.readBlock(0, times, values));
+            assertEquals(4900L, times[49] - times[0], 1L);
+            assertEquals(849f, values[49], 0f);
+            reader.close();
+        }
+        finally {
+            recorded.delete();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.ibericart.fuelanalyzer.storage;
+
+import com.ibericart.fuelanalyzer.obd.ObdResponseDecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TripRecorderTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("trip", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void appendsRecordsAcrossChunks() throws IOException {
+        TripRecorder recorder = new TripRecorder(file, 4 * TripRecorder.RECORD_SIZE, 1000);
+        for (int i = 0; i < 10; i++) {
+            recorder.onSample(0x0C, i * 100f, i);
+        }
+        recorder.close();
+
+        List<Float> values = replay();
+        assertEquals(10, values.size());
+        assertEquals(900f, values.get(9), 0f);
+    }
+
+    @Test
+    public void truncatesTornRecordWhenReopened() throws IOException {
+        TripRecorder recorder = new TripRecorder(file, 4 * TripRecorder.RECORD_SIZE, 1000);
+        for (int i = 0; i < 3; i++) {
+            recorder.onSample(0x0D, i, i);
+        }
+        recorder.close();
+
+        // half a record, as left by a crash in the middle of a write
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(TripRecorder.HEADER_SIZE + 3 * TripRecorder.RECORD_SIZE);
+        raw.writeLong(12345L);
+        raw.close();
+
+        recorder = new TripRecorder(file, 4 * TripRecorder.RECORD_SIZE, 1000);
+        assertEquals(3, recorder.getRecordCount());
+        recorder.onSample(0x0D, 3f, 3);
+        recorder.close();
+
+        List<Float> values = replay();
+        assertEquals(4, values.size());
+        assertEquals(3f, values.get(3), 0f);
+    }
+
+    @Test
+    public void truncatesCorruptCommittedRecordWhenReopened() throws IOException {
+        TripRecorder recorder = new TripRecorder(file, 4 * TripRecorder.RECORD_SIZE, 1000);
+        for (int i = 0; i < 10; i++) {
+            recorder.onSample(0x0C, i, i);
+        }
+        recorder.close();
+
+        // the header counts all 10 records, but the sixth one was torn by a power loss
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(TripRecorder.HEADER_SIZE + 5 * TripRecorder.RECORD_SIZE);
+        raw.write(new byte[TripRecorder.RECORD_SIZE]);
+        raw.close();
+
+        recorder = new TripRecorder(file, 4 * TripRecorder.RECORD_SIZE, 1000);
+        assertEquals(5, recorder.getRecordCount());
+        recorder.onSample(0x0C, 42f, 10);
+        recorder.close();
+
+        // what's appended after reopening can be read back
+        List<Float> values = replay();
+        assertEquals(6, values.size());
+        assertEquals(42f, values.get(5), 0f);
+    }
+
+    private List<Float> replay() throws IOException {
+        final List<Float> values = new ArrayList<Float>();
+        TripRecorder.replay(file, new ObdResponseDecoder.SampleListener() {
+            @Override
+            public void onSample(int pid, float value, long timestamp) {
+                values.add(value);
+            }
+        });
+        return values;
+    }
+}
@@ -0,0 +1,135 @@
+package com.ibericart.fuelanalyzer.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RacingTransportTest {
+
+    /**
+     * Connects after a delay, fails or blocks until closed.
+     */
+    private static class FakeTransport implements Transport {
+
+        private final long delayMillis;
+        private final boolean fails;
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        FakeTransport(long delayMillis, boolean fails) {
+            this.delayMillis = delayMillis;
+            this.fails = fails;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            try {
+                if (closed.await(delayMillis, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("closed");
+                }
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (fails) {
+                throw new IOException("refused");
+            }
+        }
+
+        boolean isClosed() {
+            return closed.getCount() == 0;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    private final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+
+    private final RacingTransport.Listener listener = new RacingTransport.Listener() {
+        @Override
+        public void onResult(String strategy, boolean success, long latencyMillis) {
+            results.add(strategy + "=" + success);
+        }
+    };
+
+    @Test
+    public void fastestCandidateWinsAndOthersAreClosed() throws Exception {
+        FakeTransport slow = new FakeTransport(10000, false);
+        FakeTransport fast = new FakeTransport(10, false);
+        Map<String, Transport> candidates = new LinkedHashMap<String, Transport>();
+        candidates.put("slow", slow);
+        candidates.put("fast", fast);
+        RacingTransport racing = new RacingTransport(candidates, 0, listener);
+        racing.connect();
+        assertSame(fast, racing.getWinner());
+        assertEquals("fast", racing.getWinnerStrategy());
+        assertTrue(slow.isClosed());
+        assertFalse(fast.isClosed());
+        // the cancelled candidate is not blamed
+        assertEquals("[fast=true]", results.toString());
+    }
+
+    @Test
+    public void othersStartWhenFirstFailsDuringHeadStart() throws Exception {
+        FakeTransport failing = new FakeTransport(0, true);
+        FakeTransport other = new FakeTransport(0, false);
+        Map<String, Transport> candidates = new LinkedHashMap<String, Transport>();
+        candidates.put("first", failing);
+        candidates.put("other", other);
+        RacingTransport racing = new RacingTransport(candidates, 10000, listener);
+        long start = System.nanoTime();
+        racing.connect();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertSame(other, racing.getWinner());
+        assertEquals("[first=false, other=true]", results.toString());
+    }
+
+    @Test
+    public void failsWithLastErrorWhenAllFail() {
+        Map<String, Transport> candidates = new LinkedHashMap<String, Transport>();
+        candidates.put("a", new FakeTransport(0, true));
+        candidates.put("b", new FakeTransport(20, true));
+        RacingTransport racing = new RacingTransport(candidates, 0, listener);
+        try {
+            racing.connect();
+            fail("connected");
+        }
+        catch (IOException e) {
+            assertEquals("refused", e.getMessage());
+        }
+        assertEquals(null, racing.getWinner());
+        assertEquals(2, results.size());
+    }
+}